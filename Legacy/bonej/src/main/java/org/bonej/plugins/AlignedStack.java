@@ -0,0 +1,479 @@
+/*-
+ * #%L
+ * Mavenized version of the BoneJ1 plugins
+ * %%
+ * Copyright (C) 2015 - 2020 Michael Doube, BoneJ developers
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.bonej.plugins;
+
+import java.awt.Rectangle;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bonej.util.Multithreader;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.Prefs;
+import ij.VirtualStack;
+import ij.measure.Calibration;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+/**
+ * Stack of an image resampled into its principal axes by the inverse
+ * rotation, taking each target voxel's nearest source voxel or interpolating
+ * between the eight around it. Slices can be rendered all at once, in
+ * parallel, or one at a time as a virtual stack when they are displayed.
+ * <p>
+ * The centroid, target centre and source voxel size are folded into the
+ * source coordinates of the first target voxel and the steps per target x, y
+ * and z, in source pixels. Each row starts from its own coordinates and adds
+ * the x step per voxel, so the inner loop has no multiplications or
+ * divisions. The sums may round differently from the full matrix product, and
+ * so pick the other voxel, only where a coordinate lies on a voxel boundary.
+ * Each row is first clipped to the span that can fall inside the source, so
+ * the empty space around a rotated image costs almost nothing.
+ * </p>
+ *
+ * @author Michael Doube
+ * @see Moments
+ */
+public class AlignedStack extends VirtualStack {
+
+	/** source slices from startSlice to endSlice */
+	private final Object[] sourcePixels;
+	private final int sourceWidth;
+	private final int startSlice;
+	private final int endSlice;
+	private final int bitDepth;
+	/** source ROI bounds, in pixels */
+	private final int rX;
+	private final int rY;
+	private final int rW;
+	private final int rH;
+	private final int depth;
+	/** target voxel size */
+	private final double vS;
+	/** source pixel coordinates of target voxel (0, 0, 0) */
+	private final double[] origin = new double[3];
+	/** change in source pixel coordinates per target pixel along a row */
+	private final double[] xStep = new double[3];
+	/** change in source pixel coordinates per target row */
+	private final double[] yStep = new double[3];
+	/** change in source pixel coordinates per target slice */
+	private final double[] zStep = new double[3];
+	private final boolean interpolate;
+	private final boolean doAxes;
+	private final double displayMin;
+	private final double displayMax;
+
+	/**
+	 * Create a stack of an image aligned to its principal axes
+	 *
+	 * @param imp source image, which should not change while this stack is in
+	 *          use
+	 * @param eigenVecInv inverse rotation matrix (target to source)
+	 * @param centroid centroid of the source image in real units, {x,y,z}
+	 * @param startSlice first source slice to sample
+	 * @param endSlice last source slice to sample
+	 * @param width target width
+	 * @param height target height
+	 * @param depth target depth
+	 * @param interpolate if true, interpolate trilinearly between source voxels
+	 *          instead of taking the nearest
+	 * @param doAxes if true, draw the principal axes on the stack
+	 */
+	public AlignedStack(final ImagePlus imp, final double[][] eigenVecInv,
+		final double[] centroid, final int startSlice, final int endSlice,
+		final int width, final int height, final int depth,
+		final boolean interpolate, final boolean doAxes)
+	{
+		super(width, height, null, null);
+		final ImageStack stack = imp.getImageStack();
+		sourcePixels = new Object[endSlice - startSlice + 1];
+		for (int z = startSlice; z <= endSlice; z++) {
+			sourcePixels[z - startSlice] = stack.getPixels(z);
+		}
+		sourceWidth = stack.getWidth();
+		this.startSlice = startSlice;
+		this.endSlice = endSlice;
+		bitDepth = imp.getBitDepth();
+		final Rectangle r = imp.getProcessor().getRoi();
+		rX = r.x;
+		rY = r.y;
+		rW = r.x + r.width;
+		rH = r.y + r.height;
+		this.depth = depth;
+		this.interpolate = interpolate;
+		this.doAxes = doAxes;
+		displayMin = imp.getDisplayRangeMin();
+		displayMax = imp.getDisplayRangeMax();
+
+		final Calibration cal = imp.getCalibration();
+		final double[] sourceVoxel = { cal.pixelWidth, cal.pixelHeight,
+			cal.pixelDepth };
+		vS = Math.min(sourceVoxel[0], Math.min(sourceVoxel[1], sourceVoxel[2]));
+		// centre of the target stack, in real units
+		final double[] targetCentre = { width * vS / 2, height * vS / 2, depth * vS /
+			2 };
+		for (int i = 0; i < 3; i++) {
+			origin[i] = (centroid[i] - targetCentre[0] * eigenVecInv[0][i] -
+				targetCentre[1] * eigenVecInv[1][i] - targetCentre[2] *
+					eigenVecInv[2][i]) / sourceVoxel[i];
+			xStep[i] = vS * eigenVecInv[0][i] / sourceVoxel[i];
+			yStep[i] = vS * eigenVecInv[1][i] / sourceVoxel[i];
+			zStep[i] = vS * eigenVecInv[2][i] / sourceVoxel[i];
+		}
+	}
+
+	/**
+	 * Render every slice, splitting the stack into z-slabs over the available
+	 * threads
+	 *
+	 * @return stack holding the pixels of each slice
+	 */
+	ImageStack renderAll() {
+		final int w = getWidth();
+		final int h = getHeight();
+		final Object[] pixels = new Object[depth];
+		final int nSlabs = Math.min(depth, 4 * Prefs.getThreads());
+		final AtomicInteger ai = new AtomicInteger(0);
+		final AtomicInteger done = new AtomicInteger(0);
+		final int progressStep = Math.max(1, depth / 100);
+		IJ.showStatus("Aligning image stack...");
+		final Thread[] threads = Multithreader.newThreads();
+		for (int thread = 0; thread < threads.length; thread++) {
+			threads[thread] = new Thread(() -> {
+				final int[] rowSlices = new int[w];
+				final int[] rowIndices = new int[w];
+				for (int slab = ai.getAndIncrement(); slab < nSlabs; slab = ai.getAndIncrement()) {
+					final int slabStart = (int) ((long) slab * depth / nSlabs) + 1;
+					final int slabEnd = (int) ((long) (slab + 1) * depth / nSlabs);
+					for (int z = slabStart; z <= slabEnd; z++) {
+						final ImageProcessor ip = render(z, rowSlices, rowIndices);
+						pixels[z - 1] = ip.getPixels();
+						final int nDone = done.incrementAndGet();
+						if (nDone % progressStep == 0) IJ.showProgress(nDone, depth);
+					}
+				}
+			});
+		}
+		Multithreader.startAndJoin(threads);
+		IJ.showProgress(1.0);
+
+		final ImageStack stack = new ImageStack(w, h);
+		for (int z = 0; z < depth; z++)
+			stack.addSlice(null, pixels[z]);
+		return stack;
+	}
+
+	/**
+	 * Sample one target slice from the source, and draw the axes on it if they
+	 * were requested
+	 *
+	 * @param z target slice number, from 1
+	 * @param rowSlices buffer for the source slice of each voxel in a row
+	 * @param rowIndices buffer for the source index of each voxel in a row
+	 * @return processor of the slice
+	 */
+	private ImageProcessor render(final int z, final int[] rowSlices,
+		final int[] rowIndices)
+	{
+		final int w = getWidth();
+		final int h = getHeight();
+		final Object pixels = Moments.getEmptyPixels(w, h, bitDepth);
+		final double[] rowStart = new double[3];
+		for (int y = 0; y < h; y++) {
+			for (int i = 0; i < 3; i++) {
+				rowStart[i] = origin[i] + y * yStep[i] + z * zStep[i];
+			}
+			final int[] span = getSpan(rowStart, w);
+			if (span[0] > span[1]) continue;
+			final int offset = y * w;
+			double xS = rowStart[0] + span[0] * xStep[0];
+			double yS = rowStart[1] + span[0] * xStep[1];
+			double zS = rowStart[2] + span[0] * xStep[2];
+			for (int x = span[0]; x <= span[1]; x++, xS += xStep[0], yS +=
+				xStep[1], zS += xStep[2])
+			{
+				final int xA = (int) Math.floor(xS);
+				final int yA = (int) Math.floor(yS);
+				final int zA = (int) Math.floor(zS);
+				if (xA < rX || xA >= rW || yA < rY || yA >= rH || zA < startSlice ||
+					zA > endSlice)
+				{
+					rowSlices[x] = -1;
+				}
+				else if (interpolate) {
+					rowSlices[x] = -1;
+					setInterpolated(pixels, offset + x, xS, yS, zS);
+				}
+				else {
+					rowSlices[x] = zA - startSlice;
+					rowIndices[x] = yA * sourceWidth + xA;
+				}
+			}
+			copyRow(rowSlices, rowIndices, span[0], span[1], pixels, offset);
+		}
+		final ImageProcessor ip = getProcessor(pixels);
+		if (doAxes) drawAxes(ip, z);
+		return ip;
+	}
+
+	/**
+	 * Find the part of a target row whose source coordinates may be inside the
+	 * source ROI and slices, widened by a voxel at each end to allow for
+	 * rounding
+	 *
+	 * @param rowStart source pixel coordinates of the row's first voxel
+	 * @param w row width
+	 * @return first and last x of the span, with the first greater than the
+	 *         last if the whole row is outside the source
+	 */
+	private int[] getSpan(final double[] rowStart, final int w) {
+		final double[] lower = { rX, rY, startSlice };
+		final double[] upper = { rW, rH, endSlice + 1.0 };
+		double first = 0;
+		double last = w - 1;
+		for (int i = 0; i < 3; i++) {
+			final double step = xStep[i];
+			if (step == 0) {
+				if (rowStart[i] < lower[i] - 1 || rowStart[i] > upper[i] + 1) {
+					return new int[] { 1, 0 };
+				}
+				continue;
+			}
+			final double a = (lower[i] - rowStart[i]) / step;
+			final double b = (upper[i] - rowStart[i]) / step;
+			first = Math.max(first, Math.floor(Math.min(a, b)) - 1);
+			last = Math.min(last, Math.ceil(Math.max(a, b)) + 1);
+		}
+		return new int[] { (int) first, (int) last };
+	}
+
+	/**
+	 * Copy the sampled source voxels into a row of the target slice
+	 *
+	 * @param rowSlices source slice of each voxel, or -1 if it is outside the
+	 *          source or has already been set
+	 * @param rowIndices source index of each voxel
+	 * @param first first x to copy
+	 * @param last last x to copy
+	 * @param pixels target slice
+	 * @param offset index of the row's first voxel in the target slice
+	 */
+	private void copyRow(final int[] rowSlices, final int[] rowIndices,
+		final int first, final int last, final Object pixels, final int offset)
+	{
+		if (pixels instanceof byte[]) {
+			final byte[] target = (byte[]) pixels;
+			for (int x = first; x <= last; x++) {
+				if (rowSlices[x] >= 0) target[offset + x] =
+					((byte[]) sourcePixels[rowSlices[x]])[rowIndices[x]];
+			}
+		}
+		else if (pixels instanceof short[]) {
+			final short[] target = (short[]) pixels;
+			for (int x = first; x <= last; x++) {
+				if (rowSlices[x] >= 0) target[offset + x] =
+					((short[]) sourcePixels[rowSlices[x]])[rowIndices[x]];
+			}
+		}
+		else if (pixels instanceof float[]) {
+			final float[] target = (float[]) pixels;
+			for (int x = first; x <= last; x++) {
+				if (rowSlices[x] >= 0) target[offset + x] =
+					((float[]) sourcePixels[rowSlices[x]])[rowIndices[x]];
+			}
+		}
+		else {
+			final int[] target = (int[]) pixels;
+			for (int x = first; x <= last; x++) {
+				if (rowSlices[x] >= 0) target[offset + x] =
+					((int[]) sourcePixels[rowSlices[x]])[rowIndices[x]];
+			}
+		}
+	}
+
+	/**
+	 * Set a target voxel to the trilinear interpolation of the eight source
+	 * voxels around a point. Source values lie at the voxel centres, and
+	 * neighbours beyond the source ROI or slices are clamped to its edge. RGB
+	 * channels are interpolated separately.
+	 *
+	 * @param pixels target slice
+	 * @param index index of the voxel in the target slice
+	 * @param xS source x, in pixels
+	 * @param yS source y, in pixels
+	 * @param zS source slice number
+	 */
+	private void setInterpolated(final Object pixels, final int index,
+		final double xS, final double yS, final double zS)
+	{
+		final int x0 = (int) Math.floor(xS - 0.5);
+		final int y0 = (int) Math.floor(yS - 0.5);
+		final int z0 = (int) Math.floor(zS - 0.5);
+		final double fx = xS - 0.5 - x0;
+		final double fy = yS - 0.5 - y0;
+		final double fz = zS - 0.5 - z0;
+		final int xa = clamp(x0, rX, rW - 1);
+		final int xb = clamp(x0 + 1, rX, rW - 1);
+		final int ya = clamp(y0, rY, rH - 1) * sourceWidth;
+		final int yb = clamp(y0 + 1, rY, rH - 1) * sourceWidth;
+		final Object za = sourcePixels[clamp(z0, startSlice, endSlice) -
+			startSlice];
+		final Object zb = sourcePixels[clamp(z0 + 1, startSlice, endSlice) -
+			startSlice];
+		final int[] corners = { ya + xa, ya + xb, yb + xa, yb + xb };
+		if (pixels instanceof int[]) {
+			int rgb = 0xff000000;
+			for (int shift = 16; shift >= 0; shift -= 8) {
+				final double value = trilinear(za, zb, corners, fx, fy, fz, shift);
+				rgb |= (int) (value + 0.5) << shift;
+			}
+			((int[]) pixels)[index] = rgb;
+			return;
+		}
+		final double value = trilinear(za, zb, corners, fx, fy, fz, 0);
+		if (pixels instanceof byte[]) ((byte[]) pixels)[index] = (byte) (int) (value +
+			0.5);
+		else if (pixels instanceof short[]) ((short[]) pixels)[index] =
+			(short) (int) (value + 0.5);
+		else ((float[]) pixels)[index] = (float) value;
+	}
+
+	/**
+	 * Interpolate between the four corners of two source slices
+	 *
+	 * @param za lower slice
+	 * @param zb upper slice
+	 * @param corners indices of the corners, lower y first, lower x first
+	 * @param fx fraction of the way from the lower to the upper x
+	 * @param fy fraction of the way from the lower to the upper y
+	 * @param fz fraction of the way from the lower to the upper slice
+	 * @param shift bits to shift an RGB pixel right to reach its channel
+	 * @return interpolated value
+	 */
+	private static double trilinear(final Object za, final Object zb,
+		final int[] corners, final double fx, final double fy, final double fz,
+		final int shift)
+	{
+		final double a = bilinear(za, corners, fx, fy, shift);
+		final double b = bilinear(zb, corners, fx, fy, shift);
+		return a + (b - a) * fz;
+	}
+
+	private static double bilinear(final Object slice, final int[] corners,
+		final double fx, final double fy, final int shift)
+	{
+		final double v00 = getValue(slice, corners[0], shift);
+		final double v01 = getValue(slice, corners[1], shift);
+		final double v10 = getValue(slice, corners[2], shift);
+		final double v11 = getValue(slice, corners[3], shift);
+		final double a = v00 + (v01 - v00) * fx;
+		final double b = v10 + (v11 - v10) * fx;
+		return a + (b - a) * fy;
+	}
+
+	private static double getValue(final Object slice, final int index,
+		final int shift)
+	{
+		if (slice instanceof byte[]) return ((byte[]) slice)[index] & 0xff;
+		if (slice instanceof short[]) return ((short[]) slice)[index] & 0xffff;
+		if (slice instanceof float[]) return ((float[]) slice)[index];
+		return (((int[]) slice)[index] >> shift) & 0xff;
+	}
+
+	private static int clamp(final int value, final int min, final int max) {
+		return Math.max(min, Math.min(max, value));
+	}
+
+	/**
+	 * Draw the z axis as a point at the centre of the slice, and the x and y
+	 * axes as lines across the middle slice
+	 *
+	 * @param ip processor of the slice
+	 * @param z slice number, from 1
+	 */
+	private void drawAxes(final ImageProcessor ip, final int z) {
+		final int xCent = (int) Math.floor(getWidth() * vS / 2 / vS);
+		final int yCent = (int) Math.floor(getHeight() * vS / 2 / vS);
+		final int zCent = (int) Math.floor(depth * vS / 2 / vS);
+		final int axisColour = Integer.MAX_VALUE;
+		ip.set(xCent, yCent, axisColour);
+		if (z != zCent) return;
+		ip.setColor(axisColour);
+		ip.drawLine(0, yCent, getWidth(), yCent);
+		ip.drawLine(xCent, 0, xCent, getHeight());
+	}
+
+	private ImageProcessor getProcessor(final Object pixels) {
+		final int w = getWidth();
+		final int h = getHeight();
+		if (pixels instanceof byte[]) return new ByteProcessor(w, h,
+			(byte[]) pixels);
+		if (pixels instanceof short[]) return new ShortProcessor(w, h,
+			(short[]) pixels, null);
+		if (pixels instanceof float[]) return new FloatProcessor(w, h,
+			(float[]) pixels);
+		return new ColorProcessor(w, h, (int[]) pixels);
+	}
+
+	@Override
+	public ImageProcessor getProcessor(final int n) {
+		if (n < 1 || n > depth) {
+			throw new IllegalArgumentException("Slice " + n + " out of range 1-" +
+				depth);
+		}
+		final int w = getWidth();
+		final ImageProcessor ip = render(n, new int[w], new int[w]);
+		if (bitDepth != 24) ip.setMinAndMax(displayMin, displayMax);
+		return ip;
+	}
+
+	@Override
+	public Object getPixels(final int n) {
+		return getProcessor(n).getPixels();
+	}
+
+	@Override
+	public int getSize() {
+		return depth;
+	}
+
+	@Override
+	public int getBitDepth() {
+		return bitDepth;
+	}
+
+	@Override
+	public String getSliceLabel(final int n) {
+		return null;
+	}
+}
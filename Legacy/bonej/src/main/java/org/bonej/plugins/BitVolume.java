@@ -0,0 +1,194 @@
+/*-
+ * #%L
+ * Mavenized version of the BoneJ1 plugins
+ * %%
+ * Copyright (C) 2015 - 2020 Michael Doube, BoneJ developers
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.bonej.plugins;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bonej.util.Multithreader;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+
+/**
+ * A binary volume packed 64 voxels to a {@code long}, for sweeps that only
+ * need to know whether a voxel is foreground. It takes an eighth of the
+ * memory of a byte stack, so an eighth of the data has to be streamed through
+ * the caches, and whole runs of 64 voxels can be combined with bitwise
+ * operations and counted with {@link Long#bitCount(long)}.
+ * <p>
+ * Each slice is an array of rows, and each row is {@link #getWordsPerRow()}
+ * words long. Bit {@code x & 63} of word {@code x >> 6} of a row holds voxel
+ * x. Rows have at least one spare bit after the last voxel, which is always
+ * 0, so that a row shifted left by one voxel still fits in its words.
+ * </p>
+ *
+ * @author Michael Doube
+ */
+final class BitVolume {
+
+	private final int width;
+	private final int height;
+	private final int depth;
+	private final int wordsPerRow;
+
+	/** packed voxels, one array of height * wordsPerRow words per slice */
+	private final long[][] slices;
+
+	/**
+	 * Create an empty volume
+	 *
+	 * @param width width in voxels
+	 * @param height height in voxels
+	 * @param depth number of slices
+	 */
+	BitVolume(final int width, final int height, final int depth) {
+		this.width = width;
+		this.height = height;
+		this.depth = depth;
+		wordsPerRow = (width >> 6) + 1;
+		slices = new long[depth][height * wordsPerRow];
+	}
+
+	/**
+	 * Pack the foreground (255) voxels of a binary image, slices in parallel
+	 *
+	 * @param imp binary 8-bit image
+	 * @return packed copy of the image
+	 */
+	static BitVolume pack(final ImagePlus imp) {
+		final ImageStack stack = imp.getImageStack();
+		final int w = imp.getWidth();
+		final int h = imp.getHeight();
+		final int d = imp.getImageStackSize();
+		final BitVolume volume = new BitVolume(w, h, d);
+		final AtomicInteger ai = new AtomicInteger(0);
+		final Thread[] threads = Multithreader.newThreads();
+		for (int thread = 0; thread < threads.length; thread++) {
+			threads[thread] = new Thread(() -> {
+				for (int z = ai.getAndIncrement(); z < d; z = ai.getAndIncrement()) {
+					volume.packSlice(z, (byte[]) stack.getPixels(z + 1));
+				}
+			});
+		}
+		Multithreader.startAndJoin(threads);
+		return volume;
+	}
+
+	/**
+	 * Pack one slice of a binary image
+	 *
+	 * @param z slice index, from 0
+	 * @param pixels slice pixels, foreground -1 (255)
+	 */
+	void packSlice(final int z, final byte[] pixels) {
+		final long[] slice = slices[z];
+		for (int y = 0; y < height; y++) {
+			final int offset = y * width;
+			final int row = y * wordsPerRow;
+			for (int x = 0; x < width; x += 64) {
+				final int end = Math.min(64, width - x);
+				long word = 0;
+				for (int b = 0; b < end; b++) {
+					// 1 when the pixel is -1, without a branch to mispredict
+					final int q = pixels[offset + x + b] + 1;
+					word |= (long) (~(q | -q) >>> 31) << b;
+				}
+				slice[row + (x >> 6)] = word;
+			}
+		}
+	}
+
+	/**
+	 * @param x x-coordinate
+	 * @param y y-coordinate
+	 * @param z slice index, from 0
+	 * @return true if the voxel is inside the volume and foreground
+	 */
+	boolean get(final int x, final int y, final int z) {
+		if (x < 0 || x >= width || y < 0 || y >= height || z < 0 || z >= depth)
+			return false;
+		return (slices[z][y * wordsPerRow + (x >> 6)] & 1L << x) != 0;
+	}
+
+	/**
+	 * Set a voxel to foreground or background
+	 *
+	 * @param x x-coordinate
+	 * @param y y-coordinate
+	 * @param z slice index, from 0
+	 * @param foreground new value of the voxel
+	 */
+	void set(final int x, final int y, final int z, final boolean foreground) {
+		final long[] slice = slices[z];
+		final int i = y * wordsPerRow + (x >> 6);
+		if (foreground) slice[i] |= 1L << x;
+		else slice[i] &= ~(1L << x);
+	}
+
+	/**
+	 * Get the words of a slice. They are shared, not copied; row y starts at
+	 * word y * getWordsPerRow().
+	 *
+	 * @param z slice index, from 0
+	 * @return packed voxels of the slice
+	 */
+	long[] getSlice(final int z) {
+		return slices[z];
+	}
+
+	/** @return words in each row */
+	int getWordsPerRow() {
+		return wordsPerRow;
+	}
+
+	/** @return width in voxels */
+	int getWidth() {
+		return width;
+	}
+
+	/** @return height in voxels */
+	int getHeight() {
+		return height;
+	}
+
+	/** @return number of slices */
+	int getDepth() {
+		return depth;
+	}
+
+	/** @return number of foreground voxels */
+	long countForeground() {
+		long count = 0;
+		for (final long[] slice : slices) {
+			for (final long word : slice)
+				count += Long.bitCount(word);
+		}
+		return count;
+	}
+}
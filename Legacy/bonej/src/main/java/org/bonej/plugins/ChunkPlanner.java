@@ -0,0 +1,129 @@
+/*-
+ * #%L
+ * Mavenized version of the BoneJ1 plugins
+ * %%
+ * Copyright (C) 2015 - 2020 Michael Doube, BoneJ developers
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.bonej.plugins;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bonej.util.Multithreader;
+
+/**
+ * Splits a stack into chunks of contiguous slices for connected components
+ * labelling, balancing the estimated labelling work rather than the number of
+ * slices.
+ * <p>
+ * The work in each slice is estimated from a sample of its pixels: pixels of
+ * the phase being labelled cost a neighbourhood lookup and a label, other
+ * pixels only a scan. More chunks than threads are made, so that chunks can be
+ * executed by a work-stealing pool and uneven chunks even out.
+ * </p>
+ *
+ * @author Michael Doube
+ */
+final class ChunkPlanner {
+
+	/** number of chunks to make per thread */
+	static final int CHUNKS_PER_THREAD = 4;
+
+	/** sample every SAMPLE_STRIDE-th pixel of a slice */
+	private static final int SAMPLE_STRIDE = 7;
+
+	/** cost of scanning a pixel of the other phase, relative to labelling one */
+	private static final double SCAN_COST = 0.05;
+
+	private ChunkPlanner() {}
+
+	/**
+	 * Plan chunks of slices with roughly equal labelling work
+	 *
+	 * @param workArray binary work array
+	 * @param phase FORE or BACK
+	 * @param nThreads number of threads that will label the chunks
+	 * @return first slice of each chunk, starting at 0 and strictly increasing
+	 */
+	static int[] plan(final byte[][] workArray, final int phase,
+		final int nThreads)
+	{
+		final double[] weights = sliceWeights(workArray, phase);
+		final int nSlices = weights.length;
+		final int nChunks = Math.max(1, Math.min(nSlices, nThreads *
+			CHUNKS_PER_THREAD));
+		double total = 0;
+		for (final double weight : weights) {
+			total += weight;
+		}
+		final double target = total / nChunks;
+
+		final int[] startSlices = new int[nChunks];
+		int chunk = 1;
+		double cumulative = 0;
+		for (int z = 0; z < nSlices && chunk < nChunks; z++) {
+			cumulative += weights[z];
+			final int next = z + 1;
+			// leave at least one slice for each remaining chunk
+			final boolean mustStart = nSlices - next == nChunks - chunk;
+			if (next < nSlices && (cumulative >= chunk * target || mustStart)) {
+				startSlices[chunk] = next;
+				chunk++;
+			}
+		}
+		return startSlices;
+	}
+
+	/**
+	 * Estimate the labelling work in each slice
+	 *
+	 * @param workArray binary work array
+	 * @param phase FORE or BACK
+	 * @return estimated work per slice
+	 */
+	static double[] sliceWeights(final byte[][] workArray, final int phase) {
+		final int nSlices = workArray.length;
+		final byte phaseValue = (byte) phase;
+		final double[] weights = new double[nSlices];
+		final AtomicInteger ai = new AtomicInteger(0);
+		final Thread[] threads = Multithreader.newThreads();
+		for (int thread = 0; thread < threads.length; thread++) {
+			threads[thread] = new Thread(() -> {
+				for (int z = ai.getAndIncrement(); z < nSlices; z = ai
+					.getAndIncrement())
+				{
+					final byte[] slice = workArray[z];
+					int count = 0;
+					for (int i = z % SAMPLE_STRIDE; i < slice.length; i += SAMPLE_STRIDE) {
+						if (slice[i] == phaseValue) count++;
+					}
+					weights[z] = (double) count * SAMPLE_STRIDE + SCAN_COST *
+						slice.length;
+				}
+			});
+		}
+		Multithreader.startAndJoin(threads);
+		return weights;
+	}
+}
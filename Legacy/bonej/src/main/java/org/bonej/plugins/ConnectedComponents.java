@@ -51,9 +51,18 @@ OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 
 package org.bonej.plugins;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.bonej.util.Multithreader;
@@ -66,8 +75,10 @@ import org.eclipse.collections.impl.map.mutable.primitive.IntIntHashMap;
 import org.eclipse.collections.impl.map.mutable.primitive.IntObjectHashMap;
 import org.eclipse.collections.impl.set.mutable.primitive.IntHashSet;
 
+import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
+import ij.Prefs;
 import ij.process.ImageProcessor;
 
 /**
@@ -92,19 +103,57 @@ public class ConnectedComponents {
 	/** minimum number of first labels to use multithreaded bucket fountain on */
 	private static final int BUCKET_FOUNTAIN_MULTITHREAD_MIN_LABELS = (int) 1E6;
 
-	/** number of particle labels */
-	private static int nParticles;
+	/** number of particle labels found by the last run of this instance */
+	private int nParticles;
 
-	/** array of binary pixels */
-	private static byte[][] workArray;
+	/** array of binary pixels used by the last run of this instance */
+	private byte[][] workArray;
 
-	/** Constructor */
+	/** Labelling engine that records label collisions in an array of primitive union-find forests */
+	public static final int UNION_FIND = 0;
+	/** Labelling engine that records label collisions in HashSets merged by bucket fountain */
+	public static final int BUCKET_FOUNTAIN = 1;
+
+	/** labelling engine used by this instance */
+	private final int engine;
+
+	/** first slice of each chunk used by the last run of this instance */
+	private int[] chunkStartSlices;
+
+	/** first pass labelling time of each chunk in the last run, in ns */
+	private long[] chunkTimes;
+
+	/** Constructor, using the union-find labelling engine */
 	public ConnectedComponents() {
+		this(UNION_FIND);
+	}
 
+	/**
+	 * Constructor
+	 * 
+	 * @param engine labelling engine, either UNION_FIND or BUCKET_FOUNTAIN
+	 * @throws IllegalArgumentException if the engine is not recognised
+	 */
+	public ConnectedComponents(final int engine) {
+		if (engine != UNION_FIND && engine != BUCKET_FOUNTAIN)
+			throw new IllegalArgumentException("Unknown labelling engine: " + engine);
+		this.engine = engine;
 	}
 
 	/**
 	 * Run connected components filter on a binary image
+	 * <p>
+	 * All intermediate state is local to the call and the results are stored in
+	 * this instance only, so separate instances can label different images
+	 * concurrently. Calls on a shared instance are serialised, so that
+	 * {@link #getNParticles()} and {@link #getWorkArray()} always report the
+	 * results of a single, complete run.
+	 * </p>
+	 * <p>
+	 * Both engines find the same particles. The union-find engine numbers them in
+	 * the raster (x-y-z) order of their first pixel, whereas the bucket fountain
+	 * engine's numbering depends on HashSet iteration order.
+	 * </p>
 	 * 
 	 * @param imp   Input ImagePlus, must be 2D or 3D and binary (0 or 255)
 	 * @param phase either foreground (this.FORE) or background (this.BACK)
@@ -112,32 +161,269 @@ public class ConnectedComponents {
 	 *         individual connected components labelled with a unique, consecutive
 	 *         label.
 	 */
-	public int[][] run(final ImagePlus imp, final int phase) {
+	public synchronized int[][] run(final ImagePlus imp, final int phase) {
 		final int w = imp.getWidth();
 		final int h = imp.getHeight();
 		final int nSlices = imp.getImageStackSize();
-		final int nProcessors = Runtime.getRuntime().availableProcessors();
-		final int minSlicesPerChunk = 10;
-
-		// set up number of chunks and chunk sizes
-		int nChunks = 1;
-		int slicesPerChunk = nSlices;
-		if (nSlices < minSlicesPerChunk) {
-			slicesPerChunk = nSlices;
-			nChunks = 1;
-		} else if (nSlices <= minSlicesPerChunk * nProcessors) {
-			slicesPerChunk = minSlicesPerChunk;
-			nChunks = (int) Math.ceil((double) nSlices / (double) minSlicesPerChunk); 
-		} else if (nSlices > minSlicesPerChunk * nProcessors) {
-			nChunks = nProcessors;
-			slicesPerChunk = (int) Math.floor((double) nSlices / (double) nChunks);
+
+		// set up the work array
+		final byte[][] binaryArray = makeWorkArray(imp);
+
+		final int[][] particleLabels;
+		final int nLabels;
+		if (engine == UNION_FIND) {
+			final int nThreads = Prefs.getThreads();
+			final int[] startSlices = ChunkPlanner.plan(binaryArray, phase, nThreads);
+			final long[] chunkTimes = new long[startSlices.length];
+			particleLabels = new int[nSlices][w * h];
+			nLabels = unionFindLabelling(binaryArray, particleLabels, startSlices, w, h, nSlices, phase, nThreads,
+					chunkTimes);
+			this.chunkStartSlices = startSlices;
+			this.chunkTimes = chunkTimes;
+			if (IJ.debugMode)
+				logChunkTimes(startSlices, chunkTimes, nSlices);
+		} else {
+			final int nProcessors = Runtime.getRuntime().availableProcessors();
+			final int minSlicesPerChunk = 10;
+
+			// set up number of chunks and chunk sizes
+			int nChunks = 1;
+			int slicesPerChunk = nSlices;
+			if (nSlices < minSlicesPerChunk) {
+				slicesPerChunk = nSlices;
+				nChunks = 1;
+			} else if (nSlices <= minSlicesPerChunk * nProcessors) {
+				slicesPerChunk = minSlicesPerChunk;
+				nChunks = (int) Math.ceil((double) nSlices / (double) minSlicesPerChunk); 
+			} else if (nSlices > minSlicesPerChunk * nProcessors) {
+				nChunks = nProcessors;
+				slicesPerChunk = (int) Math.floor((double) nSlices / (double) nChunks);
+			}
+
+			// set up start slice array
+			final int[] startSlices = new int[nChunks];
+			for (int i = 0; i < nChunks; i++) {
+				startSlices[i] = i * slicesPerChunk;
+			}
+
+			particleLabels = bucketFountainLabelling(binaryArray, startSlices, slicesPerChunk, w, h, nSlices, phase);
+			nLabels = maxLabel(particleLabels) + 1;
+			this.chunkStartSlices = startSlices;
+			this.chunkTimes = null;
 		}
-		
-		// set up start slice array
-		final int[] startSlices = new int[nChunks];
-		for (int i = 0; i < nChunks; i++) {
-			startSlices[i] = i * slicesPerChunk;
+
+		this.workArray = binaryArray;
+		this.nParticles = nLabels;
+
+		return particleLabels;
+	}
+
+	/**
+	 * Log the first-pass labelling time of each chunk
+	 * 
+	 * @param startSlices first slice of each chunk
+	 * @param chunkTimes labelling time of each chunk in ns
+	 * @param nSlices number of slices in the image
+	 */
+	private static void logChunkTimes(final int[] startSlices, final long[] chunkTimes, final int nSlices) {
+		final int nChunks = startSlices.length;
+		for (int chunk = 0; chunk < nChunks; chunk++) {
+			final int endSlice = chunk + 1 < nChunks ? startSlices[chunk + 1] - 1 : nSlices - 1;
+			IJ.log("Chunk " + chunk + ": slices " + startSlices[chunk] + "-" + endSlice + " labelled in "
+					+ IJ.d2s(chunkTimes[chunk] / 1e6, 3) + " ms");
+		}
+	}
+
+	/**
+	 * Run connected components filter on a binary image that may be larger than
+	 * the heap, writing the labels to a memory-mapped file.
+	 * <p>
+	 * Slices are read one at a time through the image's {@link ImageStack}, so
+	 * virtual stacks are read from disk on demand. Only the labels of the current
+	 * and the previous slice, a global union-find table of provisional labels and
+	 * the current slab's memory mapping are held at any time, so memory use scales
+	 * with the slice size and the number of provisional labels rather than with
+	 * the volume. Provisional labels are written to the file slab by slab in a
+	 * first pass; a second, multithreaded pass rewrites them in place with the
+	 * final labels.
+	 * </p>
+	 * <p>
+	 * The labels are the same as those returned by {@link #run(ImagePlus, int)}
+	 * with the UNION_FIND engine. The file holds one int per pixel in native byte
+	 * order, slice after slice. {@link #getWorkArray()} returns null after this
+	 * method because no work array is made.
+	 * </p>
+	 * 
+	 * @param imp Input ImagePlus, must be 2D or 3D and binary (0 or 255)
+	 * @param phase either foreground (this.FORE) or background (this.BACK)
+	 * @param labelFile file to write the labels to. It is created or overwritten.
+	 * @param slabSlices number of slices to map into memory at a time
+	 * @return a virtual stack backed by labelFile
+	 * @throws IOException if the label file cannot be written
+	 */
+	public synchronized MappedLabelStack runStreaming(final ImagePlus imp, final int phase, final File labelFile,
+			final int slabSlices) throws IOException {
+		final int w = imp.getWidth();
+		final int h = imp.getHeight();
+		final int nSlices = imp.getImageStackSize();
+		final int wh = w * h;
+		final long sliceBytes = 4L * wh;
+		// a single mapping can hold at most Integer.MAX_VALUE bytes
+		final int slab = (int) Math.max(1, Math.min(slabSlices, Integer.MAX_VALUE / sliceBytes));
+		final ImageStack stack = imp.getStack();
+
+		final IntUnionFind forest = new IntUnionFind(1 + wh);
+		// label 0 is the background
+		forest.makeSet();
+
+		// labels of the previous (0) and current (1) slices
+		final int[][] planes = new int[2][wh];
+		final byte[] binarySlice = new byte[wh];
+
+		try (RandomAccessFile raf = new RandomAccessFile(labelFile, "rw");
+				FileChannel channel = raf.getChannel()) {
+			raf.setLength(sliceBytes * nSlices);
+
+			// first pass: provisional labels, written slab by slab
+			for (int slabStart = 0; slabStart < nSlices; slabStart += slab) {
+				final int slabEnd = Math.min(nSlices, slabStart + slab);
+				final IntBuffer labelBuffer = channel.map(FileChannel.MapMode.READ_WRITE, slabStart * sliceBytes,
+						(slabEnd - slabStart) * sliceBytes).order(ByteOrder.nativeOrder()).asIntBuffer();
+				for (int z = slabStart; z < slabEnd; z++) {
+					final int[] previous = planes[0];
+					planes[0] = planes[1];
+					planes[1] = previous;
+					Arrays.fill(planes[1], 0);
+					final ImageProcessor ip = stack.getProcessor(z + 1);
+					for (int i = 0; i < wh; i++) {
+						binarySlice[i] = (byte) ip.get(i);
+					}
+					labelStreamingSlice(binarySlice, planes, forest, z == 0, w, h, phase);
+					labelBuffer.put(planes[1]);
+				}
+			}
+
+			// number the roots in ascending order of their smallest label
+			final int[] lut = new int[forest.size()];
+			final int nLabels = numberRoots(forest, lut);
+
+			// second pass: rewrite the provisional labels in place
+			final int nSlabs = (nSlices + slab - 1) / slab;
+			final AtomicInteger ai = new AtomicInteger(0);
+			final IOException[] exception = new IOException[1];
+			final Thread[] threads = Multithreader.newThreads();
+			for (int thread = 0; thread < threads.length; thread++) {
+				threads[thread] = new Thread(() -> {
+					for (int s = ai.getAndIncrement(); s < nSlabs; s = ai.getAndIncrement()) {
+						final int slabStart = s * slab;
+						final int slabEnd = Math.min(nSlices, slabStart + slab);
+						final IntBuffer labelBuffer;
+						try {
+							labelBuffer = channel.map(FileChannel.MapMode.READ_WRITE, slabStart * sliceBytes,
+									(slabEnd - slabStart) * sliceBytes).order(ByteOrder.nativeOrder()).asIntBuffer();
+						} catch (final IOException e) {
+							exception[0] = e;
+							return;
+						}
+						final int n = labelBuffer.limit();
+						for (int i = 0; i < n; i++) {
+							final int label = labelBuffer.get(i);
+							if (label != 0)
+								labelBuffer.put(i, lut[label]);
+						}
+					}
+				});
+			}
+			Multithreader.startAndJoin(threads);
+			if (exception[0] != null)
+				throw exception[0];
+
+			this.workArray = null;
+			this.nParticles = nLabels;
+		}
+
+		return new MappedLabelStack(labelFile, w, h, nSlices);
+	}
+
+	/**
+	 * Give each pixel of a slice a provisional label for
+	 * {@link #runStreaming(ImagePlus, int, File, int)}, and record label
+	 * collisions in the forest.
+	 * 
+	 * @param binarySlice binary pixels of the current slice
+	 * @param planes labels of the previous slice (index 0) and the current slice
+	 *          (index 1)
+	 * @param forest union-find forest of provisional labels
+	 * @param firstSlice true if the current slice is the first slice of the image
+	 * @param w image width
+	 * @param h image height
+	 * @param phase FORE or BACK for foreground of background respectively
+	 */
+	private static void labelStreamingSlice(final byte[] binarySlice, final int[][] planes,
+			final IntUnionFind forest, final boolean firstSlice, final int w, final int h, final int phase) {
+		final byte phaseValue = (byte) phase;
+		final int[] labels = planes[1];
+		// neighbourhoods are read from the two planes with the current slice at z = 1
+		final int z = 1;
+		final int d = 2;
+		final int[] nbh;
+		if (phase == FORE)
+			nbh = new int[firstSlice ? 4 : 13];
+		else
+			nbh = new int[firstSlice ? 2 : 3];
+		boolean lastPixelWasForeground = false;
+		final int wm1 = w - 1;
+		final int hm1 = h - 1;
+		int centre = 0;
+		for (int y = 0; y < h; y++) {
+			final int rowIndex = y * w;
+			for (int x = 0; x < w; x++) {
+				final int arrayIndex = rowIndex + x;
+				if (binarySlice[arrayIndex] != phaseValue) {
+					lastPixelWasForeground = false;
+					continue;
+				}
+				if (phase == FORE && firstSlice) {
+					get4Neighborhood(nbh, planes, x, y, z, w, h, d);
+					centre = labelPixel(forest, nbh);
+				} else if (phase == FORE) {
+					if (lastPixelWasForeground && x > 0 && y > 0 && x < wm1 && y < hm1)
+						get13Neighborhood(nbh, planes, x, y, z, w, centre);
+					else
+						get13Neighborhood(nbh, planes, x, y, z, w, h, d);
+					// neighbours of the pixel below are already joined to it
+					if (nbh[4] == 0 || getMinTag(nbh, Integer.MAX_VALUE) != nbh[4])
+						centre = labelPixel(forest, nbh);
+					else
+						centre = nbh[4];
+				} else if (firstSlice) {
+					get2Neighborhood(nbh, planes, x, y, z, w, h, d);
+					centre = labelPixel(forest, nbh);
+				} else {
+					get3Neighborhood(nbh, planes, x, y, z, w, h, d);
+					centre = labelPixel(forest, nbh);
+				}
+				labels[arrayIndex] = centre;
+				lastPixelWasForeground = true;
+			}
 		}
+	}
+
+	/**
+	 * Label the image by recording collisions in HashSets
+	 * 
+	 * @param binaryArray binary work array
+	 * @param startSlices first slice of each chunk
+	 * @param slicesPerChunk nominal number of slices in each chunk
+	 * @param w image width
+	 * @param h image height
+	 * @param nSlices number of slices
+	 * @param phase FORE or BACK for foreground of background respectively
+	 * @return particle labels
+	 */
+	private static int[][] bucketFountainLabelling(final byte[][] binaryArray, final int[] startSlices,
+			final int slicesPerChunk, final int w, final int h, final int nSlices, final int phase) {
+		final int nChunks = startSlices.length;
 
 		// set up label offsets to avoid collisions between chunks
 		final int chunkLabelSpace = MAX_LABEL / nChunks;
@@ -156,11 +442,8 @@ public class ConnectedComponents {
 			chunkMaps.add(map);
 		}
 
-		// set up the work array
-		makeWorkArray(imp);
-
 		//do a first labelling and map first degree neighbours
-		int[][] particleLabels = firstIDAttribution(chunkMaps, chunkIDOffsets, startSlices, w, h, nSlices, phase);
+		int[][] particleLabels = firstIDAttribution(binaryArray, chunkMaps, chunkIDOffsets, startSlices, w, h, nSlices, phase);
 
 		//merge neighbour networks and generate a LUT
 		final int[][] lut = generateLut(chunkMaps, chunkIDOffsets);
@@ -171,6 +454,355 @@ public class ConnectedComponents {
 		return particleLabels;
 	}
 
+	/**
+	 * Find the greatest label in a label array
+	 * 
+	 * @param particleLabels label array
+	 * @return maximum label
+	 */
+	private static int maxLabel(final int[][] particleLabels) {
+		final AtomicInteger ai = new AtomicInteger(0);
+		final int[] sliceMax = new int[particleLabels.length];
+		final Thread[] threads = Multithreader.newThreads();
+		for (int thread = 0; thread < threads.length; thread++) {
+			threads[thread] = new Thread(() -> {
+				for (int z = ai.getAndIncrement(); z < particleLabels.length; z = ai.getAndIncrement()) {
+					int max = 0;
+					for (final int label : particleLabels[z]) {
+						if (label > max) max = label;
+					}
+					sliceMax[z] = max;
+				}
+			});
+		}
+		Multithreader.startAndJoin(threads);
+		int max = 0;
+		for (final int m : sliceMax) {
+			max = Math.max(max, m);
+		}
+		return max;
+	}
+
+	/**
+	 * Label the image using one union-find forest per chunk to record label
+	 * collisions within the chunk. Each chunk's provisional labels are then
+	 * compacted to one label per chunk-local component, so that intermediate
+	 * labels are (chunk, local label) pairs and only components need a label in
+	 * the global forest. Chunks are stitched together at their boundary slices,
+	 * and the global forest's roots are numbered in the raster order of the
+	 * particles' first pixels.
+	 * <p>
+	 * Because each chunk hands out its labels in raster order, the smallest
+	 * provisional label of each particle is the label of its first pixel. Walking
+	 * the labels in ascending order therefore assigns final labels in raster
+	 * order, independently of the number of chunks.
+	 * </p>
+	 * <p>
+	 * Chunks are executed as tasks in a work-stealing pool, so there may be more
+	 * chunks than threads.
+	 * </p>
+	 * 
+	 * @param binaryArray binary work array
+	 * @param particleLabels empty label array, filled with the final labels
+	 * @param startSlices first slice of each chunk
+	 * @param w image width
+	 * @param h image height
+	 * @param nSlices number of slices
+	 * @param phase FORE or BACK for foreground of background respectively
+	 * @param nThreads number of threads in the pool
+	 * @param chunkTimes array with one element per chunk, filled with the first
+	 *          pass time of each chunk in ns
+	 * @return number of labels including the background label 0
+	 */
+	private static int unionFindLabelling(final byte[][] binaryArray, final int[][] particleLabels,
+			final int[] startSlices, final int w, final int h, final int nSlices, final int phase,
+			final int nThreads, final long[] chunkTimes) {
+		final ForkJoinPool pool = new ForkJoinPool(nThreads);
+		try {
+			return unionFindLabelling(binaryArray, particleLabels, startSlices, w, h, nSlices, phase, pool,
+					chunkTimes);
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Label the image with the union-find engine, executing chunks as tasks in a
+	 * work-stealing pool.
+	 * 
+	 * @param binaryArray binary work array
+	 * @param particleLabels empty label array, filled with the final labels
+	 * @param startSlices first slice of each chunk
+	 * @param w image width
+	 * @param h image height
+	 * @param nSlices number of slices
+	 * @param phase FORE or BACK for foreground of background respectively
+	 * @param pool pool to execute the chunks in
+	 * @param chunkTimes array with one element per chunk, filled with the first
+	 *          pass time of each chunk in ns
+	 * @return number of labels including the background label 0
+	 */
+	private static int unionFindLabelling(final byte[][] binaryArray, final int[][] particleLabels,
+			final int[] startSlices, final int w, final int h, final int nSlices, final int phase,
+			final ForkJoinPool pool, final long[] chunkTimes) {
+		final int nChunks = startSlices.length;
+
+		// first pass: label each chunk independently with chunk-local labels, then
+		// compact each chunk's labels to one label per chunk-local component
+		final int[][] compactLuts = new int[nChunks][];
+		final int[] nComponents = new int[nChunks];
+		final List<ForkJoinTask<?>> tasks = new ArrayList<>(nChunks);
+		for (int c = 0; c < nChunks; c++) {
+			final int chunk = c;
+			final int startSlice = startSlices[chunk];
+			final int endSlice = chunk + 1 < nChunks ? startSlices[chunk + 1] - 1 : nSlices - 1;
+			tasks.add(ForkJoinTask.adapt(() -> {
+				final long start = System.nanoTime();
+				// assume there is a new particle label for every 10000 pixels
+				final IntUnionFind forest = new IntUnionFind(
+						1 + (int) ((long) w * h * (endSlice - startSlice + 1) / 10000));
+				// label 0 is the background
+				forest.makeSet();
+				labelChunk(binaryArray, particleLabels, forest, startSlice, endSlice, w, h, nSlices, phase);
+				final int[] compactLut = new int[forest.size()];
+				nComponents[chunk] = numberRoots(forest, compactLut) - 1;
+				compactLuts[chunk] = compactLut;
+				chunkTimes[chunk] = System.nanoTime() - start;
+			}));
+		}
+		pool.invoke(ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(tasks)));
+
+		// give each chunk's components an offset so that they are unique in the
+		// image. Only components, not provisional labels, need a global label, so
+		// the sum is checked in long arithmetic against the int label range.
+		final int[] offsets = new int[nChunks];
+		long nChunkComponents = 0;
+		for (int chunk = 0; chunk < nChunks; chunk++) {
+			offsets[chunk] = (int) nChunkComponents;
+			nChunkComponents += nComponents[chunk];
+			if (nChunkComponents >= MAX_LABEL) {
+				throw new IllegalArgumentException("ID " + nChunkComponents +
+					" is greater than the allowed range (max " + (MAX_LABEL - 1) + ")");
+			}
+		}
+
+		final int nGlobal = (int) nChunkComponents + 1;
+		final IntUnionFind forest = new IntUnionFind(nGlobal);
+		for (int i = 0; i < nGlobal; i++) {
+			forest.makeSet();
+		}
+
+		// stitch each chunk's first slice to the last slice of the prior chunk
+		final byte phaseValue = (byte) phase;
+		for (int chunk = 1; chunk < nChunks; chunk++) {
+			final int z = startSlices[chunk];
+			final int offset = offsets[chunk];
+			final int priorOffset = offsets[chunk - 1];
+			final int[] compactLut = compactLuts[chunk];
+			final int[] priorCompactLut = compactLuts[chunk - 1];
+			final byte[] slice = binaryArray[z];
+			final int[] labels = particleLabels[z];
+			final int[] nbh = new int[phase == FORE ? 9 : 1];
+			for (int y = 0; y < h; y++) {
+				final int rowIndex = y * w;
+				for (int x = 0; x < w; x++) {
+					final int arrayIndex = rowIndex + x;
+					if (slice[arrayIndex] != phaseValue)
+						continue;
+					if (phase == FORE)
+						get9Neighborhood(nbh, particleLabels, x, y, z, w, h, nSlices);
+					else
+						get1Neighborhood(nbh, particleLabels, x, y, z, w);
+					final int label = compactLut[labels[arrayIndex]] + offset;
+					int lastNonZero = 0;
+					for (final int val : nbh) {
+						if (val == 0 || val == lastNonZero)
+							continue;
+						forest.union(label, priorCompactLut[val] + priorOffset);
+						lastNonZero = val;
+					}
+				}
+			}
+		}
+
+		// number the roots in ascending order of their smallest label
+		final int[] lut = new int[nGlobal];
+		final int nLabels = numberRoots(forest, lut);
+
+		// rewrite the pixel values using the LUT
+		final List<ForkJoinTask<?>> lutTasks = new ArrayList<>(nChunks);
+		for (int c = 0; c < nChunks; c++) {
+			final int chunk = c;
+			final int startSlice = startSlices[chunk];
+			final int endSlice = chunk + 1 < nChunks ? startSlices[chunk + 1] - 1 : nSlices - 1;
+			final int offset = offsets[chunk];
+			final int[] compactLut = compactLuts[chunk];
+			lutTasks.add(ForkJoinTask.adapt(() -> {
+				for (int z = startSlice; z <= endSlice; z++) {
+					final int[] slice = particleLabels[z];
+					final int l = slice.length;
+					for (int i = 0; i < l; i++) {
+						final int label = slice[i];
+						if (label == 0)
+							continue;
+						slice[i] = lut[compactLut[label] + offset];
+					}
+				}
+			}));
+		}
+		pool.invoke(ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(lutTasks)));
+
+		return nLabels;
+	}
+
+	/**
+	 * Make a LUT that maps each provisional label in a forest to a final label.
+	 * Final labels are consecutive and given to the sets in ascending order of
+	 * their smallest provisional label. Label 0 maps to 0.
+	 * 
+	 * @param forest union-find forest of provisional labels
+	 * @param lut array of at least forest.size() elements, filled with 0
+	 * @return number of final labels including the background label 0
+	 */
+	static int numberRoots(final IntUnionFind forest, final int[] lut) {
+		final int nProvisional = forest.size();
+		int nextLabel = 1;
+		for (int label = 1; label < nProvisional; label++) {
+			final int root = forest.find(label);
+			if (lut[root] == 0)
+				lut[root] = nextLabel++;
+			lut[label] = lut[root];
+		}
+		return nextLabel;
+	}
+
+	/**
+	 * Give each pixel of one chunk a provisional label, and record label collisions
+	 * in the chunk's union-find forest. The first slice of the chunk is labelled
+	 * without looking at the prior chunk.
+	 * 
+	 * @param binaryArray binary work array
+	 * @param particleLabels label array
+	 * @param forest the chunk's union-find forest, containing the background label
+	 * @param startSlice first slice of the chunk
+	 * @param endSlice last slice of the chunk
+	 * @param w image width
+	 * @param h image height
+	 * @param nSlices number of slices
+	 * @param phase FORE or BACK for foreground of background respectively
+	 */
+	private static void labelChunk(final byte[][] binaryArray, final int[][] particleLabels,
+			final IntUnionFind forest, final int startSlice, final int endSlice, final int w, final int h,
+			final int nSlices, final int phase) {
+		final byte phaseValue = (byte) phase;
+		if (phase == FORE) {
+			// first slice of the chunk - use 4 neighbourhood to not
+			// bleed into prior chunk
+			final int[] sliceNbh = new int[4];
+			final byte[] slice = binaryArray[startSlice];
+			final int[] labels = particleLabels[startSlice];
+			for (int y = 0; y < h; y++) {
+				final int rowIndex = y * w;
+				for (int x = 0; x < w; x++) {
+					final int arrayIndex = rowIndex + x;
+					if (slice[arrayIndex] == phaseValue) {
+						get4Neighborhood(sliceNbh, particleLabels, x, y, startSlice, w, h, nSlices);
+						labels[arrayIndex] = labelPixel(forest, sliceNbh);
+					}
+				}
+			}
+
+			// use 13 neighbourhood for all but first slice
+			final int[] nbh = new int[13];
+			boolean lastPixelWasForeground = false;
+			final int wm1 = w - 1;
+			final int hm1 = h - 1;
+			int centre = 0;
+			for (int z = startSlice + 1; z <= endSlice; z++) {
+				final byte[] zSlice = binaryArray[z];
+				final int[] zLabels = particleLabels[z];
+				for (int y = 0; y < h; y++) {
+					final int rowIndex = y * w;
+					for (int x = 0; x < w; x++) {
+						final int arrayIndex = rowIndex + x;
+						if (zSlice[arrayIndex] == phaseValue) {
+							if (lastPixelWasForeground && x > 0 && y > 0 && x < wm1 && y < hm1) {
+								get13Neighborhood(nbh, particleLabels, x, y, z, w, centre);
+							} else {
+								get13Neighborhood(nbh, particleLabels, x, y, z, w, h, nSlices);
+							}
+							// neighbours of the pixel below are already joined to it
+							if (nbh[4] != 0 && getMinTag(nbh, Integer.MAX_VALUE) == nbh[4])
+								centre = nbh[4];
+							else
+								centre = labelPixel(forest, nbh);
+							zLabels[arrayIndex] = centre;
+							lastPixelWasForeground = true;
+						} else {
+							lastPixelWasForeground = false;
+						}
+					}
+				}
+			}
+		} else if (phase == BACK) {
+			// first slice of the chunk - use 2 neighbourhood to not
+			// bleed into prior chunk
+			final int[] sliceNbh = new int[2];
+			final byte[] slice = binaryArray[startSlice];
+			final int[] labels = particleLabels[startSlice];
+			for (int y = 0; y < h; y++) {
+				final int rowIndex = y * w;
+				for (int x = 0; x < w; x++) {
+					final int arrayIndex = rowIndex + x;
+					if (slice[arrayIndex] == phaseValue) {
+						get2Neighborhood(sliceNbh, particleLabels, x, y, startSlice, w, h, nSlices);
+						labels[arrayIndex] = labelPixel(forest, sliceNbh);
+					}
+				}
+			}
+
+			// use 3-neighbourhood for all but the first slice
+			final int[] nbh = new int[3];
+			for (int z = startSlice + 1; z <= endSlice; z++) {
+				final byte[] zSlice = binaryArray[z];
+				final int[] zLabels = particleLabels[z];
+				for (int y = 0; y < h; y++) {
+					final int rowIndex = y * w;
+					for (int x = 0; x < w; x++) {
+						final int arrayIndex = rowIndex + x;
+						if (zSlice[arrayIndex] == phaseValue) {
+							get3Neighborhood(nbh, particleLabels, x, y, z, w, h, nSlices);
+							zLabels[arrayIndex] = labelPixel(forest, nbh);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Choose a pixel's provisional label from its already-labelled neighbours and
+	 * join all the neighbours' labels in the forest. If no neighbour is labelled, a
+	 * new label is created.
+	 * 
+	 * @param forest union-find forest
+	 * @param nbh labels of the pixel's neighbours, 0 for background
+	 * @return the pixel's provisional label
+	 */
+	private static int labelPixel(final IntUnionFind forest, final int[] nbh) {
+		final int minTag = getMinTag(nbh, Integer.MAX_VALUE);
+		if (minTag == Integer.MAX_VALUE)
+			return forest.makeSet();
+		int lastNonZero = minTag;
+		for (final int val : nbh) {
+			if (val == 0 || val == lastNonZero)
+				continue;
+			forest.union(minTag, val);
+			lastNonZero = val;
+		}
+		return minTag;
+	}
+
 	/**
 	 * Generate a label replacement LUT
 	 * 
@@ -188,15 +820,17 @@ public class ConnectedComponents {
 	}
 
 	/**
-	 * Create a work array and store it as a field of this instance, which can be
-	 * retrieved with getWorkArray
+	 * Create a binary work array from an image. The array is stored as a field of
+	 * this instance by {@link #run(ImagePlus, int)}, and can be retrieved with
+	 * getWorkArray
 	 *
 	 * @param imp an image.
+	 * @return binary work array, one byte[] per slice
 	 */
-	static void makeWorkArray(final ImagePlus imp) {
+	static byte[][] makeWorkArray(final ImagePlus imp) {
 		final int s = imp.getStackSize();
 		final int p = imp.getWidth() * imp.getHeight();
-		workArray = new byte[s][p];
+		final byte[][] workArray = new byte[s][p];
 		final ImageStack stack = imp.getStack();
 
 		AtomicInteger ai = new AtomicInteger(0);
@@ -213,11 +847,13 @@ public class ConnectedComponents {
 			});
 		}
 		Multithreader.startAndJoin(threads);
+		return workArray;
 	}
 
 	/**
 	 * Go through all pixels and assign initial particle label.
 	 *
+	 * @param workArray binary work array
 	 * @param chunkMaps collision recording lists
 	 * @param chunkIDOffsets ID offsets 
 	 * @param startSlices first slice of each chunk
@@ -228,7 +864,7 @@ public class ConnectedComponents {
 	 * @return particleLabels int[] array containing label associating every pixel
 	 *         with a particle
 	 */
-	private static int[][] firstIDAttribution(final ArrayList<MutableList<IntHashSet>> chunkMaps,
+	private static int[][] firstIDAttribution(final byte[][] workArray, final ArrayList<MutableList<IntHashSet>> chunkMaps,
 			final int[] chunkIDOffsets, final int[] startSlices, final int w, final int h, final int nSlices,
 			final int phase) {
 
@@ -734,7 +1370,6 @@ public class ConnectedComponents {
 			lutLabels.add(value);
 		});
 		final int nLabels = lutLabels.size();
-		nParticles = nLabels;
 
 		// assign incremental replacement values
 		// translate old
@@ -1167,14 +1802,30 @@ public class ConnectedComponents {
 	/**
 	 * @return number of particles in the image
 	 */
-	public int getNParticles() {
+	public synchronized int getNParticles() {
 		return nParticles;
 	}
 
+	/**
+	 * @return first slice of each chunk used by the last run, or null if there
+	 *         has been no chunked run
+	 */
+	public synchronized int[] getChunkStartSlices() {
+		return chunkStartSlices == null ? null : chunkStartSlices.clone();
+	}
+
+	/**
+	 * @return time taken to label each chunk in the first pass of the last run,
+	 *         in ns, or null if the last run did not use the union-find engine
+	 */
+	public synchronized long[] getChunkTimes() {
+		return chunkTimes == null ? null : chunkTimes.clone();
+	}
+
 	/**
 	 * @return binary work array containing foreground and background pixels
 	 */
-	public byte[][] getWorkArray() {
+	public synchronized byte[][] getWorkArray() {
 		return workArray;
 	}
 
@@ -122,6 +122,29 @@ import ij.plugin.PlugIn;
 public class Connectivity implements PlugIn {
 
 	private final static int[] EULER_LUT = fillEulerLUT();
+
+	/** delta Euler of each octant bit mask, as {@link #getOctantEuler(int)} */
+	private final static int[] OCTANT_EULER = fillOctantEuler();
+
+	// indices of the counts taken from each plane of a packed stack
+	private static final int CHI = 0;
+	private static final int STACK_VERTICES = 1;
+	private static final int STACK_EDGES = 2;
+	private static final int STACK_FACES = 3;
+	private static final int EDGE_VERTICES = 4;
+	private static final int FACE_VERTICES = 5;
+	private static final int FACE_EDGES = 6;
+	private static final int N_COUNTS = 7;
+
+	/** Foreground of a slice, looked up by x and y */
+	@FunctionalInterface
+	private interface SliceReader {
+
+		/**
+		 * @return true if (x, y) is in the slice and foreground
+		 */
+		boolean get(int x, int y);
+	}
 	
 	/** working image width */
 	private int width = 0;
@@ -140,9 +163,10 @@ public class Connectivity implements PlugIn {
 			return;
 		}
 
-		final double sumEuler = getSumEuler(imp);
+		final double[] eulerAndCorrection = getSumEulerAndEdgeCorrection(imp);
+		final double sumEuler = eulerAndCorrection[0];
 
-		final double deltaChi = getDeltaChi(imp, sumEuler);
+		final double deltaChi = sumEuler - eulerAndCorrection[1];
 
 		final double connectivity = getConnectivity(deltaChi);
 
@@ -210,6 +234,12 @@ public class Connectivity implements PlugIn {
 
 	/**
 	 * Calculate the Euler characteristic of the foreground in a binary stack
+	 * <p>
+	 * Each thread sweeps whole slices, copying the rows either side of the
+	 * octant plane into padded buffers of 0s and 1s, so that the octant's bit
+	 * mask is built by shifting in one column at a time and looked up without
+	 * bounds checks or stack accesses per voxel.
+	 * </p>
 	 *
 	 * @param imp
 	 *            Binary ImagePlus
@@ -218,37 +248,47 @@ public class Connectivity implements PlugIn {
 	public double getSumEuler(final ImagePlus imp) {
 		setDimensions(imp);
 		final ImageStack stack = imp.getImageStack();
+		final int w = width;
+		final int h = height;
+		final int d = depth;
 
-		final int[] sumEulerInt = new int[depth + 1];
+		final int[] sumEulerInt = new int[d + 1];
 
 		final AtomicInteger ai = new AtomicInteger(0);
 		final Thread[] threads = Multithreader.newThreads();
 		for (int thread = 0; thread < threads.length; thread++) {
-			threads[thread] = new Thread(new Runnable() {
-				@Override
-				public void run() {
-					byte o1 = 0, o2 = 0, o3 = 0, o4 = 0, o5 = 0, o6 = 0, o7 = 0, o8 = 0;
-					for (int z = ai.getAndIncrement(); z <= depth; z = ai.getAndIncrement()) {
-						for (int y = 0; y <= height; y++) {
-							for (int x = 0; x <= width; x++) {
-								
-								final int y1 = y - 1;
-								final int z1 = z - 1;
-								
-								o1 = o3;
-								o2 = o4;
-								o3 = getPixel(stack, x, y1, z1);
-								o4 = getPixel(stack, x, y, z1);
-								o5 = o7;
-								o6 = o8;
-								o7 = getPixel(stack, x, y1, z);
-								o8 = getPixel(stack, x, y, z);
-
-							  if ( o1 != 0 || o2 != 0 || o3 != 0 || o4 != 0 || o5 != 0 || o6 != 0 || o7 != 0 || o8 != 0 )
-							  	sumEulerInt[z] += getDeltaEuler(o1, o2, o3, o4, o5, o6, o7, o8);
-							}
+			threads[thread] = new Thread(() -> {
+				// rows y - 1 and y of slices z - 1 (above) and z (below), with a
+				// background pixel at x = w
+				byte[] aboveLast = new byte[w + 1];
+				byte[] aboveRow = new byte[w + 1];
+				byte[] belowLast = new byte[w + 1];
+				byte[] belowRow = new byte[w + 1];
+				for (int z = ai.getAndIncrement(); z <= d; z = ai.getAndIncrement()) {
+					final byte[] above = z > 0 ? (byte[]) stack.getPixels(z) : null;
+					final byte[] below = z < d ? (byte[]) stack.getPixels(z + 1) : null;
+					Arrays.fill(aboveLast, (byte) 0);
+					Arrays.fill(belowLast, (byte) 0);
+					int sum = 0;
+					for (int y = 0; y <= h; y++) {
+						copyRow(above, y, w, h, aboveRow);
+						copyRow(below, y, w, h, belowRow);
+						// bits 0-7 are o1-o8; the previous column's o3, o4, o7 and
+						// o8 become this column's o1, o2, o5 and o6
+						int octant = 0;
+						for (int x = 0; x <= w; x++) {
+							octant = ((octant >> 2) & 0x33) | aboveLast[x] << 2 | aboveRow[x] << 3 |
+								belowLast[x] << 6 | belowRow[x] << 7;
+							sum += OCTANT_EULER[octant];
 						}
+						byte[] swap = aboveLast;
+						aboveLast = aboveRow;
+						aboveRow = swap;
+						swap = belowLast;
+						belowLast = belowRow;
+						belowRow = swap;
 					}
+					sumEulerInt[z] = sum;
 				}
 			});
 		}
@@ -259,32 +299,251 @@ public class Connectivity implements PlugIn {
 		return sumEuler;
 	}
 
-	private void setDimensions(final ImagePlus imp) {
-		this.width = imp.getWidth();
-		this.height = imp.getHeight();
-		this.depth = imp.getStackSize();
-		return;
+	/**
+	 * Calculate the Euler characteristic of the foreground and the correction
+	 * for the stack's edges together, in one pass over a bit-packed copy of the
+	 * stack.
+	 * <p>
+	 * The Euler characteristic of the foreground's voxels, as closed cubes, is
+	 * the number of vertices, less the edges, plus the faces, less the cubes.
+	 * Each of those is counted 64 voxels at a time, as the bits set in the OR
+	 * of the rows the cells touch, and the sum equals that of the octant
+	 * lookup table in {@link #getSumEuler(ImagePlus)}. The edge correction's
+	 * counts are taken from each slice and the one before as it is swept.
+	 * </p>
+	 *
+	 * @param imp
+	 *            Binary ImagePlus
+	 * @return the Euler characteristic as returned by
+	 *         {@link #getSumEuler(ImagePlus)}, and the edge correction that
+	 *         {@link #getDeltaChi(ImagePlus, double)} subtracts from it
+	 */
+	public double[] getSumEulerAndEdgeCorrection(final ImagePlus imp) {
+		setDimensions(imp);
+		return getSumEulerAndEdgeCorrection(BitVolume.pack(imp));
 	}
 
 	/**
-	 * Get pixel in 3D image stack (0 border conditions)
+	 * Calculate the Euler characteristic and edge correction of a packed stack
 	 *
-	 * @param stack
-	 *            3D image
-	 * @param x
-	 *            x- coordinate
-	 * @param y
-	 *            y- coordinate
-	 * @param z
-	 *            z- coordinate (in image stacks the indexes start at 1)
-	 * @return corresponding pixel (0 if out of image)
+	 * @param volume packed binary stack
+	 * @return the Euler characteristic and the edge correction
+	 * @see #getSumEulerAndEdgeCorrection(ImagePlus)
 	 */
-	private byte getPixel(final ImageStack stack, final int x, final int y, final int z) {
-		if (x >= 0 && x < this.width && y >= 0 && y < this.height && z >= 0 && z < this.depth)
-			return ((byte[]) stack.getPixels(z + 1))[y * this.width + x];
+	static double[] getSumEulerAndEdgeCorrection(final BitVolume volume) {
+		final int d = volume.getDepth();
+		final long[][] planeCounts = new long[d + 1][];
+		final AtomicInteger ai = new AtomicInteger(0);
+		final Thread[] threads = Multithreader.newThreads();
+		for (int thread = 0; thread < threads.length; thread++) {
+			threads[thread] = new Thread(() -> {
+				for (int z = ai.getAndIncrement(); z <= d; z = ai.getAndIncrement()) {
+					planeCounts[z] = getPlaneCounts(volume, z);
+				}
+			});
+		}
+		Multithreader.startAndJoin(threads);
+		final long[] counts = new long[N_COUNTS];
+		for (final long[] plane : planeCounts) {
+			for (int i = 0; i < N_COUNTS; i++)
+				counts[i] += plane[i];
+		}
+		final double sumEuler = counts[CHI];
+		final double edgeCorrection = getEdgeCorrection(counts[STACK_VERTICES], counts[STACK_EDGES],
+			counts[STACK_FACES], counts[EDGE_VERTICES], counts[FACE_VERTICES], counts[FACE_EDGES]);
+		return new double[] { sumEuler, edgeCorrection };
+	}
 
-		return 0;
-	} /* end getPixel */
+	/**
+	 * Count the cells of the closed foreground voxels on the plane between
+	 * slices z - 1 and z, and the edge correction counts of slice z
+	 *
+	 * @param volume packed binary stack
+	 * @param z plane index, from 0 to depth
+	 * @return counts, indexed by {@link #CHI} to {@link #FACE_EDGES}
+	 */
+	private static long[] getPlaneCounts(final BitVolume volume, final int z) {
+		final int w = volume.getWidth();
+		final int h = volume.getHeight();
+		final int d = volume.getDepth();
+		final int words = volume.getWordsPerRow();
+		final long[] above = z > 0 ? volume.getSlice(z - 1) : null;
+		final long[] below = z < d ? volume.getSlice(z) : null;
+
+		// vertices, edges, faces and cubes whose lowest corner is on this plane;
+		// a cell is in the complex if any voxel it bounds is foreground, and
+		// shifting a row left by one voxel ORs each voxel with the one before
+		long vertices = 0;
+		long edges = 0;
+		long faces = 0;
+		long cubes = 0;
+		for (int y = 0; y <= h; y++) {
+			final int last = (y - 1) * words;
+			final int row = y * words;
+			long carryU = 0;
+			long carryV = 0;
+			long carryW = 0;
+			long carryX = 0;
+			for (int i = 0; i < words; i++) {
+				final long a0 = above != null && y > 0 ? above[last + i] : 0;
+				final long a1 = above != null && y < h ? above[row + i] : 0;
+				final long b0 = below != null && y > 0 ? below[last + i] : 0;
+				final long b1 = below != null && y < h ? below[row + i] : 0;
+				// x edges and vertices, between 4 rows of voxels
+				final long u = a0 | a1 | b0 | b1;
+				edges += Long.bitCount(u);
+				vertices += Long.bitCount(u | u << 1 | carryU);
+				carryU = u >>> 63;
+				// z faces and y edges, between the slices
+				final long v = a1 | b1;
+				faces += Long.bitCount(v);
+				edges += Long.bitCount(v | v << 1 | carryV);
+				carryV = v >>> 63;
+				// y faces and z edges, between the rows of slice z
+				final long wv = b0 | b1;
+				faces += Long.bitCount(wv);
+				edges += Long.bitCount(wv | wv << 1 | carryW);
+				carryW = wv >>> 63;
+				// cubes and x faces, in row y of slice z
+				cubes += Long.bitCount(b1);
+				faces += Long.bitCount(b1 | b1 << 1 | carryX);
+				carryX = b1 >>> 63;
+			}
+		}
+		final long[] counts = new long[N_COUNTS];
+		counts[CHI] = vertices - edges + faces - cubes;
+		if (z < d) {
+			countStackEdges((x, y) -> volume.get(x, y, z), (x, y) -> volume.get(x, y, z - 1), z, w, h, d,
+				counts);
+		}
+		return counts;
+	}
+
+	/**
+	 * Add slice z's contributions to the six counts of
+	 * {@link #correctForEdges(ImageStack)}, which only involve slices z - 1 and
+	 * z. Only the boundary rows and columns of the slices are read, except in
+	 * the first and last slices, which are stack faces.
+	 *
+	 * @param v foreground of slice z, false outside the slice
+	 * @param p foreground of slice z - 1, false outside the slice or stack
+	 * @param z slice index, from 0
+	 * @param w stack width
+	 * @param h stack height
+	 * @param d stack depth
+	 * @param counts counts to add to, indexed by {@link #CHI} to
+	 *          {@link #FACE_EDGES}
+	 */
+	private static void countStackEdges(final SliceReader v, final SliceReader p, final int z, final int w,
+		final int h, final int d, final long[] counts) {
+		final int[] xs = w == 1 ? new int[] { 0 } : new int[] { 0, w - 1 };
+		final int[] ys = h == 1 ? new int[] { 0 } : new int[] { 0, h - 1 };
+		final boolean zEnd = z == 0 || z == d - 1;
+		final boolean zInner = z >= 1 && z <= d - 2;
+
+		if (zEnd) {
+			for (final int y : ys) {
+				for (final int x : xs)
+					if (v.get(x, y)) counts[STACK_VERTICES]++;
+				for (int x = 1; x < w - 1; x++)
+					if (v.get(x, y)) counts[STACK_EDGES]++;
+				for (int x = 1; x < w; x++)
+					if (v.get(x, y) || v.get(x - 1, y)) counts[EDGE_VERTICES]++;
+			}
+			for (final int x : xs) {
+				for (int y = 1; y < h - 1; y++)
+					if (v.get(x, y)) counts[STACK_EDGES]++;
+				for (int y = 1; y < h; y++)
+					if (v.get(x, y) || v.get(x, y - 1)) counts[EDGE_VERTICES]++;
+			}
+			for (int y = 1; y < h - 1; y++) {
+				for (int x = 1; x < w - 1; x++)
+					if (v.get(x, y)) counts[STACK_FACES]++;
+			}
+			for (int y = 0; y <= h; y++) {
+				for (int x = 0; x <= w; x++) {
+					if (v.get(x, y)) {
+						counts[FACE_VERTICES]++;
+						counts[FACE_EDGES] += 2;
+						continue;
+					}
+					final boolean up = v.get(x, y - 1);
+					final boolean left = v.get(x - 1, y);
+					if (up || left || v.get(x - 1, y - 1)) counts[FACE_VERTICES]++;
+					if (up) counts[FACE_EDGES]++;
+					if (left) counts[FACE_EDGES]++;
+				}
+			}
+		}
+		if (zInner) {
+			for (final int y : ys) {
+				for (final int x : xs)
+					if (v.get(x, y)) counts[STACK_EDGES]++;
+				for (int x = 1; x < w - 1; x++)
+					if (v.get(x, y)) counts[STACK_FACES]++;
+			}
+			for (final int x : xs) {
+				for (int y = 1; y < h - 1; y++)
+					if (v.get(x, y)) counts[STACK_FACES]++;
+			}
+		}
+		if (z >= 1) {
+			for (final int x : xs) {
+				for (final int y : ys)
+					if (v.get(x, y) || p.get(x, y)) counts[EDGE_VERTICES]++;
+				for (int y = 0; y <= h; y++) {
+					if (v.get(x, y) || v.get(x, y - 1) || p.get(x, y - 1) || p.get(x, y))
+						counts[FACE_VERTICES]++;
+				}
+				for (int y = 0; y < h; y++)
+					if (v.get(x, y) || p.get(x, y)) counts[FACE_EDGES]++;
+			}
+			for (final int y : ys) {
+				for (int x = 1; x < w; x++) {
+					if (v.get(x, y) || p.get(x, y) || p.get(x - 1, y) || v.get(x - 1, y))
+						counts[FACE_VERTICES]++;
+				}
+				for (int x = 0; x < w; x++)
+					if (v.get(x, y) || p.get(x, y)) counts[FACE_EDGES]++;
+			}
+		}
+		for (final int y : ys) {
+			for (int x = 0; x <= w; x++)
+				if (v.get(x, y) || v.get(x - 1, y)) counts[FACE_EDGES]++;
+		}
+		for (final int x : xs) {
+			for (int y = 1; y < h; y++)
+				if (v.get(x, y) || v.get(x, y - 1)) counts[FACE_EDGES]++;
+		}
+	}
+
+	/**
+	 * Copy a row of a slice as 1 for foreground (-1) and 0 for background,
+	 * leaving the padding pixel at the end of the buffer as background
+	 *
+	 * @param slice pixels of the slice, or null if the slice is outside the stack
+	 * @param y row, which is background if outside the slice
+	 * @param w slice width
+	 * @param h slice height
+	 * @param row buffer of w + 1 pixels to copy the row into
+	 */
+	private static void copyRow(final byte[] slice, final int y, final int w, final int h, final byte[] row) {
+		if (slice == null || y >= h) {
+			Arrays.fill(row, 0, w, (byte) 0);
+			return;
+		}
+		final int offset = y * w;
+		for (int x = 0; x < w; x++) {
+			row[x] = (byte) (slice[offset + x] == -1 ? 1 : 0);
+		}
+	}
+
+	private void setDimensions(final ImagePlus imp) {
+		this.width = imp.getWidth();
+		this.height = imp.getHeight();
+		this.depth = imp.getStackSize();
+		return;
+	}
 
 	/**
 	 * Get delta euler value for an octant (~= vertex) from look up table
@@ -295,7 +554,7 @@ public class Connectivity implements PlugIn {
 	 * In binary images, foreground is -1, background = 0. o1 = 08 are the octant values.
 	 * @return delta Euler for the octant or false if the point is Euler invariant or not
 	 */
-	private int getDeltaEuler(final byte o1, final byte o2, final byte o3, final byte o4,
+	private static int getDeltaEuler(final byte o1, final byte o2, final byte o3, final byte o4,
 		final byte o5, final byte o6, final byte o7, final byte o8) {
 		
 		char n = 1;
@@ -346,337 +605,22 @@ public class Connectivity implements PlugIn {
 		return EULER_LUT[n];
 	}/* end getDeltaEuler */
 
-	/*------------------------------------------------------------------------*/
-	/**
-	 * Check all vertices of stack and count if foreground (-1) this is &#967;
-	 * <sub>0</sub> from Odgaard and Gundersen (1993) and <i>f</i> in my working
-	 *
-	 * @param stack
-	 * @return number of voxel vertices intersecting with stack vertices
-	 */
-	private long getStackVertices(final ImageStack stack) {
-		long nStackVertices = 0;
-		final int xInc = Math.max(1, width - 1);
-		final int yInc = Math.max(1, height - 1);
-		final int zInc = Math.max(1, depth - 1);
-
-		for (int z = 0; z < depth; z += zInc) {
-			for (int y = 0; y < height; y += yInc) {
-				for (int x = 0; x < width; x += xInc) {
-					if (getPixel(stack, x, y, z) == -1)
-						nStackVertices++;
-				}
-			}
-		}
-
-		return nStackVertices;
-	}/* end getStackVertices */
-
-	/**
-	 * Count the number of foreground voxels on edges of stack, this is part of
-	 * &#967;<sub>1</sub> (<i>e</i> in my working)
-	 *
-	 * @param stack
-	 * @return number of voxel edges intersecting with stack edges
-	 */
-	private long getStackEdges(final ImageStack stack) {
-		long nStackEdges = 0;
-		
-		final int w1 = width - 1;
-		final int h1 = height - 1;
-		final int d1 = depth -1;
-		
-		final int xInc = Math.max(1, w1);
-		final int yInc = Math.max(1, h1);
-		final int zInc = Math.max(1, d1);
-		
-		// left to right stack edges
-		for (int z = 0; z < depth; z += zInc) {
-			for (int y = 0; y < height; y += yInc) {
-				for (int x = 1; x < w1; x++) {
-					if (getPixel(stack, x, y, z) == -1)
-						nStackEdges++;
-				}
-			}
-		}
-
-		// back to front stack edges
-		for (int z = 0; z < depth; z += zInc) {
-			for (int x = 0; x < width; x += xInc) {
-				for (int y = 1; y < h1; y++) {
-					if (getPixel(stack, x, y, z) == -1)
-						nStackEdges++;
-				}
-			}
-		}
-
-		// top to bottom stack edges
-		for (int y = 0; y < height; y += yInc) {
-			for (int x = 0; x < width; x += xInc) {
-				for (int z = 1; z < d1; z++) {
-					if (getPixel(stack, x, y, z) == -1)
-						nStackEdges++;
-				}
-			}
-		}
-		return nStackEdges;
-	}/* end getStackEdges */
-
-	/*---------------------------------------------------------------------*/
 	/**
-	 * Count the number of foreground voxel faces intersecting with stack faces
-	 * This is part of &#967;<sub>2</sub> and is <i>c</i> in my working
+	 * Get the delta Euler value of an octant given as a bit mask, for callers
+	 * that sweep a label array rather than a binary stack.
 	 *
-	 * @param stack
-	 * @return number of voxel faces intersecting with stack faces
+	 * @param octant bit i - 1 is set when octant voxel o<i>i</i> of
+	 *          {@link #getSumEuler(ImagePlus)} is foreground
+	 * @return delta Euler for the octant, 0 if it has no foreground
 	 */
-	private long getStackFaces(final ImageStack stack) {
-		
-		final int w1 = width - 1;
-		final int h1 = height - 1;
-		final int d1 = depth -1;
-		
-		final int xInc = Math.max(1, w1);
-		final int yInc = Math.max(1, h1);
-		final int zInc = Math.max(1, d1);
-		long nStackFaces = 0;
-
-		// top and bottom faces
-		for (int z = 0; z < depth; z += zInc) {
-			for (int y = 1; y < h1; y++) {
-				for (int x = 1; x < w1; x++) {
-					if (getPixel(stack, x, y, z) == -1)
-						nStackFaces++;
-				}
-			}
+	static int getOctantEuler(final int octant) {
+		if (octant == 0) return 0;
+		final byte[] o = new byte[8];
+		for (int i = 0; i < 8; i++) {
+			if ((octant & (1 << i)) != 0) o[i] = -1;
 		}
-
-		// back and front faces
-		for (int y = 0; y < height; y += yInc) {
-			for (int z = 1; z < d1; z++) {
-				for (int x = 1; x < w1; x++) {
-					if (getPixel(stack, x, y, z) == -1)
-						nStackFaces++;
-				}
-			}
-		}
-
-		// left and right faces
-		for (int x = 0; x < width; x += xInc) {
-			for (int y = 1; y < h1; y++) {
-				for (int z = 1; z < d1; z++) {
-					if (getPixel(stack, x, y, z) == -1)
-						nStackFaces++;
-				}
-			}
-		}
-		return nStackFaces;
-	}/* end getStackFaces */
-
-	/**
-	 * Count the number of voxel vertices intersecting stack faces. This
-	 * contributes to &#967;<sub>2</sub> (<i>a</i> in my working)
-	 *
-	 * @param stack
-	 * @return Number of voxel vertices intersecting stack faces
-	 */
-	private long getFaceVertices(final ImageStack stack) {
-		final int xInc = Math.max(1, width - 1);
-		final int yInc = Math.max(1, height - 1);
-		final int zInc = Math.max(1, depth - 1);
-		long nFaceVertices = 0;
-
-		// top and bottom faces (all 4 edges)
-		for (int z = 0; z < depth; z += zInc) {
-			for (int y = 0; y <= height; y++) {
-				for (int x = 0; x <= width; x++) {
-					// if the voxel or any of its neighbours are foreground, the
-					// vertex is counted
-					if (getPixel(stack, x, y, z) == -1)
-						nFaceVertices++;
-					else if (getPixel(stack, x, y - 1, z) == -1)
-						nFaceVertices++;
-					else if (getPixel(stack, x - 1, y - 1, z) == -1)
-						nFaceVertices++;
-					else if (getPixel(stack, x - 1, y, z) == -1)
-						nFaceVertices++;
-				}
-			}
-		}
-
-		// left and right faces (2 vertical edges)
-		for (int x = 0; x < width; x += xInc) {
-			for (int y = 0; y <= height; y++) {
-				for (int z = 1; z < depth; z++) {
-					// if the voxel or any of its neighbours are foreground, the
-					// vertex is counted
-					if (getPixel(stack, x, y, z) == -1)
-						nFaceVertices++;
-					else if (getPixel(stack, x, y - 1, z) == -1)
-						nFaceVertices++;
-					else if (getPixel(stack, x, y - 1, z - 1) == -1)
-						nFaceVertices++;
-					else if (getPixel(stack, x, y, z - 1) == -1)
-						nFaceVertices++;
-				}
-			}
-		}
-
-		// back and front faces (0 vertical edges)
-		for (int y = 0; y < height; y += yInc) {
-			for (int x = 1; x < width; x++) {
-				for (int z = 1; z < depth; z++) {
-					// if the voxel or any of its neighbours are foreground, the
-					// vertex is counted
-					if (getPixel(stack, x, y, z) == -1)
-						nFaceVertices++;
-					else if (getPixel(stack, x, y, z - 1) == -1)
-						nFaceVertices++;
-					else if (getPixel(stack, x - 1, y, z - 1) == -1)
-						nFaceVertices++;
-					else if (getPixel(stack, x - 1, y, z) == -1)
-						nFaceVertices++;
-				}
-			}
-		}
-		return nFaceVertices;
-	}/* end getFaceVertices */
-
-	/**
-	 * Count the number of intersections between voxel edges and stack faces.
-	 * This is part of &#967;<sub>2</sub>, in my working it's called <i>b</i>
-	 *
-	 * @param stack
-	 * @return number of intersections between voxel edges and stack faces
-	 */
-	private long getFaceEdges(final ImageStack stack) {
-		final int xInc = Math.max(1, width - 1);
-		final int yInc = Math.max(1, height - 1);
-		final int zInc = Math.max(1, depth - 1);
-		long nFaceEdges = 0;
-
-		// top and bottom faces (all 4 edges)
-		// check 2 edges per voxel
-		for (int z = 0; z < depth; z += zInc) {
-			for (int y = 0; y <= height; y++) {
-				for (int x = 0; x <= width; x++) {
-					// if the voxel or any of its neighbours are foreground, the
-					// vertex is counted
-					if (getPixel(stack, x, y, z) == -1) {
-						nFaceEdges += 2;
-					} else {
-						if (getPixel(stack, x, y - 1, z) == -1) {
-							nFaceEdges++;
-						}
-						if (getPixel(stack, x - 1, y, z) == -1) {
-							nFaceEdges++;
-						}
-					}
-				}
-			}
-		}
-
-		// back and front faces, horizontal edges
-		for (int y = 0; y < height; y += yInc) {
-			for (int z = 1; z < depth; z++) {
-				for (int x = 0; x < width; x++) {
-					if (getPixel(stack, x, y, z) == -1)
-						nFaceEdges++;
-					else if (getPixel(stack, x, y, z - 1) == -1)
-						nFaceEdges++;
-				}
-			}
-		}
-
-		// back and front faces, vertical edges
-		for (int y = 0; y < height; y += yInc) {
-			for (int z = 0; z < depth; z++) {
-				for (int x = 0; x <= width; x++) {
-					if (getPixel(stack, x, y, z) == -1)
-						nFaceEdges++;
-					else if (getPixel(stack, x - 1, y, z) == -1)
-						nFaceEdges++;
-				}
-			}
-		}
-
-		// left and right stack faces, horizontal edges
-		for (int x = 0; x < width; x += xInc) {
-			for (int z = 1; z < depth; z++) {
-				for (int y = 0; y < height; y++) {
-					if (getPixel(stack, x, y, z) == -1)
-						nFaceEdges++;
-					else if (getPixel(stack, x, y, z - 1) == -1)
-						nFaceEdges++;
-				}
-			}
-		}
-
-		// left and right stack faces, vertical voxel edges
-		for (int x = 0; x < width; x += xInc) {
-			for (int z = 0; z < depth; z++) {
-				for (int y = 1; y < height; y++) {
-					if (getPixel(stack, x, y, z) == -1)
-						nFaceEdges++;
-					else if (getPixel(stack, x, y - 1, z) == -1)
-						nFaceEdges++;
-				}
-			}
-		}
-		return nFaceEdges;
-	}/* end getFaceEdges */
-
-	/*-------------------------------------------------------------------------*/
-	/**
-	 * Count number of voxel vertices intersecting stack edges. It contributes
-	 * to &#967;<sub>1</sub>, and I call it <i>d</i> in my working
-	 *
-	 * @param stack
-	 * @return number of voxel vertices intersecting stack edges
-	 */
-	private long getEdgeVertices(final ImageStack stack) {
-		final int xInc = Math.max(1, width - 1);
-		final int yInc = Math.max(1, height - 1);
-		final int zInc = Math.max(1, depth - 1);
-		long nEdgeVertices = 0;
-
-		// left->right edges
-		for (int z = 0; z < depth; z += zInc) {
-			for (int y = 0; y < height; y += yInc) {
-				for (int x = 1; x < width; x++) {
-					if (getPixel(stack, x, y, z) == -1)
-						nEdgeVertices++;
-					else if (getPixel(stack, x - 1, y, z) == -1)
-						nEdgeVertices++;
-				}
-			}
-		}
-
-		// back->front edges
-		for (int z = 0; z < depth; z += zInc) {
-			for (int x = 0; x < width; x += xInc) {
-				for (int y = 1; y < height; y++) {
-					if (getPixel(stack, x, y, z) == -1)
-						nEdgeVertices++;
-					else if (getPixel(stack, x, y - 1, z) == -1)
-						nEdgeVertices++;
-				}
-			}
-		}
-
-		// top->bottom edges
-		for (int x = 0; x < width; x += xInc) {
-			for (int y = 0; y < height; y += yInc) {
-				for (int z = 1; z < depth; z++) {
-					if (getPixel(stack, x, y, z) == -1)
-						nEdgeVertices++;
-					else if (getPixel(stack, x, y, z - 1) == -1)
-						nEdgeVertices++;
-				}
-			}
-		}
-		return nEdgeVertices;
-	}/* end getEdgeVertices */
+		return getDeltaEuler(o[0], o[1], o[2], o[3], o[4], o[5], o[6], o[7]);
+	}
 
 	/*----------------------------------------------------------------------*/
 	/**
@@ -697,17 +641,68 @@ public class Connectivity implements PlugIn {
 	 * connectivity
 	 * </p>
 	 *
+	 * <p>
+	 * All six counts are taken together, each thread reading the boundary rows
+	 * and columns of a slice, and the whole of the first and last slices, once.
+	 * </p>
+	 *
 	 * @param stack
 	 * @return edgeCorrection for subtraction from the stack's Euler number
 	 */
 	private double correctForEdges(final ImageStack stack) {
+		final int w = width;
+		final int h = height;
+		final int d = depth;
+		final AtomicInteger ai = new AtomicInteger(0);
+		final Thread[] threads = Multithreader.newThreads();
+		final long[][] threadCounts = new long[threads.length][N_COUNTS];
+		for (int thread = 0; thread < threads.length; thread++) {
+			final long[] counts = threadCounts[thread];
+			threads[thread] = new Thread(() -> {
+				for (int z = ai.getAndIncrement(); z < d; z = ai.getAndIncrement()) {
+					final byte[] pixels = (byte[]) stack.getPixels(z + 1);
+					final SliceReader slice = (x, y) -> x >= 0 && x < w && y >= 0 && y < h && pixels[y * w + x] == -1;
+					SliceReader previous = (x, y) -> false;
+					if (z > 0) {
+						final byte[] previousPixels = (byte[]) stack.getPixels(z);
+						previous = (x, y) -> x >= 0 && x < w && y >= 0 && y < h && previousPixels[y * w + x] == -1;
+					}
+					countStackEdges(slice, previous, z, w, h, d, counts);
+				}
+			});
+		}
+		Multithreader.startAndJoin(threads);
+		final long[] counts = new long[N_COUNTS];
+		for (final long[] c : threadCounts) {
+			for (int i = 0; i < N_COUNTS; i++)
+				counts[i] += c[i];
+		}
+		return getEdgeCorrection(counts[STACK_VERTICES], counts[STACK_EDGES], counts[STACK_FACES],
+			counts[EDGE_VERTICES], counts[FACE_VERTICES], counts[FACE_EDGES]);
+	}/* end correctForEdges */
 
-		final long f = getStackVertices(stack);
-		final long e = getStackEdges(stack) + 3 * f;
-		final long c = getStackFaces(stack) + 2 * e - 3 * f;
-		final long d = getEdgeVertices(stack) + f;
-		final long a = getFaceVertices(stack);
-		final long b = getFaceEdges(stack);
+	/**
+	 * Combine the counts of voxel cells on the stack's boundary into the edge
+	 * correction
+	 *
+	 * @param stackVertices number of voxel vertices intersecting with stack
+	 *          vertices
+	 * @param stackEdges number of voxel edges intersecting with stack edges
+	 * @param stackFaces number of voxel faces intersecting with stack faces
+	 * @param edgeVertices number of voxel vertices intersecting stack edges
+	 * @param faceVertices number of voxel vertices intersecting stack faces
+	 * @param faceEdges number of intersections between voxel edges and stack
+	 *          faces
+	 * @return edgeCorrection for subtraction from the stack's Euler number
+	 */
+	static double getEdgeCorrection(final long stackVertices, final long stackEdges,
+		final long stackFaces, final long edgeVertices, final long faceVertices, final long faceEdges) {
+		final long f = stackVertices;
+		final long e = stackEdges + 3 * f;
+		final long c = stackFaces + 2 * e - 3 * f;
+		final long d = edgeVertices + f;
+		final long a = faceVertices;
+		final long b = faceEdges;
 
 		final double chiZero = f;
 		final double chiOne = (double) d - (double) e;
@@ -716,11 +711,19 @@ public class Connectivity implements PlugIn {
 		final double edgeCorrection = chiTwo / 2 + chiOne / 4 + chiZero / 8;
 
 		return edgeCorrection;
-	}/* end correctForEdges */
+	}
 
 	/*
 	 * -----------------------------------------------------------------------
 	 */
+	private final static int[] fillOctantEuler() {
+		final int[] octantEuler = new int[256];
+		for (int octant = 0; octant < 256; octant++) {
+			octantEuler[octant] = getOctantEuler(octant);
+		}
+		return octantEuler;
+	}
+
 	/**
 	 * Fill Euler LUT Only odd indices are needed because we only check object
 	 * voxels' neighbours, so there is always a 1 in each index.
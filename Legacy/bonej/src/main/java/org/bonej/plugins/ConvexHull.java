@@ -0,0 +1,660 @@
+/*-
+ * #%L
+ * Mavenized version of the BoneJ1 plugins
+ * %%
+ * Copyright (C) 2015 - 2020 Michael Doube, BoneJ developers
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.bonej.plugins;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntConsumer;
+
+/**
+ * Three-dimensional convex hull of a point cloud, built with the quickhull
+ * algorithm (Barber, Dobkin &amp; Huhdanpaa 1996).
+ * <p>
+ * Points closer to a hull face than a small tolerance are treated as lying on
+ * it and do not become vertices, so the hull may omit points which are outside
+ * it by rounding error only.
+ * </p>
+ *
+ * @author Michael Doube
+ */
+final class ConvexHull {
+
+	/** x, y, z coordinates of the input points */
+	private final double[] coords;
+
+	/** faces of the hull */
+	private final List<Face> faces;
+
+	/** indices of the hull's vertices in ascending order */
+	private final int[] vertices;
+
+	/** distance within which points count as lying on a face */
+	private final double tolerance;
+
+	private ConvexHull(final double[] coords, final List<Face> faces,
+		final double tolerance)
+	{
+		this.coords = coords;
+		this.tolerance = tolerance;
+		this.faces = faces;
+		final boolean[] isVertex = new boolean[coords.length / 3];
+		for (final Face face : faces) {
+			isVertex[face.a] = true;
+			isVertex[face.b] = true;
+			isVertex[face.c] = true;
+		}
+		int nVertices = 0;
+		for (final boolean v : isVertex)
+			if (v) nVertices++;
+		vertices = new int[nVertices];
+		int j = 0;
+		for (int i = 0; i < isVertex.length; i++)
+			if (isVertex[i]) vertices[j++] = i;
+	}
+
+	/**
+	 * Build the convex hull of a set of points
+	 *
+	 * @param coords x, y, z coordinates of the points, packed as x0, y0, z0, x1,
+	 *          ...
+	 * @return the hull, or null if the points are coplanar or the hull could not
+	 *         be built consistently
+	 */
+	static ConvexHull build(final double[] coords) {
+		final int n = coords.length / 3;
+		if (n < 4) return null;
+		double scale = 0;
+		for (int k = 0; k < 3; k++) {
+			double max = 0;
+			for (int i = k; i < coords.length; i += 3)
+				max = Math.max(max, Math.abs(coords[i]));
+			scale += max;
+		}
+		final double tolerance = 3 * Math.ulp(1.0) * scale;
+
+		final int[] simplex = initialSimplex(coords, tolerance);
+		if (simplex == null) return null;
+
+		final Map<Long, Face> edges = new HashMap<>();
+		final List<Face> created = new ArrayList<>();
+		final int s0 = simplex[0];
+		final int s1 = simplex[1];
+		final int s2 = simplex[2];
+		final int s3 = simplex[3];
+		final Face base = new Face(coords, s0, s1, s2);
+		final int[][] simplexFaces;
+		if (base.distance(coords, s3) > 0) {
+			simplexFaces = new int[][] { { s0, s2, s1 }, { s0, s1, s3 }, { s1, s2,
+				s3 }, { s2, s0, s3 } };
+		}
+		else {
+			simplexFaces = new int[][] { { s0, s1, s2 }, { s0, s3, s1 }, { s1, s3,
+				s2 }, { s2, s3, s0 } };
+		}
+		for (final int[] f : simplexFaces) {
+			final Face face = new Face(coords, f[0], f[1], f[2]);
+			if (!face.link(edges)) return null;
+			created.add(face);
+		}
+
+		// assign every other point to the face it is furthest outside
+		for (int i = 0; i < n; i++) {
+			if (i == s0 || i == s1 || i == s2 || i == s3) continue;
+			assign(coords, i, created, tolerance);
+		}
+
+		final Deque<Face> pending = new ArrayDeque<>(created);
+		final List<Face> visible = new ArrayList<>();
+		final List<int[]> horizon = new ArrayList<>();
+		final Deque<Face> stack = new ArrayDeque<>();
+		int stamp = 0;
+		while (!pending.isEmpty()) {
+			final Face face = pending.pop();
+			if (!face.alive || face.nOutside == 0) continue;
+			final int eye = face.furthest;
+
+			// find the faces visible from the eye point and their horizon
+			stamp++;
+			visible.clear();
+			horizon.clear();
+			face.stamp = stamp;
+			stack.push(face);
+			while (!stack.isEmpty()) {
+				final Face f = stack.pop();
+				visible.add(f);
+				final int[] fv = { f.a, f.b, f.c };
+				for (int e = 0; e < 3; e++) {
+					final int u = fv[e];
+					final int v = fv[(e + 1) % 3];
+					final Face neighbour = edges.get(key(v, u));
+					if (neighbour == null) return null;
+					if (neighbour.stamp == stamp) continue;
+					if (neighbour.distance(coords, eye) > tolerance) {
+						neighbour.stamp = stamp;
+						stack.push(neighbour);
+					}
+					else {
+						horizon.add(new int[] { u, v });
+					}
+				}
+			}
+
+			for (final Face f : visible) {
+				f.alive = false;
+				f.unlink(edges);
+			}
+			created.clear();
+			for (final int[] edge : horizon) {
+				final Face f = new Face(coords, edge[0], edge[1], eye);
+				if (!f.link(edges)) return null;
+				created.add(f);
+			}
+			for (final Face f : visible) {
+				for (int k = 0; k < f.nOutside; k++) {
+					final int i = f.outside[k];
+					if (i != eye) assign(coords, i, created, tolerance);
+				}
+				f.outside = null;
+			}
+			for (final Face f : created)
+				if (f.nOutside > 0) pending.push(f);
+		}
+
+		return new ConvexHull(coords, new ArrayList<>(new LinkedHashSet<>(edges
+			.values())), tolerance);
+	}
+
+	/**
+	 * @return indices of the hull's vertices in ascending order
+	 */
+	int[] getVertices() {
+		return vertices.clone();
+	}
+
+	/**
+	 * Get the minimum width of the hull, which is the smallest distance between
+	 * two parallel planes enclosing it. The minimum is found between a face and
+	 * its furthest vertex, or between a pair of antipodal edges (Houle &amp;
+	 * Toussaint 1988).
+	 * <p>
+	 * Furthest vertices are found by walking downhill over the hull from the
+	 * previous face's answer, which is close to linear in the number of faces.
+	 * Antipodal edge pairs are found by bucketing each edge's arc of normals on
+	 * a grid over the unit sphere and comparing only edges whose arcs share a
+	 * cell with the other's reflected arc. This is quadratic in the number of
+	 * hull vertices h in the worst case, rather than the O(h log h) of rotating
+	 * calipers on an overlay of the hull's Gauss map with its reflection, but the
+	 * hulls of particle surfaces have at most a few thousand vertices and few
+	 * arcs share a cell, so the simpler scan is used.
+	 * </p>
+	 *
+	 * @return minimum width
+	 */
+	double getMinWidth() {
+		final int nPoints = coords.length / 3;
+		// neighbours of each vertex, from the faces' directed edges
+		final int[] first = new int[nPoints + 1];
+		for (final Face f : faces) {
+			first[f.a + 1]++;
+			first[f.b + 1]++;
+			first[f.c + 1]++;
+		}
+		for (int i = 0; i < nPoints; i++)
+			first[i + 1] += first[i];
+		final int[] neighbours = new int[first[nPoints]];
+		final int[] next = Arrays.copyOf(first, nPoints);
+		for (final Face f : faces) {
+			neighbours[next[f.a]++] = f.b;
+			neighbours[next[f.b]++] = f.c;
+			neighbours[next[f.c]++] = f.a;
+		}
+
+		// face to furthest vertex: walk downhill from the last face's answer, as a
+		// local minimum of a linear function on a convex hull is the global one.
+		// Coplanar faces make level plateaus, which are searched for a way down.
+		double minWidth = Double.POSITIVE_INFINITY;
+		final int[] visited = new int[nPoints];
+		final int[] queue = new int[vertices.length];
+		int v = vertices[0];
+		int stamp = 0;
+		for (final Face f : faces) {
+			double height = f.distance(coords, v);
+			while (true) {
+				int lowest = v;
+				for (int k = first[v]; k < first[v + 1]; k++) {
+					final double h = f.distance(coords, neighbours[k]);
+					if (h < height) {
+						height = h;
+						lowest = neighbours[k];
+					}
+				}
+				if (lowest == v) {
+					lowest = descend(f, v, height, first, neighbours, visited, ++stamp,
+						queue);
+					if (lowest < 0) break;
+					height = f.distance(coords, lowest);
+				}
+				v = lowest;
+			}
+			minWidth = Math.min(minWidth, -height);
+		}
+
+		// each undirected edge with its two faces
+		final Map<Long, Face> edges = new HashMap<>();
+		for (final Face f : faces)
+			f.link(edges);
+		final List<int[]> edgeList = new ArrayList<>();
+		final List<Face[]> edgeFaces = new ArrayList<>();
+		for (final Face f : faces) {
+			final int[] fv = { f.a, f.b, f.c };
+			for (int e = 0; e < 3; e++) {
+				final int u = fv[e];
+				final int w = fv[(e + 1) % 3];
+				if (u > w) continue;
+				edgeList.add(new int[] { u, w });
+				edgeFaces.add(new Face[] { f, edges.get(key(w, u)) });
+			}
+		}
+
+		// edge to antipodal edge: the arc of normals along one edge must cross
+		// the reflected arc of the other, so arcs are bucketed by their bounding
+		// boxes on a grid over the unit sphere to skip distant pairs
+		final int nEdges = edgeList.size();
+		final int grid = Math.max(4, Math.min(64, (int) Math.sqrt(nEdges / 2.0)));
+		final int[] boxes = new int[6 * nEdges];
+		final int[] cellFirst = new int[grid * grid * grid + 1];
+		for (int e = 0; e < nEdges; e++) {
+			arcCells(edgeFaces.get(e), grid, 1, boxes, 6 * e);
+			forEachCell(boxes, 6 * e, grid, cell -> cellFirst[cell + 1]++);
+		}
+		for (int c = 0; c < grid * grid * grid; c++)
+			cellFirst[c + 1] += cellFirst[c];
+		final int[] cellEdges = new int[cellFirst[grid * grid * grid]];
+		final int[] cellNext = Arrays.copyOf(cellFirst, grid * grid * grid);
+		for (int e = 0; e < nEdges; e++) {
+			final int edge = e;
+			forEachCell(boxes, 6 * e, grid, cell -> cellEdges[cellNext[cell]++] = edge);
+		}
+
+		final int[] seen = new int[nEdges];
+		Arrays.fill(seen, -1);
+		final int[] reflected = new int[6];
+		final double[] n = new double[3];
+		for (int i = 0; i < nEdges; i++) {
+			final int[] e1 = edgeList.get(i);
+			final Face[] f1 = edgeFaces.get(i);
+			arcCells(f1, grid, -1, reflected, 0);
+			final int[] candidates = cellContents(reflected, grid, cellFirst, cellEdges, seen, i);
+			for (final int j : candidates) {
+				if (j <= i) continue;
+				final int[] e2 = edgeList.get(j);
+				if (e1[0] == e2[0] || e1[0] == e2[1] || e1[1] == e2[0] ||
+					e1[1] == e2[1]) continue;
+				if (!edgeNormal(e1, e2, n)) continue;
+				// n must support the hull along e1 and -n along e2
+				if (!inWedge(n, f1, 1)) {
+					n[0] = -n[0];
+					n[1] = -n[1];
+					n[2] = -n[2];
+					if (!inWedge(n, f1, 1)) continue;
+				}
+				if (!inWedge(n, edgeFaces.get(j), -1)) continue;
+				final int p = 3 * e1[0];
+				final int q = 3 * e2[0];
+				final double width = n[0] * (coords[p] - coords[q]) + n[1] *
+					(coords[p + 1] - coords[q + 1]) + n[2] * (coords[p + 2] -
+						coords[q + 2]);
+				minWidth = Math.min(minWidth, Math.abs(width));
+			}
+		}
+		return minWidth;
+	}
+
+	/**
+	 * Search a plateau of vertices at the same height below a face for a
+	 * neighbour lower than the plateau
+	 *
+	 * @return a lower vertex, or -1 if the plateau is the minimum
+	 */
+	private int descend(final Face f, final int start, final double height,
+		final int[] first, final int[] neighbours, final int[] visited,
+		final int stamp, final int[] queue)
+	{
+		int head = 0;
+		int tail = 0;
+		queue[tail++] = start;
+		visited[start] = stamp;
+		while (head < tail) {
+			final int u = queue[head++];
+			for (int k = first[u]; k < first[u + 1]; k++) {
+				final int w = neighbours[k];
+				if (visited[w] == stamp) continue;
+				visited[w] = stamp;
+				final double h = f.distance(coords, w);
+				if (h < height - tolerance) return w;
+				if (h <= height + tolerance) queue[tail++] = w;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Grid cell range covering the arc of unit normals between an edge's two
+	 * faces, or its reflection through the origin
+	 *
+	 * @param edgeFaces the edge's faces
+	 * @param grid number of cells along each axis of the [-1, 1] cube
+	 * @param sign 1 for the arc, -1 for its reflection
+	 * @param boxes output, min and max cell along x, y and z
+	 * @param offset where to write in boxes
+	 */
+	private static void arcCells(final Face[] edgeFaces, final int grid,
+		final int sign, final int[] boxes, final int offset)
+	{
+		final Face f = edgeFaces[0];
+		final Face g = edgeFaces[1];
+		final double[] a = { sign * f.nx, sign * f.ny, sign * f.nz };
+		final double[] b = { sign * g.nx, sign * g.ny, sign * g.nz };
+		// the arc bulges beyond its chord by at most 1 - cos(angle / 2)
+		final double mx = a[0] + b[0];
+		final double my = a[1] + b[1];
+		final double mz = a[2] + b[2];
+		final double pad = 1 - Math.sqrt(mx * mx + my * my + mz * mz) / 2 + 1e-9;
+		for (int k = 0; k < 3; k++) {
+			boxes[offset + 2 * k] = cell(Math.min(a[k], b[k]) - pad, grid);
+			boxes[offset + 2 * k + 1] = cell(Math.max(a[k], b[k]) + pad, grid);
+		}
+	}
+
+	private static int cell(final double coordinate, final int grid) {
+		final int c = (int) Math.floor((coordinate + 1) / 2 * grid);
+		return Math.max(0, Math.min(grid - 1, c));
+	}
+
+	private static void forEachCell(final int[] boxes, final int offset,
+		final int grid, final IntConsumer action)
+	{
+		for (int z = boxes[offset + 4]; z <= boxes[offset + 5]; z++)
+			for (int y = boxes[offset + 2]; y <= boxes[offset + 3]; y++)
+				for (int x = boxes[offset]; x <= boxes[offset + 1]; x++)
+					action.accept((z * grid + y) * grid + x);
+	}
+
+	/** Edges registered in a range of cells, each listed once */
+	private static int[] cellContents(final int[] box, final int grid,
+		final int[] cellFirst, final int[] cellEdges, final int[] seen,
+		final int stamp)
+	{
+		int[] contents = new int[16];
+		int size = 0;
+		for (int z = box[4]; z <= box[5]; z++) {
+			for (int y = box[2]; y <= box[3]; y++) {
+				for (int x = box[0]; x <= box[1]; x++) {
+					final int cell = (z * grid + y) * grid + x;
+					for (int k = cellFirst[cell]; k < cellFirst[cell + 1]; k++) {
+						final int e = cellEdges[k];
+						if (seen[e] == stamp) continue;
+						seen[e] = stamp;
+						if (size == contents.length) contents = Arrays.copyOf(contents,
+							2 * size);
+						contents[size++] = e;
+					}
+				}
+			}
+		}
+		return Arrays.copyOf(contents, size);
+	}
+
+	/**
+	 * Unit normal to two edges' directions
+	 *
+	 * @return false if the edges are parallel
+	 */
+	private boolean edgeNormal(final int[] e1, final int[] e2, final double[] n) {
+		final int a = 3 * e1[0];
+		final int b = 3 * e1[1];
+		final int c = 3 * e2[0];
+		final int d = 3 * e2[1];
+		final double ux = coords[b] - coords[a];
+		final double uy = coords[b + 1] - coords[a + 1];
+		final double uz = coords[b + 2] - coords[a + 2];
+		final double vx = coords[d] - coords[c];
+		final double vy = coords[d + 1] - coords[c + 1];
+		final double vz = coords[d + 2] - coords[c + 2];
+		n[0] = uy * vz - uz * vy;
+		n[1] = uz * vx - ux * vz;
+		n[2] = ux * vy - uy * vx;
+		final double length = Math.sqrt(n[0] * n[0] + n[1] * n[1] + n[2] * n[2]);
+		final double uLength = Math.sqrt(ux * ux + uy * uy + uz * uz);
+		final double vLength = Math.sqrt(vx * vx + vy * vy + vz * vz);
+		if (length <= 1e-12 * uLength * vLength) return false;
+		n[0] /= length;
+		n[1] /= length;
+		n[2] /= length;
+		return true;
+	}
+
+	/**
+	 * Check whether sign * n lies between the outward normals of an edge's two
+	 * faces, that is, whether a plane normal to it supports the hull along the
+	 * edge. n must be perpendicular to the edge.
+	 */
+	private static boolean inWedge(final double[] n, final Face[] edgeFaces,
+		final int sign)
+	{
+		final Face f = edgeFaces[0];
+		final Face g = edgeFaces[1];
+		final double nx = sign * n[0];
+		final double ny = sign * n[1];
+		final double nz = sign * n[2];
+		// c = f x g
+		final double cx = f.ny * g.nz - f.nz * g.ny;
+		final double cy = f.nz * g.nx - f.nx * g.nz;
+		final double cz = f.nx * g.ny - f.ny * g.nx;
+		if (cx * cx + cy * cy + cz * cz < 1e-24) return false;
+		// (n x g) . c >= 0 and (f x n) . c >= 0
+		final double alpha = (ny * g.nz - nz * g.ny) * cx + (nz * g.nx - nx *
+			g.nz) * cy + (nx * g.ny - ny * g.nx) * cz;
+		final double beta = (f.ny * nz - f.nz * ny) * cx + (f.nz * nx - f.nx *
+			nz) * cy + (f.nx * ny - f.ny * nx) * cz;
+		return alpha >= -1e-12 && beta >= -1e-12;
+	}
+
+	/** Find four points spanning a tetrahedron, or null if coplanar */
+	private static int[] initialSimplex(final double[] coords,
+		final double tolerance)
+	{
+		final int n = coords.length / 3;
+		// extreme points along each axis
+		final int[] min = new int[3];
+		final int[] max = new int[3];
+		for (int i = 1; i < n; i++) {
+			for (int k = 0; k < 3; k++) {
+				if (coords[3 * i + k] < coords[3 * min[k] + k]) min[k] = i;
+				if (coords[3 * i + k] > coords[3 * max[k] + k]) max[k] = i;
+			}
+		}
+		int i0 = 0;
+		int i1 = 0;
+		double spread = 0;
+		for (int k = 0; k < 3; k++) {
+			final double s = coords[3 * max[k] + k] - coords[3 * min[k] + k];
+			if (s > spread) {
+				spread = s;
+				i0 = min[k];
+				i1 = max[k];
+			}
+		}
+		if (spread <= tolerance) return null;
+
+		// furthest from the line through i0 and i1
+		final double ux = coords[3 * i1] - coords[3 * i0];
+		final double uy = coords[3 * i1 + 1] - coords[3 * i0 + 1];
+		final double uz = coords[3 * i1 + 2] - coords[3 * i0 + 2];
+		int i2 = -1;
+		double maxArea = 0;
+		for (int i = 0; i < n; i++) {
+			final double vx = coords[3 * i] - coords[3 * i0];
+			final double vy = coords[3 * i + 1] - coords[3 * i0 + 1];
+			final double vz = coords[3 * i + 2] - coords[3 * i0 + 2];
+			final double cx = uy * vz - uz * vy;
+			final double cy = uz * vx - ux * vz;
+			final double cz = ux * vy - uy * vx;
+			final double area = cx * cx + cy * cy + cz * cz;
+			if (area > maxArea) {
+				maxArea = area;
+				i2 = i;
+			}
+		}
+		if (i2 < 0 || Math.sqrt(maxArea) <= tolerance * spread) return null;
+
+		// furthest from the plane through i0, i1 and i2
+		final Face plane = new Face(coords, i0, i1, i2);
+		int i3 = -1;
+		double maxDistance = tolerance;
+		for (int i = 0; i < n; i++) {
+			final double distance = Math.abs(plane.distance(coords, i));
+			if (distance > maxDistance) {
+				maxDistance = distance;
+				i3 = i;
+			}
+		}
+		if (i3 < 0) return null;
+		return new int[] { i0, i1, i2, i3 };
+	}
+
+	/** Add a point to the outside set of the face it is furthest above */
+	private static void assign(final double[] coords, final int i,
+		final List<Face> candidates, final double tolerance)
+	{
+		Face best = null;
+		double bestDistance = tolerance;
+		for (final Face f : candidates) {
+			final double distance = f.distance(coords, i);
+			if (distance > bestDistance) {
+				bestDistance = distance;
+				best = f;
+			}
+		}
+		if (best != null) best.add(i, bestDistance);
+	}
+
+	private static long key(final int from, final int to) {
+		return ((long) from << 32) | (to & 0xffffffffL);
+	}
+
+	/** Triangular face with vertices counter-clockwise seen from outside */
+	private static final class Face {
+
+		private final int a;
+		private final int b;
+		private final int c;
+		/** outward unit normal */
+		private final double nx;
+		private final double ny;
+		private final double nz;
+		/** normal . point for points in the plane */
+		private final double offset;
+		private int[] outside = new int[0];
+		private int nOutside;
+		private int furthest = -1;
+		private double furthestDistance;
+		private boolean alive = true;
+		private int stamp;
+
+		private Face(final double[] coords, final int a, final int b,
+			final int c)
+		{
+			this.a = a;
+			this.b = b;
+			this.c = c;
+			final double ux = coords[3 * b] - coords[3 * a];
+			final double uy = coords[3 * b + 1] - coords[3 * a + 1];
+			final double uz = coords[3 * b + 2] - coords[3 * a + 2];
+			final double vx = coords[3 * c] - coords[3 * a];
+			final double vy = coords[3 * c + 1] - coords[3 * a + 1];
+			final double vz = coords[3 * c + 2] - coords[3 * a + 2];
+			double x = uy * vz - uz * vy;
+			double y = uz * vx - ux * vz;
+			double z = ux * vy - uy * vx;
+			final double length = Math.sqrt(x * x + y * y + z * z);
+			if (length > 0) {
+				x /= length;
+				y /= length;
+				z /= length;
+			}
+			nx = x;
+			ny = y;
+			nz = z;
+			offset = nx * coords[3 * a] + ny * coords[3 * a + 1] + nz * coords[3 *
+				a + 2];
+		}
+
+		/** Signed distance of a point above the face's plane */
+		private double distance(final double[] coords, final int i) {
+			return nx * coords[3 * i] + ny * coords[3 * i + 1] + nz * coords[3 * i +
+				2] - offset;
+		}
+
+		private void add(final int i, final double distance) {
+			if (nOutside == outside.length) outside = Arrays.copyOf(outside, Math
+				.max(4, 2 * nOutside));
+			outside[nOutside++] = i;
+			if (distance > furthestDistance) {
+				furthestDistance = distance;
+				furthest = i;
+			}
+		}
+
+		/**
+		 * Register the face's directed edges
+		 *
+		 * @return false if an edge already belongs to another face
+		 */
+		private boolean link(final Map<Long, Face> edges) {
+			final Face ab = edges.put(key(a, b), this);
+			final Face bc = edges.put(key(b, c), this);
+			final Face ca = edges.put(key(c, a), this);
+			return (ab == null || ab == this) && (bc == null || bc == this) &&
+				(ca == null || ca == this);
+		}
+
+		private void unlink(final Map<Long, Face> edges) {
+			edges.remove(key(a, b));
+			edges.remove(key(b, c));
+			edges.remove(key(c, a));
+		}
+	}
+}
@@ -0,0 +1,272 @@
+/*-
+ * #%L
+ * Mavenized version of the BoneJ1 plugins
+ * %%
+ * Copyright (C) 2015 - 2020 Michael Doube, BoneJ developers
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.bonej.plugins;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.scijava.vecmath.Color3f;
+import org.scijava.vecmath.Point3f;
+
+import customnode.CustomTriangleMesh;
+
+/**
+ * A triangle mesh stored as a shared vertex buffer and a triangle index.
+ * <p>
+ * Surface meshers emit a list of {@link Point3f}, three per triangle, so a
+ * vertex shared by six triangles is six objects. Welding the repeated vertices
+ * into one {@code float[]} of x, y, z coordinates, and describing each triangle
+ * by three {@code int} indices into it, keeps a particle surface in a small
+ * fraction of the heap.
+ * </p>
+ * <p>
+ * Vertices are numbered in the order of their first occurrence in the
+ * mesher's output, and corners are only welded when their coordinates are
+ * bitwise identical, so no geometry is changed.
+ * </p>
+ *
+ * @author Michael Doube
+ */
+final class IndexedMesh {
+
+	/** x, y, z coordinates of each distinct vertex */
+	private final float[] vertices;
+
+	/** indices of the 3 vertices of each triangle */
+	private final int[] triangles;
+
+	/**
+	 * Create a mesh from a vertex buffer and a triangle index
+	 *
+	 * @param vertices x, y, z coordinates of each vertex
+	 * @param triangles vertex indices, three per triangle
+	 */
+	IndexedMesh(final float[] vertices, final int[] triangles) {
+		if (vertices.length % 3 != 0 || triangles.length % 3 != 0)
+			throw new IllegalArgumentException("Vertex and triangle arrays must have a multiple of 3 elements");
+		this.vertices = vertices;
+		this.triangles = triangles;
+	}
+
+	/**
+	 * Weld a triangle list, as returned by a surface mesher, into an indexed mesh
+	 *
+	 * @param points triangle corners, three per triangle
+	 * @return indexed mesh with the same triangles
+	 * @throws IllegalArgumentException if the number of points is not a multiple
+	 *           of 3
+	 */
+	static IndexedMesh weld(final List<Point3f> points) {
+		if (points.size() % 3 != 0)
+			throw new IllegalArgumentException("Triangle list has " + points.size() + " points, which is not a multiple of 3");
+		final int[] triangles = new int[points.size()];
+		final float[] vertices = weld(points, triangles);
+		return new IndexedMesh(vertices, triangles);
+	}
+
+	/**
+	 * Find the distinct points of a list
+	 *
+	 * @param points points with repeats
+	 * @return x, y, z coordinates of each distinct point, in order of first
+	 *         occurrence
+	 */
+	static float[] uniqueVertices(final List<Point3f> points) {
+		return weld(points, new int[points.size()]);
+	}
+
+	/**
+	 * Weld bitwise identical points with an open-addressing hash table
+	 *
+	 * @param points points with repeats
+	 * @param index filled with the vertex index of each point
+	 * @return x, y, z coordinates of each distinct point, in order of first
+	 *         occurrence
+	 */
+	private static float[] weld(final List<Point3f> points, final int[] index) {
+		final int nPoints = points.size();
+		int capacity = 16;
+		while (capacity < 2 * nPoints)
+			capacity <<= 1;
+		final int mask = capacity - 1;
+		// vertex index + 1 in each slot, 0 for empty
+		final int[] table = new int[capacity];
+		float[] vertices = new float[3 * Math.max(16, nPoints / 4)];
+		int nVertices = 0;
+		for (int i = 0; i < nPoints; i++) {
+			final Point3f point = points.get(i);
+			final int x = Float.floatToIntBits(point.x);
+			final int y = Float.floatToIntBits(point.y);
+			final int z = Float.floatToIntBits(point.z);
+			int slot = mix(31 * (31 * x + y) + z) & mask;
+			while (true) {
+				final int entry = table[slot];
+				if (entry == 0) {
+					if (3 * nVertices == vertices.length)
+						vertices = Arrays.copyOf(vertices, 2 * vertices.length);
+					vertices[3 * nVertices] = point.x;
+					vertices[3 * nVertices + 1] = point.y;
+					vertices[3 * nVertices + 2] = point.z;
+					table[slot] = ++nVertices;
+					index[i] = nVertices - 1;
+					break;
+				}
+				final int v = 3 * (entry - 1);
+				if (Float.floatToIntBits(vertices[v]) == x && Float.floatToIntBits(vertices[v + 1]) == y &&
+					Float.floatToIntBits(vertices[v + 2]) == z) {
+					index[i] = entry - 1;
+					break;
+				}
+				slot = (slot + 1) & mask;
+			}
+		}
+		return Arrays.copyOf(vertices, 3 * nVertices);
+	}
+
+	/**
+	 * Spread the bits of a hash code (MurmurHash3 finaliser), as the low bits of
+	 * float coordinates on a voxel grid are mostly zero
+	 */
+	private static int mix(int h) {
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+	/** @return number of distinct vertices */
+	int getVertexCount() {
+		return vertices.length / 3;
+	}
+
+	/** @return number of triangles */
+	int getTriangleCount() {
+		return triangles.length / 3;
+	}
+
+	/**
+	 * Get the vertex buffer. It is shared, not copied, so must not be modified.
+	 *
+	 * @return x, y, z coordinates of each vertex
+	 */
+	float[] getVertices() {
+		return vertices;
+	}
+
+	/**
+	 * Get the triangle index. It is shared, not copied, so must not be modified.
+	 *
+	 * @return vertex indices, three per triangle
+	 */
+	int[] getTriangles() {
+		return triangles;
+	}
+
+	/**
+	 * Calculate the surface area, with the same float rounding as the sum over
+	 * a mesher's triangle list
+	 *
+	 * @return sum of the triangle areas
+	 */
+	double getSurfaceArea() {
+		double sumArea = 0;
+		for (int t = 0; t < triangles.length; t += 3) {
+			final int a = 3 * triangles[t];
+			final int b = 3 * triangles[t + 1];
+			final int c = 3 * triangles[t + 2];
+			final double x1 = vertices[b] - vertices[a];
+			final double y1 = vertices[b + 1] - vertices[a + 1];
+			final double z1 = vertices[b + 2] - vertices[a + 2];
+			final double x2 = vertices[c] - vertices[a];
+			final double y2 = vertices[c + 1] - vertices[a + 1];
+			final double z2 = vertices[c + 2] - vertices[a + 2];
+			final float cx = (float) (y1 * z2 - z1 * y2);
+			final float cy = (float) (z1 * x2 - x1 * z2);
+			final float cz = (float) (x1 * y2 - y1 * x2);
+			final float length = (float) Math.sqrt(cx * cx + cy * cy + cz * cz);
+			sumArea += 0.5 * length;
+		}
+		return sumArea;
+	}
+
+	/**
+	 * Calculate the signed volume enclosed by the mesh, as the sum of the
+	 * tetrahedra joining each triangle to the origin
+	 *
+	 * @return enclosed volume, negative if the triangles wind inwards
+	 */
+	double getVolume() {
+		double sumVolume = 0;
+		for (int t = 0; t < triangles.length; t += 3) {
+			final int a = 3 * triangles[t];
+			final int b = 3 * triangles[t + 1];
+			final int c = 3 * triangles[t + 2];
+			final double ax = vertices[a];
+			final double ay = vertices[a + 1];
+			final double az = vertices[a + 2];
+			final double bx = vertices[b];
+			final double by = vertices[b + 1];
+			final double bz = vertices[b + 2];
+			final double cx = vertices[c];
+			final double cy = vertices[c + 1];
+			final double cz = vertices[c + 2];
+			sumVolume += ax * (by * cz - bz * cy) + ay * (bz * cx - bx * cz) + az * (bx * cy - by * cx);
+		}
+		return sumVolume / 6;
+	}
+
+	/**
+	 * Expand the mesh back into a triangle list
+	 *
+	 * @return new points, three per triangle
+	 */
+	List<Point3f> toPointList() {
+		final int nCorners = triangles.length;
+		final List<Point3f> points = new ArrayList<>(nCorners);
+		for (int i = 0; i < nCorners; i++) {
+			final int v = 3 * triangles[i];
+			points.add(new Point3f(vertices[v], vertices[v + 1], vertices[v + 2]));
+		}
+		return points;
+	}
+
+	/**
+	 * Create a mesh for the 3D Viewer. The viewer needs a triangle list, so this
+	 * is expanded only for as long as the viewer holds it.
+	 *
+	 * @param colour colour of the mesh
+	 * @return 3D Viewer mesh with the same triangles
+	 */
+	CustomTriangleMesh toCustomTriangleMesh(final Color3f colour) {
+		return new CustomTriangleMesh(toPointList(), colour, 0.0f);
+	}
+}
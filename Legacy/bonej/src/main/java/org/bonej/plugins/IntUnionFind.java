@@ -0,0 +1,133 @@
+/*-
+ * #%L
+ * Mavenized version of the BoneJ1 plugins
+ * %%
+ * Copyright (C) 2015 - 2020 Michael Doube, BoneJ developers
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.bonej.plugins;
+
+import java.util.Arrays;
+
+/**
+ * Disjoint set forest of int labels backed by primitive arrays, with path
+ * compression (path halving) and union by rank.
+ * <p>
+ * Labels are the consecutive integers 0, 1, 2, ... that are handed out by
+ * {@link #makeSet()}. The arrays grow as needed, so the forest can be filled
+ * without knowing the final number of labels in advance. Instances are not
+ * thread-safe.
+ * </p>
+ *
+ * @author Michael Doube
+ */
+final class IntUnionFind {
+
+	/** parent of each label; a root is its own parent */
+	private int[] parent;
+
+	/** upper bound of each root's tree height */
+	private byte[] rank;
+
+	/** number of labels in the forest */
+	private int size;
+
+	/**
+	 * Create an empty forest
+	 *
+	 * @param initialCapacity number of labels to allocate space for
+	 */
+	IntUnionFind(final int initialCapacity) {
+		final int capacity = Math.max(16, initialCapacity);
+		parent = new int[capacity];
+		rank = new byte[capacity];
+	}
+
+	/**
+	 * Add a new singleton set to the forest
+	 *
+	 * @return the new label, which is equal to the number of labels before the
+	 *         call
+	 * @throws IllegalArgumentException if the forest already holds
+	 *           Integer.MAX_VALUE labels
+	 */
+	int makeSet() {
+		if (size == Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Label " + size +
+				" is greater than the allowed range (max " + (Integer.MAX_VALUE - 1) +
+				")");
+		}
+		if (size == parent.length) {
+			final int capacity = (int) Math.min(Integer.MAX_VALUE - 8,
+				parent.length * 2L);
+			parent = Arrays.copyOf(parent, capacity);
+			rank = Arrays.copyOf(rank, capacity);
+		}
+		parent[size] = size;
+		return size++;
+	}
+
+	/**
+	 * Find the root of a label's set, halving the path on the way up
+	 *
+	 * @param label a label in the forest
+	 * @return the root label of the set containing label
+	 */
+	int find(final int label) {
+		int x = label;
+		while (parent[x] != x) {
+			final int grandParent = parent[parent[x]];
+			parent[x] = grandParent;
+			x = grandParent;
+		}
+		return x;
+	}
+
+	/**
+	 * Join the sets containing a and b
+	 *
+	 * @param a a label in the forest
+	 * @param b another label in the forest
+	 * @return the root of the joined set
+	 */
+	int union(final int a, final int b) {
+		final int rootA = find(a);
+		final int rootB = find(b);
+		if (rootA == rootB) return rootA;
+		if (rank[rootA] < rank[rootB]) {
+			parent[rootA] = rootB;
+			return rootB;
+		}
+		if (rank[rootA] == rank[rootB]) rank[rootA]++;
+		parent[rootB] = rootA;
+		return rootA;
+	}
+
+	/**
+	 * @return number of labels in the forest
+	 */
+	int size() {
+		return size;
+	}
+}
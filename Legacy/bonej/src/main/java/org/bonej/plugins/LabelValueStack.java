@@ -0,0 +1,136 @@
+/*-
+ * #%L
+ * Mavenized version of the BoneJ1 plugins
+ * %%
+ * Copyright (C) 2015 - 2020 Michael Doube, BoneJ developers
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.bonej.plugins;
+
+import ij.VirtualStack;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+/**
+ * Virtual stack that shows particle labels as values, computing each slice
+ * from the labels when it is displayed. The labels are shared rather than
+ * copied, so that a particle map can be browsed without holding a second,
+ * float copy of it in memory.
+ *
+ * @author Michael Doube
+ * @see ParticleDisplay#displayParticleValues(ij.ImagePlus, int[][], double[], boolean)
+ */
+public class LabelValueStack extends VirtualStack {
+
+	/** particle labels, one array per slice */
+	private final int[][] particleLabels;
+
+	/** value of each label, or null to show the labels themselves */
+	private final float[] lut;
+
+	/** label of each slice */
+	private final String[] sliceLabels;
+
+	/** display range minimum */
+	private final double min;
+
+	/** display range maximum */
+	private final double max;
+
+	/**
+	 * Create a stack of values looked up from particle labels
+	 *
+	 * @param width stack width
+	 * @param height stack height
+	 * @param particleLabels labels, one width * height array per slice
+	 * @param lut value of each label, or null to show the labels themselves
+	 * @param sliceLabels label of each slice, may contain nulls
+	 * @param min display range minimum
+	 * @param max display range maximum
+	 */
+	public LabelValueStack(final int width, final int height,
+		final int[][] particleLabels, final float[] lut, final String[] sliceLabels,
+		final double min, final double max)
+	{
+		super(width, height, null, null);
+		this.particleLabels = particleLabels;
+		this.lut = lut;
+		this.sliceLabels = sliceLabels;
+		this.min = min;
+		this.max = max;
+	}
+
+	/**
+	 * Look up the values of one slice's labels
+	 *
+	 * @param labels particle labels of the slice
+	 * @param lut value of each label, or null to convert the labels themselves
+	 * @return the values of the slice's pixels
+	 */
+	static float[] render(final int[] labels, final float[] lut) {
+		final int n = labels.length;
+		final float[] pixels = new float[n];
+		if (lut == null) {
+			for (int i = 0; i < n; i++)
+				pixels[i] = labels[i];
+		}
+		else {
+			for (int i = 0; i < n; i++)
+				pixels[i] = lut[labels[i]];
+		}
+		return pixels;
+	}
+
+	@Override
+	public ImageProcessor getProcessor(final int n) {
+		if (n < 1 || n > particleLabels.length) {
+			throw new IllegalArgumentException("Slice " + n + " out of range 1-" +
+				particleLabels.length);
+		}
+		final FloatProcessor fp = new FloatProcessor(getWidth(), getHeight(),
+			render(particleLabels[n - 1], lut));
+		fp.setMinAndMax(min, max);
+		return fp;
+	}
+
+	@Override
+	public Object getPixels(final int n) {
+		return getProcessor(n).getPixels();
+	}
+
+	@Override
+	public int getSize() {
+		return particleLabels.length;
+	}
+
+	@Override
+	public int getBitDepth() {
+		return 32;
+	}
+
+	@Override
+	public String getSliceLabel(final int n) {
+		return sliceLabels[n - 1];
+	}
+}
@@ -0,0 +1,137 @@
+/*-
+ * #%L
+ * Mavenized version of the BoneJ1 plugins
+ * %%
+ * Copyright (C) 2015 - 2020 Michael Doube, BoneJ developers
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.bonej.plugins;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+
+import ij.VirtualStack;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+/**
+ * Virtual stack of particle labels stored in a file as one int per pixel, in
+ * native byte order, slice after slice. Slices are memory-mapped and read on
+ * demand, so only the slices being displayed or analysed need to fit in the
+ * heap.
+ *
+ * @author Michael Doube
+ * @see ConnectedComponents#runStreaming(ij.ImagePlus, int, File, int)
+ */
+public class MappedLabelStack extends VirtualStack {
+
+	/** file holding the labels */
+	private final File labelFile;
+
+	/** number of slices in the stack */
+	private final int nSlices;
+
+	/**
+	 * Create a stack backed by an existing label file
+	 *
+	 * @param labelFile file of int labels, at least width * height * nSlices
+	 *          ints long
+	 * @param width stack width
+	 * @param height stack height
+	 * @param nSlices number of slices
+	 */
+	public MappedLabelStack(final File labelFile, final int width,
+		final int height, final int nSlices)
+	{
+		super(width, height, null, labelFile.getParent());
+		this.labelFile = labelFile;
+		this.nSlices = nSlices;
+	}
+
+	/**
+	 * Read the labels of one slice
+	 *
+	 * @param n slice number, 1 &le; n &le; getSize()
+	 * @return the slice's labels
+	 * @throws UncheckedIOException if the label file cannot be read
+	 */
+	public int[] getLabels(final int n) {
+		if (n < 1 || n > nSlices) {
+			throw new IllegalArgumentException("Slice " + n + " out of range 1-" +
+				nSlices);
+		}
+		final int wh = getWidth() * getHeight();
+		final long sliceBytes = 4L * wh;
+		final int[] labels = new int[wh];
+		try (RandomAccessFile raf = new RandomAccessFile(labelFile, "r");
+				FileChannel channel = raf.getChannel())
+		{
+			final IntBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, (n -
+				1) * sliceBytes, sliceBytes).order(ByteOrder.nativeOrder())
+				.asIntBuffer();
+			buffer.get(labels);
+		}
+		catch (final IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return labels;
+	}
+
+	/**
+	 * Get a slice of labels as a float image for display. Labels greater than
+	 * {@link ConnectedComponents#MAX_FINAL_LABEL} lose precision; use
+	 * {@link #getLabels(int)} for analysis.
+	 */
+	@Override
+	public ImageProcessor getProcessor(final int n) {
+		final int[] labels = getLabels(n);
+		final float[] pixels = new float[labels.length];
+		for (int i = 0; i < labels.length; i++) {
+			pixels[i] = labels[i];
+		}
+		return new FloatProcessor(getWidth(), getHeight(), pixels);
+	}
+
+	@Override
+	public int getSize() {
+		return nSlices;
+	}
+
+	@Override
+	public String getSliceLabel(final int n) {
+		return null;
+	}
+
+	/**
+	 * @return the file holding the labels
+	 */
+	public File getLabelFile() {
+		return labelFile;
+	}
+}
@@ -0,0 +1,151 @@
+/*-
+ * #%L
+ * Mavenized version of the BoneJ1 plugins
+ * %%
+ * Copyright (C) 2015 - 2020 Michael Doube, BoneJ developers
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package org.bonej.plugins;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Labels stored in a memory-mapped temporary file, as one int per pixel in
+ * native byte order, slice after slice. The file is mapped in slabs of whole
+ * slices of up to 2 GiB when it is created, and slices are copied in and out
+ * of arrays on demand, so the labels live in the operating system's page
+ * cache instead of the heap. Different slices can be read and written from
+ * different threads at the same time.
+ * <p>
+ * The file is deleted when the store is closed. Mappings can't be released
+ * explicitly before Java 9, so where an open mapping prevents deletion, the
+ * file is deleted when the JVM exits.
+ * </p>
+ *
+ * @author Michael Doube
+ */
+final class MappedSliceLabels implements SliceLabels, Closeable {
+
+	/** the temporary file */
+	private final File labelFile;
+
+	private final RandomAccessFile raf;
+	private final FileChannel channel;
+
+	/** number of ints in a slice */
+	private final int sliceLength;
+
+	/** number of slices in each mapped slab */
+	private final int slicesPerSlab;
+
+	/** mapped slabs of the file */
+	private final IntBuffer[] slabs;
+
+	/**
+	 * Create a temporary label file and map it
+	 *
+	 * @param w image width
+	 * @param h image height
+	 * @param d number of slices
+	 * @throws IllegalArgumentException if a slice of labels is larger than
+	 *           2 GiB
+	 * @throws UncheckedIOException if the file can't be created or mapped
+	 */
+	MappedSliceLabels(final int w, final int h, final int d) {
+		final long sliceBytes = 4L * w * h;
+		if (sliceBytes > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Slice of " + sliceBytes +
+				" bytes of labels is too large to map");
+		}
+		sliceLength = w * h;
+		slicesPerSlab = (int) Math.max(1, Integer.MAX_VALUE / sliceBytes);
+		slabs = new IntBuffer[(d + slicesPerSlab - 1) / slicesPerSlab];
+		try {
+			labelFile = File.createTempFile("bonej-labels", ".tmp");
+			labelFile.deleteOnExit();
+			raf = new RandomAccessFile(labelFile, "rw");
+			raf.setLength(sliceBytes * d);
+			channel = raf.getChannel();
+			for (int s = 0; s < slabs.length; s++) {
+				final int nSlices = Math.min(slicesPerSlab, d - s * slicesPerSlab);
+				slabs[s] = channel.map(FileChannel.MapMode.READ_WRITE, s *
+					slicesPerSlab * sliceBytes, nSlices * sliceBytes).order(ByteOrder
+						.nativeOrder()).asIntBuffer();
+			}
+		}
+		catch (final IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	@Override
+	public int[] get(final int z, final int[] buffer) {
+		final int[] labels = buffer != null && buffer.length == sliceLength
+			? buffer : new int[sliceLength];
+		slice(z).get(labels);
+		return labels;
+	}
+
+	@Override
+	public void put(final int z, final int[] labels) {
+		slice(z).put(labels);
+	}
+
+	/**
+	 * Close the file and delete it
+	 *
+	 * @throws UncheckedIOException if the file can't be closed
+	 */
+	@Override
+	public void close() {
+		try {
+			channel.close();
+			raf.close();
+		}
+		catch (final IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		finally {
+			labelFile.delete();
+		}
+	}
+
+	/**
+	 * @param z slice index
+	 * @return a view of the slab positioned at the slice, for this thread only
+	 */
+	private IntBuffer slice(final int z) {
+		final IntBuffer slab = slabs[z / slicesPerSlab].duplicate();
+		slab.position((z % slicesPerSlab) * sliceLength);
+		return slab;
+	}
+}
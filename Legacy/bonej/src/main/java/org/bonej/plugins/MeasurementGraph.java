@@ -0,0 +1,326 @@
+/*-
+ * #%L
+ * Mavenized version of the BoneJ1 plugins
+ * %%
+ * Copyright (C) 2015 - 2020 Michael Doube, BoneJ developers
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.bonej.plugins;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import ij.IJ;
+
+/**
+ * Runs a set of measurement stages as a dependency graph.
+ * <p>
+ * Each stage names the stages whose results it needs. A stage starts as soon
+ * as all its inputs are ready, so independent stages run at the same time in a
+ * shared {@link ForkJoinPool}. A stage gets the pool from its inputs'
+ * {@link Results#pool()}, and passes it to the work it splits with
+ * {@link org.bonej.util.Multithreader#startAndJoin(Thread[], ForkJoinPool)},
+ * so concurrent stages share its threads rather than each starting a full set. A result is dropped as soon as the last stage that
+ * consumes it has finished, unless it has been marked to be kept for the
+ * caller, so large intermediates such as surface meshes do not outlive their
+ * use. A graph can be run more than once.
+ * </p>
+ * <p>
+ * The wall time of each stage, the heap in use when it finished and the peak
+ * heap of the whole run are recorded and can be written to the log.
+ * </p>
+ *
+ * @author Michael Doube
+ */
+final class MeasurementGraph {
+
+	/** stages in the order they were added, which is a topological order */
+	private final Map<String, Stage> stages = new LinkedHashMap<>();
+
+	/** wall time of the last run, in ns */
+	private long wallTime;
+
+	/** peak heap use of the last run, in bytes */
+	private long peakHeap;
+
+	/** told the name of each stage whose result is dropped */
+	private Consumer<String> releaseListener = name -> {};
+
+	/**
+	 * Add a stage
+	 *
+	 * @param name unique name of the stage
+	 * @param step computes the stage's result from its inputs' results
+	 * @param inputs names of the stages whose results the step needs, which
+	 *          must already have been added
+	 * @throws IllegalArgumentException if the name is taken or an input is
+	 *           unknown
+	 */
+	void add(final String name, final Function<Results, ?> step,
+		final String... inputs)
+	{
+		if (stages.containsKey(name)) {
+			throw new IllegalArgumentException("Duplicate stage: " + name);
+		}
+		final Stage[] inputStages = new Stage[inputs.length];
+		for (int i = 0; i < inputs.length; i++) {
+			final Stage input = stages.get(inputs[i]);
+			if (input == null) {
+				throw new IllegalArgumentException("Stage " + name +
+					" needs unknown stage " + inputs[i]);
+			}
+			input.nConsumers++;
+			inputStages[i] = input;
+		}
+		stages.put(name, new Stage(name, step, inputStages));
+	}
+
+	/**
+	 * Keep a stage's result after the run, so that the caller can get it
+	 *
+	 * @param name name of the stage
+	 * @throws IllegalArgumentException if the stage is unknown
+	 */
+	void keep(final String name) {
+		final Stage stage = stages.get(name);
+		if (stage == null) {
+			throw new IllegalArgumentException("Unknown stage: " + name);
+		}
+		if (!stage.kept) {
+			stage.kept = true;
+			stage.nConsumers++;
+		}
+	}
+
+	/**
+	 * Check whether a stage has been added
+	 *
+	 * @param name name of the stage
+	 * @return true if the graph has the stage
+	 */
+	boolean has(final String name) {
+		return stages.containsKey(name);
+	}
+
+	/**
+	 * Set a listener to be told the name of each stage whose result is dropped,
+	 * from the thread that drops it
+	 *
+	 * @param listener receiver of the stage names
+	 */
+	void onRelease(final Consumer<String> listener) {
+		releaseListener = listener;
+	}
+
+	/**
+	 * Run all the stages and wait for them to finish
+	 *
+	 * @param pool pool to run the stages in
+	 * @return results of the kept stages
+	 * @throws RuntimeException the first exception thrown by a stage
+	 */
+	Results run(final ForkJoinPool pool) {
+		final List<MemoryPoolMXBean> heapPools = heapPools();
+		heapPools.forEach(MemoryPoolMXBean::resetPeakUsage);
+		for (final Stage stage : stages.values()) {
+			stage.consumers.set(stage.nConsumers);
+			stage.result = null;
+		}
+		final Consumer<String> listener = releaseListener;
+		final long start = System.nanoTime();
+		final List<CompletableFuture<Void>> futures = new ArrayList<>(stages.size());
+		for (final Stage stage : stages.values()) {
+			final CompletableFuture<?>[] inputFutures =
+				new CompletableFuture<?>[stage.inputs.length];
+			for (int i = 0; i < inputFutures.length; i++) {
+				inputFutures[i] = stage.inputs[i].future;
+			}
+			stage.future = CompletableFuture.allOf(inputFutures).thenRunAsync(
+				() -> stage.run(pool, start, listener), pool);
+			futures.add(stage.future);
+		}
+		try {
+			CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]))
+				.join();
+		}
+		catch (final CompletionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw e;
+		}
+		finally {
+			wallTime = System.nanoTime() - start;
+			peakHeap = heapPools.stream().mapToLong(p -> p.getPeakUsage().getUsed())
+				.sum();
+		}
+		final Results results = new Results(pool);
+		for (final Stage stage : stages.values()) {
+			if (stage.kept) results.values.put(stage.name, stage.result);
+		}
+		return results;
+	}
+
+	/**
+	 * Write the wall time and heap use of each stage of the last run, and of the
+	 * whole run, to the log
+	 */
+	void logTimes() {
+		for (final Stage stage : stages.values()) {
+			IJ.log("Stage " + stage.name + " ran from " + stage.startTime / 1000000 +
+				" to " + stage.endTime / 1000000 + " ms (" + (stage.endTime -
+					stage.startTime) / 1000000 + " ms), heap in use after: " +
+				stage.heapAfter / (1 << 20) + " MiB");
+		}
+		IJ.log("Measurements finished in " + wallTime / 1000000 +
+			" ms, peak heap: " + peakHeap / (1 << 20) + " MiB");
+	}
+
+	private static List<MemoryPoolMXBean> heapPools() {
+		final List<MemoryPoolMXBean> heapPools = new ArrayList<>();
+		for (final MemoryPoolMXBean pool : ManagementFactory
+			.getMemoryPoolMXBeans())
+		{
+			if (pool.getType() == MemoryType.HEAP && pool.isValid()) heapPools.add(
+				pool);
+		}
+		return heapPools;
+	}
+
+	/**
+	 * Results of the stages, looked up by stage name
+	 */
+	static final class Results {
+
+		private final Map<String, Object> values = new LinkedHashMap<>();
+		private final ForkJoinPool pool;
+
+		private Results(final ForkJoinPool pool) {
+			this.pool = pool;
+		}
+
+		/**
+		 * Get the pool the graph runs in, in which a stage should run the work it
+		 * splits
+		 *
+		 * @return the graph's pool
+		 */
+		ForkJoinPool pool() {
+			return pool;
+		}
+
+		/**
+		 * Get a stage's result
+		 *
+		 * @param name name of the stage
+		 * @param <T> type of the result
+		 * @return the stage's result
+		 * @throws IllegalArgumentException if the result is not available
+		 */
+		@SuppressWarnings("unchecked")
+		<T> T get(final String name) {
+			if (!values.containsKey(name)) {
+				throw new IllegalArgumentException("No result for stage " + name);
+			}
+			return (T) values.get(name);
+		}
+
+		/**
+		 * Get a stage's result, or a default if the stage was not run
+		 *
+		 * @param name name of the stage
+		 * @param defaultValue value to return if there is no result
+		 * @param <T> type of the result
+		 * @return the stage's result or the default
+		 */
+		@SuppressWarnings("unchecked")
+		<T> T get(final String name, final T defaultValue) {
+			return values.containsKey(name) ? (T) values.get(name) : defaultValue;
+		}
+	}
+
+	private static final class Stage {
+
+		private final String name;
+		private final Function<Results, ?> step;
+		private final Stage[] inputs;
+
+		/** number of consuming stages, plus the caller if kept */
+		private int nConsumers;
+
+		/** stages, and the caller if kept, still to use the result in a run */
+		private final AtomicInteger consumers = new AtomicInteger();
+		private boolean kept;
+
+		private CompletableFuture<Void> future;
+		private volatile Object result;
+		private long startTime;
+		private long endTime;
+		private long heapAfter;
+
+		private Stage(final String name, final Function<Results, ?> step,
+			final Stage[] inputs)
+		{
+			this.name = name;
+			this.step = step;
+			this.inputs = inputs;
+		}
+
+		private void run(final ForkJoinPool pool, final long graphStart,
+			final Consumer<String> releaseListener)
+		{
+			startTime = System.nanoTime() - graphStart;
+			final Results inputResults = new Results(pool);
+			for (final Stage input : inputs) {
+				inputResults.values.put(input.name, input.result);
+			}
+			result = step.apply(inputResults);
+			// this stage no longer needs its inputs
+			for (final Stage input : inputs) {
+				if (input.consumers.decrementAndGet() == 0) {
+					input.result = null;
+					releaseListener.accept(input.name);
+				}
+			}
+			if (consumers.get() == 0) {
+				result = null;
+				releaseListener.accept(name);
+			}
+			endTime = System.nanoTime() - graphStart;
+			final Runtime runtime = Runtime.getRuntime();
+			heapAfter = runtime.totalMemory() - runtime.freeMemory();
+		}
+	}
+}
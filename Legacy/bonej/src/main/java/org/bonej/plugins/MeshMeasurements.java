@@ -0,0 +1,118 @@
+/*-
+ * #%L
+ * Mavenized version of the BoneJ1 plugins
+ * %%
+ * Copyright (C) 2015 - 2020 Michael Doube, BoneJ developers
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.bonej.plugins;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Measurements taken from each particle's surface mesh as it is streamed, one
+ * array element per particle, so that only the meshes needed for display are
+ * kept. Each particle's elements are written only by the thread that meshed
+ * it.
+ *
+ * @author Michael Doube
+ */
+final class MeshMeasurements implements MeshConsumer {
+
+	private final double[] surfaceAreas;
+	private final double[] surfaceVolumes;
+	private final double[][] ferets;
+	private final Object[] ellipsoids;
+	private final IndexedMesh[] meshes;
+
+	/**
+	 * Set up arrays for the chosen measurements. Particles without a surface
+	 * have zero area and volume, NaN Ferets and no ellipsoid or mesh.
+	 *
+	 * @param nParticles number of particles, including the background
+	 * @param areas measure surface areas
+	 * @param volumes measure enclosed volumes
+	 * @param feret measure Feret diameters
+	 * @param ellipsoid fit ellipsoids
+	 * @param keepMeshes keep the meshes
+	 */
+	MeshMeasurements(final int nParticles, final boolean areas,
+		final boolean volumes, final boolean feret, final boolean ellipsoid,
+		final boolean keepMeshes)
+	{
+		surfaceAreas = areas ? new double[nParticles] : null;
+		surfaceVolumes = volumes ? new double[nParticles] : null;
+		if (feret) {
+			ferets = new double[nParticles][8];
+			for (final double[] f : ferets)
+				Arrays.fill(f, Double.NaN);
+		}
+		else ferets = null;
+		ellipsoids = ellipsoid ? new Object[nParticles] : null;
+		meshes = keepMeshes ? new IndexedMesh[nParticles] : null;
+	}
+
+	@Override
+	public void accept(final int particle, final IndexedMesh mesh) {
+		if (surfaceAreas != null) surfaceAreas[particle] = mesh.getSurfaceArea();
+		if (surfaceVolumes != null) surfaceVolumes[particle] = Math.abs(mesh
+			.getVolume());
+		if (ferets != null) ferets[particle] = ParticleAnalysis.getFeret(mesh
+			.getVertices());
+		if (ellipsoids != null) ellipsoids[particle] = ParticleAnalysis
+			.getEllipsoid(mesh);
+		if (meshes != null) meshes[particle] = mesh;
+	}
+
+	/** @return surface area of each particle */
+	double[] getSurfaceAreas() {
+		return surfaceAreas;
+	}
+
+	/** @return volume enclosed by each particle's surface */
+	double[] getSurfaceVolumes() {
+		return surfaceVolumes;
+	}
+
+	/**
+	 * @return Feret diameters, as {@link ParticleAnalysis#getFerets(List)}
+	 */
+	double[][] getFerets() {
+		return ferets;
+	}
+
+	/**
+	 * @return best-fit ellipsoids, as
+	 *         {@link ParticleAnalysis#getEllipsoids(java.util.Collection)}
+	 */
+	Object[] getEllipsoids() {
+		return ellipsoids;
+	}
+
+	/** @return surface mesh of each particle */
+	List<IndexedMesh> getMeshes() {
+		return Arrays.asList(meshes);
+	}
+}
@@ -162,6 +162,8 @@ public class Moments implements PlugIn, DialogListener {
 				"Spatial dimensions uncalibrated.\nAssuming 1 mm pixel spacing.");
 		}
 		gd.addCheckbox("Align result", true);
+		gd.addCheckbox("Virtual aligned stack", false);
+		gd.addCheckbox("Interpolate aligned stack", false);
 		gd.addCheckbox("Show axes (2D)", false);
 		gd.addCheckbox("Show axes (3D)", true);
 		gd.addCheckbox("Record unit vectors", false);
@@ -189,23 +191,23 @@ public class Moments implements PlugIn, DialogListener {
 		}
 
 		final boolean doAlign = gd.getNextBoolean();
+		final boolean virtualAlign = gd.getNextBoolean();
+		final boolean interpolateAlign = gd.getNextBoolean();
 		final boolean doAxes = gd.getNextBoolean();
 		final boolean doAxes3D = gd.getNextBoolean();
 		final boolean doVerboseUnitVectors = gd.getNextBoolean();
 
-		final double[] centroid = getCentroid3D(imp, startSlice, endSlice, min, max,
-			m, c);
+		final double[] centroidAndMoments = getCentroidAndMoments(imp, startSlice,
+			endSlice, min, max, m, c);
+		final double[] centroid = Arrays.copyOf(centroidAndMoments, 3);
 		if (centroid[0] < 0) {
 			IJ.error("Empty Stack", "No voxels are available for calculation.\n" +
 				"Check your ROI and threshold.");
 			return;
 		}
-		final Object[] momentResults = calculateMoments(imp, startSlice, endSlice,
-			centroid, min, max, m, c);
-
-		final EigenvalueDecomposition E =
-			(EigenvalueDecomposition) momentResults[0];
-		final double[] moments = (double[]) momentResults[1];
+		final double[] moments = Arrays.copyOfRange(centroidAndMoments, 3, 11);
+		final EigenvalueDecomposition E = getEigenvalueDecomposition(moments[2],
+			moments[3], moments[4], moments[5], moments[6], moments[7]);
 
 		final String units = imp.getCalibration().getUnits();
 		final ResultInserter ri = ResultInserter.getInstance();
@@ -237,7 +239,7 @@ public class Moments implements PlugIn, DialogListener {
 		ri.updateTable();
 
 		if (doAlign) alignToPrincipalAxes(imp, E.getV(), centroid, startSlice,
-			endSlice, min, max, doAxes).show();
+			endSlice, min, max, doAxes, virtualAlign, interpolateAlign).show();
 
 		if (doAxes3D) show3DAxes(imp, E.getV(), centroid, startSlice, endSlice, min,
 			max);
@@ -261,7 +263,7 @@ public class Moments implements PlugIn, DialogListener {
 		final double[] centroid = getCentroid3D(imp, 1, endSlice, 128.0, 255.0, 0.0,
 			1.0);
 		return alignToPrincipalAxes(imp, E, centroid, 1, endSlice, 128.0, 255.0,
-			false);
+			false, false, false);
 	}
 
 	/**
@@ -273,20 +275,22 @@ public class Moments implements PlugIn, DialogListener {
 	 * @param startSlice first slice to copy
 	 * @param endSlice final slice to copy
 	 * @param doAxes if true, draw axes on the aligned copy
+	 * @param virtual if true, align each slice when it is displayed instead of
+	 *          storing the aligned copy
+	 * @param interpolate if true, interpolate between the source voxels instead
+	 *          of taking the nearest
 	 * @return ImagePlus copy of the input image
 	 */
 	private static ImagePlus alignToPrincipalAxes(final ImagePlus imp,
 		final Matrix E, final double[] centroid, final int startSlice,
 		final int endSlice, final double min, final double max,
-		final boolean doAxes)
+		final boolean doAxes, final boolean virtual, final boolean interpolate)
 	{
-		final ImageStack sourceStack = imp.getImageStack();
 		final Calibration cal = imp.getCalibration();
 		final double vW = cal.pixelWidth;
 		final double vH = cal.pixelHeight;
 		final double vD = cal.pixelDepth;
 		final double vS = Math.min(vW, Math.min(vH, vD));
-		final int d = sourceStack.getSize();
 		final int[] sides = getRotatedSize(E, imp, centroid, startSlice, endSlice,
 			min, max);
 
@@ -375,69 +379,10 @@ public class Moments implements PlugIn, DialogListener {
 		final int wT = sides[0];
 		final int hT = sides[1];
 		final int dT = sides[2];
-		final double xTc = wT * vS / 2;
-		final double yTc = hT * vS / 2;
-		final double zTc = dT * vS / 2;
-
-		// for each voxel in the target stack,
-		// find the corresponding source voxel
-
-		// Cache the sourceStack's processors
-		final ImageProcessor[] sliceProcessors = new ImageProcessor[d + 1];
-		for (int z = 1; z <= d; z++) {
-			sliceProcessors[z] = sourceStack.getProcessor(z);
-		}
-		// Initialise an empty stack and tartgetStack's processor array
-		final ImageStack targetStack = new ImageStack(wT, hT, dT);
-		final ImageProcessor[] targetProcessors = new ImageProcessor[dT + 1];
-		for (int z = 1; z <= dT; z++) {
-			targetStack.setPixels(getEmptyPixels(wT, hT, imp.getBitDepth()), z);
-			targetProcessors[z] = targetStack.getProcessor(z);
-		}
-
-		// Multithread start
-		final int nThreads = Runtime.getRuntime().availableProcessors();
-		final AlignThread[] alignThread = new AlignThread[nThreads];
-		for (int thread = 0; thread < nThreads; thread++) {
-			alignThread[thread] = new AlignThread(thread, nThreads, imp,
-				sliceProcessors, targetProcessors, eigenVecInv, centroid, wT, hT, dT,
-				startSlice, endSlice);
-			alignThread[thread].start();
-		}
-		try {
-			for (int thread = 0; thread < nThreads; thread++) {
-				alignThread[thread].join();
-			}
-		}
-		catch (final InterruptedException ie) {
-			IJ.error("A thread was interrupted.");
-		}
-		// end multithreading
-		if (doAxes) {
-			// draw axes on stack
-			final int xCent = (int) Math.floor(xTc / vS);
-			final int yCent = (int) Math.floor(yTc / vS);
-			final int zCent = (int) Math.floor(zTc / vS);
-			final int axisColour = Integer.MAX_VALUE;
-			for (int z = 1; z <= dT; z++) {
-				// z axis
-				try {
-					final ImageProcessor axisIP = targetStack.getProcessor(z);
-					axisIP.set(xCent, yCent, axisColour);
-				}
-				catch (final NullPointerException npe) {
-					IJ.handleException(npe);
-					break;
-				}
-			}
-			final ImageProcessor axisIP = targetStack.getProcessor(zCent);
-			axisIP.setColor(Integer.MAX_VALUE);
-			// x axis
-			axisIP.drawLine(0, yCent, wT, yCent);
-
-			// y axis
-			axisIP.drawLine(xCent, 0, xCent, hT);
-		}
+		final AlignedStack alignedStack = new AlignedStack(imp, eigenVecInv,
+			centroid, startSlice, endSlice, wT, hT, dT, interpolate, doAxes);
+		final ImageStack targetStack = virtual ? alignedStack : alignedStack
+			.renderAll();
 		final ImagePlus impTarget = new ImagePlus("Aligned_" + imp.getTitle(),
 			targetStack);
 		impTarget.setCalibration(imp.getCalibration());
@@ -450,97 +395,16 @@ public class Moments implements PlugIn, DialogListener {
 		return impTarget;
 	}
 
-	private static Object[] calculateMoments(final ImagePlus imp,
-		final int startSlice, final int endSlice, final double[] centroid,
-		final double min, final double max, final double m, final double c)
+	/**
+	 * Create the inertia tensor from its moments and products, decompose it and
+	 * log the result
+	 *
+	 * @return Eigenvalue decomposition of the inertia tensor
+	 */
+	private static EigenvalueDecomposition getEigenvalueDecomposition(
+		final double Icxx, final double Icyy, final double Iczz, final double Icxy,
+		final double Icxz, final double Icyz)
 	{
-		// START OF 3D MOMENT CALCULATIONS
-		final Calibration cal = imp.getCalibration();
-		final double vW = cal.pixelWidth;
-		final double vH = cal.pixelHeight;
-		final double vD = cal.pixelDepth;
-		final ImageStack stack = imp.getImageStack();
-		final Rectangle r = imp.getProcessor().getRoi();
-		final int rW = r.x + r.width;
-		final int rH = r.y + r.height;
-		final int rX = r.x;
-		final int rY = r.y;
-		final double cX = centroid[0];
-		final double cY = centroid[1];
-		final double cZ = centroid[2];
-		final double factor = getDensityFactor(imp);
-		final double voxVol = vW * vH * vD;
-		final double voxVhVd = (vH * vH + vD * vD) / 12;
-		final double voxVwVd = (vW * vW + vD * vD) / 12;
-		final double voxVhVw = (vH * vH + vW * vW) / 12;
-		
-		final int d = imp.getStackSize();
-		double[] sliceSumVoxVol = new double[d + 1];
-		double[] sliceSumVoxMass = new double[d + 1];
-		double[] sliceIcxx = new double[d + 1];
-		double[] sliceIcyy = new double[d + 1];
-		double[] sliceIczz = new double[d + 1];
-		double[] sliceIcxy = new double[d + 1];
-		double[] sliceIcxz = new double[d + 1];
-		double[] sliceIcyz = new double[d + 1];
-		
-		final AtomicInteger ai = new AtomicInteger(startSlice);
-		final Thread[] threads = Multithreader.newThreads();
-		for (int thread = 0; thread < threads.length; thread++) {
-			threads[thread] = new Thread(() -> {
-				for (int z = ai.getAndIncrement(); z <= endSlice; z = ai.getAndIncrement()) {
-					IJ.showStatus("Calculating inertia tensor...");
-					IJ.showProgress(z - startSlice, endSlice - startSlice);
-					final ImageProcessor ip = stack.getProcessor(z);
-					double sumVoxVol = 0;
-					double sumVoxMass = 0;
-					double Icxx = 0;
-					double Icyy = 0;
-					double Iczz = 0;
-					double Icxy = 0;
-					double Icxz = 0;
-					double Icyz = 0;
-					for (int y = rY; y < rH; y++) {
-						for (int x = rX; x < rW; x++) {
-							final double testPixel = ip.get(x, y);
-							if (testPixel < min || testPixel > max) {
-								continue;
-							}
-							sumVoxVol += voxVol;
-							final double voxMass = voxelDensity(testPixel, m, c, factor) * voxVol;
-							sumVoxMass += voxMass;
-							final double xvWcX = x * vW - cX;
-							final double yvHcY = y * vH - cY;
-							final double zvDcZ = z * vD - cZ;
-							Icxx += (yvHcY * yvHcY + zvDcZ * zvDcZ + voxVhVd) * voxMass;
-							Icyy += (xvWcX * xvWcX + zvDcZ * zvDcZ + voxVwVd) * voxMass;
-							Iczz += (yvHcY * yvHcY + xvWcX * xvWcX + voxVhVw) * voxMass;
-							Icxy += xvWcX * yvHcY * voxMass;
-							Icxz += xvWcX * zvDcZ * voxMass;
-							Icyz += yvHcY * zvDcZ * voxMass;
-						}
-					}
-					sliceSumVoxMass[z] = sumVoxMass;
-					sliceSumVoxVol[z] = sumVoxVol;
-					sliceIcxx[z] = Icxx;
-					sliceIcyy[z] = Icyy;
-					sliceIczz[z] = Iczz;
-					sliceIcxy[z] = Icxy;
-					sliceIcxz[z] = Icxz;
-					sliceIcyz[z] = Icyz;
-				}
-			});
-		}
-		Multithreader.startAndJoin(threads);
-			
-		// create the inertia tensor matrix
-		final double Icxx = Arrays.stream(sliceIcxx).sum();
-		final double Icyy = Arrays.stream(sliceIcyy).sum();
-		final double Iczz = Arrays.stream(sliceIczz).sum();
-		final double Icxy = Arrays.stream(sliceIcxy).sum();
-		final double Icxz = Arrays.stream(sliceIcxz).sum();
-		final double Icyz = Arrays.stream(sliceIcyz).sum();
-				
 		final double[][] inertiaTensor = new double[3][3];
 		inertiaTensor[0][0] = Icxx;
 		inertiaTensor[1][1] = Icyy;
@@ -558,14 +422,7 @@ public class Moments implements PlugIn, DialogListener {
 			inertiaTensorMatrix);
 		MatrixUtils.printToIJLog(E.getD(), "Eigenvalues");
 		MatrixUtils.printToIJLog(E.getV(), "Eigenvectors");
-
-		final double sumVoxVol = Arrays.stream(sliceSumVoxVol).sum();
-		final double sumVoxMass = Arrays.stream(sliceSumVoxMass).sum();
-		
-		final double[] moments = { sumVoxVol, sumVoxMass, Icxx, Icyy, Iczz, Icxy,
-			Icxz, Icyz };
-
-		return new Object[] { E, moments };
+		return E;
 	}
 
 	/**
@@ -581,7 +438,7 @@ public class Moments implements PlugIn, DialogListener {
 	 * @param c constant in density equation
 	 * @return double[] containing (x,y,z) centroid in scaled units
 	 */
-	private static double[] getCentroid3D(final ImagePlus imp,
+	static double[] getCentroid3D(final ImagePlus imp,
 		final int startSlice, final int endSlice, final double min,
 		final double max, final double m, final double c)
 	{
@@ -654,6 +511,185 @@ public class Moments implements PlugIn, DialogListener {
 		return new double[] { centX * vW, centY * vH, centZ * vD };
 	}/* end findCentroid3D */
 
+	/**
+	 * Calculate the density-weighted centroid, volume, mass and inertia tensor
+	 * in one pass over the stack.
+	 * <p>
+	 * Each slice sums mass and its first and second moments about a fixed
+	 * origin near the middle of the ROI, keeping the sums small, and the
+	 * parallel axis theorem moves the second moments to the centroid once all
+	 * the slices are summed. Within a slice, each voxel adds only to the sums
+	 * along its row; the y and z terms are added per row and per slice.
+	 * </p>
+	 *
+	 * @param imp ImagePlus
+	 * @param startSlice first slice to use
+	 * @param endSlice last slice to use
+	 * @param min minimum threshold value
+	 * @param max maximum threshold value
+	 * @param m slope of density equation (set to 0 if constant density)
+	 * @param c constant in density equation
+	 * @return (x,y,z) centroid in scaled units, or -1 if there is no mass,
+	 *         followed by volume, mass, Icxx, Icyy, Iczz, Icxy, Icxz and Icyz
+	 */
+	static double[] getCentroidAndMoments(final ImagePlus imp,
+		final int startSlice, final int endSlice, final double min,
+		final double max, final double m, final double c)
+	{
+		final ImageStack stack = imp.getImageStack();
+		final Rectangle r = imp.getProcessor().getRoi();
+		final int rW = r.x + r.width;
+		final int rH = r.y + r.height;
+		final int rX = r.x;
+		final int rY = r.y;
+		final int w = stack.getWidth();
+		final Calibration cal = imp.getCalibration();
+		final double vW = cal.pixelWidth;
+		final double vH = cal.pixelHeight;
+		final double vD = cal.pixelDepth;
+		final double voxVol = vW * vH * vD;
+		final double factor = getDensityFactor(imp);
+		// origin of the sums, in pixels
+		final int oX = (rX + rW) / 2;
+		final int oY = (rY + rH) / 2;
+		final int oZ = (startSlice + endSlice) / 2;
+		final int nSlices = Math.max(0, endSlice - startSlice + 1);
+		final int progressStep = Math.max(1, nSlices / 100);
+		// per slice: n, sum, x, y, z, xx, yy, zz, xy, xz, yz
+		final double[][] sliceSums = new double[nSlices][11];
+
+		IJ.showStatus("Calculating centroid and inertia tensor...");
+		final AtomicInteger ai = new AtomicInteger(startSlice);
+		final AtomicInteger done = new AtomicInteger();
+		final Thread[] threads = Multithreader.newThreads();
+		for (int thread = 0; thread < threads.length; thread++) {
+			threads[thread] = new Thread(() -> {
+				final double[] row = new double[rW - rX];
+				for (int z = ai.getAndIncrement(); z <= endSlice; z = ai.getAndIncrement()) {
+					final Object pixels = stack.getPixels(z);
+					final ImageProcessor ip = pixels instanceof byte[] ||
+						pixels instanceof short[] ? null : stack.getProcessor(z);
+					long n = 0;
+					double sum = 0;
+					double sumX = 0;
+					double sumY = 0;
+					double sumXX = 0;
+					double sumYY = 0;
+					double sumXY = 0;
+					for (int y = rY; y < rH; y++) {
+						readRow(pixels, ip, w, y, rX, row);
+						double rowSum = 0;
+						double rowX = 0;
+						double rowXX = 0;
+						for (int x = rX; x < rW; x++) {
+							final double testPixel = row[x - rX];
+							if (testPixel < min || testPixel > max) {
+								continue;
+							}
+							n++;
+							final double density = voxelDensity(testPixel, m, c, factor);
+							final int dx = x - oX;
+							final double densityX = density * dx;
+							rowSum += density;
+							rowX += densityX;
+							rowXX += densityX * dx;
+						}
+						final int dy = y - oY;
+						sum += rowSum;
+						sumX += rowX;
+						sumY += rowSum * dy;
+						sumXX += rowXX;
+						sumYY += rowSum * dy * dy;
+						sumXY += rowX * dy;
+					}
+					final int dz = z - oZ;
+					final double[] sums = sliceSums[z - startSlice];
+					sums[0] = n;
+					sums[1] = sum;
+					sums[2] = sumX;
+					sums[3] = sumY;
+					sums[4] = sum * dz;
+					sums[5] = sumXX;
+					sums[6] = sumYY;
+					sums[7] = sum * dz * dz;
+					sums[8] = sumXY;
+					sums[9] = sumX * dz;
+					sums[10] = sumY * dz;
+					final int nDone = done.incrementAndGet();
+					if (nDone % progressStep == 0) IJ.showProgress(nDone, nSlices);
+				}
+			});
+		}
+		Multithreader.startAndJoin(threads);
+		IJ.showProgress(1.0);
+
+		final double[] total = new double[11];
+		for (int i = 0; i < total.length; i++) {
+			final int index = i;
+			total[i] = Arrays.stream(sliceSums).mapToDouble(s -> s[index]).sum();
+		}
+		final double sum = total[1];
+		final double volume = total[0] * voxVol;
+		final double mass = sum * voxVol;
+		if (sum == 0) {
+			return new double[] { -1, -1, -1, volume, mass, 0, 0, 0, 0, 0, 0 };
+		}
+		// centroid relative to the origin, in pixels
+		final double mX = total[2] / sum;
+		final double mY = total[3] / sum;
+		final double mZ = total[4] / sum;
+		// second moments about the centroid, in pixels
+		final double cXX = total[5] - total[2] * mX;
+		final double cYY = total[6] - total[3] * mY;
+		final double cZZ = total[7] - total[4] * mZ;
+		final double cXY = total[8] - total[2] * mY;
+		final double cXZ = total[9] - total[2] * mZ;
+		final double cYZ = total[10] - total[3] * mZ;
+		final double xx = cXX * vW * vW * voxVol;
+		final double yy = cYY * vH * vH * voxVol;
+		final double zz = cZZ * vD * vD * voxVol;
+		final double Icxx = yy + zz + (vH * vH + vD * vD) / 12 * mass;
+		final double Icyy = xx + zz + (vW * vW + vD * vD) / 12 * mass;
+		final double Iczz = yy + xx + (vH * vH + vW * vW) / 12 * mass;
+		final double Icxy = cXY * vW * vH * voxVol;
+		final double Icxz = cXZ * vW * vD * voxVol;
+		final double Icyz = cYZ * vH * vD * voxVol;
+		return new double[] { (oX + mX) * vW, (oY + mY) * vH, (oZ + mZ) * vD,
+			volume, mass, Icxx, Icyy, Iczz, Icxy, Icxz, Icyz };
+	}
+
+	/**
+	 * Copy the pixel values of part of a row into a buffer, directly from the
+	 * pixel array of 8- and 16-bit slices
+	 *
+	 * @param pixels slice's pixel array
+	 * @param ip processor for other pixel types, read with
+	 *          {@link ImageProcessor#get(int, int)}
+	 * @param w slice width
+	 * @param y row to read
+	 * @param x0 first x to read
+	 * @param row buffer, filled from its start
+	 */
+	private static void readRow(final Object pixels, final ImageProcessor ip,
+		final int w, final int y, final int x0, final double[] row)
+	{
+		final int offset = y * w + x0;
+		if (pixels instanceof byte[]) {
+			final byte[] bytes = (byte[]) pixels;
+			for (int i = 0; i < row.length; i++)
+				row[i] = bytes[offset + i] & 0xff;
+		}
+		else if (pixels instanceof short[]) {
+			final short[] shorts = (short[]) pixels;
+			for (int i = 0; i < row.length; i++)
+				row[i] = shorts[offset + i] & 0xffff;
+		}
+		else {
+			for (int i = 0; i < row.length; i++)
+				row[i] = ip.get(x0 + i, y);
+		}
+	}
+
 	/**
 	 * Get a scale factor because density is in g / cm³ but our units are mm,
 	 * microns or pixels so density is wrong leading to wrong mass and moments.
@@ -674,6 +710,11 @@ public class Moments implements PlugIn, DialogListener {
 
 	/**
 	 * Find side lengths in pixels of the smallest stack to fit the aligned image
+	 * <p>
+	 * The transformed coordinates are linear along a row, so their greatest
+	 * distances from the centroid are at the first or last thresholded voxel of
+	 * the row, and only those two voxels are transformed.
+	 * </p>
 	 *
 	 * @param E Rotation matrix
 	 * @param imp Source image
@@ -699,6 +740,7 @@ public class Moments implements PlugIn, DialogListener {
 		final int rH = r.y + r.height;
 		final int rX = r.x;
 		final int rY = r.y;
+		final int w = stack.getWidth();
 
 		final double vW = cal.pixelWidth;
 		final double vH = cal.pixelHeight;
@@ -724,9 +766,12 @@ public class Moments implements PlugIn, DialogListener {
 		final Thread[] threads = Multithreader.newThreads();
 		for (int thread = 0; thread < threads.length; thread++) {
 			threads[thread] = new Thread(() -> {
+				final double[] row = new double[rW - rX];
 				for (int z = ai.getAndIncrement(); z <= endSlice; z = ai.getAndIncrement()) {
 					IJ.showStatus("Getting aligned stack dimensions...");
-					final ImageProcessor ip = stack.getProcessor(z);
+					final Object pixels = stack.getPixels(z);
+					final ImageProcessor ip = pixels instanceof byte[] ||
+						pixels instanceof short[] ? null : stack.getProcessor(z);
 					final double zCz = z * vD - zC;
 					final double zCzv20 = zCz * v20;
 					final double zCzv21 = zCz * v21;
@@ -735,14 +780,19 @@ public class Moments implements PlugIn, DialogListener {
 					double yTmax = 0;
 					double zTmax = 0;
 					for (int y = rY; y < rH; y++) {
+						readRow(pixels, ip, w, y, rX, row);
+						int first = 0;
+						while (first < row.length && (row[first] < min || row[first] > max))
+							first++;
+						if (first == row.length) continue;
+						int last = row.length - 1;
+						while (row[last] < min || row[last] > max)
+							last--;
 						final double yCy = y * vH - yC;
 						final double yCyv10 = yCy * v10;
 						final double yCyv11 = yCy * v11;
 						final double yCyv12 = yCy * v12;
-						for (int x = rX; x < rW; x++) {
-							final double pixel = ip.get(x, y);
-							if (pixel < min || pixel > max) continue;
-
+						for (final int x : new int[] { rX + first, rX + last }) {
 							// distance from centroid in
 							// original coordinate system
 							// xCx, yCx, zCx
@@ -973,111 +1023,6 @@ public class Moments implements PlugIn, DialogListener {
 		return Math.max(0.0, (m * pixelValue + c) / factor);
 	}
 
-	/**
-	 * Multithreading class to look up aligned voxel values, processing each slice
-	 * in its own thread
-	 */
-	private static final class AlignThread extends Thread {
-
-		private final int thread;
-		private final int nThreads;
-		private final int wT;
-		private final int hT;
-		private final int dT;
-		private final int startSlice;
-		private final int endSlice;
-		private final ImagePlus impT;
-		private final ImageProcessor[] sliceProcessors;
-		private final ImageProcessor[] targetProcessors;
-		private final double[][] eigenVecInv;
-		private final double[] centroid;
-
-		private AlignThread(final int thread, final int nThreads,
-			final ImagePlus imp, final ImageProcessor[] sliceProcessors,
-			final ImageProcessor[] targetProcessors, final double[][] eigenVecInv,
-			final double[] centroid, final int wT, final int hT, final int dT,
-			final int startSlice, final int endSlice)
-		{
-			impT = imp;
-			this.thread = thread;
-			this.nThreads = nThreads;
-			this.sliceProcessors = sliceProcessors;
-			this.targetProcessors = targetProcessors;
-			this.eigenVecInv = eigenVecInv;
-			this.centroid = centroid;
-			this.wT = wT;
-			this.hT = hT;
-			this.dT = dT;
-			this.startSlice = startSlice;
-			this.endSlice = endSlice;
-		}
-
-		@Override
-		public void run() {
-			final Rectangle r = impT.getProcessor().getRoi();
-			final int rW = r.x + r.width;
-			final int rH = r.y + r.height;
-			final int rX = r.x;
-			final int rY = r.y;
-			final Calibration cal = impT.getCalibration();
-			final double vW = cal.pixelWidth;
-			final double vH = cal.pixelHeight;
-			final double vD = cal.pixelDepth;
-			final double vS = Math.min(vW, Math.min(vH, vD));
-			final double xC = centroid[0];
-			final double yC = centroid[1];
-			final double zC = centroid[2];
-			final double xTc = wT * vS / 2;
-			final double yTc = hT * vS / 2;
-			final double zTc = dT * vS / 2;
-			final double dXc = xC - xTc;
-			final double dYc = yC - yTc;
-			final double dZc = zC - zTc;
-			final double eVI00 = eigenVecInv[0][0];
-			final double eVI10 = eigenVecInv[1][0];
-			final double eVI20 = eigenVecInv[2][0];
-			final double eVI01 = eigenVecInv[0][1];
-			final double eVI11 = eigenVecInv[1][1];
-			final double eVI21 = eigenVecInv[2][1];
-			final double eVI02 = eigenVecInv[0][2];
-			final double eVI12 = eigenVecInv[1][2];
-			final double eVI22 = eigenVecInv[2][2];
-			for (int z = thread + 1; z <= dT; z += nThreads) {
-				IJ.showStatus("Aligning image stack...");
-				IJ.showProgress(z, dT);
-				final ImageProcessor targetIP = targetProcessors[z];
-				final double zD = z * vS - zTc;
-				final double zDeVI20 = zD * eVI20;
-				final double zDeVI21 = zD * eVI21;
-				final double zDeVI22 = zD * eVI22;
-				for (int y = 0; y < hT; y++) {
-					final double yD = y * vS - yTc;
-					final double yDeVI10 = yD * eVI10;
-					final double yDeVI11 = yD * eVI11;
-					final double yDeVI12 = yD * eVI12;
-					for (int x = 0; x < wT; x++) {
-						final double xD = x * vS - xTc;
-						final double xAlign = xD * eVI00 + yDeVI10 + zDeVI20 + xTc;
-						final double yAlign = xD * eVI01 + yDeVI11 + zDeVI21 + yTc;
-						final double zAlign = xD * eVI02 + yDeVI12 + zDeVI22 + zTc;
-						// possibility to do some voxel interpolation instead
-						// of just rounding in next 3 lines
-						final int xA = (int) Math.floor((xAlign + dXc) / vW);
-						final int yA = (int) Math.floor((yAlign + dYc) / vH);
-						final int zA = (int) Math.floor((zAlign + dZc) / vD);
-
-						if (xA < rX || xA >= rW || yA < rY || yA >= rH || zA < startSlice ||
-							zA > endSlice)
-						{
-							continue;
-						}
-						targetIP.set(x, y, sliceProcessors[zA].get(xA, yA));
-					}
-				}
-			}
-		}
-	}
-
 	/**
 	 * Return an empty pixel array of the type appropriate for the bit depth
 	 * required. Returns an Object, which can be used when adding an empty slice
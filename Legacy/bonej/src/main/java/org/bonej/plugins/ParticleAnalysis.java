@@ -55,9 +55,12 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Iterator;
+import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.IntStream;
 
 import org.bonej.geometry.FitEllipsoid;
 import org.bonej.util.Multithreader;
@@ -65,11 +68,11 @@ import org.scijava.vecmath.Point3f;
 
 import Jama.EigenvalueDecomposition;
 import Jama.Matrix;
-import customnode.CustomTriangleMesh;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
 import ij.measure.Calibration;
+import ij.process.ImageProcessor;
 import marchingcubes.MCTriangulator;
 import sc.fiji.analyzeSkeleton.AnalyzeSkeleton_;
 import sc.fiji.analyzeSkeleton.SkeletonResult;
@@ -82,6 +85,12 @@ import sc.fiji.skeletonize3D.Skeletonize3D_;
  */
 public class ParticleAnalysis {
 
+	/**
+	 * Relative margin below the hull diameter within which points are kept as
+	 * Feret candidates, well above the rounding error of float distances
+	 */
+	private static final double FERET_TOLERANCE = 1e-5;
+
 	/** list of particle sizes */
 	private long[] particleSizes;
 
@@ -281,40 +290,113 @@ public class ParticleAnalysis {
 		final int d = particleLabels.length;
 		final int wh = particleLabels[0].length;
 
-		// make a list of all the particle sizes with
-		// index = particle value
-		// need to handle the ID offset for the chunks
+		// count each thread's particles in its own table, dense or sparse
+		// depending on how many particles there are per voxel visited
 		AtomicInteger an = new AtomicInteger(0);
-		final long[][] partSizes = new long[d][];
-
 		final Thread[] threads = Multithreader.newThreads();
+		final long voxelsPerThread = (long) wh * d / threads.length;
+		final ParticleTable[] tables = new ParticleTable[threads.length];
+		final long[][] counts = new long[threads.length][];
 		for (int thread = 0; thread < threads.length; thread++) {
+			final int t = thread;
+			final ParticleTable table = new ParticleTable(nParticles, voxelsPerThread, ParticleTable.AUTO);
+			tables[t] = table;
 			threads[thread] = new Thread(() -> {
+				long[] threadCounts = new long[table.size()];
 				for (int z = an.getAndIncrement(); z < d; z = an.getAndIncrement()) {
-					final long[] particleSizes = new long[nParticles];
 					final int[] slice = particleLabels[z];
 					for (int i = 0; i < wh; i++) {
-						final int label = slice[i];
-						particleSizes[label]++;
+						final int slot = table.slot(slice[i]);
+						if (slot >= threadCounts.length)
+							threadCounts = Arrays.copyOf(threadCounts, table.grow(threadCounts.length));
+						threadCounts[slot]++;
 					}
-					partSizes[z] = particleSizes;
 				}
+				counts[t] = threadCounts;
 			});
 		}
 		Multithreader.startAndJoin(threads);
 
 		this.particleSizes = new long[nParticles];
-		for (int i = 0; i < nParticles; i++) {
-			long partSum = 0;
-			for (int z = 0; z < d; z++) {
-				if (partSizes[z] != null)
-					partSum += partSizes[z][i];
+		for (int t = 0; t < tables.length; t++) {
+			final ParticleTable table = tables[t];
+			final long[] threadCounts = counts[t];
+			final int size = table.size();
+			for (int slot = 0; slot < size; slot++) {
+				this.particleSizes[table.label(slot)] += threadCounts[slot];
 			}
-			this.particleSizes[i] = partSum;
 		}
 		return this.particleSizes.clone();
 	}
 
+	/**
+	 * Count the voxels of each particle in a label image, which may be a wide
+	 * label image. Store the particleSizes array as a field in this instance.
+	 *
+	 * @param labelImp label image, in a format read by
+	 *          {@link #getParticleLabels(ImagePlus)}
+	 * @return array of particle sizes, indexed by label up to the greatest label
+	 */
+	public long[] getParticleSizes(final ImagePlus labelImp) {
+		final int[][] particleLabels = getParticleLabels(labelImp);
+		final int maxLabel = Arrays.stream(particleLabels).flatMapToInt(
+			Arrays::stream).max().orElse(0);
+		return getParticleSizes(particleLabels, maxLabel + 1);
+	}
+
+	/**
+	 * Read particle labels from a label image. Accepts the two-channel, 16-bit
+	 * wide label image made by
+	 * {@link ParticleDisplay#displayWideParticleLabels(int[][], ImagePlus)}, where
+	 * channel 1 holds the low and channel 2 the high 16 bits of each label, as well
+	 * as single-channel 8-, 16- and 32-bit label images.
+	 *
+	 * @param labelImp label image
+	 * @return particle labels, one int[] per slice
+	 * @throws IllegalArgumentException if the image has more than one channel but
+	 *           is not a wide label image
+	 */
+	static int[][] getParticleLabels(final ImagePlus labelImp) {
+		final int nChannels = labelImp.getNChannels();
+		final ImageStack stack = labelImp.getImageStack();
+		final int wh = labelImp.getWidth() * labelImp.getHeight();
+		final boolean wide = nChannels == 2 && labelImp.getBitDepth() == 16;
+		if (nChannels != 1 && !wide) {
+			throw new IllegalArgumentException(
+					"Label image must have one channel, or two 16-bit channels holding the low and high 16 bits");
+		}
+		final int d = stack.getSize() / nChannels;
+		final int[][] particleLabels = new int[d][wh];
+		final AtomicInteger ai = new AtomicInteger(0);
+		final Thread[] threads = Multithreader.newThreads();
+		for (int thread = 0; thread < threads.length; thread++) {
+			threads[thread] = new Thread(() -> {
+				for (int z = ai.getAndIncrement(); z < d; z = ai.getAndIncrement()) {
+					final int[] labels = particleLabels[z];
+					if (wide) {
+						final short[] low = (short[]) stack.getPixels(2 * z + 1);
+						final short[] high = (short[]) stack.getPixels(2 * z + 2);
+						for (int i = 0; i < wh; i++) {
+							labels[i] = (low[i] & 0xffff) | ((high[i] & 0xffff) << 16);
+						}
+					} else if (labelImp.getBitDepth() == 32) {
+						final float[] pixels = (float[]) stack.getPixels(z + 1);
+						for (int i = 0; i < wh; i++) {
+							labels[i] = (int) pixels[i];
+						}
+					} else {
+						final ImageProcessor ip = stack.getProcessor(z + 1);
+						for (int i = 0; i < wh; i++) {
+							labels[i] = ip.get(i);
+						}
+					}
+				}
+			});
+		}
+		Multithreader.startAndJoin(threads);
+		return particleLabels;
+	}
+
 	/**
 	 * Calculate calibrated volumes of the particles
 	 * 
@@ -334,127 +416,13 @@ public class ParticleAnalysis {
 	}
 
 	/**
-	 * Get the mean and standard deviation of pixel values &gt;0 for each particle
-	 * in a particle label work array
-	 *
-	 * @param imp            Input image containing pixel values
-	 * @param particleLabels workArray containing particle labels
-	 * @param particleSizes  array of particle sizes as pixel counts
-	 * @return array containing mean, std dev and max pixel values for each particle
-	 */
-	static double[][] getMeanStdDev(final ImagePlus imp, final int[][] particleLabels, final long[] particleSizes) {
-		final int d = imp.getImageStackSize();
-		final int wh = imp.getWidth() * imp.getHeight();
-		final ImageStack stack = imp.getImageStack();
-		final int nParticles = particleSizes.length;
-		final double[] sums = new double[nParticles];
-		for (int z = 0; z < d; z++) {
-			final float[] pixels = (float[]) stack.getPixels(z + 1);
-			final int[] labelPixels = particleLabels[z];
-			for (int i = 0; i < wh; i++) {
-				final double value = pixels[i];
-				if (value > 0) {
-					sums[labelPixels[i]] += value;
-				}
-			}
-		}
-		final double[][] meanStdDev = new double[nParticles][3];
-		for (int p = 1; p < nParticles; p++) {
-			meanStdDev[p][0] = sums[p] / particleSizes[p];
-		}
-
-		final double[] sumSquares = new double[nParticles];
-		for (int z = 0; z < d; z++) {
-			final float[] pixels = (float[]) stack.getPixels(z + 1);
-			final int[] labelPixels = particleLabels[z];
-			for (int i = 0; i < wh; i++) {
-				final double value = pixels[i];
-				if (value > 0) {
-					final int p = labelPixels[i];
-					final double residual = value - meanStdDev[p][0];
-					sumSquares[p] += residual * residual;
-					meanStdDev[p][2] = Math.max(meanStdDev[p][2], value);
-				}
-			}
-		}
-		for (int p = 1; p < nParticles; p++) {
-			meanStdDev[p][1] = Math.sqrt(sumSquares[p] / particleSizes[p]);
-		}
-		return meanStdDev;
-	}
-
-	/**
-	 * Calculate Eigenvalue decompositions of all the particles
+	 * Calculate Eigenvalue decompositions of particles' inertia tensors
 	 * 
-	 * @param imp ImagePlus, used for calibration
-	 * @param particleLabels label image array
-	 * @param centroids list of particle centroids
-	 * @return list of EigenvalueDecompositions
+	 * @param momentTensors Ixx, Iyy, Izz, Ixy, Ixz and Iyz of each particle
+	 * @return list of EigenvalueDecompositions, null for the background
 	 */
-	static EigenvalueDecomposition[] getEigens(final ImagePlus imp, final int[][] particleLabels,
-			final double[][] centroids) {
-		final Calibration cal = imp.getCalibration();
-		final double vW = cal.pixelWidth;
-		final double vH = cal.pixelHeight;
-		final double vD = cal.pixelDepth;
-		final double voxVhVd = (vH * vH + vD * vD) / 12;
-		final double voxVwVd = (vW * vW + vD * vD) / 12;
-		final double voxVhVw = (vH * vH + vW * vW) / 12;
-		final int w = imp.getWidth();
-		final int h = imp.getHeight();
-		final int d = imp.getImageStackSize();
-		final int nParticles = centroids.length;
-
-		final AtomicInteger ai = new AtomicInteger(0);
-		final Thread[] threads = Multithreader.newThreads();
-		final List<double[][]> listOfTensors = Collections.synchronizedList(new ArrayList<>());
-		
-		for (int thread = 0; thread < threads.length; thread++) {
-
-			final double[][] threadTensors = new double[nParticles][6];
-
-			threads[thread] = new Thread(() -> {
-				for (int z = ai.getAndIncrement(); z < d; z = ai.getAndIncrement()) {
-					final double zVd = z * vD;
-					final int[] slice = particleLabels[z];
-					for (int y = 0; y < h; y++) {
-						final double yVh = y * vH;
-						final int index = y * w;
-						for (int x = 0; x < w; x++) {
-							final int p = slice[index + x];
-							if (p == 0) continue;
-							final double xVw = x * vW;
-							final double dx = xVw - centroids[p][0];
-							final double dy = yVh - centroids[p][1];
-							final double dz = zVd - centroids[p][2];
-							threadTensors[p][0] += dy * dy + dz * dz + voxVhVd; // Ixx
-							threadTensors[p][1] += dx * dx + dz * dz + voxVwVd; // Iyy
-							threadTensors[p][2] += dy * dy + dx * dx + voxVhVw; // Izz
-							threadTensors[p][3] += dx * dy; // Ixy
-							threadTensors[p][4] += dx * dz; // Ixz
-							threadTensors[p][5] += dy * dz; // Iyz
-						}
-					}
-				}
-			});
-			listOfTensors.add(threadTensors);
-		}
-		Multithreader.startAndJoin(threads);
-		
-		final double[][] momentTensors = new double[nParticles][6];
-		Iterator<double[][]> iter = listOfTensors.iterator();
-		while (iter.hasNext()) {
-			final double[][] threadTensors = iter.next();
-			for (int p = 1; p < nParticles; p++) {
-				momentTensors[p][0] += threadTensors[p][0];
-				momentTensors[p][1] += threadTensors[p][1];
-				momentTensors[p][2] += threadTensors[p][2];
-				momentTensors[p][3] += threadTensors[p][3];
-				momentTensors[p][4] += threadTensors[p][4];
-				momentTensors[p][5] += threadTensors[p][5];
-			}
-		}
-		
+	static EigenvalueDecomposition[] getEigens(final double[][] momentTensors) {
+		final int nParticles = momentTensors.length;
 		final EigenvalueDecomposition[] eigens = new EigenvalueDecomposition[nParticles];
 		for (int p = 1; p < nParticles; p++) {
 			final double[][] inertiaTensor = new double[3][3];
@@ -474,117 +442,6 @@ public class ParticleAnalysis {
 		return eigens;
 	}
 
-	/**
-	 * Get the centroid and minimum and maximum x, y and z coordinates of each particle
-	 *
-	 * @param imp            ImagePlus (used for stack size)
-	 * @param particleLabels work array containing labelled particles
-	 * @param particleSizes sizes of the particles in pixel counts
-	 * @return 2-element Object array containing for each particle the centroid (in calibrated units as double[nParticles][3]) and the 
-	 * min and max x, y and z limits (in uncalibrated pixel units as int[nParticles][6]).
-	 */
-	static Object[] getBoundingBoxes(final ImagePlus imp, final int[][] particleLabels, final long[] particleSizes) {
-		
-		final int w = imp.getWidth();
-		final int h = imp.getHeight();
-		final int d = imp.getImageStackSize();
-		final int nParticles = particleSizes.length;
-		
-		final AtomicInteger ai = new AtomicInteger(0);
-		final Thread[] threads = Multithreader.newThreads();
-		final List<int[][]> listOfLimits = Collections.synchronizedList(new ArrayList<>());
-		final List<double[][]> listOfSums = Collections.synchronizedList(new ArrayList<>());
-		
-		for (int thread = 0; thread < threads.length; thread++) {
-			
-			final double[][] threadSums = new double[nParticles][3];
-			
-			//set up a limit range for each thread and particle
-			final int[][] threadLimits = new int[nParticles][6];
-			for (int p = 1; p < nParticles; p++) {
-				threadLimits[p][0] = Integer.MAX_VALUE; // x min
-				threadLimits[p][1] = 0; // x max
-				threadLimits[p][2] = Integer.MAX_VALUE; // y min
-				threadLimits[p][3] = 0; // y max
-				threadLimits[p][4] = Integer.MAX_VALUE; // z min
-				threadLimits[p][5] = 0; // z max
-			}
-			
-			threads[thread] = new Thread(() -> {
-				for (int z = ai.getAndIncrement(); z < d; z = ai.getAndIncrement()) {
-					final int[] slice = particleLabels[z];
-					for (int y = 0; y < h; y++) {
-						final int index = y * w;
-						for (int x = 0; x < w; x++) {
-							final int p = slice[index + x];
-							if (p == 0) continue;
-							
-							threadSums[p][0] += x;
-							threadSums[p][1] += y;
-							threadSums[p][2] += z;
-							
-							threadLimits[p][0] = Math.min(threadLimits[p][0], x);
-							threadLimits[p][1] = Math.max(threadLimits[p][1], x);
-							threadLimits[p][2] = Math.min(threadLimits[p][2], y);
-							threadLimits[p][3] = Math.max(threadLimits[p][3], y);
-							threadLimits[p][4] = Math.min(threadLimits[p][4], z);
-							threadLimits[p][5] = Math.max(threadLimits[p][5], z);
-						}
-					}
-				}
-			});
-			listOfLimits.add(threadLimits);
-			listOfSums.add(threadSums);
-		}
-		Multithreader.startAndJoin(threads);
-		
-		final int[][] limits = new int[nParticles][6];
-		final double[][] sums = new double[nParticles][3];
-		
-		for (int p = 1; p < nParticles; p++) {
-			limits[p][0] = Integer.MAX_VALUE; // x min
-			limits[p][1] = 0; // x max
-			limits[p][2] = Integer.MAX_VALUE; // y min
-			limits[p][3] = 0; // y max
-			limits[p][4] = Integer.MAX_VALUE; // z min
-			limits[p][5] = 0; // z max
-		}
-		
-		Iterator<int[][]> iter = listOfLimits.iterator();
-		while (iter.hasNext()) {
-			final int[][] threadLimits = iter.next();
-			for (int p = 1; p < nParticles; p++) {
-				limits[p][0] = Math.min(limits[p][0], threadLimits[p][0]);
-				limits[p][1] = Math.max(limits[p][1], threadLimits[p][1]);
-				limits[p][2] = Math.min(limits[p][2], threadLimits[p][2]);
-				limits[p][3] = Math.max(limits[p][3], threadLimits[p][3]);
-				limits[p][4] = Math.min(limits[p][4], threadLimits[p][4]);
-				limits[p][5] = Math.max(limits[p][5], threadLimits[p][5]);
-			}
-		}
-
-		Iterator<double[][]> iterSums = listOfSums.iterator();
-		while (iterSums.hasNext()) {
-			final double[][] threadSums = iterSums.next();
-			for (int p = 1; p < nParticles; p++) {
-				sums[p][0] += threadSums[p][0];
-				sums[p][1] += threadSums[p][1];
-				sums[p][2] += threadSums[p][2];
-			}
-		}
-		
-		final Calibration cal = imp.getCalibration();
-		final double[][] centroids = new double[nParticles][3];
-		for (int p = 0; p < nParticles; p++) {
-			final long particleSize = particleSizes[p];
-			centroids[p][0] = cal.pixelWidth * sums[p][0] / particleSize;
-			centroids[p][1] = cal.pixelHeight * sums[p][1] / particleSize;
-			centroids[p][2] = cal.pixelDepth * sums[p][2] / particleSize;
-		}
-		
-		return new Object[] {centroids, limits};
-	}
-	
 	/**
 	 * Get the limits of each particle in the directions defined by an 
 	 * eigenvector tensor (usually the principal axes).
@@ -593,11 +450,12 @@ public class ParticleAnalysis {
 	 * @param particleLabels label image
 	 * @param tensors array of rotation matrices, one per particle
 	 * @param nParticles number of particles
+	 * @param pool pool to run the sweep in, or null to start threads
 	 * @return array of box dimensions, each containing the centre x, y, z
 	 * coordinates and box width, height and depth.
 	 */
 	static double[][] getAxisAlignedBoundingBoxes(final ImagePlus imp, final int[][] particleLabels,
-		final Matrix[] tensors, final int nParticles){
+		final Matrix[] tensors, final int nParticles, final ForkJoinPool pool){
 		
 		final int w = imp.getWidth();
 		final int h = imp.getHeight();
@@ -663,7 +521,7 @@ public class ParticleAnalysis {
 			});
 			listOfLimits.add(threadLimits);
 		}
-		Multithreader.startAndJoin(threads);
+		Multithreader.startAndJoin(threads, pool);
 		
 		final double[][] limits = new double[nParticles][6];
 		for (int p = 1; p < nParticles; p++) {
@@ -735,11 +593,12 @@ public class ParticleAnalysis {
 	 * @param particleLabels 
 	 * @param eigens array of 3 × 3 rotation matrices (inertia tensors)
 	 * @param nParticles 
+	 * @param pool pool to run the sweep in, or null to start threads
 	 * @return dimensions of the axis aligned bounding box, aligned to the eigenvectors
 	 * of the supplied eigenvalue decomposition.
 	 */
 	static double[][] getAxisAlignedBoundingBoxes(final ImagePlus imp, final int[][] particleLabels,
-		final EigenvalueDecomposition[] eigens, final int nParticles){
+		final EigenvalueDecomposition[] eigens, final int nParticles, final ForkJoinPool pool){
 		
 		final Matrix[] tensors = new Matrix[nParticles];
 		
@@ -747,7 +606,7 @@ public class ParticleAnalysis {
 			tensors[i] = eigens[i].getV();
 		}
 		
-		return getAxisAlignedBoundingBoxes(imp, particleLabels, tensors, nParticles);
+		return getAxisAlignedBoundingBoxes(imp, particleLabels, tensors, nParticles, pool);
 	}
 	
 	/**
@@ -757,28 +616,18 @@ public class ParticleAnalysis {
 	 * @param particleLabels particles of the image.
 	 * @param limits limits of the particles.
 	 * @param nParticles number of particles in the image
-	 * @return euler characteristic of each image.
+	 * @param pool pool to run the work in, or null to start threads
+	 * @return euler characteristic, holes and cavities of each particle.
+	 * @see ParticleEuler
 	 */
 	static double[][] getEulerCharacter(final ImagePlus imp,
-		final int[][] particleLabels, final int[][] limits, final int nParticles)
+		final int[][] particleLabels, final int[][] limits, final int nParticles,
+		final ForkJoinPool pool)
 	{
-		final Connectivity con = new Connectivity();
-		final double[][] eulerCharacters = new double[nParticles][3];
-		for (int p = 1; p < nParticles; p++) {
-			final ImagePlus particleImp = getBinaryParticle(p, imp, particleLabels,
-				limits, 1);
-			final double euler = con.getSumEuler(particleImp);
-			final double cavities = getNCavities(particleImp);
-			// Calculate number of holes and cavities using
-			// Euler = particles - holes + cavities
-			// where particles = 1
-			final double holes = cavities - euler + 1;
-			final double[] bettis = { euler, holes, cavities };
-			eulerCharacters[p] = bettis;
-		}
-		return eulerCharacters;
+		return ParticleEuler.getEulerCharacters(particleLabels, limits, imp
+			.getWidth(), imp.getHeight(), nParticles, pool);
 	}
-	
+
 	/**
 	 * Calculate number of branches and total branch length by running Skeletonize3D
 	 * and Analyze Skeleton on each particle.
@@ -786,52 +635,92 @@ public class ParticleAnalysis {
 	 * <p>
 	 * Calls {@link AnalyzeSkeleton_#run()} with no arguments.
 	 * </p>
+	 * <p>
+	 * Particles are handed out largest first, so that a big particle is not left
+	 * to run alone at the end, and each thread recycles the slices of its
+	 * particle images through a {@link SliceBufferPool}. The wall clock time,
+	 * and the summed and slowest particle times, are written to the log; the
+	 * time of every particle is also logged in debug mode.
+	 * </p>
 	 *  
 	 * @param imp            Input image
 	 * @param particleLabels particle label array
 	 * @param limits         xyz limits of each particle
+	 * @param particleSizes  number of voxels in each particle
 	 * @param nParticles     number of particles
+	 * @param threadPool     pool to run the particles in, or null to start threads
 	 * @return array of {@link SkeletonResult} result objects. Use methods therein
 	 *         to get specific results out. Each result is a list of trees, but
 	 *         there should be only one tree per particle so its result is at [0].
 	 */
 	static SkeletonResult[] getBranchLength(final ImagePlus imp,
-			final int[][] particleLabels, final int[][] limits, final int nParticles)
+			final int[][] particleLabels, final int[][] limits, final long[] particleSizes,
+			final int nParticles, final ForkJoinPool threadPool)
 	{
+		final long start = System.nanoTime();
+		final int[] order = largestFirst(particleSizes, nParticles);
 		final SkeletonResult[] skeletonResults = new SkeletonResult[nParticles];
+		final long[] particleTimes = new long[nParticles];
 		final Thread[] threads = Multithreader.newThreads();
-		final AtomicInteger ai = new AtomicInteger(1);
+		final AtomicInteger ai = new AtomicInteger(0);
 		for (int thread = 0; thread < threads.length; thread++) {
 			threads[thread] = new Thread(() -> {
 				final Skeletonize3D_ skeletoniser = new Skeletonize3D_();
 				final AnalyzeSkeleton_ analyzeSkeleton_ = new AnalyzeSkeleton_();
-				for (int i = ai.getAndIncrement(); i < nParticles; i = ai.getAndIncrement()) {
+				final SliceBufferPool pool = new SliceBufferPool();
+				for (int o = ai.getAndIncrement(); o < order.length; o = ai.getAndIncrement()) {
+					final long particleStart = System.nanoTime();
+					final int i = order[o];
 					final ImagePlus particleImp = getBinaryParticle(i, imp, particleLabels,
-							limits, 1);
+							limits, 1, pool);
 					skeletoniser.setup("", particleImp);
 					skeletoniser.run(null);
 					analyzeSkeleton_.setup("", particleImp);
 					final SkeletonResult skeletonResult = analyzeSkeleton_.run();
 					skeletonResults[i] = skeletonResult;
+					// the result holds no pixels, so the slices are free to reuse
+					pool.giveAll(particleImp.getStack());
+					particleTimes[i] = System.nanoTime() - particleStart;
 				}
 			});
 		}
-		Multithreader.startAndJoin(threads);
+		Multithreader.startAndJoin(threads, threadPool);
+		logBranchLengthTimes(particleTimes, particleSizes, System.nanoTime() - start);
 		return skeletonResults;
 	}
 
 	/**
-	 * Calculate the number of cavities in the image, which may be interpreted
-	 * as a count of disconnected particles of background.
-	 * 
-	 * @param imp input image
-	 * @return number of cavities
+	 * Order particles by decreasing size, for longest-processing-time-first
+	 * scheduling
+	 *
+	 * @param particleSizes number of voxels in each particle
+	 * @param nParticles number of particles
+	 * @return particle labels from 1 to nParticles - 1, largest first
 	 */
-	private static int getNCavities(final ImagePlus imp) {
-		final ConnectedComponents connector = new ConnectedComponents();
-		connector.run(imp, ConnectedComponents.BACK);
-		return connector.getNParticles() - 2;
-	}	
+	static int[] largestFirst(final long[] particleSizes, final int nParticles) {
+		return IntStream.range(1, nParticles).boxed().sorted(Comparator.comparingLong(
+			(Integer p) -> particleSizes[p]).reversed()).mapToInt(Integer::intValue)
+			.toArray();
+	}
+
+	private static void logBranchLengthTimes(final long[] particleTimes,
+		final long[] particleSizes, final long wallTime)
+	{
+		long sum = 0;
+		int slowest = 0;
+		for (int p = 1; p < particleTimes.length; p++) {
+			sum += particleTimes[p];
+			if (particleTimes[p] > particleTimes[slowest]) slowest = p;
+			if (IJ.debugMode) {
+				IJ.log("Skeletonised particle " + p + " (" + particleSizes[p] +
+					" voxels) in " + particleTimes[p] / 1000000 + " ms");
+			}
+		}
+		IJ.log("Skeletonisation of " + (particleTimes.length - 1) +
+			" particles finished in " + wallTime / 1000000 + " ms (" + sum / 1000000 +
+			" ms summed over particles; slowest particle " + slowest + " took " +
+			particleTimes[slowest] / 1000000 + " ms)");
+	}
 
 	/**
 	 * create a binary ImagePlus containing a single particle and which 'just fits'
@@ -846,6 +735,23 @@ public class ParticleAnalysis {
 	 */
 	static ImagePlus getBinaryParticle(final int p, final ImagePlus imp, final int[][] particleLabels,
 			final int[][] limits, final int padding) {
+		return getBinaryParticle(p, imp, particleLabels, limits, padding, null);
+	}
+
+	/**
+	 * create a binary ImagePlus containing a single particle and which 'just fits'
+	 * the particle, taking its slices from a pool
+	 *
+	 * @param p              The particle ID to get
+	 * @param imp            original image, used for calibration
+	 * @param particleLabels work array of particle labels
+	 * @param limits         x,y and z limits of each particle
+	 * @param padding        amount of empty space to pad around each particle
+	 * @param pool           source of slice arrays, or null to allocate new ones
+	 * @return a cropped single particle image.
+	 */
+	static ImagePlus getBinaryParticle(final int p, final ImagePlus imp, final int[][] particleLabels,
+			final int[][] limits, final int padding, final SliceBufferPool pool) {
 
 		final int w = imp.getWidth();
 		final int h = imp.getHeight();
@@ -861,14 +767,13 @@ public class ParticleAnalysis {
 		final int stackSize = stackWidth * stackHeight;
 		final ImageStack stack = new ImageStack(stackWidth, stackHeight);
 		for (int z = zMin; z <= zMax; z++) {
-			final byte[] slice = new byte[stackSize];
+			final byte[] slice = pool == null ? new byte[stackSize] : pool.take(stackSize);
 			int i = 0;
 			for (int y = yMin; y <= yMax; y++) {
 				final int sourceIndex = y * w;
 				for (int x = xMin; x <= xMax; x++) {
-					if (particleLabels[z][sourceIndex + x] == p) {
-						slice[i] = (byte) 0xFF;
-					}
+					// pooled slices are not cleared, so write every pixel
+					slice[i] = particleLabels[z][sourceIndex + x] == p ? (byte) 0xFF : 0;
 					i++;
 				}
 			}
@@ -883,7 +788,9 @@ public class ParticleAnalysis {
 	// ----------- SURFACE MESH OPERATIONS ------------------------//
 
 	/**
-	 * Create a list of surface meshes, each wrapping a particle
+	 * Create a list of surface meshes, each wrapping a particle. Each mesher
+	 * output is welded into an {@link IndexedMesh} as soon as it is made, so only
+	 * one triangle list per thread is held at a time.
 	 * 
 	 * @param imp Input image, needed for calibration
 	 * @param particleLabels label array
@@ -892,151 +799,135 @@ public class ParticleAnalysis {
 	 * @param nParticles number of particles
 	 * @return list of surface meshes, one per particle
 	 */
-	static List<List<Point3f>> getSurfacePoints(final ImagePlus imp, final int[][] particleLabels,
+	static List<IndexedMesh> getSurfaceMeshes(final ImagePlus imp, final int[][] particleLabels,
 			final int[][] limits, final int resampling, final int nParticles) {
+		final IndexedMesh[] surfaceMeshes = new IndexedMesh[nParticles];
+		streamSurfaceMeshes(imp, particleLabels, limits, resampling, nParticles, null,
+			(p, mesh) -> surfaceMeshes[p] = mesh);
+		return Arrays.asList(surfaceMeshes);
+	}
+
+	/**
+	 * Mesh each particle's surface and pass the mesh to the consumers as soon as
+	 * it is made. Meshes are not kept unless a consumer keeps them, so the
+	 * meshes held at any time are bounded by the number of threads rather than
+	 * the number of particles. Particles without a surface are logged and not
+	 * passed on.
+	 *
+	 * @param imp Input image, needed for calibration
+	 * @param particleLabels label array
+	 * @param limits bounding box limits for each particle
+	 * @param resampling user-set resampling level
+	 * @param nParticles number of particles
+	 * @param pool pool to run the meshing in, or null to start threads
+	 * @param consumers receivers of each particle's mesh, called from the
+	 *          meshing threads
+	 * @throws RuntimeException the first exception thrown while meshing or by a
+	 *           consumer, after all the threads have stopped
+	 */
+	static void streamSurfaceMeshes(final ImagePlus imp, final int[][] particleLabels,
+			final int[][] limits, final int resampling, final int nParticles,
+			final ForkJoinPool pool, final MeshConsumer... consumers) {
 		final Calibration cal = imp.getCalibration();
-		final List<List<Point3f>> surfacePoints = Collections.synchronizedList(new ArrayList<>(nParticles));
-		for (int p = 0; p < nParticles; p++) {
-			surfacePoints.add(null);
-		}
 		final AtomicInteger ai = new AtomicInteger(1);
+		final AtomicReference<RuntimeException> failure = new AtomicReference<>();
 		final Thread[] threads = Multithreader.newThreads();
 		final boolean[] channels = { true, false, false };
 
 		for (int thread = 0; thread < threads.length; thread++) {
 			threads[thread] = new Thread(() -> {
-				for (int p = ai.getAndIncrement(); p < nParticles; p = ai.getAndIncrement()) {
-
-					final ImagePlus binaryImp = getBinaryParticle(p, imp, particleLabels, limits, resampling);
-					// noinspection TypeMayBeWeakened
-					final MCTriangulator mct = new MCTriangulator();
-					@SuppressWarnings("unchecked")
-					final List<Point3f> points = mct.getTriangles(binaryImp, 128, channels, resampling);
-
-					final double xOffset = (limits[p][0] - 1) * cal.pixelWidth;
-					final double yOffset = (limits[p][2] - 1) * cal.pixelHeight;
-					final double zOffset = (limits[p][4] - 1) * cal.pixelDepth;
-					for (final Point3f point : points) {
-						point.x += xOffset;
-						point.y += yOffset;
-						point.z += zOffset;
-					}
-					if (points.isEmpty()) {
-						IJ.log("Particle " + p + " resulted in 0 surface points");
-					} else {
-						surfacePoints.set(p, points);
+				try {
+					for (int p = ai.getAndIncrement(); p < nParticles && failure.get() == null; p = ai
+						.getAndIncrement()) {
+						final ImagePlus binaryImp = getBinaryParticle(p, imp, particleLabels, limits, resampling);
+						// noinspection TypeMayBeWeakened
+						final MCTriangulator mct = new MCTriangulator();
+						@SuppressWarnings("unchecked")
+						final List<Point3f> points = mct.getTriangles(binaryImp, 128, channels, resampling);
+
+						final double xOffset = (limits[p][0] - 1) * cal.pixelWidth;
+						final double yOffset = (limits[p][2] - 1) * cal.pixelHeight;
+						final double zOffset = (limits[p][4] - 1) * cal.pixelDepth;
+						for (final Point3f point : points) {
+							point.x += xOffset;
+							point.y += yOffset;
+							point.z += zOffset;
+						}
+						if (points.isEmpty()) {
+							IJ.log("Particle " + p + " resulted in 0 surface points");
+							continue;
+						}
+						final IndexedMesh mesh = IndexedMesh.weld(points);
+						for (final MeshConsumer consumer : consumers) {
+							consumer.accept(p, mesh);
+						}
 					}
 				}
+				catch (final RuntimeException e) {
+					// the exception would end only this thread, so keep it for the caller
+					failure.compareAndSet(null, e);
+				}
 			});
 		}
-		Multithreader.startAndJoin(threads);
-		
-		return surfacePoints;
+		Multithreader.startAndJoin(threads, pool);
+		if (failure.get() != null) {
+			throw failure.get();
+		}
 	}
 
 	/**
 	 * Calculate surface areas of the particles
 	 * 
-	 * @param surfacePoints list of surface points
+	 * @param surfaceMeshes list of surface meshes
 	 * @return list of surface areas
 	 */
-	static double[] getSurfaceAreas(final Collection<List<Point3f>> surfacePoints) {
-		return surfacePoints.parallelStream().mapToDouble(ParticleAnalysis::getSurfaceArea).toArray();
+	static double[] getSurfaceAreas(final Collection<IndexedMesh> surfaceMeshes) {
+		return surfaceMeshes.parallelStream().mapToDouble(m -> m == null ? 0 : m.getSurfaceArea()).toArray();
 	}
 
 	/**
-	 * Calculate surface area of the isosurface
-	 *
-	 * @param points in 3D triangle mesh
-	 * @return surface area
-	 */
-	private static double getSurfaceArea(final List<Point3f> points) {
-		if (points == null) {
-			return 0;
-		}
-		double sumArea = 0;
-		final int nPoints = points.size();
-		final Point3f origin = new Point3f(0.0f, 0.0f, 0.0f);
-		for (int n = 0; n < nPoints; n += 3) {
-			final Point3f cp = crossProduct(points.get(n), points.get(n + 1), points.get(n + 2));
-			final double deltaArea = 0.5 * cp.distance(origin);
-			sumArea += deltaArea;
-		}
-		return sumArea;
-	}
-
-	/**
-	 * Calculate volume contained within surface points
+	 * Calculate volume contained within surface meshes
 	 * 
-	 * @param surfacePoints list of surface points
+	 * @param surfaceMeshes list of surface meshes
 	 * @return  list of particle volumes
 	 */
-	static double[] getSurfaceVolume(final Collection<List<Point3f>> surfacePoints) {
-		return surfacePoints.parallelStream().mapToDouble(p -> {
-			if (p == null) {
-				return 0;
-			}
-			final CustomTriangleMesh mesh = new CustomTriangleMesh(p);
-			return Math.abs(mesh.getVolume());
-		}).toArray();
+	static double[] getSurfaceVolume(final Collection<IndexedMesh> surfaceMeshes) {
+		return surfaceMeshes.parallelStream().mapToDouble(m -> m == null ? 0 : Math.abs(m.getVolume())).toArray();
 	}
 
 	/**
-	 * Get the Feret diameter of a surface. Uses an inefficient brute-force
-	 * algorithm.
+	 * Get the maximum and minimum Feret diameters of each surface.
+	 * <p>
+	 * Only points near the convex hull can be the ends of the maximum Feret
+	 * diameter, so candidate points are found with the hull and the pairs among
+	 * them compared pair by pair. The diameter and end points match those of a
+	 * search over all the surface's point pairs exactly. The minimum Feret diameter is
+	 * the minimum width of the hull.
+	 * </p>
 	 *
-	 * @param surfacePoints points from a surface mesher
+	 * @param surfaceMeshes surface meshes
 	 * @return Feret diameters and x, y, z coordinates of the two feret points of each surface,
-	 * packed in a double so that the feret diameter of particle i is found at [i * 7] and the
-	 * points' coordinates are in the following 6 positions in ax, ay, az, bx, by, bz order.
+	 * packed in a double so that the feret diameter of particle i is found at [i * 8] and the
+	 * points' coordinates are in the following 6 positions in ax, ay, az, bx, by, bz order,
+	 * followed by the minimum Feret diameter.
 	 */
-	static double[][] getFerets(final List<List<Point3f>> surfacePoints) {
+	static double[][] getFerets(final List<IndexedMesh> surfaceMeshes) {
 		Thread[] threads = Multithreader.newThreads();
-		final int nSurfaces = surfacePoints.size();
-		//distance, xa, ya, za, xb, yb, zb
-		final double[][] ferets = new double[nSurfaces][7];
+		final int nSurfaces = surfaceMeshes.size();
+		//distance, xa, ya, za, xb, yb, zb, min
+		final double[][] ferets = new double[nSurfaces][8];
 		AtomicInteger ai = new AtomicInteger(0);
 		for (int thread = 0; thread < threads.length; thread++) {
 			threads[thread] = new Thread(() -> {
 				for (int i = ai.getAndIncrement(); i < nSurfaces; i = ai.getAndIncrement()) {
-					final List<Point3f> surface = surfacePoints.get(i);
-					
+					final IndexedMesh surface = surfaceMeshes.get(i);
 					
 					if (surface == null) {
 						Arrays.fill(ferets[i], Double.NaN);
 						continue;
 					}
 					
-					final int nPoints = surface.size();
-					
-					//4 triangles * 3 points for the minimal tetrahedron
-					if (nPoints < 12) {
-						Arrays.fill(ferets[i], Double.NaN);
-					}
-					
-					// check all the point pairs in this surface
-					Point3f feretA = new Point3f();
-					Point3f feretB = new Point3f();
-					double feret = 0;
-					for (int p = 0; p < nPoints; p++) {
-						Point3f a = surface.get(p);
-						for (int q = p + 1; q < nPoints; q++) {
-							Point3f b = surface.get(q);
-							final double distance = a.distance(b);
-							if (distance > feret) {
-								feret = distance;
-								feretA = a;
-								feretB = b;
-							}
-						}
-					}
-					ferets[i][0] = feret;
-					ferets[i][1] = feretA.x;
-					ferets[i][2] = feretA.y;
-					ferets[i][3] = feretA.z;
-					ferets[i][4] = feretB.x;
-					ferets[i][5] = feretB.y;
-					ferets[i][6] = feretB.z;
+					ferets[i] = getFeret(surface.getVertices());
 				}
 			});
 		}
@@ -1044,68 +935,152 @@ public class ParticleAnalysis {
 		return ferets;
 	}
 
+	/**
+	 * Get the maximum and minimum Feret diameters of a set of points, using
+	 * their convex hull.
+	 *
+	 * @param points surface points, possibly with repeats
+	 * @return Feret diameter, ax, ay, az, bx, by, bz and minimum Feret diameter
+	 */
+	static double[] getFeret(final List<Point3f> points) {
+		return getFeret(IndexedMesh.uniqueVertices(points));
+	}
+
+	/**
+	 * Get the maximum and minimum Feret diameters of a set of distinct points,
+	 * using their convex hull.
+	 *
+	 * @param vertices x, y, z coordinates of distinct points, such as the vertex
+	 *          buffer of an {@link IndexedMesh}
+	 * @return Feret diameter, ax, ay, az, bx, by, bz and minimum Feret diameter
+	 */
+	static double[] getFeret(final float[] vertices) {
+		final int nUnique = vertices.length / 3;
+		final double[] coords = new double[3 * nUnique];
+		for (int i = 0; i < coords.length; i++) {
+			coords[i] = vertices[i];
+		}
+		final ConvexHull hull = ConvexHull.build(coords);
+
+		// points which could be the ends of the longest chord, in surface order
+		final List<Point3f> candidates = new ArrayList<>();
+		if (hull == null) {
+			for (int u = 0; u < nUnique; u++)
+				candidates.add(new Point3f(vertices[3 * u], vertices[3 * u + 1], vertices[3 * u + 2]));
+		}
+		else {
+			final int[] hullVertices = hull.getVertices();
+			final int nVertices = hullVertices.length;
+			// squared distance from each vertex to the furthest other vertex
+			final double[] furthestSq = new double[nVertices];
+			double maxSq = 0;
+			for (int v = 0; v < nVertices; v++) {
+				for (int w = v + 1; w < nVertices; w++) {
+					final double dSq = distanceSq(coords, hullVertices[v], hullVertices[w]);
+					furthestSq[v] = Math.max(furthestSq[v], dSq);
+					furthestSq[w] = Math.max(furthestSq[w], dSq);
+				}
+				maxSq = Math.max(maxSq, furthestSq[v]);
+			}
+			// margin far wider than the rounding of float distances
+			final double threshold = Math.sqrt(maxSq) * (1 - FERET_TOLERANCE);
+			final double thresholdSq = threshold * threshold;
+
+			// a point is at most as far from a vertex as the vertex's furthest
+			// vertex, so only vertices with a long enough reach can be the other end
+			int nEnds = 0;
+			final int[] ends = new int[nVertices];
+			for (int v = 0; v < nVertices; v++) {
+				if (furthestSq[v] >= thresholdSq) ends[nEnds++] = hullVertices[v];
+			}
+			for (int u = 0; u < nUnique; u++) {
+				for (int e = 0; e < nEnds; e++) {
+					if (distanceSq(coords, u, ends[e]) >= thresholdSq) {
+						candidates.add(new Point3f(vertices[3 * u], vertices[3 * u + 1], vertices[3 * u + 2]));
+						break;
+					}
+				}
+			}
+		}
+
+		final double[] feret = getLongestChord(candidates);
+		feret[7] = hull == null ? 0 : hull.getMinWidth();
+		return feret;
+	}
+
+	/**
+	 * Find the longest chord between a set of candidate points by comparing all
+	 * their pairs, keeping the first pair found in list order on ties.
+	 *
+	 * @param points candidate points
+	 * @return length, ax, ay, az, bx, by, bz and an unset minimum Feret diameter
+	 */
+	private static double[] getLongestChord(final List<Point3f> points) {
+		final int nPoints = points.size();
+		Point3f feretA = new Point3f();
+		Point3f feretB = new Point3f();
+		double feret = 0;
+		for (int p = 0; p < nPoints; p++) {
+			Point3f a = points.get(p);
+			for (int q = p + 1; q < nPoints; q++) {
+				Point3f b = points.get(q);
+				final double distance = a.distance(b);
+				if (distance > feret) {
+					feret = distance;
+					feretA = a;
+					feretB = b;
+				}
+			}
+		}
+		return new double[] { feret, feretA.x, feretA.y, feretA.z, feretB.x, feretB.y, feretB.z, 0 };
+	}
+
+	private static double distanceSq(final double[] coords, final int i, final int j) {
+		final double dx = coords[3 * i] - coords[3 * j];
+		final double dy = coords[3 * i + 1] - coords[3 * j + 1];
+		final double dz = coords[3 * i + 2] - coords[3 * j + 2];
+		return dx * dx + dy * dy + dz * dz;
+	}
+
 	/**
 	 * Get the list of best-fit ellipsoids for the particle surfaces
 	 * 
-	 * @param surfacePoints list of surface points
+	 * @param surfaceMeshes list of surface meshes
 	 * @return Object[] array containing the list of ellipsoids, each of which is
 	 *         also stored as an Object[] array (see FitEllipsoid.yuryPetrov() for
 	 *         details). Note that an Object[] is also an Object so there is no need
 	 *         to make a 2D array (i.e. Object[][]). However, client code must
 	 *         unwrap the ellipsoid elements into arrays by casting to Object[].
 	 */
-	static Object[] getEllipsoids(final Collection<List<Point3f>> surfacePoints) {
-		return surfacePoints.parallelStream().map(surface -> {
-
-			if (surface == null)
-				return null;
-
-			final Iterator<Point3f> pointIter = surface.iterator();
-			final double[][] coOrdinates = new double[surface.size()][3];
-			int i = 0;
-			while (pointIter.hasNext()) {
-				final Point3f point = pointIter.next();
-				coOrdinates[i][0] = point.x;
-				coOrdinates[i][1] = point.y;
-				coOrdinates[i][2] = point.z;
-				i++;
-			}
-
-			Object[] ellipsoid = null;
-			try {
-				ellipsoid = FitEllipsoid.yuryPetrov(coOrdinates);
-			} catch (final IllegalArgumentException re) {
-				IJ.log("Could not fit ellipsoid to particle: "+re.getMessage());
-			} catch (final Exception e) {
-				IJ.log("Could not fit ellipsoid to particle: "+e.getMessage());
-			}
-			return ellipsoid;
-		}).toArray();
+	static Object[] getEllipsoids(final Collection<IndexedMesh> surfaceMeshes) {
+		return surfaceMeshes.parallelStream().map(surface -> surface == null ? null : getEllipsoid(surface))
+			.toArray();
 	}
-	
+
 	/**
-	 * Calculate the cross product of 3 Point3f's, which describe two vectors
-	 * joined at the tails. Can be used to find the plane / surface normal of a
-	 * triangle. Half of its magnitude is the area of the triangle.
+	 * Fit an ellipsoid to a particle surface
 	 *
-	 * @param point0 both vectors' tails
-	 * @param point1 vector 1's head
-	 * @param point2 vector 2's head
-	 * @return cross product vector
+	 * @param surface surface mesh
+	 * @return the ellipsoid as returned by FitEllipsoid.yuryPetrov(), or null if
+	 *         no ellipsoid could be fitted
 	 */
-	private static Point3f crossProduct(final Point3f point0,
-		final Point3f point1, final Point3f point2)
-	{
-		final double x1 = point1.x - point0.x;
-		final double y1 = point1.y - point0.y;
-		final double z1 = point1.z - point0.z;
-		final double x2 = point2.x - point0.x;
-		final double y2 = point2.y - point0.y;
-		final double z2 = point2.z - point0.z;
-		final Point3f crossVector = new Point3f();
-		crossVector.x = (float) (y1 * z2 - z1 * y2);
-		crossVector.y = (float) (z1 * x2 - x1 * z2);
-		crossVector.z = (float) (x1 * y2 - y1 * x2);
-		return crossVector;
+	static Object[] getEllipsoid(final IndexedMesh surface) {
+		// fit to every triangle corner, as the mesher listed them, streaming
+		// the points into the normal equations
+		final float[] vertices = surface.getVertices();
+		final FitEllipsoid.Accumulator accumulator = new FitEllipsoid.Accumulator();
+		for (final int v : surface.getTriangles()) {
+			accumulator.add(vertices[3 * v], vertices[3 * v + 1], vertices[3 * v + 2]);
+		}
+
+		Object[] ellipsoid = null;
+		try {
+			ellipsoid = FitEllipsoid.yuryPetrov(accumulator);
+		} catch (final IllegalArgumentException re) {
+			IJ.log("Could not fit ellipsoid to particle: "+re.getMessage());
+		} catch (final Exception e) {
+			IJ.log("Could not fit ellipsoid to particle: "+e.getMessage());
+		}
+		return ellipsoid;
 	}
 }
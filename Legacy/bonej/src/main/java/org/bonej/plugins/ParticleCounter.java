@@ -55,22 +55,24 @@ import java.awt.AWTEvent;
 import java.awt.Checkbox;
 import java.awt.Choice;
 import java.awt.TextField;
+import java.io.File;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 import org.bonej.menuWrappers.ThicknessHelper;
 import org.bonej.util.DialogModifier;
 import org.bonej.util.ImageCheck;
-import org.scijava.vecmath.Point3f;
 
 import Jama.EigenvalueDecomposition;
 
 import ij.IJ;
 import ij.ImagePlus;
+import ij.Prefs;
 import ij.gui.DialogListener;
 import ij.gui.GenericDialog;
 import ij.measure.Calibration;
-import ij.measure.ResultsTable;
 import ij.plugin.PlugIn;
 import ij3d.Image3DUniverse;
 import sc.fiji.analyzeSkeleton.SkeletonResult;
@@ -165,7 +167,7 @@ public class ParticleCounter implements PlugIn, DialogListener {
 		gd.addNumericField("Min Volume", 0, 3, 7, units + "³");
 		gd.addNumericField("Max Volume", Double.POSITIVE_INFINITY, 3, 7, units +
 			"³");
-		gd.addNumericField("Surface_resampling", 2, 0);
+		gd.addNumericField("Surface_resampling", 2, 0, 3, "(1: area & volume without meshes)");
 		final String[] headers2 = { "Graphical Results", " " };
 		final String[] labels2 = new String[10];
 		final boolean[] defaultValues2 = new boolean[10];
@@ -194,27 +196,30 @@ public class ParticleCounter implements PlugIn, DialogListener {
 		gd.addChoice("Surface colours", items, items[0]);
 		gd.addNumericField("Split value", 0, 3, 7, units + "³");
 		gd.addNumericField("Volume_resampling", 2, 0);
+		gd.addCheckbox("Wide_labels", false);
+		gd.addCheckbox("Virtual_label_stacks", false);
 		gd.addHelp("https://imagej.net/BoneJ#Particle_Analyser");
 		gd.addDialogListener(this);
 		gd.showDialog();
 		if (gd.wasCanceled()) {
 			return;
 		}
-		final double minVol = gd.getNextNumber();
-		final double maxVol = gd.getNextNumber();
-		final boolean doExclude = gd.getNextBoolean();
-		final boolean doSurfaceArea = gd.getNextBoolean();
-		final boolean doFeret = gd.getNextBoolean();
-		final boolean doSurfaceVolume = gd.getNextBoolean();
-		final int resampling = (int) Math.floor(gd.getNextNumber());
-		final boolean doMoments = gd.getNextBoolean();
-		final boolean doEulerCharacters = gd.getNextBoolean();
-		final boolean doThickness = gd.getNextBoolean();
-		final boolean doMask = gd.getNextBoolean();
-		final boolean doEllipsoids = gd.getNextBoolean();
-		final boolean doVerboseUnitVectors = gd.getNextBoolean();
-		final boolean doSkeletons = gd.getNextBoolean();
-		final boolean doAlignedBoxes = gd.getNextBoolean();
+		final Options options = new Options();
+		options.minVolume = gd.getNextNumber();
+		options.maxVolume = gd.getNextNumber();
+		options.excludeOnSides = gd.getNextBoolean();
+		options.surfaceArea = gd.getNextBoolean();
+		options.feret = gd.getNextBoolean();
+		options.enclosedVolume = gd.getNextBoolean();
+		options.surfaceResampling = (int) Math.floor(gd.getNextNumber());
+		options.moments = gd.getNextBoolean();
+		options.eulerCharacteristic = gd.getNextBoolean();
+		options.thickness = gd.getNextBoolean();
+		options.maskThickness = gd.getNextBoolean();
+		options.ellipsoids = gd.getNextBoolean();
+		options.unitVectors = gd.getNextBoolean();
+		options.skeletons = gd.getNextBoolean();
+		options.alignedBoxes = gd.getNextBoolean();
 		final boolean doParticleImage = gd.getNextBoolean();
 		final boolean doParticleSizeImage = gd.getNextBoolean();
 		final boolean doThickImage = gd.getNextBoolean();
@@ -228,206 +233,68 @@ public class ParticleCounter implements PlugIn, DialogListener {
 		final boolean doEllipsoidStack = gd.getNextBoolean();
 		final boolean doAlignedBoxesImage = gd.getNextBoolean();
 		final int origResampling = (int) Math.floor(gd.getNextNumber());
+		final boolean doWideLabels = gd.getNextBoolean();
+		final boolean virtualStacks = gd.getNextBoolean();
+		// keep what the displays need
+		options.keepSurfaceMeshes = doSurfaceImage;
+		options.keepEigens = doAxesImage || colourMode == ParticleDisplay.ORIENTATION ||
+			doAlignedBoxesImage;
+		options.keepAlignedBoxes = doAlignedBoxesImage;
+		options.keepEllipsoids = doEllipsoidImage || doEllipsoidStack;
+		options.keepThicknessImage = doThickImage;
 
-		// get the particles and do the analysis
-		final long start = System.nanoTime();
-		ConnectedComponents connector = new ConnectedComponents();
-		final Object[] result = getParticles(connector, imp, minVol, maxVol,
-				ConnectedComponents.FORE, doExclude);
-		// calculate particle labelling time in ms
-		final long time = (System.nanoTime() - start) / 1000000;
-		IJ.log("Particle labelling finished in " + time + " ms");
-		
-		//start of analysis
-		final int[][] particleLabels = (int[][]) result[1];
-		final long[] particleSizes = (long[]) result[2];
+		final ParticleMeasurements measurements;
+		try {
+			measurements = measure(imp, options);
+		}
+		catch (final UncheckedIOException e) {
+			IJ.error("Could not write STL files: " + e.getCause().getMessage());
+			return;
+		}
+		final int[][] particleLabels = measurements.getParticleLabels();
+		final long[] particleSizes = measurements.getParticleSizes();
+		final double[] volumes = measurements.getVolumes();
 		final int nParticles = particleSizes.length;
-		
-		if (nParticles > ConnectedComponents.MAX_FINAL_LABEL)
-			IJ.log("Number of particles ("+nParticles+") exceeds the accurate display range (2^23) of the 32-bit float particle image");
 
-		final double[] volumes = ParticleAnalysis.getVolumes(imp, particleSizes);
-		
-		final Object[] boxes = ParticleAnalysis.getBoundingBoxes(imp, particleLabels, particleSizes);
-		
-		final double[][] centroids = (double[][]) boxes[0];
-		final int[][] limits = (int[][]) boxes[1];
+		final boolean wideLabels = doWideLabels || nParticles > ConnectedComponents.MAX_FINAL_LABEL;
+		if (wideLabels && !doWideLabels && doParticleImage)
+			IJ.log("Number of particles ("+nParticles+") exceeds the accurate display range (2^23) of the 32-bit float particle image, "
+				+ "showing wide labels instead");
 
-		EigenvalueDecomposition[] eigens = new EigenvalueDecomposition[nParticles];
-		if (doMoments || doAxesImage || colourMode == ParticleDisplay.ORIENTATION || doAlignedBoxes || doAlignedBoxesImage) {
-			eigens = ParticleAnalysis.getEigens(imp, particleLabels, centroids);
-		}
-		
-		double[][] alignedBoxes = new double[nParticles][6];
-		if (doAlignedBoxes || doAlignedBoxesImage) {
-			alignedBoxes = ParticleAnalysis.getAxisAlignedBoundingBoxes(imp, particleLabels, eigens, nParticles);
-		}
-		
-		// set up resources for analysis
-		List<List<Point3f>> surfacePoints = new ArrayList<>();
-		if (doSurfaceArea || doSurfaceVolume || doSurfaceImage || doEllipsoids ||
-			doFeret || doEllipsoidStack)
-		{
-			surfacePoints = ParticleAnalysis.getSurfacePoints(imp, particleLabels, limits, resampling, nParticles);
-		}
-		// calculate dimensions
-		double[] surfaceAreas = new double[nParticles];
-		if (doSurfaceArea) {
-			surfaceAreas = ParticleAnalysis.getSurfaceAreas(surfacePoints);
-		}
-		double[][] ferets = new double[nParticles][7];
-		if (doFeret) {
-			ferets = ParticleAnalysis.getFerets(surfacePoints);
-		}
-		double[] surfaceVolumes = new double[nParticles];
-		if (doSurfaceVolume) {
-			surfaceVolumes = ParticleAnalysis.getSurfaceVolume(surfacePoints);
-		}
-		double[][] eulerCharacters = new double[nParticles][3];
-		if (doEulerCharacters) {
-			eulerCharacters = ParticleAnalysis.getEulerCharacter(imp, particleLabels, limits, nParticles);
-		}
-		double[][] thick = new double[nParticles][2];
-		if (doThickness) {
-			final ImagePlus thickImp = ThicknessHelper.getLocalThickness(imp, false, doMask);
-			thick = ParticleAnalysis.getMeanStdDev(thickImp, particleLabels, particleSizes);
-			if (doThickImage) {
-				double max = 0;
-				for (int i = 1; i < nParticles; i++) {
-					max = Math.max(max, thick[i][2]);
-				}
-				thickImp.getProcessor().setMinAndMax(0, max);
-				thickImp.setTitle(imp.getShortTitle() + "_thickness");
-				thickImp.show();
-				thickImp.setSlice(1);
-				IJ.run("Fire");
+		final double[][] centroids = measurements.getResult("centroids", null);
+		final EigenvalueDecomposition[] eigens = measurements.getResult("eigens",
+			new EigenvalueDecomposition[nParticles]);
+		final double[][] alignedBoxes = measurements.getResult("aligned boxes", new double[nParticles][6]);
+		final List<IndexedMesh> surfaceMeshes = measurements.getResult("surface meshes", new ArrayList<>());
+		final double[][] ferets = measurements.getResult("ferets", new double[nParticles][8]);
+		final Object[] ellipsoids = measurements.getResult("ellipsoids", new Object[nParticles][10]);
+		if (options.thickness && doThickImage) {
+			final double[][] thick = measurements.getResult("thickness", null);
+			final ImagePlus thickImp = measurements.getResult("local thickness", null);
+			double max = 0;
+			for (int i = 1; i < nParticles; i++) {
+				max = Math.max(max, thick[i][2]);
 			}
-		}
-		Object[] ellipsoids = new Object[nParticles][10];
-		if (doEllipsoids || doEllipsoidImage || doEllipsoidStack) {
-			ellipsoids = ParticleAnalysis.getEllipsoids(surfacePoints);
-		}
-		SkeletonResult[] skeletonResults = null;
-		if (doSkeletons) {
-			skeletonResults = ParticleAnalysis.getBranchLength(imp, particleLabels, limits, nParticles);
+			thickImp.getProcessor().setMinAndMax(0, max);
+			thickImp.setTitle(imp.getShortTitle() + "_thickness");
+			thickImp.show();
+			thickImp.setSlice(1);
+			IJ.run("Fire");
 		}
 
 		// Show numerical results
-		final ResultsTable rt = new ResultsTable();
-		for (int i = 1; i < volumes.length; i++) {
-			if (volumes[i] > 0) {
-				rt.incrementCounter();
-				rt.addLabel(imp.getTitle());
-				rt.addValue("ID", i);
-				rt.addValue("Vol. (" + units + "³)", volumes[i]);
-				rt.addValue("x Cent (" + units + ")", centroids[i][0]);
-				rt.addValue("y Cent (" + units + ")", centroids[i][1]);
-				rt.addValue("z Cent (" + units + ")", centroids[i][2]);
-				if (doAlignedBoxes) {
-					rt.addValue("Box x (" + units + ")", alignedBoxes[i][0]);
-					rt.addValue("Box y (" + units + ")", alignedBoxes[i][1]);
-					rt.addValue("Box z (" + units + ")", alignedBoxes[i][2]);
-					rt.addValue("Box l0 (" + units + ")", alignedBoxes[i][3]);
-					rt.addValue("Box l1 (" + units + ")", alignedBoxes[i][4]);
-					rt.addValue("Box l2 (" + units + ")", alignedBoxes[i][5]);
-				}
-				if (doSurfaceArea) {
-					rt.addValue("SA (" + units + "²)", surfaceAreas[i]);
-				}
-				if (doFeret) {
-					rt.addValue("Feret (" + units + ")", ferets[i][0]);
-					rt.addValue("FeretAx (" + units + ")", ferets[i][1]);
-					rt.addValue("FeretAy (" + units + ")", ferets[i][2]);
-					rt.addValue("FeretAz (" + units + ")", ferets[i][3]);
-					rt.addValue("FeretBx (" + units + ")", ferets[i][4]);
-					rt.addValue("FeretBy (" + units + ")", ferets[i][5]);
-					rt.addValue("FeretBz (" + units + ")", ferets[i][6]);
-				}
-				if (doSurfaceVolume) {
-					rt.addValue("Encl. Vol. (" + units + "³)", surfaceVolumes[i]);
-				}
-				if (doMoments) {
-					final EigenvalueDecomposition E = eigens[i];
-					rt.addValue("I1", E.getD().get(2, 2));
-					rt.addValue("I2", E.getD().get(1, 1));
-					rt.addValue("I3", E.getD().get(0, 0));
-					rt.addValue("vX", E.getV().get(0, 0));
-					rt.addValue("vY", E.getV().get(1, 0));
-					rt.addValue("vZ", E.getV().get(2, 0));
-					if (doVerboseUnitVectors) {
-						rt.addValue("vX1", E.getV().get(0, 1));
-						rt.addValue("vY1", E.getV().get(1, 1));
-						rt.addValue("vZ1", E.getV().get(2, 1));
-						rt.addValue("vX2", E.getV().get(0, 2));
-						rt.addValue("vY2", E.getV().get(1, 2));
-						rt.addValue("vZ2", E.getV().get(2, 2));
-					}
-				}
-				if (doSkeletons) {
-					int nBranches = 0;
-					double branchesLength = Double.NaN;
-					final SkeletonResult skeletonResult = skeletonResults[i];
-					if (skeletonResult.getNumOfTrees() == 0) {
-						IJ.log("No skeleton found for particle "+i);
-					} else {
-					    nBranches = skeletonResults[i].getBranches()[0];
-					    branchesLength = skeletonResults[i].getAverageBranchLength()[0]
-					    		* nBranches;
-					}
-					rt.addValue("n Branches", nBranches);
-					rt.addValue("Branches length ("+units+")", branchesLength);
-				}
-				if (doEulerCharacters) {
-					rt.addValue("Euler (χ)", eulerCharacters[i][0]);
-					rt.addValue("Holes (β1)", eulerCharacters[i][1]);
-					rt.addValue("Cavities (β2)", eulerCharacters[i][2]);
-				}
-				if (doThickness) {
-					rt.addValue("Thickness (" + units + ")", thick[i][0]);
-					rt.addValue("SD Thickness (" + units + ")", thick[i][1]);
-					rt.addValue("Max Thickness (" + units + ")", thick[i][2]);
-				}
-				if (doEllipsoids) {
-					final double[] rad;
-					final double[][] unitV;
-					if (ellipsoids[i] == null) {
-						rad = new double[] { Double.NaN, Double.NaN, Double.NaN };
-						unitV = new double[][] { { Double.NaN, Double.NaN, Double.NaN }, {
-							Double.NaN, Double.NaN, Double.NaN }, { Double.NaN, Double.NaN,
-								Double.NaN } };
-					}
-					else {
-						final Object[] el = (Object[]) ellipsoids[i];
-						rad = (double[]) el[1];
-						unitV = (double[][]) el[2];
-					}
-					rt.addValue("Major radius (" + units + ")", rad[0]);
-					rt.addValue("Int. radius (" + units + ")", rad[1]);
-					rt.addValue("Minor radius (" + units + ")", rad[2]);
-					if (doVerboseUnitVectors) {
-						rt.addValue("V00", unitV[0][0]);
-						rt.addValue("V01", unitV[0][1]);
-						rt.addValue("V02", unitV[0][2]);
-						rt.addValue("V10", unitV[1][0]);
-						rt.addValue("V11", unitV[1][1]);
-						rt.addValue("V12", unitV[1][2]);
-						rt.addValue("V20", unitV[2][0]);
-						rt.addValue("V21", unitV[2][1]);
-						rt.addValue("V22", unitV[2][2]);
-					}
-				}
-				rt.updateResults();
-			}
-		}
-		rt.show("Results");
+		measurements.toResultsTable().show("Results");
 
 		// Show resulting image stacks
-		if (doParticleImage) {
-			ParticleDisplay.displayParticleLabels(particleLabels, imp).show();
+		if (doParticleImage && wideLabels) {
+			ParticleDisplay.displayWideParticleLabels(particleLabels, imp).show();
+		}
+		else if (doParticleImage) {
+			ParticleDisplay.displayParticleLabels(particleLabels, imp, virtualStacks).show();
 			IJ.run("3-3-2 RGB");
 		}
 		if (doParticleSizeImage) {
-			ParticleDisplay.displayParticleValues(imp, particleLabels, volumes).show();
+			ParticleDisplay.displayParticleValues(imp, particleLabels, volumes, virtualStacks).show();
 			IJ.run("Fire");
 		}
 		if (doEllipsoidStack) {
@@ -441,7 +308,7 @@ public class ParticleCounter implements PlugIn, DialogListener {
 
 			final Image3DUniverse univ = new Image3DUniverse();
 			if (doSurfaceImage) {
-				ParticleDisplay.displayParticleSurfaces(univ, surfacePoints, colourMode, volumes,
+				ParticleDisplay.displayParticleSurfaces(univ, surfaceMeshes, colourMode, volumes,
 					splitValue, eigens);
 			}
 			if (doCentroidImage) {
@@ -449,7 +316,7 @@ public class ParticleCounter implements PlugIn, DialogListener {
 			}
 			if (doAxesImage) {
 				ParticleDisplay.displayPrincipalAxes(univ, eigens, centroids, particleSizes);
-				if (doFeret) {
+				if (options.feret) {
 					ParticleDisplay.displayMaxFeret(univ, ferets);
 				}
 			}
@@ -473,6 +340,277 @@ public class ParticleCounter implements PlugIn, DialogListener {
 		UsageReporter.reportEvent(this).send();
 	}
 	
+	/**
+	 * Label and measure the particles of a binary image without any dialogs,
+	 * tables or displays, for use from scripts and headless batch processing.
+	 * Independent measurements run at the same time on {@link Prefs#getThreads()}
+	 * threads.
+	 *
+	 * @param imp binary image
+	 * @param options which particles to keep and what to measure
+	 * @return measurements of the particles, a column per measurement
+	 * @throws IllegalArgumentException if the image is not binary
+	 * @throws UncheckedIOException if surfaces can't be written as STL files
+	 */
+	public ParticleMeasurements measure(final ImagePlus imp,
+		final Options options)
+	{
+		if (!ImageCheck.isBinary(imp)) {
+			throw new IllegalArgumentException("Binary image required");
+		}
+		final Calibration cal = imp.getCalibration();
+
+		// get the particles and do the analysis
+		final long start = System.nanoTime();
+		final ConnectedComponents connector = new ConnectedComponents();
+		final Object[] result = getParticles(connector, imp, options.minVolume,
+			options.maxVolume, ConnectedComponents.FORE, options.excludeOnSides);
+		// calculate particle labelling time in ms
+		final long time = (System.nanoTime() - start) / 1000000;
+		IJ.log("Particle labelling finished in " + time + " ms");
+
+		//start of analysis
+		final int[][] particleLabels = (int[][]) result[1];
+		final long[] particleSizes = (long[]) result[2];
+		final int nParticles = particleSizes.length;
+		final double[] volumes = ParticleAnalysis.getVolumes(imp, particleSizes);
+
+		// set up the measurements as a graph, so that independent ones (e.g.
+		// thickness and surface meshing) run at the same time and intermediates
+		// are dropped when no longer needed
+		// meshes are only needed to display or export surfaces, for Ferets and
+		// ellipsoids, and for resampled surfaces; otherwise area and volume come
+		// from a single marching cubes pass without meshes. That pass applies
+		// only at a surface resampling of 1: resampled meshes are interpolated
+		// from averaged voxels, which SurfaceEstimator cannot tabulate, and
+		// measuring at 1 instead would change the results of the default of 2
+		final boolean doEllipsoids = options.ellipsoids || options.keepEllipsoids;
+		final boolean doAlignedBoxes = options.alignedBoxes || options.keepAlignedBoxes;
+		final boolean doSurfaces = options.surfaceArea || options.enclosedVolume;
+		final boolean exportStl = options.stlDirectory != null;
+		final boolean needMeshes = options.keepSurfaceMeshes || doEllipsoids || options.feret || exportStl;
+		final boolean meshFree = !needMeshes && options.surfaceResampling == 1;
+		final MeasurementGraph graph = new MeasurementGraph();
+		// counts, centroids, limits and moments in one pass
+		graph.add("statistics", r -> ParticleStatistics.accumulate(imp, particleLabels, nParticles, null, r.pool()));
+		graph.add("centroids", r -> r.<ParticleStatistics> get("statistics").getCentroids(cal), "statistics");
+		graph.keep("centroids");
+		if (options.moments || options.keepEigens || doAlignedBoxes) {
+			graph.add("eigens", r -> r.<ParticleStatistics> get("statistics").getEigens(cal), "statistics");
+			graph.keep("eigens");
+		}
+		if (doAlignedBoxes) {
+			graph.add("aligned boxes", r -> ParticleAnalysis.getAxisAlignedBoundingBoxes(imp, particleLabels, r
+				.<EigenvalueDecomposition[]> get("eigens"), nParticles, r.pool()), "eigens");
+			graph.keep("aligned boxes");
+		}
+		if (needMeshes || (!meshFree && doSurfaces)) {
+			// measure each mesh as it is made and drop it unless it is displayed
+			graph.add("mesh measurements", r -> {
+				final MeshMeasurements meshMeasurements = new MeshMeasurements(nParticles, options.surfaceArea,
+					options.enclosedVolume, options.feret, doEllipsoids, options.keepSurfaceMeshes);
+				final MeshConsumer[] consumers = exportStl ? new MeshConsumer[] { meshMeasurements,
+					new StlWriter(options.stlDirectory, imp.getShortTitle()) } : new MeshConsumer[] {
+						meshMeasurements };
+				ParticleAnalysis.streamSurfaceMeshes(imp, particleLabels, r.<ParticleStatistics> get(
+					"statistics").getLimits(), options.surfaceResampling, nParticles, r.pool(), consumers);
+				return meshMeasurements;
+			}, "statistics");
+			if (options.keepSurfaceMeshes) {
+				graph.add("surface meshes", r -> r.<MeshMeasurements> get("mesh measurements").getMeshes(),
+					"mesh measurements");
+				graph.keep("surface meshes");
+			}
+		}
+		if (meshFree && doSurfaces) {
+			graph.add("mesh-free surfaces", r -> SurfaceEstimator.getAreasAndVolumes(imp, particleLabels,
+				nParticles, r.pool()));
+		}
+		if (options.surfaceArea) {
+			if (meshFree)
+				graph.add("surface areas", r -> r.<double[][]> get("mesh-free surfaces")[0], "mesh-free surfaces");
+			else
+				graph.add("surface areas", r -> r.<MeshMeasurements> get("mesh measurements").getSurfaceAreas(),
+					"mesh measurements");
+			graph.keep("surface areas");
+		}
+		if (options.feret) {
+			graph.add("ferets", r -> r.<MeshMeasurements> get("mesh measurements").getFerets(),
+				"mesh measurements");
+			graph.keep("ferets");
+		}
+		if (options.enclosedVolume) {
+			if (meshFree)
+				graph.add("surface volumes", r -> r.<double[][]> get("mesh-free surfaces")[1],
+					"mesh-free surfaces");
+			else
+				graph.add("surface volumes", r -> r.<MeshMeasurements> get("mesh measurements")
+					.getSurfaceVolumes(), "mesh measurements");
+			graph.keep("surface volumes");
+		}
+		if (options.eulerCharacteristic) {
+			graph.add("euler characters", r -> ParticleAnalysis.getEulerCharacter(imp, particleLabels, r
+				.<ParticleStatistics> get("statistics").getLimits(), nParticles, r.pool()), "statistics");
+			graph.keep("euler characters");
+		}
+		if (options.thickness) {
+			graph.add("local thickness", r -> ThicknessHelper.getLocalThickness(imp, false,
+				options.maskThickness));
+			graph.add("thickness", r -> ParticleStatistics.accumulateIntensities(imp, particleLabels,
+				nParticles, r.get("local thickness"), r.pool()).getMeanStdDev(), "local thickness");
+			graph.keep("thickness");
+			if (options.keepThicknessImage) graph.keep("local thickness");
+		}
+		if (doEllipsoids) {
+			graph.add("ellipsoids", r -> r.<MeshMeasurements> get("mesh measurements").getEllipsoids(),
+				"mesh measurements");
+			graph.keep("ellipsoids");
+		}
+		if (options.skeletons) {
+			graph.add("skeletons", r -> ParticleAnalysis.getBranchLength(imp, particleLabels, r
+				.<ParticleStatistics> get("statistics").getLimits(), particleSizes, nParticles, r.pool()), "statistics");
+			graph.keep("skeletons");
+		}
+		final ForkJoinPool pool = new ForkJoinPool(Prefs.getThreads());
+		final MeasurementGraph.Results results;
+		try {
+			results = graph.run(pool);
+		}
+		finally {
+			pool.shutdown();
+		}
+		if (IJ.debugMode) graph.logTimes();
+
+		final ParticleMeasurements measurements = new ParticleMeasurements(imp
+			.getTitle(), particleLabels, particleSizes, volumes, results);
+		addColumns(measurements, results, volumes, options, cal.getUnits());
+		return measurements;
+	}
+
+	/**
+	 * Add the chosen measurements to the results as columns, in the order of
+	 * the results table
+	 *
+	 * @param measurements results to add the columns to
+	 * @param results kept results of the measurement stages
+	 * @param volumes volume of each particle
+	 * @param options the chosen measurements
+	 * @param units calibration units, for the column headings
+	 */
+	private static void addColumns(final ParticleMeasurements measurements,
+		final MeasurementGraph.Results results, final double[] volumes,
+		final Options options, final String units)
+	{
+		measurements.addColumn("Vol. (" + units + "³)", i -> volumes[i]);
+		final double[][] centroids = results.get("centroids");
+		final String[] axes = { "x", "y", "z" };
+		for (int k = 0; k < 3; k++) {
+			final int c = k;
+			measurements.addColumn(axes[k] + " Cent (" + units + ")",
+				i -> centroids[i][c]);
+		}
+		if (options.alignedBoxes) {
+			final double[][] alignedBoxes = results.get("aligned boxes");
+			final String[] boxHeadings = { "x", "y", "z", "l0", "l1", "l2" };
+			for (int k = 0; k < 6; k++) {
+				final int c = k;
+				measurements.addColumn("Box " + boxHeadings[k] + " (" + units + ")",
+					i -> alignedBoxes[i][c]);
+			}
+		}
+		if (options.surfaceArea) {
+			final double[] surfaceAreas = results.get("surface areas");
+			measurements.addColumn("SA (" + units + "²)", i -> surfaceAreas[i]);
+		}
+		if (options.feret) {
+			final double[][] ferets = results.get("ferets");
+			final String[] feretHeadings = { "Feret", "FeretAx", "FeretAy", "FeretAz",
+				"FeretBx", "FeretBy", "FeretBz" };
+			for (int k = 0; k < 7; k++) {
+				final int c = k;
+				measurements.addColumn(feretHeadings[k] + " (" + units + ")",
+					i -> ferets[i][c]);
+			}
+		}
+		if (options.enclosedVolume) {
+			final double[] surfaceVolumes = results.get("surface volumes");
+			measurements.addColumn("Encl. Vol. (" + units + "³)",
+				i -> surfaceVolumes[i]);
+		}
+		if (options.moments) {
+			final EigenvalueDecomposition[] eigens = results.get("eigens");
+			measurements.addColumn("I1", i -> eigens[i].getD().get(2, 2));
+			measurements.addColumn("I2", i -> eigens[i].getD().get(1, 1));
+			measurements.addColumn("I3", i -> eigens[i].getD().get(0, 0));
+			final int nVectors = options.unitVectors ? 3 : 1;
+			for (int v = 0; v < nVectors; v++) {
+				final int col = v;
+				final String suffix = v == 0 ? "" : String.valueOf(v);
+				for (int k = 0; k < 3; k++) {
+					final int row = k;
+					measurements.addColumn("v" + axes[k].toUpperCase() + suffix,
+						i -> eigens[i].getV().get(row, col));
+				}
+			}
+		}
+		if (options.skeletons) {
+			final SkeletonResult[] skeletonResults = results.get("skeletons");
+			final int[] ids = measurements.getIds();
+			final double[] branches = new double[volumes.length];
+			final double[] branchesLength = new double[volumes.length];
+			for (final int i : ids) {
+				final SkeletonResult skeletonResult = skeletonResults[i];
+				if (skeletonResult.getNumOfTrees() == 0) {
+					IJ.log("No skeleton found for particle " + i);
+					branchesLength[i] = Double.NaN;
+				}
+				else {
+					branches[i] = skeletonResult.getBranches()[0];
+					branchesLength[i] = skeletonResult.getAverageBranchLength()[0] *
+						branches[i];
+				}
+			}
+			measurements.addColumn("n Branches", i -> branches[i]);
+			measurements.addColumn("Branches length (" + units + ")",
+				i -> branchesLength[i]);
+		}
+		if (options.eulerCharacteristic) {
+			final double[][] eulerCharacters = results.get("euler characters");
+			measurements.addColumn("Euler (χ)", i -> eulerCharacters[i][0]);
+			measurements.addColumn("Holes (β1)", i -> eulerCharacters[i][1]);
+			measurements.addColumn("Cavities (β2)", i -> eulerCharacters[i][2]);
+		}
+		if (options.thickness) {
+			final double[][] thick = results.get("thickness");
+			measurements.addColumn("Thickness (" + units + ")", i -> thick[i][0]);
+			measurements.addColumn("SD Thickness (" + units + ")", i -> thick[i][1]);
+			measurements.addColumn("Max Thickness (" + units + ")", i -> thick[i][2]);
+		}
+		if (options.ellipsoids) {
+			final Object[] ellipsoids = results.get("ellipsoids");
+			final String[] radii = { "Major radius", "Int. radius", "Minor radius" };
+			for (int k = 0; k < 3; k++) {
+				final int c = k;
+				measurements.addColumn(radii[k] + " (" + units + ")",
+					i -> ellipsoids[i] == null ? Double.NaN
+						: ((double[]) ((Object[]) ellipsoids[i])[1])[c]);
+			}
+			if (options.unitVectors) {
+				for (int k = 0; k < 9; k++) {
+					final int row = k / 3;
+					final int col = k % 3;
+					measurements.addColumn("V" + row + col, i -> ellipsoids[i] == null
+						? Double.NaN : ((double[][]) ((Object[]) ellipsoids[i])[2])[row][col]);
+				}
+			}
+		}
+		// last, so the columns of existing tables keep their positions
+		if (options.feret) {
+			final double[][] ferets = results.get("ferets");
+			measurements.addColumn("Min Feret (" + units + ")", i -> ferets[i][7]);
+		}
+	}
+
 	/**
 	 * Get particles, particle labels and particle sizes from a 3D ImagePlus
 	 * 
@@ -522,6 +660,75 @@ public class ParticleCounter implements PlugIn, DialogListener {
 		
 		return new Object[] { workArray, particleLabels, particleSizes };
 	}
-}
 
+	/**
+	 * Options of {@link #measure}, which default to those of the setup dialog
+	 */
+	public static final class Options {
+
+		/** minimum volume of a particle to measure, in calibrated units */
+		public double minVolume = 0;
+
+		/** maximum volume of a particle to measure, in calibrated units */
+		public double maxVolume = Double.POSITIVE_INFINITY;
+
+		/** exclude particles that touch the sides of the image */
+		public boolean excludeOnSides = false;
 
+		/** measure surface area */
+		public boolean surfaceArea = true;
+
+		/**
+		 * measure the maximum Feret diameter and its end points, and add the
+		 * minimum Feret diameter as the last column of the results table
+		 */
+		public boolean feret = false;
+
+		/** measure the volume enclosed by the surface */
+		public boolean enclosedVolume = true;
+
+		/** measure moments of inertia and principal axes */
+		public boolean moments = true;
+
+		/** measure Euler characteristic, holes and cavities */
+		public boolean eulerCharacteristic = true;
+
+		/** measure local thickness */
+		public boolean thickness = true;
+
+		/** mask the thickness map with the particles */
+		public boolean maskThickness = false;
+
+		/** fit ellipsoids to the particles' surfaces */
+		public boolean ellipsoids = true;
+
+		/** record all the unit vectors of the moments and ellipsoids */
+		public boolean unitVectors = false;
+
+		/** measure the branches of the particles' skeletons */
+		public boolean skeletons = false;
+
+		/** measure bounding boxes aligned to the principal axes */
+		public boolean alignedBoxes = false;
+
+		/**
+		 * pixel spacing of the surface meshes. Area and enclosed volume are
+		 * measured without meshes only at 1, when no meshes are otherwise needed;
+		 * other spacings make and measure each particle's mesh.
+		 */
+		public int surfaceResampling = 2;
+
+		/**
+		 * directory to write each particle's surface to as a binary STL file, or
+		 * null not to export surfaces
+		 */
+		public File stlDirectory = null;
+
+		// results that the plugin keeps for its displays
+		boolean keepSurfaceMeshes;
+		boolean keepEigens;
+		boolean keepAlignedBoxes;
+		boolean keepEllipsoids;
+		boolean keepThicknessImage;
+	}
+}
@@ -55,9 +55,11 @@ import java.awt.Color;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.bonej.geometry.Ellipsoid;
 import org.bonej.geometry.FitEllipsoid;
+import org.bonej.util.Multithreader;
 import org.scijava.vecmath.Color3f;
 import org.scijava.vecmath.Point3f;
 
@@ -68,8 +70,8 @@ import customnode.CustomPointMesh;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
+import ij.Prefs;
 import ij.measure.Calibration;
-import ij.process.ByteProcessor;
 import ij3d.Image3DUniverse;
 
 /**
@@ -99,27 +101,54 @@ public class ParticleDisplay {
 	 * @return ImagePlus with particle labels substituted with some value
 	 */
 	static ImagePlus displayParticleValues(final ImagePlus imp, final int[][] particleLabels, final double[] values) {
-		final int w = imp.getWidth();
-		final int h = imp.getHeight();
-		final int d = imp.getImageStackSize();
-		final int wh = w * h;
-		final float[][] pL = new float[d][wh];
+		return displayParticleValues(imp, particleLabels, values, false);
+	}
+
+	/**
+	 * Create an image showing some particle measurement. Each label is replaced
+	 * by its value from a float lookup table, slices in parallel, or slice by
+	 * slice as they are displayed if the image is virtual.
+	 *
+	 * @param imp            an image.
+	 * @param particleLabels the particles in the image.
+	 * @param values         list of values whose array indices correspond to
+	 *                       particlelabels
+	 * @param virtual        if true, compute slices on demand from
+	 *                       particleLabels instead of storing a float copy
+	 * @return ImagePlus with particle labels substituted with some value
+	 */
+	static ImagePlus displayParticleValues(final ImagePlus imp, final int[][] particleLabels, final double[] values,
+			final boolean virtual) {
 		values[0] = 0; // don't colour the background
-		final ImageStack stack = new ImageStack(w, h);
-		for (int z = 0; z < d; z++) {
-			for (int i = 0; i < wh; i++) {
-				final int p = particleLabels[z][i];
-				pL[z][i] = (float) values[p];
-			}
-			stack.addSlice(imp.getImageStack().getSliceLabel(z + 1), pL[z]);
-		}
+		final float[] lut = new float[values.length];
+		for (int i = 0; i < lut.length; i++)
+			lut[i] = (float) values[i];
 		final double max = Arrays.stream(values).max().orElse(0.0);
+		final ImageStack stack = labelValueStack(imp, particleLabels, lut, max, virtual);
 		final ImagePlus impOut = new ImagePlus(imp.getShortTitle() + "_" + "volume", stack);
 		impOut.setCalibration(imp.getCalibration());
 		impOut.getProcessor().setMinAndMax(0, max);
 		return impOut;
 	}
 
+	/**
+	 * Create an image showing some particle measurement, reading the particles
+	 * from a label image, which may be a wide label image
+	 *
+	 * @param imp            an image.
+	 * @param labelImp       label image, in a format read by
+	 *                       {@link ParticleAnalysis#getParticleLabels(ImagePlus)}
+	 * @param values         list of values whose array indices correspond to
+	 *                       particlelabels
+	 * @param virtual        if true, compute slices on demand instead of storing
+	 *                       a float copy
+	 * @return ImagePlus with particle labels substituted with some value
+	 */
+	static ImagePlus displayParticleValues(final ImagePlus imp, final ImagePlus labelImp, final double[] values,
+			final boolean virtual) {
+		return displayParticleValues(imp, ParticleAnalysis.getParticleLabels(labelImp), values, virtual);
+	}
+
 	/**
 	 * Display the particle labels as an ImagePlus
 	 *
@@ -129,31 +158,185 @@ public class ParticleDisplay {
 	 * @return an image of the particles.
 	 */
 	static ImagePlus displayParticleLabels(final int[][] particleLabels, final ImagePlus imp) {
+		return displayParticleLabels(particleLabels, imp, false);
+	}
+
+	/**
+	 * Display the particle labels as an ImagePlus, converting slices in parallel,
+	 * or slice by slice as they are displayed if the image is virtual.
+	 *
+	 * @param particleLabels particles labelled in the original image.
+	 * @param imp            original image, used for image dimensions, calibration
+	 *                       and titles
+	 * @param virtual        if true, compute slices on demand from
+	 *                       particleLabels instead of storing a float copy
+	 * @return an image of the particles.
+	 */
+	static ImagePlus displayParticleLabels(final int[][] particleLabels, final ImagePlus imp,
+			final boolean virtual) {
+		final double max = (float) maxLabel(particleLabels);
+		final ImageStack stack = labelValueStack(imp, particleLabels, null, max, virtual);
+		final ImagePlus impParticles = new ImagePlus(imp.getShortTitle() + "_parts", stack);
+		impParticles.setCalibration(imp.getCalibration());
+		impParticles.getProcessor().setMinAndMax(0, max);
+		if (max > ConnectedComponents.MAX_FINAL_LABEL)
+			IJ.error("Warning", "More than 2^23 particles. "
+					+ "Particle label display is imprecise above this number due to int to float conversion. "
+					+ "Use wide labels to display all labels exactly.");
+		return impParticles;
+	}
+
+	/**
+	 * Display the particles of a label image, which may be a wide label image
+	 * made by {@link #displayWideParticleLabels(int[][], ImagePlus)}. If any
+	 * label is greater than {@link ConnectedComponents#MAX_FINAL_LABEL} the
+	 * particles are displayed as a wide label image, so that they stay exact.
+	 *
+	 * @param labelImp       label image, in a format read by
+	 *                       {@link ParticleAnalysis#getParticleLabels(ImagePlus)}
+	 * @param imp            original image, used for image dimensions, calibration
+	 *                       and titles
+	 * @param virtual        if true, compute slices on demand instead of storing
+	 *                       a float copy
+	 * @return an image of the particles.
+	 */
+	static ImagePlus displayParticleLabels(final ImagePlus labelImp, final ImagePlus imp,
+			final boolean virtual) {
+		final int[][] particleLabels = ParticleAnalysis.getParticleLabels(labelImp);
+		if (maxLabel(particleLabels) > ConnectedComponents.MAX_FINAL_LABEL)
+			return displayWideParticleLabels(particleLabels, imp);
+		return displayParticleLabels(particleLabels, imp, virtual);
+	}
+
+	/**
+	 * Make a stack of the values of particle labels
+	 *
+	 * @param imp            original image, used for dimensions and slice labels
+	 * @param particleLabels particles labelled in the original image.
+	 * @param lut            value of each label, or null for the labels
+	 *                       themselves
+	 * @param max            display range maximum
+	 * @param virtual        if true, return a {@link LabelValueStack}
+	 * @return stack of float values
+	 */
+	private static ImageStack labelValueStack(final ImagePlus imp, final int[][] particleLabels, final float[] lut,
+			final double max, final boolean virtual) {
+		final int w = imp.getWidth();
+		final int h = imp.getHeight();
+		final int d = imp.getImageStackSize();
+		final String[] sliceLabels = new String[d];
+		for (int z = 0; z < d; z++)
+			sliceLabels[z] = imp.getImageStack().getSliceLabel(z + 1);
+		if (virtual)
+			return new LabelValueStack(w, h, particleLabels, lut, sliceLabels, 0, max);
+
+		final float[][] pixels = new float[d][];
+		final AtomicInteger ai = new AtomicInteger(0);
+		final Thread[] threads = Multithreader.newThreads();
+		for (int thread = 0; thread < threads.length; thread++) {
+			threads[thread] = new Thread(() -> {
+				for (int z = ai.getAndIncrement(); z < d; z = ai.getAndIncrement()) {
+					pixels[z] = LabelValueStack.render(particleLabels[z], lut);
+				}
+			});
+		}
+		Multithreader.startAndJoin(threads);
+
+		final ImageStack stack = new ImageStack(w, h);
+		for (int z = 0; z < d; z++)
+			stack.addSlice(sliceLabels[z], pixels[z]);
+		return stack;
+	}
+
+	/**
+	 * Find the greatest particle label
+	 *
+	 * @param particleLabels particles labelled in the original image.
+	 * @return the greatest label, or 0 if there are no labels
+	 */
+	private static int maxLabel(final int[][] particleLabels) {
+		final int d = particleLabels.length;
+		final int[] sliceMax = new int[d];
+		final AtomicInteger ai = new AtomicInteger(0);
+		final Thread[] threads = Multithreader.newThreads();
+		for (int thread = 0; thread < threads.length; thread++) {
+			threads[thread] = new Thread(() -> {
+				for (int z = ai.getAndIncrement(); z < d; z = ai.getAndIncrement()) {
+					int max = 0;
+					for (final int label : particleLabels[z])
+						max = Math.max(max, label);
+					sliceMax[z] = max;
+				}
+			});
+		}
+		Multithreader.startAndJoin(threads);
+		return Arrays.stream(sliceMax).max().orElse(0);
+	}
+
+	/**
+	 * Display the particle labels losslessly as a two-channel, 16-bit hyperstack.
+	 * Channel 1 holds the low 16 bits and channel 2 the high 16 bits of each
+	 * label, so that labels greater than {@link ConnectedComponents#MAX_FINAL_LABEL}
+	 * are not rounded as they are in a 32-bit float image.
+	 * {@link ParticleAnalysis#getParticleLabels(ImagePlus)} decodes the image back
+	 * to int labels.
+	 *
+	 * @param particleLabels particles labelled in the original image.
+	 * @param imp            original image, used for image dimensions, calibration
+	 *                       and titles
+	 * @return an image of the particles.
+	 */
+	static ImagePlus displayWideParticleLabels(final int[][] particleLabels, final ImagePlus imp) {
 		final int w = imp.getWidth();
 		final int h = imp.getHeight();
 		final int d = imp.getImageStackSize();
 		final int wh = w * h;
+		final short[][] low = new short[d][wh];
+		final short[][] high = new short[d][wh];
+		final AtomicInteger ai = new AtomicInteger(0);
+		final Thread[] threads = Multithreader.newThreads();
+		for (int thread = 0; thread < threads.length; thread++) {
+			threads[thread] = new Thread(() -> {
+				for (int z = ai.getAndIncrement(); z < d; z = ai.getAndIncrement()) {
+					final int[] labels = particleLabels[z];
+					final short[] lowSlice = low[z];
+					final short[] highSlice = high[z];
+					for (int i = 0; i < wh; i++) {
+						final int label = labels[i];
+						lowSlice[i] = (short) label;
+						highSlice[i] = (short) (label >>> 16);
+					}
+				}
+			});
+		}
+		Multithreader.startAndJoin(threads);
+
 		final ImageStack stack = new ImageStack(w, h);
-		double max = 0;
+		final ImageStack inputStack = imp.getImageStack();
 		for (int z = 0; z < d; z++) {
-			final float[] slicePixels = new float[wh];
-			for (int i = 0; i < wh; i++) {
-				slicePixels[i] = particleLabels[z][i];
-				max = Math.max(max, slicePixels[i]);
-			}
-			stack.addSlice(imp.getImageStack().getSliceLabel(z + 1), slicePixels);
+			final String sliceLabel = inputStack.getSliceLabel(z + 1);
+			final String prefix = sliceLabel == null ? "" : sliceLabel + " ";
+			stack.addSlice(prefix + "low 16 bits", low[z]);
+			stack.addSlice(prefix + "high 16 bits", high[z]);
 		}
 		final ImagePlus impParticles = new ImagePlus(imp.getShortTitle() + "_parts", stack);
+		impParticles.setDimensions(2, d, 1);
+		impParticles.setOpenAsHyperStack(true);
 		impParticles.setCalibration(imp.getCalibration());
-		impParticles.getProcessor().setMinAndMax(0, max);
-		if (max > ConnectedComponents.MAX_LABEL)
-			IJ.error("Warning", "More than 2^23 particles. "
-					+ "Particle label display is imprecise above this number due to int to float conversion.");
+		impParticles.getProcessor().setMinAndMax(0, 65535);
 		return impParticles;
 	}
 
 	/**
 	 * Draw ellipsoids in a stack
+	 * <p>
+	 * The stack is split into slabs of slices that are drawn in parallel. Each
+	 * row of an ellipsoid is filled as one span between the points where the
+	 * row crosses the ellipsoid's surface, which are found in closed form.
+	 * Only the pixels at the ends of the span are tested with
+	 * {@link Ellipsoid#contains(double, double, double)}, so that the result
+	 * is the same as testing every pixel of the bounding box.
+	 * </p>
 	 * 
 	 * @param imp ImagePlus, needed for calibration
 	 * @param ellipsoids list of ellipsoids
@@ -164,60 +347,113 @@ public class ParticleDisplay {
 		final int h = imp.getHeight();
 		final int d = imp.getImageStackSize();
 
-		Calibration cal = imp.getCalibration();
+		final Calibration cal = imp.getCalibration();
 		final double pW = cal.pixelWidth;
 		final double pH = cal.pixelHeight;
 		final double pD = cal.pixelDepth;
 
-		// set up a work array
-		final ByteProcessor[] bps = new ByteProcessor[d];
-		for (int z = 0; z < d; z++) {
-			bps[z] = new ByteProcessor(w, h);
-		}
-
+		// the ellipsoids and their bounding boxes in pixels
 		final int n = ellipsoids.length;
+		final Ellipsoid[] shapes = new Ellipsoid[n];
+		final int[][] boxes = new int[n][];
 		for (int i = 0; i < n; i++) {
-			IJ.showStatus("Drawing ellipsoid stack...");
-			IJ.showProgress(i, n);
-			Ellipsoid ellipsoid;
 			try {
-				ellipsoid = new Ellipsoid((Object[]) ellipsoids[i]);
+				shapes[i] = new Ellipsoid((Object[]) ellipsoids[i]);
 			} catch (Exception e) {
 				continue;
 			}
+			final double[] box = shapes[i].getAxisAlignedBoundingBox();
+			boxes[i] = new int[] { clamp((int) Math.floor(box[0] / pW), 0, w - 1),
+				clamp((int) Math.floor(box[1] / pW), 0, w - 1),
+				clamp((int) Math.floor(box[2] / pH), 0, h - 1),
+				clamp((int) Math.floor(box[3] / pH), 0, h - 1),
+				clamp((int) Math.floor(box[4] / pD), 0, d - 1),
+				clamp((int) Math.floor(box[5] / pD), 0, d - 1) };
+		}
 
-			// ellipsoid is in calibrated real-world units
-			final double[] box = ellipsoid.getAxisAlignedBoundingBox();
-
-			// decalibrate to pixels
-			final int xMin = clamp((int) Math.floor(box[0] / pW), 0, w - 1);
-			final int xMax = clamp((int) Math.floor(box[1] / pW), 0, w - 1);
-			final int yMin = clamp((int) Math.floor(box[2] / pH), 0, h - 1);
-			final int yMax = clamp((int) Math.floor(box[3] / pH), 0, h - 1);
-			final int zMin = clamp((int) Math.floor(box[4] / pD), 0, d - 1);
-			final int zMax = clamp((int) Math.floor(box[5] / pD), 0, d - 1);
-
-			// set the ellipsoid-contained pixels to foreground
-			for (int z = zMin; z <= zMax; z++) {
-				for (int y = yMin; y <= yMax; y++) {
-					for (int x = xMin; x <= xMax; x++) {
-						if (ellipsoid.contains(x * pW, y * pH, z * pD)) {
-							bps[z].set(x, y, 255);
+		final byte[][] pixels = new byte[d][w * h];
+		final int nSlabs = Math.min(d, 4 * Prefs.getThreads());
+		final AtomicInteger ai = new AtomicInteger(0);
+		final AtomicInteger done = new AtomicInteger(0);
+		final int progressStep = Math.max(1, nSlabs / 100);
+		IJ.showStatus("Drawing ellipsoid stack...");
+		final Thread[] threads = Multithreader.newThreads();
+		for (int thread = 0; thread < threads.length; thread++) {
+			threads[thread] = new Thread(() -> {
+				for (int slab = ai.getAndIncrement(); slab < nSlabs; slab = ai.getAndIncrement()) {
+					final int slabStart = (int) ((long) slab * d / nSlabs);
+					final int slabEnd = (int) ((long) (slab + 1) * d / nSlabs) - 1;
+					for (int i = 0; i < n; i++) {
+						final int[] box = boxes[i];
+						if (box == null || box[5] < slabStart || box[4] > slabEnd)
+							continue;
+						final int zStart = Math.max(box[4], slabStart);
+						final int zEnd = Math.min(box[5], slabEnd);
+						for (int z = zStart; z <= zEnd; z++) {
+							drawEllipsoidSlice(shapes[i], box, pixels[z], z, w, pW, pH, pD);
 						}
 					}
+					final int nDone = done.incrementAndGet();
+					if (nDone % progressStep == 0) IJ.showProgress(nDone, nSlabs);
 				}
-			}
+			});
 		}
+		Multithreader.startAndJoin(threads);
+		IJ.showProgress(1.0);
 
-		ImageStack stack = new ImageStack(w, h);
-		for (ByteProcessor bp : bps)
-			stack.addSlice(bp);
+		final ImageStack stack = new ImageStack(w, h);
+		for (int z = 0; z < d; z++)
+			stack.addSlice(null, pixels[z]);
 
 		final ImagePlus impOut = new ImagePlus(imp.getShortTitle() + "_Ellipsoids", stack);
 		impOut.setCalibration(cal);
 		return impOut;
 	}
 
+	/**
+	 * Fill the rows of one slice of an ellipsoid
+	 *
+	 * @param ellipsoid ellipsoid in calibrated units
+	 * @param box x, y and z minima and maxima of the pixels to test
+	 * @param pixels pixels of the slice
+	 * @param z slice index
+	 * @param w image width
+	 * @param pW pixel width
+	 * @param pH pixel height
+	 * @param pD pixel depth
+	 */
+	private static void drawEllipsoidSlice(final Ellipsoid ellipsoid,
+		final int[] box, final byte[] pixels, final int z, final int w,
+		final double pW, final double pH, final double pD)
+	{
+		final int xMin = box[0];
+		final int xMax = box[1];
+		final double zd = z * pD;
+		for (int y = box[2]; y <= box[3]; y++) {
+			final double yd = y * pH;
+			final double[] span = ellipsoid.getXInterval(yd, zd);
+			if (span == null) continue;
+			int start = Math.min(xMax + 1, Math.max(xMin, (int) Math.ceil(span[0] /
+				pW)));
+			int end = Math.max(xMin - 1, Math.min(xMax, (int) Math.floor(span[1] /
+				pW)));
+			// settle the ends on the pixel test, so that rounding in the closed
+			// form can't add or drop a pixel
+			while (start > xMin && ellipsoid.contains((start - 1) * pW, yd, zd))
+				start--;
+			while (start <= end && !ellipsoid.contains(start * pW, yd, zd))
+				start++;
+			while (end < xMax && ellipsoid.contains((end + 1) * pW, yd, zd))
+				end++;
+			while (end >= start && !ellipsoid.contains(end * pW, yd, zd))
+				end--;
+			if (start <= end) {
+				final int row = y * w;
+				Arrays.fill(pixels, row + start, row + end + 1, (byte) 255);
+			}
+		}
+	}
+
 	// ----------------- 3D VIEWER DISPLAY ----------//
 
 	/**
@@ -572,27 +808,27 @@ public class ParticleDisplay {
 	 * Draw the particle surfaces in a 3D viewer
 	 *
 	 * @param univ          universe where the centroids are displayed.
-	 * @param surfacePoints points of each particle.
+	 * @param surfaceMeshes mesh of each particle.
 	 * @param colourMode  colour particles by SPLIT, GRADIENT, or ORIENTATION
 	 * @param volumes   list of particle volumes
 	 * @param splitValue volume at which to split the colours for SPLIT colour option
 	 * @param eigens list of eigendecompositions, needed for ORIENTATION colouring
 	 */
-	static void displayParticleSurfaces(final Image3DUniverse univ, final List<List<Point3f>> surfacePoints,
+	static void displayParticleSurfaces(final Image3DUniverse univ, final List<IndexedMesh> surfaceMeshes,
 			final int colourMode, final double[] volumes, final double splitValue,
 			final EigenvalueDecomposition[] eigens) {
-		final int nSurfaces = surfacePoints.size();
+		final int nSurfaces = surfaceMeshes.size();
 		for (int p = 1; p < nSurfaces; p++) {
 			IJ.showStatus("Rendering surfaces...");
 			IJ.showProgress(p, nSurfaces);
-			final List<Point3f> surfacePoint = surfacePoints.get(p);
-			if (surfacePoint == null)
+			final IndexedMesh surfaceMesh = surfaceMeshes.get(p);
+			if (surfaceMesh == null)
 				continue;
-			if (!surfacePoint.isEmpty()) {
+			if (surfaceMesh.getTriangleCount() > 0) {
 				Color3f colour = getColour(p, nSurfaces, colourMode, volumes, eigens, splitValue);
 				// Add the mesh
 				try {
-					univ.addTriangleMesh(surfacePoint, colour, "Surface " + p).setLocked(true);
+					univ.addCustomMesh(surfaceMesh.toCustomTriangleMesh(colour), "Surface " + p).setLocked(true);
 				} catch (final NullPointerException npe) {
 					IJ.log("3D Viewer was closed before rendering completed.");
 					return;
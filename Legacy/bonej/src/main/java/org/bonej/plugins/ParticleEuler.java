@@ -0,0 +1,347 @@
+/*-
+ * #%L
+ * Mavenized version of the BoneJ1 plugins
+ * %%
+ * Copyright (C) 2015 - 2020 Michael Doube, BoneJ developers
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.bonej.plugins;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bonej.util.Multithreader;
+
+/**
+ * Euler characteristic, holes and cavities of every particle, without making
+ * an image of each particle.
+ * <p>
+ * The Euler characteristic is a sum of contributions from the 2 &times; 2
+ * &times; 2 octants around each voxel vertex, and an octant only contributes to
+ * the particles whose voxels it contains. One parallel sweep of the label array
+ * therefore finds every particle's Euler characteristic: each octant is split
+ * into the bit masks of the labels it holds, and each mask's delta Euler value
+ * is added to its label's sum. The octants and masks are exactly those that
+ * {@link Connectivity#getSumEuler(ij.ImagePlus)} sees in a padded single
+ * particle image.
+ * </p>
+ * <p>
+ * Cavities are counted in one parallel pass over all the particles, reading the
+ * label array directly. Each thread reuses its work arrays between particles,
+ * so no images, label arrays or thread pools are made per particle.
+ * </p>
+ *
+ * @author Michael Doube
+ */
+final class ParticleEuler {
+
+	/** delta Euler value of each octant bit mask */
+	private static final int[] OCTANT_EULER = new int[256];
+
+	static {
+		for (int octant = 0; octant < 256; octant++) {
+			OCTANT_EULER[octant] = Connectivity.getOctantEuler(octant);
+		}
+	}
+
+	private ParticleEuler() {}
+
+	/**
+	 * Get the Euler characteristic, number of holes and number of cavities of
+	 * each particle
+	 *
+	 * @param particleLabels label array
+	 * @param limits x, y and z limits of each particle
+	 * @param w image width
+	 * @param h image height
+	 * @param nParticles number of particles including the background
+	 * @param pool pool to run the work in, or null to start threads
+	 * @return Euler characteristic, holes and cavities of each particle
+	 */
+	static double[][] getEulerCharacters(final int[][] particleLabels,
+		final int[][] limits, final int w, final int h, final int nParticles,
+		final ForkJoinPool pool)
+	{
+		final double[] eulers = getSumEulers(particleLabels, w, h, nParticles,
+			pool);
+		final int[] cavities = getNCavities(particleLabels, limits, w, h,
+			nParticles, pool);
+		final double[][] eulerCharacters = new double[nParticles][3];
+		for (int p = 1; p < nParticles; p++) {
+			final double euler = eulers[p];
+			// Euler = particles - holes + cavities, where particles = 1
+			final double holes = cavities[p] - euler + 1;
+			eulerCharacters[p] = new double[] { euler, holes, cavities[p] };
+		}
+		return eulerCharacters;
+	}
+
+	/**
+	 * Sum the octant Euler contributions of every label in one sweep
+	 * <p>
+	 * As in {@link Connectivity#getSumEuler(ij.ImagePlus)}, each thread copies
+	 * the rows either side of the octant plane into padded buffers, so the eight
+	 * labels of each octant are read without bounds checks, and octants of
+	 * background only are skipped.
+	 * </p>
+	 *
+	 * @param particleLabels label array
+	 * @param w image width
+	 * @param h image height
+	 * @param nParticles number of particles including the background
+	 * @param pool pool to run the sweep in, or null to start threads
+	 * @return Euler characteristic of each particle
+	 */
+	static double[] getSumEulers(final int[][] particleLabels, final int w,
+		final int h, final int nParticles, final ForkJoinPool pool)
+	{
+		final int d = particleLabels.length;
+		// octant (x, y, z) holds voxels x - 1 to x, y - 1 to y and z - 1 to z
+		final AtomicInteger ai = new AtomicInteger(0);
+		final Thread[] threads = Multithreader.newThreads();
+		final long voxelsPerThread = (long) w * h * d / threads.length;
+		final ParticleTable[] tables = new ParticleTable[threads.length];
+		final long[][] threadSums = new long[threads.length][];
+		for (int thread = 0; thread < threads.length; thread++) {
+			final int t = thread;
+			final ParticleTable table = new ParticleTable(nParticles, voxelsPerThread,
+				ParticleTable.AUTO);
+			tables[t] = table;
+			threads[thread] = new Thread(() -> {
+				long[] sums = new long[table.size()];
+				// o1 to o8 in the order of Connectivity.getSumEuler()
+				final int[] labels = new int[8];
+				// rows y - 1 and y of slices z - 1 (back) and z (front), with
+				// voxel x at x + 1 and background at 0 and w + 1
+				int[] backLast = new int[w + 2];
+				int[] backRow = new int[w + 2];
+				int[] frontLast = new int[w + 2];
+				int[] frontRow = new int[w + 2];
+				for (int z = ai.getAndIncrement(); z <= d; z = ai.getAndIncrement()) {
+					final int[] back = z > 0 ? particleLabels[z - 1] : null;
+					final int[] front = z < d ? particleLabels[z] : null;
+					Arrays.fill(backLast, 0);
+					Arrays.fill(frontLast, 0);
+					for (int y = 0; y <= h; y++) {
+						copyRow(back, y, w, h, backRow);
+						copyRow(front, y, w, h, frontRow);
+						for (int x = 0; x <= w; x++) {
+							labels[0] = backLast[x];
+							labels[1] = backRow[x];
+							labels[2] = backLast[x + 1];
+							labels[3] = backRow[x + 1];
+							labels[4] = frontLast[x];
+							labels[5] = frontRow[x];
+							labels[6] = frontLast[x + 1];
+							labels[7] = frontRow[x + 1];
+							if ((labels[0] | labels[1] | labels[2] | labels[3] | labels[4] |
+								labels[5] | labels[6] | labels[7]) == 0) continue;
+							for (int c = 0; c < 8; c++) {
+								final int p = labels[c];
+								if (p == 0) continue;
+								// handle each label once, at its first voxel
+								boolean seen = false;
+								for (int b = 0; b < c; b++) {
+									if (labels[b] == p) {
+										seen = true;
+										break;
+									}
+								}
+								if (seen) continue;
+								int octant = 0;
+								for (int b = c; b < 8; b++) {
+									if (labels[b] == p) octant |= 1 << b;
+								}
+								final int slot = table.slot(p);
+								if (slot >= sums.length) {
+									sums = Arrays.copyOf(sums, table.grow(sums.length));
+								}
+								sums[slot] += OCTANT_EULER[octant];
+							}
+						}
+						int[] swap = backLast;
+						backLast = backRow;
+						backRow = swap;
+						swap = frontLast;
+						frontLast = frontRow;
+						frontRow = swap;
+					}
+				}
+				threadSums[t] = sums;
+			});
+		}
+		Multithreader.startAndJoin(threads, pool);
+
+		final long[] sums = new long[nParticles];
+		for (int t = 0; t < tables.length; t++) {
+			final ParticleTable table = tables[t];
+			final int size = table.size();
+			for (int slot = 0; slot < size; slot++) {
+				sums[table.label(slot)] += threadSums[t][slot];
+			}
+		}
+		final double[] eulers = new double[nParticles];
+		for (int p = 0; p < nParticles; p++) {
+			eulers[p] = sums[p] / 8.0;
+		}
+		return eulers;
+	}
+
+	/**
+	 * Count the cavities of every particle: the 6-connected regions of other
+	 * voxels within the particle's bounding box, padded by 1 voxel and clipped
+	 * to the image, less the one outside the particle.
+	 *
+	 * @param particleLabels label array
+	 * @param limits x, y and z limits of each particle
+	 * @param w image width
+	 * @param h image height
+	 * @param nParticles number of particles including the background
+	 * @param pool pool to run the floods in, or null to start threads
+	 * @return number of cavities of each particle
+	 */
+	static int[] getNCavities(final int[][] particleLabels, final int[][] limits,
+		final int w, final int h, final int nParticles, final ForkJoinPool pool)
+	{
+		final int d = particleLabels.length;
+		final int[] cavities = new int[nParticles];
+		final AtomicInteger ai = new AtomicInteger(1);
+		final Thread[] threads = Multithreader.newThreads();
+		for (int thread = 0; thread < threads.length; thread++) {
+			threads[thread] = new Thread(() -> {
+				boolean[] marked = new boolean[0];
+				int[] queue = new int[0];
+				for (int p = ai.getAndIncrement(); p < nParticles; p = ai.getAndIncrement()) {
+					final int xMin = Math.max(0, limits[p][0] - 1);
+					final int xMax = Math.min(w - 1, limits[p][1] + 1);
+					final int yMin = Math.max(0, limits[p][2] - 1);
+					final int yMax = Math.min(h - 1, limits[p][3] + 1);
+					final int zMin = Math.max(0, limits[p][4] - 1);
+					final int zMax = Math.min(d - 1, limits[p][5] + 1);
+					final int bw = xMax - xMin + 1;
+					final int bh = yMax - yMin + 1;
+					final int bd = zMax - zMin + 1;
+					if (bw <= 0 || bh <= 0 || bd <= 0) continue;
+					final int nVoxels = bw * bh * bd;
+					if (marked.length < nVoxels) {
+						marked = new boolean[nVoxels];
+						queue = new int[nVoxels];
+					}
+					// the particle's voxels start marked, so floods stay outside it
+					int i = 0;
+					for (int z = zMin; z <= zMax; z++) {
+						final int[] slice = particleLabels[z];
+						for (int y = yMin; y <= yMax; y++) {
+							final int row = y * w;
+							for (int x = xMin; x <= xMax; x++) {
+								marked[i++] = slice[row + x] == p;
+							}
+						}
+					}
+					int nRegions = 0;
+					for (int start = 0; start < nVoxels; start++) {
+						if (marked[start]) continue;
+						nRegions++;
+						flood(start, marked, queue, bw, bh, bd);
+					}
+					cavities[p] = nRegions - 1;
+				}
+			});
+		}
+		Multithreader.startAndJoin(threads, pool);
+		return cavities;
+	}
+
+	/**
+	 * Mark the 6-connected region of unmarked voxels that contains a start voxel
+	 *
+	 * @param start index of an unmarked voxel in the box
+	 * @param marked marks of the box voxels, row by row and slice by slice
+	 * @param queue work array with at least one element per box voxel
+	 * @param bw box width
+	 * @param bh box height
+	 * @param bd box depth
+	 */
+	private static void flood(final int start, final boolean[] marked,
+		final int[] queue, final int bw, final int bh, final int bd)
+	{
+		final int bwh = bw * bh;
+		marked[start] = true;
+		queue[0] = start;
+		int head = 0;
+		int tail = 1;
+		while (head < tail) {
+			final int i = queue[head++];
+			final int z = i / bwh;
+			final int y = (i - z * bwh) / bw;
+			final int x = i - z * bwh - y * bw;
+			if (x > 0 && !marked[i - 1]) {
+				marked[i - 1] = true;
+				queue[tail++] = i - 1;
+			}
+			if (x < bw - 1 && !marked[i + 1]) {
+				marked[i + 1] = true;
+				queue[tail++] = i + 1;
+			}
+			if (y > 0 && !marked[i - bw]) {
+				marked[i - bw] = true;
+				queue[tail++] = i - bw;
+			}
+			if (y < bh - 1 && !marked[i + bw]) {
+				marked[i + bw] = true;
+				queue[tail++] = i + bw;
+			}
+			if (z > 0 && !marked[i - bwh]) {
+				marked[i - bwh] = true;
+				queue[tail++] = i - bwh;
+			}
+			if (z < bd - 1 && !marked[i + bwh]) {
+				marked[i + bwh] = true;
+				queue[tail++] = i + bwh;
+			}
+		}
+	}
+
+	/**
+	 * Copy a row of a label slice into a buffer, at an offset of 1 between
+	 * background voxels, or fill the buffer with background if the row is outside
+	 * the image
+	 *
+	 * @param slice label slice, or null if outside the image
+	 * @param y row number
+	 * @param w image width
+	 * @param h image height
+	 * @param row buffer of w + 2 labels
+	 */
+	private static void copyRow(final int[] slice, final int y, final int w,
+		final int h, final int[] row)
+	{
+		if (slice == null || y >= h) {
+			Arrays.fill(row, 0);
+			return;
+		}
+		System.arraycopy(slice, y * w, row, 1, w);
+	}
+}
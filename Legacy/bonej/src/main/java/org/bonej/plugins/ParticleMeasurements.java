@@ -0,0 +1,199 @@
+/*-
+ * #%L
+ * Mavenized version of the BoneJ1 plugins
+ * %%
+ * Copyright (C) 2015 - 2020 Michael Doube, BoneJ developers
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package org.bonej.plugins;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.IntToDoubleFunction;
+
+import ij.measure.ResultsTable;
+
+/**
+ * <p>
+ * Results of {@link ParticleCounter#measure}, stored column by column. Each
+ * measurement is a primitive array with one value per particle that survived
+ * filtering, in the order of {@link #getIds()}, so that large particle counts
+ * can be consumed without an ImageJ {@link ResultsTable}. A table can be made
+ * from the columns in one go with {@link #toResultsTable()}.
+ * </p>
+ * <p>
+ * Arrays are returned without copying, and should not be modified.
+ * </p>
+ *
+ * @author Michael Doube
+ */
+public final class ParticleMeasurements {
+
+	/** title of the measured image, used as the row label of tables */
+	private final String title;
+
+	/** particle labels of the rows */
+	private final int[] ids;
+
+	/** measurement columns by heading, in the order they were added */
+	private final Map<String, double[]> columns = new LinkedHashMap<>();
+
+	/** particle label of each voxel */
+	private final int[][] particleLabels;
+
+	/** voxel count of each particle, indexed by label */
+	private final long[] particleSizes;
+
+	/** volume of each particle, indexed by label */
+	private final double[] volumes;
+
+	/** per-particle results of the measurement stages, indexed by label */
+	private final MeasurementGraph.Results results;
+
+	/**
+	 * Create the results of a measurement, with a row for each particle that
+	 * has a non-zero volume
+	 *
+	 * @param title title of the measured image
+	 * @param particleLabels particle label of each voxel
+	 * @param particleSizes voxel count of each particle
+	 * @param volumes volume of each particle
+	 * @param results kept results of the measurement stages
+	 */
+	ParticleMeasurements(final String title, final int[][] particleLabels,
+		final long[] particleSizes, final double[] volumes,
+		final MeasurementGraph.Results results)
+	{
+		this.title = title;
+		this.particleLabels = particleLabels;
+		this.particleSizes = particleSizes;
+		this.volumes = volumes;
+		this.results = results;
+		int nRows = 0;
+		for (int i = 1; i < volumes.length; i++) {
+			if (volumes[i] > 0) nRows++;
+		}
+		ids = new int[nRows];
+		for (int i = 1, row = 0; i < volumes.length; i++) {
+			if (volumes[i] > 0) ids[row++] = i;
+		}
+	}
+
+	/**
+	 * Add a measurement column
+	 *
+	 * @param heading column heading
+	 * @param value gives the measurement of a particle from its label
+	 */
+	void addColumn(final String heading, final IntToDoubleFunction value) {
+		final double[] column = new double[ids.length];
+		for (int row = 0; row < ids.length; row++) {
+			column[row] = value.applyAsDouble(ids[row]);
+		}
+		columns.put(heading, column);
+	}
+
+	/**
+	 * @return number of measured particles
+	 */
+	public int getRowCount() {
+		return ids.length;
+	}
+
+	/**
+	 * @return particle label of each row
+	 */
+	public int[] getIds() {
+		return ids;
+	}
+
+	/**
+	 * @return headings of the measurement columns, in table order
+	 */
+	public String[] getHeadings() {
+		return columns.keySet().toArray(new String[0]);
+	}
+
+	/**
+	 * Get a measurement column
+	 *
+	 * @param heading column heading, as given by {@link #getHeadings()}
+	 * @return one value per row
+	 * @throws IllegalArgumentException if there is no such column
+	 */
+	public double[] getColumn(final String heading) {
+		final double[] column = columns.get(heading);
+		if (column == null) {
+			throw new IllegalArgumentException("No column " + heading);
+		}
+		return column;
+	}
+
+	/**
+	 * Make a results table of the measurements, with a particle ID column
+	 * followed by the measurement columns. The table is filled a column at a
+	 * time and is not shown.
+	 *
+	 * @return a new results table
+	 */
+	public ResultsTable toResultsTable() {
+		final ResultsTable rt = new ResultsTable(ids.length);
+		final double[] idColumn = new double[ids.length];
+		for (int row = 0; row < ids.length; row++) {
+			idColumn[row] = ids[row];
+		}
+		rt.setValues("ID", idColumn);
+		for (int row = 0; row < ids.length; row++) {
+			rt.setLabel(title, row);
+		}
+		columns.forEach(rt::setValues);
+		return rt;
+	}
+
+	int[][] getParticleLabels() {
+		return particleLabels;
+	}
+
+	long[] getParticleSizes() {
+		return particleSizes;
+	}
+
+	double[] getVolumes() {
+		return volumes;
+	}
+
+	/**
+	 * Get a per-particle result of a measurement stage, such as the surface
+	 * meshes needed to display the particles
+	 *
+	 * @param stage name of the stage
+	 * @param defaultValue value to return if the stage was not run or kept
+	 * @param <T> type of the result
+	 * @return the stage's result or the default
+	 */
+	<T> T getResult(final String stage, final T defaultValue) {
+		return results.get(stage, defaultValue);
+	}
+}
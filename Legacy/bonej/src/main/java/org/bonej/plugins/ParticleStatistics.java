@@ -0,0 +1,645 @@
+/*-
+ * #%L
+ * Mavenized version of the BoneJ1 plugins
+ * %%
+ * Copyright (C) 2015 - 2020 Michael Doube, BoneJ developers
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.bonej.plugins;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bonej.util.Multithreader;
+
+import Jama.EigenvalueDecomposition;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+
+/**
+ * Per-particle voxel count, centroid, bounding box limits, second moments and
+ * intensity statistics, collected in a single parallel pass over the particle
+ * labels.
+ * <p>
+ * Each thread keeps its own accumulators, which are merged when all threads
+ * have finished. Coordinates are accumulated relative to the first voxel each
+ * thread finds in a particle, and intensities relative to the first positive
+ * intensity, which keeps the sums small and free of cancellation. Partial
+ * results are merged with the parallel axis theorem, as in Chan et al.'s
+ * pairwise variance algorithm. Per-thread accumulators are held in
+ * {@link ParticleTable} slots, so that images with many more particles than
+ * voxels per thread do not need a dense table per thread.
+ * </p>
+ * <p>
+ * The results match those of separate passes for the bounding boxes, the
+ * inertia tensors about the centroids and the intensities to within floating
+ * point rounding.
+ * </p>
+ *
+ * @author Michael Doube
+ */
+final class ParticleStatistics {
+
+	/** number of particle labels including the background */
+	private final int nParticles;
+
+	/** voxel count of each particle */
+	private final long[] counts;
+
+	/** mean x, y and z of each particle in pixel units, or null */
+	private final double[] means;
+
+	/**
+	 * xx, yy, zz, xy, xz and yz sums of squared deviations from the mean of each
+	 * particle, in pixel units, or null
+	 */
+	private final double[] moments;
+
+	/**
+	 * x min, x max, y min, y max, z min and z max of each particle, or null
+	 */
+	private final int[] limits;
+
+	/** number of positive intensity voxels in each particle, or null */
+	private final long[] intensityCounts;
+
+	/** mean of the positive intensities in each particle, or null */
+	private final double[] intensityMeans;
+
+	/** sum of squared deviations of the positive intensities, or null */
+	private final double[] intensityDeviations;
+
+	/** maximum positive intensity in each particle, or null */
+	private final double[] intensityMax;
+
+	private ParticleStatistics(final Accumulator merged) {
+		nParticles = merged.counts.length;
+		counts = merged.counts;
+		means = merged.sums;
+		moments = merged.squares;
+		limits = merged.limits;
+		intensityCounts = merged.intensityCounts;
+		intensityMeans = merged.intensitySums;
+		intensityDeviations = merged.intensitySquares;
+		intensityMax = merged.intensityMax;
+	}
+
+	/**
+	 * Collect the statistics of all particles in one pass
+	 *
+	 * @param imp input image, used for its dimensions
+	 * @param particleLabels particle label array
+	 * @param nParticles number of particle labels including the background
+	 * @param intensityImp image holding the intensities to summarise, with the
+	 *          same dimensions as imp, or null to skip intensity statistics
+	 * @return statistics of all particles
+	 */
+	static ParticleStatistics accumulate(final ImagePlus imp,
+		final int[][] particleLabels, final int nParticles,
+		final ImagePlus intensityImp)
+	{
+		return accumulate(imp, particleLabels, nParticles, intensityImp,
+			ParticleTable.AUTO);
+	}
+
+	/**
+	 * Collect the statistics of all particles in one pass, in a pool
+	 *
+	 * @param imp input image, used for its dimensions
+	 * @param particleLabels particle label array
+	 * @param nParticles number of particle labels including the background
+	 * @param intensityImp image holding the intensities to summarise, or null
+	 * @param pool pool to run the pass in, or null to start threads
+	 * @return statistics of all particles
+	 */
+	static ParticleStatistics accumulate(final ImagePlus imp,
+		final int[][] particleLabels, final int nParticles,
+		final ImagePlus intensityImp, final ForkJoinPool pool)
+	{
+		return accumulate(imp, particleLabels, nParticles, intensityImp,
+			ParticleTable.AUTO, true, pool);
+	}
+
+	/**
+	 * Collect only the voxel counts and intensity statistics of all particles in
+	 * one pass, for intensities which become available after the particles'
+	 * geometry has been measured, such as a thickness map
+	 *
+	 * @param imp input image, used for its dimensions
+	 * @param particleLabels particle label array
+	 * @param nParticles number of particle labels including the background
+	 * @param intensityImp image holding the intensities to summarise, with the
+	 *          same dimensions as imp
+	 * @param pool pool to run the pass in, or null to start threads
+	 * @return counts and intensity statistics of all particles
+	 */
+	static ParticleStatistics accumulateIntensities(final ImagePlus imp,
+		final int[][] particleLabels, final int nParticles,
+		final ImagePlus intensityImp, final ForkJoinPool pool)
+	{
+		return accumulate(imp, particleLabels, nParticles, intensityImp,
+			ParticleTable.AUTO, false, pool);
+	}
+
+	/**
+	 * Collect the statistics of all particles in one pass, with a choice of
+	 * per-thread table
+	 *
+	 * @param imp input image, used for its dimensions
+	 * @param particleLabels particle label array
+	 * @param nParticles number of particle labels including the background
+	 * @param intensityImp image holding the intensities to summarise, or null
+	 * @param tableMode {@link ParticleTable#AUTO}, {@link ParticleTable#DENSE}
+	 *          or {@link ParticleTable#SPARSE}
+	 * @return statistics of all particles
+	 */
+	static ParticleStatistics accumulate(final ImagePlus imp,
+		final int[][] particleLabels, final int nParticles,
+		final ImagePlus intensityImp, final int tableMode)
+	{
+		return accumulate(imp, particleLabels, nParticles, intensityImp,
+			tableMode, true, null);
+	}
+
+	private static ParticleStatistics accumulate(final ImagePlus imp,
+		final int[][] particleLabels, final int nParticles,
+		final ImagePlus intensityImp, final int tableMode,
+		final boolean doGeometry, final ForkJoinPool pool)
+	{
+		final int w = imp.getWidth();
+		final int h = imp.getHeight();
+		final int d = particleLabels.length;
+		final ImageStack intensities = intensityImp == null ? null : intensityImp
+			.getImageStack();
+		final boolean doIntensity = intensities != null;
+
+		final AtomicInteger ai = new AtomicInteger(0);
+		final Thread[] threads = Multithreader.newThreads();
+		final Accumulator[] accumulators = new Accumulator[threads.length];
+		final long voxelsPerThread = (long) w * h * d / threads.length;
+		for (int thread = 0; thread < threads.length; thread++) {
+			final Accumulator acc = new Accumulator(new ParticleTable(nParticles,
+				voxelsPerThread, tableMode), doGeometry, doIntensity);
+			accumulators[thread] = acc;
+			threads[thread] = new Thread(() -> {
+				for (int z = ai.getAndIncrement(); z < d; z = ai.getAndIncrement()) {
+					final int[] slice = particleLabels[z];
+					final float[] pixels = doIntensity ? floatPixels(intensities, z +
+						1) : null;
+					for (int y = 0; y < h; y++) {
+						final int index = y * w;
+						for (int x = 0; x < w; x++) {
+							final int p = slice[index + x];
+							if (p == 0) continue;
+							final int slot = doGeometry ? acc.addVoxel(p, x, y, z) : acc
+								.addCount(p);
+							if (doIntensity) {
+								final double value = pixels[index + x];
+								if (value > 0) acc.addIntensity(slot, value);
+							}
+						}
+					}
+				}
+			});
+		}
+		Multithreader.startAndJoin(threads, pool);
+
+		// merge into a dense accumulator, reusing the first if it is dense
+		final boolean firstDense = accumulators[0].table.isDense();
+		final Accumulator merged = firstDense ? accumulators[0].toCentral()
+			: new Accumulator(new ParticleTable(nParticles, 0, ParticleTable.DENSE),
+				doGeometry, doIntensity);
+		for (int i = firstDense ? 1 : 0; i < accumulators.length; i++) {
+			merged.merge(accumulators[i].toCentral());
+			accumulators[i] = null;
+		}
+		return new ParticleStatistics(merged);
+	}
+
+	/**
+	 * @return voxel count of each particle
+	 */
+	long[] getCounts() {
+		return counts.clone();
+	}
+
+	/**
+	 * @param cal calibration of the image
+	 * @return centroid of each particle in calibrated units
+	 */
+	double[][] getCentroids(final Calibration cal) {
+		checkGeometry();
+		final double[][] centroids = new double[nParticles][3];
+		for (int p = 1; p < nParticles; p++) {
+			final int p3 = 3 * p;
+			if (counts[p] == 0) {
+				centroids[p][0] = Double.NaN;
+				centroids[p][1] = Double.NaN;
+				centroids[p][2] = Double.NaN;
+				continue;
+			}
+			centroids[p][0] = cal.pixelWidth * means[p3];
+			centroids[p][1] = cal.pixelHeight * means[p3 + 1];
+			centroids[p][2] = cal.pixelDepth * means[p3 + 2];
+		}
+		return centroids;
+	}
+
+	/**
+	 * @return x min, x max, y min, y max, z min and z max of each particle in
+	 *         pixel units
+	 */
+	int[][] getLimits() {
+		checkGeometry();
+		final int[][] particleLimits = new int[nParticles][6];
+		for (int p = 1; p < nParticles; p++) {
+			System.arraycopy(limits, 6 * p, particleLimits[p], 0, 6);
+		}
+		return particleLimits;
+	}
+
+	/**
+	 * Get the moments of inertia of each particle about its centroid, treating
+	 * each voxel as a cuboid of uniform density
+	 *
+	 * @param cal calibration of the image
+	 * @return Ixx, Iyy, Izz, Ixy, Ixz and Iyz of each particle
+	 */
+	double[][] getMomentTensors(final Calibration cal) {
+		checkGeometry();
+		final double vW = cal.pixelWidth;
+		final double vH = cal.pixelHeight;
+		final double vD = cal.pixelDepth;
+		final double voxVhVd = (vH * vH + vD * vD) / 12;
+		final double voxVwVd = (vW * vW + vD * vD) / 12;
+		final double voxVhVw = (vH * vH + vW * vW) / 12;
+		final double[][] tensors = new double[nParticles][6];
+		for (int p = 1; p < nParticles; p++) {
+			final int p6 = 6 * p;
+			final double n = counts[p];
+			final double xx = vW * vW * moments[p6];
+			final double yy = vH * vH * moments[p6 + 1];
+			final double zz = vD * vD * moments[p6 + 2];
+			tensors[p][0] = yy + zz + n * voxVhVd;
+			tensors[p][1] = xx + zz + n * voxVwVd;
+			tensors[p][2] = yy + xx + n * voxVhVw;
+			tensors[p][3] = vW * vH * moments[p6 + 3];
+			tensors[p][4] = vW * vD * moments[p6 + 4];
+			tensors[p][5] = vH * vD * moments[p6 + 5];
+		}
+		return tensors;
+	}
+
+	/**
+	 * @param cal calibration of the image
+	 * @return eigenvalue decomposition of each particle's inertia tensor
+	 */
+	EigenvalueDecomposition[] getEigens(final Calibration cal) {
+		return ParticleAnalysis.getEigens(getMomentTensors(cal));
+	}
+
+	/**
+	 * Get the sum and sum of squares of the positive intensities in each particle
+	 *
+	 * @return sum and sum of squares of each particle's positive intensities
+	 * @throws IllegalStateException if no intensity image was given
+	 */
+	double[][] getIntensitySums() {
+		checkIntensity();
+		final double[][] sums = new double[nParticles][2];
+		for (int p = 1; p < nParticles; p++) {
+			final double k = intensityCounts[p];
+			final double mean = intensityMeans[p];
+			sums[p][0] = k * mean;
+			sums[p][1] = intensityDeviations[p] + k * mean * mean;
+		}
+		return sums;
+	}
+
+	/**
+	 * Get the mean, standard deviation and maximum of the positive intensities in
+	 * each particle. The mean and standard deviation are normalised by the
+	 * particle's voxel count, including voxels whose intensity is not positive.
+	 *
+	 * @return mean, standard deviation and maximum of each particle
+	 * @throws IllegalStateException if no intensity image was given
+	 */
+	double[][] getMeanStdDev() {
+		checkIntensity();
+		final double[][] meanStdDev = new double[nParticles][3];
+		for (int p = 1; p < nParticles; p++) {
+			final double k = intensityCounts[p];
+			final double mean = k * intensityMeans[p] / counts[p];
+			final double offset = intensityMeans[p] - mean;
+			final double squares = intensityDeviations[p] + k * offset * offset;
+			meanStdDev[p][0] = mean;
+			meanStdDev[p][1] = Math.sqrt(squares / counts[p]);
+			meanStdDev[p][2] = intensityMax[p];
+		}
+		return meanStdDev;
+	}
+
+	private void checkGeometry() {
+		if (means == null) {
+			throw new IllegalStateException(
+				"Only intensity statistics were collected");
+		}
+	}
+
+	private void checkIntensity() {
+		if (intensityCounts == null) {
+			throw new IllegalStateException(
+				"No intensity image was given when collecting the statistics");
+		}
+	}
+
+	/**
+	 * Get the pixels of a slice as a float array, converting if needed
+	 *
+	 * @param stack an image stack
+	 * @param n slice number, starting at 1
+	 * @return the slice's pixel values
+	 */
+	private static float[] floatPixels(final ImageStack stack, final int n) {
+		final Object pixels = stack.getPixels(n);
+		if (pixels instanceof float[]) return (float[]) pixels;
+		return (float[]) stack.getProcessor(n).convertToFloatProcessor()
+			.getPixels();
+	}
+
+	/**
+	 * One thread's sums, held in the slots of a {@link ParticleTable}. While
+	 * accumulating, the sums are relative to a reference voxel and intensity per
+	 * particle; after {@link #toCentral()} they hold means and sums of squared
+	 * deviations from the means.
+	 */
+	private static final class Accumulator {
+
+		private final ParticleTable table;
+		private final boolean doGeometry;
+		private final boolean doIntensity;
+		private int capacity;
+		private long[] counts;
+		private int[] reference;
+		private double[] sums;
+		private double[] squares;
+		private int[] limits;
+		private long[] intensityCounts;
+		private double[] intensityReference;
+		private double[] intensitySums;
+		private double[] intensitySquares;
+		private double[] intensityMax;
+
+		private Accumulator(final ParticleTable table, final boolean doGeometry,
+			final boolean doIntensity)
+		{
+			this.table = table;
+			this.doGeometry = doGeometry;
+			this.doIntensity = doIntensity;
+			resize(table.size());
+		}
+
+		/**
+		 * Allocate or grow the arrays to hold the given number of slots
+		 *
+		 * @param newCapacity number of slots
+		 */
+		private void resize(final int newCapacity) {
+			final int oldCapacity = capacity;
+			counts = counts == null ? new long[newCapacity] : Arrays.copyOf(counts,
+				newCapacity);
+			if (doGeometry) {
+				reference = grow(reference, 3 * newCapacity);
+				sums = grow(sums, 3 * newCapacity);
+				squares = grow(squares, 6 * newCapacity);
+				limits = grow(limits, 6 * newCapacity);
+				for (int s = oldCapacity; s < newCapacity; s++) {
+					final int s6 = 6 * s;
+					limits[s6] = Integer.MAX_VALUE; // x min
+					limits[s6 + 2] = Integer.MAX_VALUE; // y min
+					limits[s6 + 4] = Integer.MAX_VALUE; // z min
+				}
+			}
+			if (doIntensity) {
+				intensityCounts = intensityCounts == null ? new long[newCapacity]
+					: Arrays.copyOf(intensityCounts, newCapacity);
+				intensityReference = grow(intensityReference, newCapacity);
+				intensitySums = grow(intensitySums, newCapacity);
+				intensitySquares = grow(intensitySquares, newCapacity);
+				intensityMax = grow(intensityMax, newCapacity);
+			}
+			capacity = newCapacity;
+		}
+
+		private static int[] grow(final int[] array, final int length) {
+			return array == null ? new int[length] : Arrays.copyOf(array, length);
+		}
+
+		private static double[] grow(final double[] array, final int length) {
+			return array == null ? new double[length] : Arrays.copyOf(array,
+				length);
+		}
+
+		/**
+		 * Add a voxel to a particle
+		 *
+		 * @return the particle's slot
+		 */
+		private int addVoxel(final int p, final int x, final int y, final int z) {
+			final int s = table.slot(p);
+			if (s >= capacity) resize(table.grow(capacity));
+			final int s3 = 3 * s;
+			final int s6 = 6 * s;
+			if (counts[s]++ == 0) {
+				reference[s3] = x;
+				reference[s3 + 1] = y;
+				reference[s3 + 2] = z;
+			}
+			final double dx = x - reference[s3];
+			final double dy = y - reference[s3 + 1];
+			final double dz = z - reference[s3 + 2];
+			sums[s3] += dx;
+			sums[s3 + 1] += dy;
+			sums[s3 + 2] += dz;
+			squares[s6] += dx * dx;
+			squares[s6 + 1] += dy * dy;
+			squares[s6 + 2] += dz * dz;
+			squares[s6 + 3] += dx * dy;
+			squares[s6 + 4] += dx * dz;
+			squares[s6 + 5] += dy * dz;
+			if (x < limits[s6]) limits[s6] = x;
+			if (x > limits[s6 + 1]) limits[s6 + 1] = x;
+			if (y < limits[s6 + 2]) limits[s6 + 2] = y;
+			if (y > limits[s6 + 3]) limits[s6 + 3] = y;
+			if (z < limits[s6 + 4]) limits[s6 + 4] = z;
+			if (z > limits[s6 + 5]) limits[s6 + 5] = z;
+			return s;
+		}
+
+		/**
+		 * Count a voxel of a particle without its position
+		 *
+		 * @return the particle's slot
+		 */
+		private int addCount(final int p) {
+			final int s = table.slot(p);
+			if (s >= capacity) resize(table.grow(capacity));
+			counts[s]++;
+			return s;
+		}
+
+		/**
+		 * Add a positive intensity to the particle in a slot
+		 */
+		private void addIntensity(final int s, final double value) {
+			if (intensityCounts[s]++ == 0) intensityReference[s] = value;
+			final double dv = value - intensityReference[s];
+			intensitySums[s] += dv;
+			intensitySquares[s] += dv * dv;
+			if (value > intensityMax[s]) intensityMax[s] = value;
+		}
+
+		/**
+		 * Convert the sums about the reference to means and sums of squared
+		 * deviations from the means
+		 *
+		 * @return this accumulator
+		 */
+		private Accumulator toCentral() {
+			final int size = table.size();
+			for (int s = 0; s < size; s++) {
+				final double n = counts[s];
+				if (n == 0) continue;
+				if (doGeometry) {
+					final int s3 = 3 * s;
+					final int s6 = 6 * s;
+					final double sx = sums[s3];
+					final double sy = sums[s3 + 1];
+					final double sz = sums[s3 + 2];
+					squares[s6] -= sx * sx / n;
+					squares[s6 + 1] -= sy * sy / n;
+					squares[s6 + 2] -= sz * sz / n;
+					squares[s6 + 3] -= sx * sy / n;
+					squares[s6 + 4] -= sx * sz / n;
+					squares[s6 + 5] -= sy * sz / n;
+					sums[s3] = reference[s3] + sx / n;
+					sums[s3 + 1] = reference[s3 + 1] + sy / n;
+					sums[s3 + 2] = reference[s3 + 2] + sz / n;
+				}
+				if (doIntensity && intensityCounts[s] > 0) {
+					final double k = intensityCounts[s];
+					final double sv = intensitySums[s];
+					intensitySquares[s] -= sv * sv / k;
+					intensitySums[s] = intensityReference[s] + sv / k;
+				}
+			}
+			return this;
+		}
+
+		/**
+		 * Merge another thread's central sums into this dense accumulator's
+		 * central sums, using the parallel axis theorem
+		 *
+		 * @param other accumulator after {@link #toCentral()}
+		 */
+		private void merge(final Accumulator other) {
+			final int size = other.table.size();
+			for (int t = 0; t < size; t++) {
+				final long nB = other.counts[t];
+				if (nB == 0) continue;
+				final int p = other.table.label(t);
+				final int p3 = 3 * p;
+				final int p6 = 6 * p;
+				final int t3 = 3 * t;
+				final int t6 = 6 * t;
+				final long nA = counts[p];
+				if (nA == 0) {
+					copySlot(other, t, p);
+					continue;
+				}
+				counts[p] = nA + nB;
+				if (doIntensity) mergeIntensity(other, t, p);
+				if (!doGeometry) continue;
+				final double n = nA + nB;
+				final double weight = (double) nA * nB / n;
+				final double dx = other.sums[t3] - sums[p3];
+				final double dy = other.sums[t3 + 1] - sums[p3 + 1];
+				final double dz = other.sums[t3 + 2] - sums[p3 + 2];
+				squares[p6] += other.squares[t6] + dx * dx * weight;
+				squares[p6 + 1] += other.squares[t6 + 1] + dy * dy * weight;
+				squares[p6 + 2] += other.squares[t6 + 2] + dz * dz * weight;
+				squares[p6 + 3] += other.squares[t6 + 3] + dx * dy * weight;
+				squares[p6 + 4] += other.squares[t6 + 4] + dx * dz * weight;
+				squares[p6 + 5] += other.squares[t6 + 5] + dy * dz * weight;
+				sums[p3] += dx * nB / n;
+				sums[p3 + 1] += dy * nB / n;
+				sums[p3 + 2] += dz * nB / n;
+				limits[p6] = Math.min(limits[p6], other.limits[t6]);
+				limits[p6 + 1] = Math.max(limits[p6 + 1], other.limits[t6 + 1]);
+				limits[p6 + 2] = Math.min(limits[p6 + 2], other.limits[t6 + 2]);
+				limits[p6 + 3] = Math.max(limits[p6 + 3], other.limits[t6 + 3]);
+				limits[p6 + 4] = Math.min(limits[p6 + 4], other.limits[t6 + 4]);
+				limits[p6 + 5] = Math.max(limits[p6 + 5], other.limits[t6 + 5]);
+			}
+		}
+
+		private void mergeIntensity(final Accumulator other, final int t,
+			final int p)
+		{
+			final long kB = other.intensityCounts[t];
+			if (kB == 0) return;
+			final long kA = intensityCounts[p];
+			intensityMax[p] = Math.max(intensityMax[p], other.intensityMax[t]);
+			if (kA == 0) {
+				intensityCounts[p] = kB;
+				intensitySums[p] = other.intensitySums[t];
+				intensitySquares[p] = other.intensitySquares[t];
+				return;
+			}
+			final double k = kA + kB;
+			final double dv = other.intensitySums[t] - intensitySums[p];
+			intensitySquares[p] += other.intensitySquares[t] + dv * dv * kA * kB /
+				k;
+			intensitySums[p] += dv * kB / k;
+			intensityCounts[p] = kA + kB;
+		}
+
+		private void copySlot(final Accumulator other, final int t, final int p) {
+			counts[p] = other.counts[t];
+			if (doGeometry) {
+				System.arraycopy(other.sums, 3 * t, sums, 3 * p, 3);
+				System.arraycopy(other.squares, 6 * t, squares, 6 * p, 6);
+				System.arraycopy(other.limits, 6 * t, limits, 6 * p, 6);
+			}
+			if (doIntensity) {
+				intensityCounts[p] = other.intensityCounts[t];
+				intensitySums[p] = other.intensitySums[t];
+				intensitySquares[p] = other.intensitySquares[t];
+				intensityMax[p] = other.intensityMax[t];
+			}
+		}
+	}
+}
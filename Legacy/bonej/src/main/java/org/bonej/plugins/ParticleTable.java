@@ -0,0 +1,172 @@
+/*-
+ * #%L
+ * Mavenized version of the BoneJ1 plugins
+ * %%
+ * Copyright (C) 2015 - 2020 Michael Doube, BoneJ developers
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.bonej.plugins;
+
+import java.util.Arrays;
+
+import org.eclipse.collections.impl.map.mutable.primitive.IntIntHashMap;
+
+/**
+ * Maps particle labels to slots in a thread's accumulator arrays.
+ * <p>
+ * A dense table uses the label as the slot, so accumulators need one entry per
+ * particle in the image. When there are many more particles than voxels a
+ * thread will visit, a sparse table hands out consecutive slots only to the
+ * labels it actually meets, via a primitive open-addressing map, and the
+ * accumulators grow as needed.
+ * </p>
+ * <p>
+ * A table is not thread safe; each thread should own its own.
+ * </p>
+ *
+ * @author Michael Doube
+ */
+final class ParticleTable {
+
+	/** Choose dense or sparse from the particle and voxel counts */
+	static final int AUTO = 0;
+
+	/** Always use one slot per particle label */
+	static final int DENSE = 1;
+
+	/** Always use slots only for the labels met */
+	static final int SPARSE = 2;
+
+	/** Dense tables up to this many particles are always cheap enough */
+	static final int DENSE_PARTICLES = 1 << 16;
+
+	/**
+	 * Minimum average number of voxels visited per particle for a larger dense
+	 * table to be worth its memory
+	 */
+	static final int VOXELS_PER_DENSE_SLOT = 16;
+
+	/** initial number of slots in a sparse table */
+	private static final int INITIAL_SLOTS = 1024;
+
+	/** label to slot map, null when dense */
+	private final IntIntHashMap slots;
+
+	/** label of each slot, null when dense */
+	private int[] labels;
+
+	/** number of slots in use */
+	private int size;
+
+	/** most recently looked up label and its slot */
+	private int lastLabel = -1;
+	private int lastSlot = -1;
+
+	/**
+	 * Create a table
+	 *
+	 * @param nParticles number of particle labels including the background
+	 * @param voxels number of voxels the owning thread is expected to visit
+	 * @param mode {@link #AUTO}, {@link #DENSE} or {@link #SPARSE}
+	 * @throws IllegalArgumentException if the mode is unknown
+	 */
+	ParticleTable(final int nParticles, final long voxels, final int mode) {
+		final boolean dense;
+		switch (mode) {
+			case AUTO:
+				dense = nParticles <= DENSE_PARTICLES ||
+					nParticles <= voxels / VOXELS_PER_DENSE_SLOT;
+				break;
+			case DENSE:
+				dense = true;
+				break;
+			case SPARSE:
+				dense = false;
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown table mode: " + mode);
+		}
+		if (dense) {
+			slots = null;
+			size = nParticles;
+		}
+		else {
+			slots = new IntIntHashMap(INITIAL_SLOTS);
+			labels = new int[INITIAL_SLOTS];
+		}
+	}
+
+	/**
+	 * @return true if slots are particle labels
+	 */
+	boolean isDense() {
+		return slots == null;
+	}
+
+	/**
+	 * @return number of slots in use, which accumulators must hold
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Get the slot of a label, giving it the next free slot if it has none yet
+	 *
+	 * @param label particle label
+	 * @return the label's slot
+	 */
+	int slot(final int label) {
+		if (slots == null) return label;
+		if (label == lastLabel) return lastSlot;
+		final int slot = slots.getIfAbsentPut(label, size);
+		if (slot == size) {
+			if (size == labels.length) labels = Arrays.copyOf(labels, 2 * size);
+			labels[size++] = label;
+		}
+		lastLabel = label;
+		lastSlot = slot;
+		return slot;
+	}
+
+	/**
+	 * @param slot a slot in use
+	 * @return the label held in the slot
+	 */
+	int label(final int slot) {
+		return slots == null ? slot : labels[slot];
+	}
+
+	/**
+	 * Number of slots to allocate so that an accumulator of the given capacity
+	 * can hold {@link #size()} slots, growing geometrically
+	 *
+	 * @param capacity current accumulator capacity
+	 * @return new capacity, at least {@link #size()}
+	 */
+	int grow(final int capacity) {
+		return Math.max(size, (int) Math.min(Integer.MAX_VALUE - 8, 2L *
+			capacity));
+	}
+}
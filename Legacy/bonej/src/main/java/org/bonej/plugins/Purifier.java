@@ -0,0 +1,591 @@
+/*-
+ * #%L
+ * Mavenized version of the BoneJ1 plugins
+ * %%
+ * Copyright (C) 2015 - 2020 Michael Doube, BoneJ developers
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package org.bonej.plugins;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import ij.IJ;
+import ij.Prefs;
+
+/**
+ * <p>
+ * Purifies a binary work array with a single labelling sweep. Foreground
+ * (26-connected) and background (6-connected) pixels are labelled in the
+ * same pass, which also counts each label's pixels, notes whether it touches
+ * the sides of the image and records which foreground and background labels
+ * share a face.
+ * </p>
+ * <p>
+ * Removing the small foreground particles joins each of them to the
+ * background particles it shares a face with, so the background particles of
+ * the half-purified image, and their sizes and side contacts, follow from
+ * those contacts without labelling the image again. The work array is then
+ * rewritten in one final pass: the largest foreground particle and every
+ * background particle except the largest and those touching the sides
+ * become foreground, and everything else becomes background. The result is
+ * the same as labelling the foreground, removing all but its largest
+ * particle, and then labelling the background of that half-purified image.
+ * </p>
+ * <p>
+ * Slices are labelled in chunks that run as tasks in a work-stealing pool,
+ * and the chunks are stitched together at their first slices, as in
+ * {@link ConnectedComponents}. Only one label per pixel is needed, and the
+ * labels may be held in a file by a {@link MappedSliceLabels} store, in which
+ * case each running chunk copies two slices of labels into the heap.
+ * </p>
+ *
+ * @author Michael Doube
+ */
+final class Purifier {
+
+	private static final byte FORE = (byte) ConnectedComponents.FORE;
+	private static final byte BACK = (byte) ConnectedComponents.BACK;
+
+	private Purifier() {}
+
+	/**
+	 * Purify a work array in place
+	 *
+	 * @param workArray binary work array, FORE or BACK, one byte[] per slice
+	 * @param labels label buffer with the same dimensions as the work array.
+	 *          Its contents on entry are ignored and on return are undefined.
+	 * @param w image width
+	 * @param h image height
+	 * @return false if there is no foreground, in which case the work array is
+	 *         unchanged
+	 */
+	static boolean purify(final byte[][] workArray, final int[][] labels,
+		final int w, final int h)
+	{
+		return purify(workArray, SliceLabels.onHeap(labels), w, h);
+	}
+
+	/**
+	 * Purify a work array in place
+	 *
+	 * @param workArray binary work array, FORE or BACK, one byte[] per slice
+	 * @param labels label store with the same dimensions as the work array.
+	 *          Its contents on entry are ignored and on return are undefined.
+	 * @param w image width
+	 * @param h image height
+	 * @return false if there is no foreground, in which case the work array is
+	 *         unchanged
+	 */
+	static boolean purify(final byte[][] workArray, final SliceLabels labels,
+		final int w, final int h)
+	{
+		final int nThreads = Prefs.getThreads();
+		final ForkJoinPool pool = new ForkJoinPool(nThreads);
+		try {
+			return purify(workArray, labels, w, h, planChunks(workArray.length,
+				nThreads), pool);
+		}
+		finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Purify a work array in place, labelling the given chunks of slices in a
+	 * pool
+	 *
+	 * @param workArray binary work array, FORE or BACK, one byte[] per slice
+	 * @param labels label buffer with the same dimensions as the work array
+	 * @param w image width
+	 * @param h image height
+	 * @param startSlices first slice of each chunk, starting at 0 and strictly
+	 *          increasing
+	 * @param pool pool to label the chunks in
+	 * @return false if there is no foreground, in which case the work array is
+	 *         unchanged
+	 */
+	static boolean purify(final byte[][] workArray, final int[][] labels,
+		final int w, final int h, final int[] startSlices, final ForkJoinPool pool)
+	{
+		return purify(workArray, SliceLabels.onHeap(labels), w, h, startSlices,
+			pool);
+	}
+
+	/**
+	 * Purify a work array in place, labelling the given chunks of slices in a
+	 * pool
+	 *
+	 * @param workArray binary work array, FORE or BACK, one byte[] per slice
+	 * @param labels label store with the same dimensions as the work array
+	 * @param w image width
+	 * @param h image height
+	 * @param startSlices first slice of each chunk, starting at 0 and strictly
+	 *          increasing
+	 * @param pool pool to label the chunks in
+	 * @return false if there is no foreground, in which case the work array is
+	 *         unchanged
+	 */
+	static boolean purify(final byte[][] workArray, final SliceLabels labels,
+		final int w, final int h, final int[] startSlices, final ForkJoinPool pool)
+	{
+		final int d = workArray.length;
+		final int nChunks = startSlices.length;
+
+		// label each chunk independently with chunk-local labels, then compact
+		// each chunk's labels to one label per chunk-local component
+		IJ.showStatus("Purify: labelling");
+		final Chunk[] chunks = new Chunk[nChunks];
+		final List<ForkJoinTask<?>> tasks = new ArrayList<>(nChunks);
+		for (int c = 0; c < nChunks; c++) {
+			final int chunk = c;
+			final int startSlice = startSlices[chunk];
+			final int endSlice = chunk + 1 < nChunks ? startSlices[chunk + 1] - 1
+				: d - 1;
+			tasks.add(ForkJoinTask.adapt(() -> {
+				final Chunk ch = new Chunk(startSlice, endSlice, w, h);
+				ch.label(workArray, labels, w, h, d);
+				ch.compact();
+				chunks[chunk] = ch;
+			}));
+		}
+		pool.invoke(ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(tasks)));
+
+		// give each chunk's components an offset so that they are unique
+		final int[] offsets = new int[nChunks];
+		long nChunkComponents = 0;
+		for (int c = 0; c < nChunks; c++) {
+			offsets[c] = (int) nChunkComponents;
+			nChunkComponents += chunks[c].nComponents;
+			if (nChunkComponents >= ConnectedComponents.MAX_LABEL) {
+				throw new IllegalArgumentException("ID " + nChunkComponents +
+					" is greater than the allowed range (max " +
+					(ConnectedComponents.MAX_LABEL - 1) + ")");
+			}
+		}
+		final int nGlobal = (int) nChunkComponents + 1;
+		final IntUnionFind forest = new IntUnionFind(nGlobal);
+		for (int i = 0; i < nGlobal; i++) {
+			forest.makeSet();
+		}
+		final long[] sizes = new long[nGlobal];
+		final boolean[] edges = new boolean[nGlobal];
+		final boolean[] fore = new boolean[nGlobal];
+		final PairSet contacts = new PairSet();
+		for (int c = 0; c < nChunks; c++) {
+			final Chunk chunk = chunks[c];
+			final int offset = offsets[c];
+			for (int i = 1; i <= chunk.nComponents; i++) {
+				sizes[offset + i] = chunk.counts[i];
+				edges[offset + i] = chunk.edges[i];
+				fore[offset + i] = chunk.fore[i];
+			}
+			final int[] compactLut = chunk.compactLut;
+			for (final long pair : chunk.contacts.toArray()) {
+				contacts.add(PairSet.pack(compactLut[PairSet.first(pair)] + offset,
+					compactLut[PairSet.second(pair)] + offset));
+			}
+			chunk.contacts = null;
+		}
+
+		// stitch each chunk's first slice to the last slice of the prior chunk
+		for (int c = 1; c < nChunks; c++) {
+			final int z = startSlices[c];
+			final int offset = offsets[c];
+			final int priorOffset = offsets[c - 1];
+			final int[] compactLut = chunks[c].compactLut;
+			final int[] priorCompactLut = chunks[c - 1].compactLut;
+			final byte[] slice = workArray[z];
+			final byte[] below = workArray[z - 1];
+			final int[] sliceLabels = labels.get(z, null);
+			final int[] belowLabels = labels.get(z - 1, null);
+			for (int y = 0; y < h; y++) {
+				for (int x = 0; x < w; x++) {
+					final int i = y * w + x;
+					final int label = compactLut[sliceLabels[i]] + offset;
+					if (slice[i] == FORE) {
+						for (int ny = Math.max(0, y - 1); ny <= Math.min(h - 1, y + 1); ny++) {
+							for (int nx = Math.max(0, x - 1); nx <= Math.min(w - 1, x + 1); nx++) {
+								final int j = ny * w + nx;
+								if (below[j] == FORE) {
+									forest.union(label, priorCompactLut[belowLabels[j]] + priorOffset);
+								}
+							}
+						}
+					}
+					final int belowLabel = priorCompactLut[belowLabels[i]] + priorOffset;
+					if (below[i] == slice[i]) {
+						if (slice[i] != FORE) forest.union(label, belowLabel);
+					}
+					else if (slice[i] == FORE) {
+						contacts.add(PairSet.pack(label, belowLabel));
+					}
+					else {
+						contacts.add(PairSet.pack(belowLabel, label));
+					}
+				}
+			}
+		}
+
+		// find the largest foreground particle, first in raster order among
+		// equals, because labels ascend with the raster order of first pixels
+		final long[] setSizes = new long[nGlobal];
+		for (int i = 1; i < nGlobal; i++) {
+			setSizes[forest.find(i)] += sizes[i];
+		}
+		int largest = 0;
+		long max = 0;
+		for (int i = 1; i < nGlobal; i++) {
+			final int root = forest.find(i);
+			if (fore[i] && setSizes[root] > max) {
+				max = setSizes[root];
+				largest = root;
+			}
+		}
+		if (largest == 0) return false;
+
+		// background particles of the half-purified image: background sets
+		// joined to the removed foreground particles that they share a face with
+		IJ.showStatus("Purify: joining background");
+		final IntUnionFind background = new IntUnionFind(nGlobal);
+		for (int i = 0; i < nGlobal; i++) {
+			background.makeSet();
+		}
+		for (int i = 1; i < nGlobal; i++) {
+			final int root = forest.find(i);
+			if (root != largest) background.union(i, root);
+		}
+		for (final long pair : contacts.toArray()) {
+			final int foreLabel = PairSet.first(pair);
+			if (forest.find(foreLabel) != largest) {
+				background.union(foreLabel, PairSet.second(pair));
+			}
+		}
+		final long[] backgroundSizes = new long[nGlobal];
+		final boolean[] backgroundEdges = new boolean[nGlobal];
+		for (int i = 1; i < nGlobal; i++) {
+			if (forest.find(i) == largest) continue;
+			final int root = background.find(i);
+			backgroundSizes[root] += sizes[i];
+			backgroundEdges[root] |= edges[i];
+		}
+		int largestBackground = -1;
+		max = 0;
+		for (int i = 1; i < nGlobal; i++) {
+			if (forest.find(i) == largest) continue;
+			final int root = background.find(i);
+			if (backgroundSizes[root] > max) {
+				max = backgroundSizes[root];
+				largestBackground = root;
+			}
+		}
+
+		// the largest background particle and those touching the sides stay
+		// background, and everything else becomes foreground
+		final boolean[] toFore = new boolean[nGlobal];
+		for (int i = 1; i < nGlobal; i++) {
+			if (forest.find(i) == largest) {
+				toFore[i] = true;
+				continue;
+			}
+			final int root = background.find(i);
+			toFore[i] = root != largestBackground && !backgroundEdges[root];
+		}
+
+		// rewrite the work array
+		IJ.showStatus("Purify: rewriting");
+		final List<ForkJoinTask<?>> lutTasks = new ArrayList<>(nChunks);
+		for (int c = 0; c < nChunks; c++) {
+			final Chunk chunk = chunks[c];
+			final int offset = offsets[c];
+			final int[] compactLut = chunk.compactLut;
+			lutTasks.add(ForkJoinTask.adapt(() -> {
+				int[] sliceLabels = null;
+				for (int z = chunk.startSlice; z <= chunk.endSlice; z++) {
+					final byte[] slice = workArray[z];
+					sliceLabels = labels.get(z, sliceLabels);
+					final int l = slice.length;
+					for (int i = 0; i < l; i++) {
+						slice[i] = toFore[compactLut[sliceLabels[i]] + offset] ? FORE : BACK;
+					}
+				}
+			}));
+		}
+		pool.invoke(ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(lutTasks)));
+		return true;
+	}
+
+	/**
+	 * Split the slices into chunks of nearly equal size. Both phases are
+	 * labelled, so each slice is the same amount of work.
+	 *
+	 * @param nSlices number of slices
+	 * @param nThreads number of threads that will label the chunks
+	 * @return first slice of each chunk, starting at 0 and strictly increasing
+	 */
+	static int[] planChunks(final int nSlices, final int nThreads) {
+		final int nChunks = Math.max(1, Math.min(nSlices, nThreads *
+			ChunkPlanner.CHUNKS_PER_THREAD));
+		final int[] startSlices = new int[nChunks];
+		for (int c = 0; c < nChunks; c++) {
+			startSlices[c] = (int) ((long) c * nSlices / nChunks);
+		}
+		return startSlices;
+	}
+
+	/**
+	 * Provisional labels of a chunk of slices, with the pixel count, side
+	 * contact and phase of each label, and the foreground-background contacts
+	 */
+	private static final class Chunk {
+
+		private final int startSlice;
+		private final int endSlice;
+		private final IntUnionFind forest;
+
+		/** pixel count of each label, then of each component after compaction */
+		private long[] counts;
+
+		/** whether each label, then each component, touches the image sides */
+		private boolean[] edges;
+
+		/** whether each label, then each component, is foreground */
+		private boolean[] fore;
+
+		/** (foreground, background) pairs of labels that share a face */
+		private PairSet contacts = new PairSet();
+
+		/** last contact pair, to skip repeats along a boundary */
+		private int lastForeContact;
+		private int lastBackContact;
+
+		/** map from provisional label to chunk component */
+		private int[] compactLut;
+		private int nComponents;
+
+		private Chunk(final int startSlice, final int endSlice, final int w,
+			final int h)
+		{
+			this.startSlice = startSlice;
+			this.endSlice = endSlice;
+			// assume there is a new label for every 1000 pixels
+			final int capacity = 1 + (int) Math.min(Integer.MAX_VALUE - 9,
+				(long) w * h * (endSlice - startSlice + 1) / 1000);
+			forest = new IntUnionFind(capacity);
+			counts = new long[Math.max(16, capacity)];
+			edges = new boolean[counts.length];
+			fore = new boolean[counts.length];
+			// label 0 is unused, so that labels are positive
+			forest.makeSet();
+		}
+
+		/**
+		 * Give each pixel of the chunk a provisional label. The first slice is
+		 * labelled without looking at the prior chunk.
+		 */
+		private void label(final byte[][] workArray, final SliceLabels labels,
+			final int w, final int h, final int d)
+		{
+			final int wm1 = w - 1;
+			final int hm1 = h - 1;
+			int[] belowLabels = null;
+			int[] spare = null;
+			for (int z = startSlice; z <= endSlice; z++) {
+				final byte[] slice = workArray[z];
+				final int[] sliceLabels = labels.get(z, spare);
+				final boolean hasBelow = z > startSlice;
+				final byte[] below = hasBelow ? workArray[z - 1] : null;
+				final boolean sliceEdge = z == 0 || z == d - 1;
+				for (int y = 0; y < h; y++) {
+					final int row = y * w;
+					for (int x = 0; x < w; x++) {
+						final int i = row + x;
+						final byte phase = slice[i];
+						int label = 0;
+						if (x > 0 && slice[i - 1] == phase) label = sliceLabels[i - 1];
+						if (phase == FORE) {
+							// 26-connected: the row above and the 9 pixels below
+							if (y > 0) {
+								for (int nx = Math.max(0, x - 1); nx <= Math.min(wm1, x + 1); nx++) {
+									final int j = row - w + nx;
+									if (slice[j] == FORE) label = join(label, sliceLabels[j]);
+								}
+							}
+							if (hasBelow) {
+								for (int ny = Math.max(0, y - 1); ny <= Math.min(hm1, y + 1); ny++) {
+									for (int nx = Math.max(0, x - 1); nx <= Math.min(wm1, x + 1); nx++) {
+										final int j = ny * w + nx;
+										if (below[j] == FORE) label = join(label, belowLabels[j]);
+									}
+								}
+							}
+						}
+						else {
+							// 6-connected: the pixel above and the pixel below
+							if (y > 0 && slice[i - w] == phase) label = join(label,
+								sliceLabels[i - w]);
+							if (hasBelow && below[i] == phase) label = join(label,
+								belowLabels[i]);
+						}
+						if (label == 0) label = newLabel(phase == FORE);
+						sliceLabels[i] = label;
+						counts[label]++;
+						if (sliceEdge || x == 0 || y == 0 || x == wm1 || y == hm1) {
+							edges[label] = true;
+						}
+						// faces shared with the other phase
+						if (x > 0 && slice[i - 1] != phase) addContact(phase, label,
+							sliceLabels[i - 1]);
+						if (y > 0 && slice[i - w] != phase) addContact(phase, label,
+							sliceLabels[i - w]);
+						if (hasBelow && below[i] != phase) addContact(phase, label,
+							belowLabels[i]);
+					}
+				}
+				labels.put(z, sliceLabels);
+				spare = belowLabels;
+				belowLabels = sliceLabels;
+			}
+		}
+
+		private int join(final int label, final int neighbour) {
+			if (label == 0) return neighbour;
+			if (neighbour != label) forest.union(label, neighbour);
+			return label;
+		}
+
+		private int newLabel(final boolean isFore) {
+			final int label = forest.makeSet();
+			if (label == counts.length) {
+				final int capacity = (int) Math.min(Integer.MAX_VALUE - 8,
+					counts.length * 2L);
+				counts = Arrays.copyOf(counts, capacity);
+				edges = Arrays.copyOf(edges, capacity);
+				fore = Arrays.copyOf(fore, capacity);
+			}
+			fore[label] = isFore;
+			return label;
+		}
+
+		private void addContact(final byte phase, final int label,
+			final int other)
+		{
+			final int foreLabel = phase == FORE ? label : other;
+			final int backLabel = phase == FORE ? other : label;
+			if (foreLabel == lastForeContact && backLabel == lastBackContact) return;
+			lastForeContact = foreLabel;
+			lastBackContact = backLabel;
+			contacts.add(PairSet.pack(forest.find(foreLabel), forest.find(
+				backLabel)));
+		}
+
+		/**
+		 * Number the chunk's components and replace the per-label counts, side
+		 * contacts and phases with per-component ones
+		 */
+		private void compact() {
+			final int nLabels = forest.size();
+			compactLut = new int[nLabels];
+			nComponents = ConnectedComponents.numberRoots(forest, compactLut) - 1;
+			final long[] componentCounts = new long[nComponents + 1];
+			final boolean[] componentEdges = new boolean[nComponents + 1];
+			final boolean[] componentFore = new boolean[nComponents + 1];
+			for (int label = 1; label < nLabels; label++) {
+				final int component = compactLut[label];
+				componentCounts[component] += counts[label];
+				componentEdges[component] |= edges[label];
+				componentFore[component] = fore[label];
+			}
+			counts = componentCounts;
+			edges = componentEdges;
+			fore = componentFore;
+		}
+	}
+
+	/**
+	 * Open addressing set of pairs of positive int labels, packed into longs
+	 */
+	private static final class PairSet {
+
+		/** packed pairs, 0 for an empty slot */
+		private long[] table = new long[256];
+		private int size;
+
+		private static long pack(final int first, final int second) {
+			return ((long) first << 32) | second;
+		}
+
+		private static int first(final long pair) {
+			return (int) (pair >>> 32);
+		}
+
+		private static int second(final long pair) {
+			return (int) pair;
+		}
+
+		private void add(final long pair) {
+			final int mask = table.length - 1;
+			int slot = hash(pair) & mask;
+			while (table[slot] != 0) {
+				if (table[slot] == pair) return;
+				slot = (slot + 1) & mask;
+			}
+			table[slot] = pair;
+			size++;
+			if (2 * size > table.length) rehash();
+		}
+
+		private long[] toArray() {
+			final long[] pairs = new long[size];
+			int n = 0;
+			for (final long pair : table) {
+				if (pair != 0) pairs[n++] = pair;
+			}
+			return pairs;
+		}
+
+		private void rehash() {
+			final long[] old = table;
+			table = new long[old.length * 2];
+			final int mask = table.length - 1;
+			for (final long pair : old) {
+				if (pair == 0) continue;
+				int slot = hash(pair) & mask;
+				while (table[slot] != 0) {
+					slot = (slot + 1) & mask;
+				}
+				table[slot] = pair;
+			}
+		}
+
+		private static int hash(final long pair) {
+			final long h = pair * 0x9E3779B97F4A7C15L;
+			return (int) (h ^ (h >>> 32));
+		}
+	}
+}
@@ -51,11 +51,7 @@ OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 
 package org.bonej.plugins;
 
-import java.util.concurrent.atomic.AtomicInteger;
-
 import org.bonej.util.ImageCheck;
-import org.bonej.util.Multithreader;
-import org.eclipse.collections.impl.set.mutable.primitive.IntHashSet;
 
 import ij.IJ;
 import ij.ImagePlus;
@@ -99,22 +95,25 @@ public class Purify implements PlugIn {
 		final GenericDialog gd = new GenericDialog("Setup");
 		gd.addCheckbox("Performance Log", false);
 		gd.addCheckbox("Make_copy", true);
+		gd.addCheckbox("Map_labels_to_disk", false);
 		gd.showDialog();
 		if (gd.wasCanceled()) return;
 		final boolean showPerformance = gd.getNextBoolean();
 		final boolean doCopy = gd.getNextBoolean();
+		final boolean mapLabels = gd.getNextBoolean();
+		if (!doCopy && imp.getStack().isVirtual()) {
+			IJ.error("Purify can't overwrite a virtual stack, please make a copy");
+			return;
+		}
 		final long startTime = System.currentTimeMillis();
-		final ImagePlus purified = purify(imp);
-		if (null != purified) {
-			if (doCopy) {
-				purified.show();
-				if (imp.isInvertedLut() && !purified.isInvertedLut()) IJ.run(
-					"Invert LUT");
-			}
-			else {
-				imp.setStack(null, purified.getStack());
-				if (!imp.isInvertedLut()) IJ.run("Invert LUT");
-			}
+		if (doCopy) {
+			final ImagePlus purified = purify(imp, mapLabels);
+			purified.show();
+			if (imp.isInvertedLut() && !purified.isInvertedLut()) IJ.run(
+				"Invert LUT");
+		}
+		else if (purifyInPlace(imp, mapLabels)) {
+			imp.updateAndDraw();
 		}
 		final double duration = (System.currentTimeMillis() - startTime) / 1000.0;
 		if (showPerformance) {
@@ -143,56 +142,37 @@ public class Purify implements PlugIn {
 
 	/**
 	 * Find all foreground and particles in an image and remove all but the
-	 * largest. Foreground is 26-connected and background is 8-connected.
+	 * largest. Foreground is 26-connected and background is 6-connected.
+	 * <p>
+	 * Both phases are labelled in a single sweep by {@link Purifier}.
+	 * </p>
 	 *
 	 * @param imp input image
-	 * @return purified image
+	 * @return purified image, or the input image if it has no foreground
 	 */
 	static ImagePlus purify(final ImagePlus imp)
 	{
+		return purify(imp, false);
+	}
 
+	/**
+	 * Find all foreground and particles in an image and remove all but the
+	 * largest, optionally keeping the labels in a memory-mapped temporary file
+	 *
+	 * @param imp input image
+	 * @param mapLabels hold the labels in a memory-mapped file instead of the
+	 *          heap
+	 * @return purified image, or the input image if it has no foreground
+	 */
+	static ImagePlus purify(final ImagePlus imp, final boolean mapLabels)
+	{
 		final int w = imp.getWidth();
 		final int h = imp.getHeight();
-		final int nSlices = imp.getNSlices();
-		
-		final ConnectedComponents connector = new ConnectedComponents();
-		final ParticleAnalysis pa = new ParticleAnalysis();
-
-		int[][] particleLabels = connector.run(imp, ConnectedComponents.FORE);
-		byte[][] workArray = connector.getWorkArray();
-		final int nFgParticles = connector.getNParticles();
-		//if there are no foreground particles, stop processing and return
-		//there is always one particle, pixel value & label = 0, representing background
-		if (nFgParticles == 1)
-			return imp;
-		
-		// index 0 is background particle's size...
-		long[] particleSizes = pa.getParticleSizes(particleLabels, nFgParticles);
-		//no need to remove particles when there is only one foreground particle
-		//>2 because label 0 is for background, label 1 is for the first foreground particle
-		if (nFgParticles > 2)
-			removeSmallParticles(workArray, particleLabels, particleSizes, ConnectedComponents.FORE);
+		final int nSlices = imp.getImageStackSize();
+		final byte[][] workArray = ConnectedComponents.makeWorkArray(imp);
+		if (!purify(workArray, w, h, mapLabels)) return imp;
 
-		ImageStack stack = new ImageStack(w, h);
-		for (int z = 0; z < nSlices; z++) {
-			stack.addSlice(imp.getStack().getSliceLabel(z + 1), workArray[z]);
-		}
-		//halfPurifiedImp has only one big foreground particle
-		ImagePlus halfPurifiedImp = new ImagePlus("Half Purified", stack);
-			
-		//particleLabels is now background particles of the half-purified image
-		particleLabels = connector.run(halfPurifiedImp, ConnectedComponents.BACK);
-		halfPurifiedImp = null;
-		final int nBgParticles = connector.getNParticles();
-		particleSizes = pa.getParticleSizes(particleLabels, nBgParticles);
-		final int biggestParticle = getBiggestParticleLabel(particleSizes);
-		final IntHashSet labelList = getParticlesTouchingEdges(particleLabels, w, h, nSlices);
-		relabelEdgeTouchingParticles(particleLabels, labelList, biggestParticle);
-		
-		workArray = connector.getWorkArray();
-		removeSmallParticles(workArray, particleLabels, particleSizes, ConnectedComponents.BACK);
-		
-		stack = new ImageStack(w, h);
+		final ImageStack stack = new ImageStack(w, h);
 		for (int z = 0; z < nSlices; z++) {
 			stack.addSlice(imp.getStack().getSliceLabel(z + 1), workArray[z]);
 		}
@@ -202,159 +182,64 @@ public class Purify implements PlugIn {
 		IJ.showProgress(1.0);
 		return purified;
 	}
-	
-	/**
-	 * Find the label of the largest particle in the image, excluding 0 (which is the opposite phase label).
-	 * @param particleSizes
-	 * @return label of the largest particle
-	 */
-	private static int getBiggestParticleLabel(final long[] particleSizes) {
-		long max = 0;
-		int biggestParticleLabel = 0;
-		final int nPartSizes = particleSizes.length;
-		for (int i = 1; i < nPartSizes; i++) {
-			if (particleSizes[i] > max) {
-				max = particleSizes[i];
-				biggestParticleLabel = i;
-			}
-		}
-		return biggestParticleLabel;
-	}
-	
-	/**
-	 * Get a list of labels for all the particles that touch the sides.
-	 * 
-	 * @param particleLabels
-	 * @param w image width
-	 * @param h image height
-	 * @param d image depth
-	 * @return list of particle IDs that touch the sides
-	 */
-	private static IntHashSet getParticlesTouchingEdges(final int[][] particleLabels,
-		final int w, final int h, final int d) {
-		
-		final IntHashSet labelList = new IntHashSet();
-		
-		// scan faces
-		// top and bottom faces
-		final int[] top = particleLabels[0];
-		final int[] bottom = particleLabels[d - 1];
-		final int wh = top.length;
-		for (int i = 0; i < wh; i++) {
-			final int pt = top[i];
-			if (pt > 0) {
-				labelList.add(pt);
-			}
-			final int pb = bottom[i];
-			if (pb > 0) {
-				labelList.add(pb);
-			}
-		}
 
-		// west and east faces
-		// north and south faces
-		final int lastRow = w * (h - 1);
-		for (int z = 0; z < d; z++) {
-			final int[] slice = particleLabels[z];
-			for (int x = 0; x < w; x++) {
-				final int pn = slice[x];
-				final int ps = slice[lastRow + x];
-				if (pn > 0) {
-					labelList.add(pn);
-				}
-				if (ps > 0) {
-					labelList.add(ps);
-				}
-			}
-			for (int y = 0; y < h; y++) {
-				final int yw = y * w;
-				final int pw = slice[yw];
-				final int pe = slice[yw + w - 1];
-				if (pw > 0) {
-					labelList.add(pw);
-				}
-				if (pe > 0) {
-					labelList.add(pe);
-				}
-			}
-		}
-		return labelList;
-	}
-	
 	/**
-	 * Replace all particles in the label list with a new value
-	 * 
-	 * @param particleLabels
-	 * @param labelList
-	 * @param newLabel
+	 * Purify an image by overwriting the pixels of its stack, without copying
+	 * them.
+	 * <p>
+	 * Peak memory is the input stack plus 4 bytes per voxel for the labels, or
+	 * plus two slices of labels per thread if the labels are mapped to a file,
+	 * plus about 15 bytes per provisional label for the union-find tables. There
+	 * are far fewer provisional labels than voxels, unless most particles are
+	 * single voxels.
+	 * </p>
+	 *
+	 * @param imp binary image with a stack in memory
+	 * @param mapLabels hold the labels in a memory-mapped file instead of the
+	 *          heap
+	 * @return false if the image has no foreground, in which case it is
+	 *         unchanged
+	 * @throws IllegalArgumentException if the stack is virtual
 	 */
-	private static void relabelEdgeTouchingParticles(final int[][] particleLabels, final IntHashSet labelList,
-		final int newLabel) {
-		if (newLabel == 0 || newLabel < 0) {
-			throw new IllegalArgumentException("replacement label cannot be 0 (that would be background) or < 0");
+	static boolean purifyInPlace(final ImagePlus imp, final boolean mapLabels) {
+		final ImageStack stack = imp.getStack();
+		if (stack.isVirtual()) {
+			throw new IllegalArgumentException(
+				"Can't purify a virtual stack in place");
 		}
-		
-		final int nSlices = particleLabels.length;
-		final int wh = particleLabels[0].length;
-		final Thread[] threads = Multithreader.newThreads();
-		final AtomicInteger ai = new AtomicInteger(0);
-		for (int thread = 0; thread < threads.length; thread++) {
-			threads[thread] = new Thread(() -> {
-				for (int z = ai.getAndIncrement(); z < nSlices; z = ai.getAndIncrement()) {
-					final int[] sliceParticleLabels = particleLabels[z];
-					for (int i = 0; i < wh; i++) {
-						final int particleID = sliceParticleLabels[i];
-						if (particleID > 0) {
-							if (labelList.contains(particleID)) {
-								sliceParticleLabels[i] = newLabel;
-							}
-						}
-					}
-				}
-			});
+		final int nSlices = stack.getSize();
+		final byte[][] workArray = new byte[nSlices][];
+		for (int z = 0; z < nSlices; z++) {
+			workArray[z] = (byte[]) stack.getPixels(z + 1);
 		}
-		Multithreader.startAndJoin(threads);
+		final boolean purified = purify(workArray, imp.getWidth(), imp
+			.getHeight(), mapLabels);
+		IJ.showStatus("Image Purified");
+		IJ.showProgress(1.0);
+		return purified;
 	}
-	
+
 	/**
-	 * Remove all but the largest phase particle from workArray
+	 * Purify a work array in place with labels on the heap or in a file
 	 *
-	 * @param workArray a work array
-	 * @param particleLabels particle labels.
-	 * @param particleSizes sizes of the particles.
-	 * @param phase foreground or background.
+	 * @param workArray binary work array, one byte[] per slice
+	 * @param w image width
+	 * @param h image height
+	 * @param mapLabels hold the labels in a memory-mapped file instead of the
+	 *          heap
+	 * @return false if there is no foreground
 	 */
-	private static void removeSmallParticles(final byte[][] workArray,
-		final int[][] particleLabels, final long[] particleSizes, final int phase)
+	private static boolean purify(final byte[][] workArray, final int w,
+		final int h, final boolean mapLabels)
 	{
-		final int d = workArray.length;
-		final int wh = workArray[0].length;
-
-		final int biggestParticleLabel = getBiggestParticleLabel(particleSizes);
-		
-		final int testPhase = phase;
-		final byte replacementPhase = (byte) (phase == ConnectedComponents.FORE ? ConnectedComponents.BACK : ConnectedComponents.FORE);
-		final String sPhase = phase == ConnectedComponents.FORE ? "foreground" : "background";
-		
-		final AtomicInteger ai = new AtomicInteger(0);
-		final Thread[] threads = Multithreader.newThreads();
-		for (int thread = 0; thread < threads.length; thread++) {
-			threads[thread] = new Thread(() -> {
-					// go through work array and turn all
-					// smaller foreground (255) particles into background (0) (or vice versa)
-					for (int z = ai.getAndIncrement(); z < d; z = ai.getAndIncrement()) {
-						for (int i = 0; i < wh; i++) {
-							if (workArray[z][i] == testPhase) {
-								if (particleLabels[z][i] != biggestParticleLabel) {
-									workArray[z][i] = replacementPhase;
-								}
-							}
-						}
-						IJ.showStatus("Removing "+sPhase+" particles");
-						IJ.showProgress(z, d);
-					}
-			});
+		if (!mapLabels) {
+			return Purifier.purify(workArray, new int[workArray.length][w * h], w,
+				h);
 		}
-		Multithreader.startAndJoin(threads);
-	}	
+		try (final MappedSliceLabels labels = new MappedSliceLabels(w, h,
+			workArray.length))
+		{
+			return Purifier.purify(workArray, labels, w, h);
+		}
+	}
 }
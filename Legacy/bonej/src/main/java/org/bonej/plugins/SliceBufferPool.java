@@ -0,0 +1,121 @@
+/*-
+ * #%L
+ * Mavenized version of the BoneJ1 plugins
+ * %%
+ * Copyright (C) 2015 - 2020 Michael Doube, BoneJ developers
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.bonej.plugins;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+import ij.ImageStack;
+
+/**
+ * Recycles the byte slice arrays of short-lived single particle images, so
+ * that a thread working through many particles does not allocate new slices
+ * for each one.
+ * <p>
+ * Slices are pooled by length, since an image slice array must be exactly
+ * width &times; height long. When the pool reaches its capacity it is
+ * emptied before taking more, because the buffers it holds are then mostly of
+ * sizes that are no longer being asked for. A pool is not thread safe; each
+ * thread should own its own.
+ * </p>
+ *
+ * @author Michael Doube
+ */
+final class SliceBufferPool {
+
+	/** Default number of bytes a pool may hold */
+	static final long DEFAULT_CAPACITY = 64L << 20;
+
+	/** free arrays by length */
+	private final Map<Integer, ArrayDeque<byte[]>> free = new HashMap<>();
+
+	/** most bytes to hold */
+	private final long capacity;
+
+	/** bytes held */
+	private long pooledBytes;
+
+	/** Create a pool with the default capacity */
+	SliceBufferPool() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Create a pool
+	 *
+	 * @param capacity most bytes to hold
+	 */
+	SliceBufferPool(final long capacity) {
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Get an array, reused if one of the length is free. Its contents are
+	 * undefined, so the caller must write every element.
+	 *
+	 * @param length number of elements
+	 * @return an array of the given length
+	 */
+	byte[] take(final int length) {
+		final ArrayDeque<byte[]> arrays = free.get(length);
+		if (arrays == null || arrays.isEmpty()) return new byte[length];
+		pooledBytes -= length;
+		return arrays.pop();
+	}
+
+	/**
+	 * Return an array to the pool. The caller must not use it again.
+	 *
+	 * @param array array to recycle
+	 */
+	void give(final byte[] array) {
+		if (array.length > capacity) return;
+		if (pooledBytes + array.length > capacity) {
+			free.clear();
+			pooledBytes = 0;
+		}
+		free.computeIfAbsent(array.length, k -> new ArrayDeque<>()).push(array);
+		pooledBytes += array.length;
+	}
+
+	/**
+	 * Return all the byte slices of a stack to the pool. The caller must not use
+	 * the stack again.
+	 *
+	 * @param stack stack to recycle
+	 */
+	void giveAll(final ImageStack stack) {
+		final int nSlices = stack.getSize();
+		for (int z = 1; z <= nSlices; z++) {
+			final Object pixels = stack.getPixels(z);
+			if (pixels instanceof byte[]) give((byte[]) pixels);
+		}
+	}
+}
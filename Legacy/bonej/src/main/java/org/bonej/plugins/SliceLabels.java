@@ -0,0 +1,81 @@
+/*-
+ * #%L
+ * Mavenized version of the BoneJ1 plugins
+ * %%
+ * Copyright (C) 2015 - 2020 Michael Doube, BoneJ developers
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package org.bonej.plugins;
+
+/**
+ * Labels of an image stored slice by slice, so that the labelling code does
+ * not need to know whether they are held in the heap or in a file.
+ *
+ * @author Michael Doube
+ * @see MappedSliceLabels
+ */
+interface SliceLabels {
+
+	/**
+	 * Get the labels of a slice, to read or to fill. Stores on the heap return
+	 * their own array for the slice, so changes need not be put back; other
+	 * stores copy the slice into an array.
+	 *
+	 * @param z slice index, from 0
+	 * @param buffer array that may be reused for the copy, or null
+	 * @return labels of the slice
+	 */
+	int[] get(int z, int[] buffer);
+
+	/**
+	 * Store the labels of a slice that were filled in an array from
+	 * {@link #get(int, int[])}
+	 *
+	 * @param z slice index, from 0
+	 * @param labels labels of the slice
+	 */
+	void put(int z, int[] labels);
+
+	/**
+	 * Wrap labels that are held in the heap
+	 *
+	 * @param labels one int[] per slice
+	 * @return a store that returns the arrays themselves
+	 */
+	static SliceLabels onHeap(final int[][] labels) {
+		return new SliceLabels() {
+
+			@Override
+			public int[] get(final int z, final int[] buffer) {
+				return labels[z];
+			}
+
+			@Override
+			public void put(final int z, final int[] sliceLabels) {
+				// the slice was changed in place
+			}
+		};
+	}
+}
@@ -0,0 +1,158 @@
+/*-
+ * #%L
+ * Mavenized version of the BoneJ1 plugins
+ * %%
+ * Copyright (C) 2015 - 2020 Michael Doube, BoneJ developers
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.bonej.plugins;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes each particle's surface mesh to its own binary STL file as it is
+ * streamed, so that surfaces can be exported without keeping them in memory.
+ * Each file is written through a fixed buffer of triangles, so the memory used
+ * does not grow with the mesh. Files are named prefix_label.stl.
+ *
+ * @author Michael Doube
+ */
+final class StlWriter implements MeshConsumer {
+
+	/** bytes in the file header, before the triangle count */
+	private static final int HEADER_BYTES = 80;
+
+	/** bytes per triangle: normal, 3 corners and an attribute count */
+	private static final int TRIANGLE_BYTES = 50;
+
+	/** triangles buffered per write */
+	private static final int BATCH_TRIANGLES = 4096;
+
+	private final File directory;
+	private final String prefix;
+
+	/**
+	 * Set up a writer
+	 *
+	 * @param directory existing directory to write the files to
+	 * @param prefix start of each file name
+	 */
+	StlWriter(final File directory, final String prefix) {
+		if (!directory.isDirectory()) {
+			throw new IllegalArgumentException(directory + " is not a directory");
+		}
+		this.directory = directory;
+		this.prefix = prefix;
+	}
+
+	/**
+	 * @param particle particle label
+	 * @return the file the particle's surface is written to
+	 */
+	File getFile(final int particle) {
+		return new File(directory, prefix + "_" + particle + ".stl");
+	}
+
+	/**
+	 * Write a particle's surface
+	 *
+	 * @throws UncheckedIOException if the file cannot be written
+	 */
+	@Override
+	public void accept(final int particle, final IndexedMesh mesh) {
+		final float[] vertices = mesh.getVertices();
+		final int[] triangles = mesh.getTriangles();
+		final ByteBuffer buffer = ByteBuffer.allocate(Math.max(HEADER_BYTES + 4,
+			TRIANGLE_BYTES * BATCH_TRIANGLES)).order(ByteOrder.LITTLE_ENDIAN);
+		final byte[] header = ("BoneJ particle " + particle).getBytes(
+			StandardCharsets.US_ASCII);
+		buffer.put(header, 0, Math.min(header.length, HEADER_BYTES));
+		buffer.position(HEADER_BYTES);
+		buffer.putInt(triangles.length / 3);
+		try (FileOutputStream out = new FileOutputStream(getFile(particle));
+				FileChannel channel = out.getChannel())
+		{
+			for (int t = 0; t < triangles.length; t += 3) {
+				if (buffer.remaining() < TRIANGLE_BYTES) write(buffer, channel);
+				final int a = 3 * triangles[t];
+				final int b = 3 * triangles[t + 1];
+				final int c = 3 * triangles[t + 2];
+				final double x1 = vertices[b] - vertices[a];
+				final double y1 = vertices[b + 1] - vertices[a + 1];
+				final double z1 = vertices[b + 2] - vertices[a + 2];
+				final double x2 = vertices[c] - vertices[a];
+				final double y2 = vertices[c + 1] - vertices[a + 1];
+				final double z2 = vertices[c + 2] - vertices[a + 2];
+				final double nx = y1 * z2 - z1 * y2;
+				final double ny = z1 * x2 - x1 * z2;
+				final double nz = x1 * y2 - y1 * x2;
+				final double length = Math.sqrt(nx * nx + ny * ny + nz * nz);
+				final double scale = length == 0 ? 0 : 1 / length;
+				buffer.putFloat((float) (nx * scale));
+				buffer.putFloat((float) (ny * scale));
+				buffer.putFloat((float) (nz * scale));
+				putVertex(buffer, vertices, a);
+				putVertex(buffer, vertices, b);
+				putVertex(buffer, vertices, c);
+				buffer.putShort((short) 0);
+			}
+			write(buffer, channel);
+		}
+		catch (final IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Write out a buffer's contents and clear it for the next batch
+	 *
+	 * @param buffer buffer holding the bytes to write, up to its position
+	 * @param channel channel of the file
+	 * @throws IOException if the file cannot be written
+	 */
+	private static void write(final ByteBuffer buffer, final FileChannel channel)
+		throws IOException
+	{
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+	private static void putVertex(final ByteBuffer buffer, final float[] vertices,
+		final int v)
+	{
+		buffer.putFloat(vertices[v]);
+		buffer.putFloat(vertices[v + 1]);
+		buffer.putFloat(vertices[v + 2]);
+	}
+}
@@ -0,0 +1,329 @@
+/*-
+ * #%L
+ * Mavenized version of the BoneJ1 plugins
+ * %%
+ * Copyright (C) 2015 - 2020 Michael Doube, BoneJ developers
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.bonej.plugins;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bonej.util.Multithreader;
+import org.scijava.vecmath.Point3f;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import marchingcubes.MCTriangulator;
+
+/**
+ * Surface area and enclosed volume of every particle, from a single marching
+ * cubes pass over the label image without building meshes.
+ * <p>
+ * Each 2 x 2 x 2 cube of voxels is classified once per particle label found at
+ * its corners. The area and the signed volume terms of the triangles that
+ * marching cubes places in the cube depend only on the cube's configuration
+ * and position, so they are tabulated for the 256 configurations and summed
+ * per label. As for
+ * {@link ParticleAnalysis#getSurfaceMeshes(ImagePlus, int[][], int[][], int, int)},
+ * each particle is isolated from the others and the image is padded with
+ * background, so every surface is closed.
+ * </p>
+ * <p>
+ * The triangles of each configuration are taken from {@link MCTriangulator}
+ * itself, so the sums are those of the meshes made at a surface resampling of
+ * 1. Signed volume is summed with the divergence theorem, so the enclosed
+ * volume of a closed surface does not depend on where the cubes are.
+ * </p>
+ * <p>
+ * Resampled meshes are not estimated. The mesher averages blocks of voxels,
+ * aligned to each particle's own bounding box, and places each vertex by
+ * interpolating between the averaged values. A cube's triangles then depend on
+ * the partial volumes around it and not only on its configuration, so they
+ * cannot be tabulated, and estimating them without the mesher would give a
+ * different surface from the one the user asked for.
+ * </p>
+ *
+ * @author Michael Doube
+ */
+final class SurfaceEstimator {
+
+	/** corner offsets in x, y and z */
+	private static final int[][] CORNERS = { { 0, 0, 0 }, { 1, 0, 0 }, { 1, 1,
+		0 }, { 0, 1, 0 }, { 0, 0, 1 }, { 1, 0, 1 }, { 1, 1, 1 }, { 0, 1, 1 } };
+
+	/** background voxels around each configuration's cube when it is meshed */
+	private static final int PADDING = 1;
+
+	/**
+	 * x, y, z of the triangle vertices of each cube configuration, in voxel
+	 * units from the cube's first corner
+	 */
+	private static final float[][] TRIANGLES = makeTriangles(PADDING);
+
+	private SurfaceEstimator() {}
+
+	/**
+	 * Get the surface area and enclosed volume of each particle
+	 *
+	 * @param imp input image, used for its dimensions and calibration
+	 * @param particleLabels particle label array
+	 * @param nParticles number of particle labels including the background
+	 * @param pool pool to run the sweep in, or null to start threads
+	 * @return surface areas in [0] and enclosed volumes in [1], each indexed by
+	 *         particle label, in calibrated units
+	 */
+	static double[][] getAreasAndVolumes(final ImagePlus imp,
+		final int[][] particleLabels, final int nParticles,
+		final ForkJoinPool pool)
+	{
+		final int w = imp.getWidth();
+		final int h = imp.getHeight();
+		final int d = particleLabels.length;
+		final Calibration cal = imp.getCalibration();
+		final double vW = cal.pixelWidth;
+		final double vH = cal.pixelHeight;
+		final double vD = cal.pixelDepth;
+
+		// per configuration: area, the sum of the triangles' edge cross products
+		// (for the position-dependent volume term) and their triple products
+		final double[] caseArea = new double[256];
+		final double[] caseCross = new double[3 * 256];
+		final double[] caseTriple = new double[256];
+		tabulate(vW, vH, vD, caseArea, caseCross, caseTriple);
+
+		// cubes start at -1 so that the padding around the image is included
+		final AtomicInteger ai = new AtomicInteger(-1);
+		final Thread[] threads = Multithreader.newThreads();
+		final long voxelsPerThread = (long) w * h * d / threads.length;
+		final ParticleTable[] tables = new ParticleTable[threads.length];
+		final double[][] threadAreas = new double[threads.length][];
+		final double[][] threadVolumes = new double[threads.length][];
+		for (int thread = 0; thread < threads.length; thread++) {
+			final int t = thread;
+			final ParticleTable table = new ParticleTable(nParticles, voxelsPerThread,
+				ParticleTable.AUTO);
+			tables[t] = table;
+			threads[thread] = new Thread(() -> {
+				double[] areas = new double[table.size()];
+				double[] volumes = new double[table.size()];
+				final int[] labels = new int[8];
+				for (int z = ai.getAndIncrement(); z < d; z = ai.getAndIncrement()) {
+					final int[] below = z >= 0 ? particleLabels[z] : null;
+					final int[] above = z + 1 < d ? particleLabels[z + 1] : null;
+					final double cz = z * vD;
+					for (int y = -1; y < h; y++) {
+						final double cy = y * vH;
+						for (int x = -1; x < w; x++) {
+							for (int c = 0; c < 8; c++) {
+								final int[] corner = CORNERS[c];
+								labels[c] = label(corner[2] == 0 ? below : above, x + corner[0], y +
+									corner[1], w, h);
+							}
+							final int first = labels[0];
+							boolean uniform = true;
+							for (int c = 1; c < 8; c++) {
+								if (labels[c] != first) {
+									uniform = false;
+									break;
+								}
+							}
+							if (uniform) continue;
+							final double cx = x * vW;
+							for (int c = 0; c < 8; c++) {
+								final int p = labels[c];
+								if (p == 0) continue;
+								// handle each label once, at its first corner
+								boolean seen = false;
+								for (int b = 0; b < c; b++) {
+									if (labels[b] == p) {
+										seen = true;
+										break;
+									}
+								}
+								if (seen) continue;
+								int config = 0;
+								for (int b = c; b < 8; b++) {
+									if (labels[b] == p) config |= 1 << b;
+								}
+								final int slot = table.slot(p);
+								if (slot >= areas.length) {
+									final int capacity = table.grow(areas.length);
+									areas = Arrays.copyOf(areas, capacity);
+									volumes = Arrays.copyOf(volumes, capacity);
+								}
+								areas[slot] += caseArea[config];
+								volumes[slot] += cx * caseCross[3 * config] + cy * caseCross[3 *
+									config + 1] + cz * caseCross[3 * config + 2] +
+									caseTriple[config];
+							}
+						}
+					}
+				}
+				threadAreas[t] = areas;
+				threadVolumes[t] = volumes;
+			});
+		}
+		Multithreader.startAndJoin(threads, pool);
+
+		final double[] areas = new double[nParticles];
+		final double[] volumes = new double[nParticles];
+		for (int t = 0; t < tables.length; t++) {
+			final ParticleTable table = tables[t];
+			final int size = table.size();
+			for (int slot = 0; slot < size; slot++) {
+				final int p = table.label(slot);
+				areas[p] += threadAreas[t][slot];
+				volumes[p] += threadVolumes[t][slot];
+			}
+		}
+		for (int p = 0; p < nParticles; p++) {
+			volumes[p] = Math.abs(volumes[p]) / 6;
+		}
+		return new double[][] { areas, volumes };
+	}
+
+	/**
+	 * Get the marching cubes triangles of a cube configuration in cube-local
+	 * coordinates
+	 *
+	 * @param config bit c set when corner c is inside the particle
+	 * @param vW voxel width
+	 * @param vH voxel height
+	 * @param vD voxel depth
+	 * @return x, y, z of each triangle's 3 vertices
+	 */
+	static double[] getTriangles(final int config, final double vW,
+		final double vH, final double vD)
+	{
+		final float[] triangles = TRIANGLES[config];
+		final double[] vertices = new double[triangles.length];
+		for (int i = 0; i < triangles.length; i += 3) {
+			vertices[i] = vW * triangles[i];
+			vertices[i + 1] = vH * triangles[i + 1];
+			vertices[i + 2] = vD * triangles[i + 2];
+		}
+		return vertices;
+	}
+
+	private static int label(final int[] slice, final int x, final int y,
+		final int w, final int h)
+	{
+		if (slice == null || x < 0 || y < 0 || x >= w || y >= h) return 0;
+		return slice[y * w + x];
+	}
+
+	/** Sum the area and volume terms of each configuration's triangles */
+	private static void tabulate(final double vW, final double vH,
+		final double vD, final double[] caseArea, final double[] caseCross,
+		final double[] caseTriple)
+	{
+		for (int config = 0; config < 256; config++) {
+			final double[] v = getTriangles(config, vW, vH, vD);
+			for (int t = 0; t < v.length; t += 9) {
+				final double[] a = { v[t], v[t + 1], v[t + 2] };
+				final double[] b = { v[t + 3], v[t + 4], v[t + 5] };
+				final double[] c = { v[t + 6], v[t + 7], v[t + 8] };
+				final double[] ab = cross(a, b);
+				final double[] bc = cross(b, c);
+				final double[] ca = cross(c, a);
+				// twice the vector area is ab + bc + ca
+				final double nx = ab[0] + bc[0] + ca[0];
+				final double ny = ab[1] + bc[1] + ca[1];
+				final double nz = ab[2] + bc[2] + ca[2];
+				caseArea[config] += 0.5 * Math.sqrt(nx * nx + ny * ny + nz * nz);
+				// (o + a) . ((o + b) x (o + c)) = o . (ab + bc + ca) + a . (b x c)
+				caseCross[3 * config] += nx;
+				caseCross[3 * config + 1] += ny;
+				caseCross[3 * config + 2] += nz;
+				caseTriple[config] += a[0] * bc[0] + a[1] * bc[1] + a[2] * bc[2];
+			}
+		}
+	}
+
+	private static double[] cross(final double[] a, final double[] b) {
+		return new double[] { a[1] * b[2] - a[2] * b[1], a[2] * b[0] - a[0] * b[2],
+			a[0] * b[1] - a[1] * b[0] };
+	}
+
+	/**
+	 * Mesh each configuration with MCTriangulator, as a 2 x 2 x 2 cube of voxels
+	 * padded with background, and keep the triangles whose vertices all lie on
+	 * edges between the cube's voxels. The other triangles close the surface in
+	 * the padding. As {@link ParticleAnalysis#streamSurfaceMeshes} assumes, the
+	 * mesher places each voxel at its own index, so the cube's first corner is
+	 * at the padding.
+	 *
+	 * @param padding background voxels on each side of the cube
+	 * @return x, y, z of the triangle vertices of each configuration
+	 */
+	private static float[][] makeTriangles(final int padding) {
+		final MCTriangulator mct = new MCTriangulator();
+		final boolean[] channels = { true, false, false };
+		final int size = 2 + 2 * padding;
+		final float[][] triangles = new float[256][];
+		triangles[0] = new float[0];
+		for (int config = 1; config < 256; config++) {
+			final ImageStack stack = new ImageStack(size, size);
+			for (int z = 0; z < size; z++) {
+				final byte[] pixels = new byte[size * size];
+				for (int c = 0; c < 8; c++) {
+					final int[] corner = CORNERS[c];
+					if (corner[2] + padding == z && (config & (1 << c)) != 0)
+						pixels[(corner[1] + padding) * size + corner[0] + padding] =
+							(byte) 0xFF;
+				}
+				stack.addSlice("", pixels);
+			}
+			@SuppressWarnings("unchecked")
+			final List<Point3f> points = mct.getTriangles(new ImagePlus("", stack),
+				128, channels, 1);
+			final float[] vertices = new float[3 * points.size()];
+			int n = 0;
+			for (int t = 0; t + 2 < points.size(); t += 3) {
+				if (!inCube(points.get(t), padding) || !inCube(points.get(t + 1),
+					padding) || !inCube(points.get(t + 2), padding)) continue;
+				for (int k = t; k < t + 3; k++) {
+					final Point3f point = points.get(k);
+					vertices[n++] = point.x - padding;
+					vertices[n++] = point.y - padding;
+					vertices[n++] = point.z - padding;
+				}
+			}
+			triangles[config] = Arrays.copyOf(vertices, n);
+		}
+		return triangles;
+	}
+
+	private static boolean inCube(final Point3f point, final float origin) {
+		final float min = origin - 0.01f;
+		final float max = origin + 1.01f;
+		return point.x >= min && point.x <= max && point.y >= min &&
+			point.y <= max && point.z >= min && point.z <= max;
+	}
+}
@@ -28,9 +28,23 @@
  */
 package org.bonej.plugins;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import ij.ImagePlus;
 import ij.ImageStack;
@@ -39,6 +53,9 @@ import ij.process.ImageProcessor;
 
 public class ConnectedComponentsTest {
 
+	@Rule
+	public final TemporaryFolder folder = new TemporaryFolder();
+
 	/**
 	 * Check that the correct number of particles is returned regardless of
 	 * position of the particle. One particle (ID = 0) is background
@@ -58,6 +75,162 @@ public class ConnectedComponentsTest {
 		}
 	}
 
+	/**
+	 * Check that instances running concurrently on different images give the same
+	 * labels and particle counts as running them one after another.
+	 */
+	@Test
+	public void testConcurrentInstancesMatchSerialRuns() throws Exception {
+		final int nImages = 8;
+		final List<ImagePlus> images = new ArrayList<>();
+		for (int i = 0; i < nImages; i++) {
+			images.add(TestImages.noise(48, 40, 24 + i * 3, 0.3, new Random(i)));
+		}
+
+		final List<int[][]> serialLabels = new ArrayList<>();
+		final List<Integer> serialCounts = new ArrayList<>();
+		for (final ImagePlus imp : images) {
+			final ConnectedComponents cc = new ConnectedComponents();
+			serialLabels.add(cc.run(imp, ConnectedComponents.FORE));
+			serialCounts.add(cc.getNParticles());
+		}
+
+		final ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			final List<Future<Object[]>> futures = new ArrayList<>();
+			for (final ImagePlus imp : images) {
+				futures.add(executor.submit(() -> {
+					final ConnectedComponents cc = new ConnectedComponents();
+					final int[][] labels = cc.run(imp, ConnectedComponents.FORE);
+					return new Object[] { labels, cc.getNParticles() };
+				}));
+			}
+			for (int i = 0; i < nImages; i++) {
+				final Object[] result = futures.get(i).get();
+				final int[][] labels = (int[][]) result[0];
+				assertEquals(serialCounts.get(i), result[1]);
+				for (int z = 0; z < labels.length; z++) {
+					assertArrayEquals(serialLabels.get(i)[z], labels[z]);
+				}
+			}
+		}
+		finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Check that the union-find engine finds exactly the same particles as the
+	 * bucket fountain engine, and numbers them in raster order.
+	 */
+	@Test
+	public void testUnionFindMatchesBucketFountain() {
+		final Random random = new Random(0xB0E);
+		for (int i = 0; i < 12; i++) {
+			final ImagePlus imp = TestImages.noise(8 + random.nextInt(40), 8 + random.nextInt(40),
+				1 + random.nextInt(60), 0.1 + 0.6 * random.nextDouble(), new Random(i));
+			for (final int phase : new int[] { ConnectedComponents.FORE, ConnectedComponents.BACK }) {
+				final ConnectedComponents expected = new ConnectedComponents(ConnectedComponents.BUCKET_FOUNTAIN);
+				final int[][] expectedLabels = expected.run(imp, phase);
+				final ConnectedComponents actual = new ConnectedComponents(ConnectedComponents.UNION_FIND);
+				final int[][] labels = actual.run(imp, phase);
+
+				assertEquals(expected.getNParticles(), actual.getNParticles());
+				assertSamePartition(expectedLabels, labels);
+			}
+		}
+	}
+
+	/**
+	 * Check that streaming labels written to disk slab by slab are the same as the
+	 * labels made in memory, including across slab boundaries.
+	 */
+	@Test
+	public void testRunStreamingMatchesRun() throws Exception {
+		final int[] slabSizes = { 1, 3, 64 };
+		for (int i = 0; i < slabSizes.length; i++) {
+			final ImagePlus imp = TestImages.noise(33, 27, 29, 0.35, new Random(100 + i));
+			for (final int phase : new int[] { ConnectedComponents.FORE, ConnectedComponents.BACK }) {
+				final ConnectedComponents expected = new ConnectedComponents();
+				final int[][] expectedLabels = expected.run(imp, phase);
+
+				final File labelFile = folder.newFile();
+				final ConnectedComponents streaming = new ConnectedComponents();
+				final MappedLabelStack labels = streaming.runStreaming(imp, phase, labelFile, slabSizes[i]);
+
+				assertEquals(expected.getNParticles(), streaming.getNParticles());
+				assertEquals(expectedLabels.length, labels.getSize());
+				for (int z = 0; z < expectedLabels.length; z++) {
+					assertArrayEquals(expectedLabels[z], labels.getLabels(z + 1));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Check that chunks are sized by foreground content, so that a stack with
+	 * foreground in only a few slices is split into many chunks within those
+	 * slices, and that the chunking does not change the particle count.
+	 */
+	@Test
+	public void testChunkPlannerBalancesForeground() {
+		final int depth = 100;
+		final ImagePlus imp = brick(64, 64, depth, 64, 64, 1, 0, 0, 1);
+		final ImageStack stack = imp.getStack();
+		for (int z = 41; z <= 50; z++) {
+			final ImageProcessor ip = stack.getProcessor(z);
+			ip.setColor(255);
+			ip.setRoi(0, 0, 64, 64);
+			ip.fill();
+		}
+		final byte[][] workArray = ConnectedComponents.makeWorkArray(imp);
+		final int nThreads = 4;
+
+		final int[] startSlices = ChunkPlanner.plan(workArray, ConnectedComponents.FORE, nThreads);
+
+		assertEquals(nThreads * ChunkPlanner.CHUNKS_PER_THREAD, startSlices.length);
+		assertEquals(0, startSlices[0]);
+		int chunksInForeground = 0;
+		for (int i = 1; i < startSlices.length; i++) {
+			assertTrue(startSlices[i] > startSlices[i - 1]);
+			if (startSlices[i] >= 40 && startSlices[i] <= 50)
+				chunksInForeground++;
+		}
+		assertTrue("Foreground slices should be split into many chunks", chunksInForeground >= 8);
+
+		final ConnectedComponents cc = new ConnectedComponents();
+		cc.run(imp, ConnectedComponents.FORE);
+		assertEquals(3, cc.getNParticles());
+		assertEquals(cc.getChunkStartSlices().length, cc.getChunkTimes().length);
+	}
+
+	/**
+	 * Assert that two label arrays differ only by a one-to-one relabelling, that
+	 * background stays 0, and that the actual labels appear in raster order.
+	 * 
+	 * @param expected expected labels
+	 * @param actual actual labels
+	 */
+	private static void assertSamePartition(final int[][] expected, final int[][] actual) {
+		final Map<Integer, Integer> forward = new HashMap<>();
+		final Map<Integer, Integer> backward = new HashMap<>();
+		forward.put(0, 0);
+		backward.put(0, 0);
+		int nextLabel = 1;
+		for (int z = 0; z < expected.length; z++) {
+			for (int i = 0; i < expected[z].length; i++) {
+				final int e = expected[z][i];
+				final int a = actual[z][i];
+				if (!backward.containsKey(a)) {
+					assertEquals("Labels are not in raster order", nextLabel, a);
+					nextLabel++;
+				}
+				assertEquals(Integer.valueOf(a), forward.computeIfAbsent(e, k -> a));
+				assertEquals(Integer.valueOf(e), backward.computeIfAbsent(a, k -> e));
+			}
+		}
+	}
+
 	/**
 	 * 
 	 * @param width image width
@@ -53,8 +53,12 @@ package org.bonej.plugins;
 
 import static org.junit.Assert.assertEquals;
 
+import java.util.Random;
+
 import org.junit.Test;
+import org.junit.experimental.categories.Category;
 
+import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
 import ij.measure.Calibration;
@@ -99,6 +103,79 @@ public class ConnectivityTest {
 		}
 	}
 
+	/**
+	 * Check that the buffered sweep gives exactly the sum of the pixel by pixel
+	 * sweep on noise of several densities, including single slices and rows
+	 */
+	@Test
+	public void testSumEulerMatchesPerVoxel() {
+		final Random random = new Random(1);
+		final int[][] sizes = { { 1, 1, 1 }, { 7, 1, 1 }, { 1, 9, 3 }, { 13, 11, 1 }, { 31, 17, 23 },
+			{ 64, 48, 40 } };
+		for (final int[] size : sizes) {
+			for (final double density : new double[] { 0.05, 0.3, 0.5, 0.8, 1 }) {
+				final ImagePlus imp = TestImages.noise(size[0], size[1], size[2], density, random);
+				assertEquals(ReferenceImplementations.getSumEuler(imp), conn.getSumEuler(imp), 0);
+			}
+		}
+	}
+
+	/**
+	 * Compare the throughput of the padded-row sweep with the per-voxel
+	 * reference, in voxels per second
+	 */
+	@Test
+	@Category(SlowTest.class)
+	public void benchmarkSumEuler() {
+		final ImagePlus imp = TestImages.noise(512, 512, 256, 0.3, new Random(1));
+		final double voxels = 512.0 * 512 * 256;
+		for (int i = 0; i < 3; i++) {
+			long start = System.nanoTime();
+			final double expected = ReferenceImplementations.getSumEuler(imp);
+			final long perVoxel = System.nanoTime() - start;
+			start = System.nanoTime();
+			final double sumEuler = conn.getSumEuler(imp);
+			final long buffered = System.nanoTime() - start;
+			assertEquals(expected, sumEuler, 0);
+			IJ.log(String.format("Per voxel: %.3g voxels/s, padded-row sweep: %.3g voxels/s", voxels * 1e9 /
+				perVoxel, voxels * 1e9 / buffered));
+		}
+	}
+
+	/**
+	 * Check that the single pass over a packed stack gives exactly the Euler
+	 * characteristic and delta chi of the byte stack methods, including stacks
+	 * one or two voxels thick and widths either side of a 64-voxel word
+	 */
+	@Test
+	public void testPackedEulerAndEdgeCorrection() {
+		final Random random = new Random(2);
+		final int[][] sizes = { { 1, 1, 1 }, { 2, 2, 2 }, { 3, 1, 2 }, { 1, 5, 7 }, { 13, 11, 1 }, { 31, 17,
+			23 }, { 63, 5, 4 }, { 64, 6, 3 }, { 65, 7, 5 }, { 130, 9, 6 } };
+		for (final int[] size : sizes) {
+			for (final double density : new double[] { 0.05, 0.3, 0.5, 0.8, 1 }) {
+				final ImagePlus imp = TestImages.noise(size[0], size[1], size[2], density, random);
+				final double[] packed = conn.getSumEulerAndEdgeCorrection(imp);
+				final double sumEuler = conn.getSumEuler(imp);
+				assertEquals(sumEuler, packed[0], 0);
+				assertEquals(conn.getDeltaChi(imp, sumEuler), packed[0] - packed[1], 0);
+			}
+		}
+	}
+
+	@Test
+	public void testEdgeCorrectionMatchesPerVoxel() {
+		final Random random = new Random(4);
+		final int[][] sizes = { { 1, 1, 1 }, { 2, 2, 2 }, { 3, 1, 2 }, { 1, 5, 7 }, { 13, 11, 1 }, { 31, 17,
+			23 }, { 2, 1, 1 }, { 1, 2, 1 }, { 1, 1, 2 }, { 3, 3, 3 } };
+		for (final int[] size : sizes) {
+			for (final double density : new double[] { 0.05, 0.3, 0.5, 0.8, 1 }) {
+				final ImagePlus imp = TestImages.noise(size[0], size[1], size[2], density, random);
+				assertEquals(-ReferenceImplementations.correctForEdges(imp), conn.getDeltaChi(imp, 0), 0);
+			}
+		}
+	}
+
 	/**
 	 * Draw the edges of a brick with 32 pixels of padding on all faces
 	 *
@@ -0,0 +1,213 @@
+/*-
+ * #%L
+ * Mavenized version of the BoneJ1 plugins
+ * %%
+ * Copyright (C) 2015 - 2020 Michael Doube, BoneJ developers
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.bonej.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bonej.util.Multithreader;
+import org.junit.AfterClass;
+import org.junit.Test;
+
+public class MeasurementGraphTest {
+
+	private static final ForkJoinPool POOL = new ForkJoinPool(4);
+
+	@Test
+	public void testStagesSeeTheirInputs() {
+		final MeasurementGraph graph = new MeasurementGraph();
+		graph.add("a", r -> 2);
+		graph.add("b", r -> r.<Integer> get("a") * 3, "a");
+		graph.add("c", r -> r.<Integer> get("a") + r.<Integer> get("b"), "a", "b");
+		graph.keep("c");
+
+		final MeasurementGraph.Results results = graph.run(POOL);
+
+		assertEquals(8, results.<Integer> get("c").intValue());
+		assertEquals(-1, results.get("a", -1).intValue());
+	}
+
+	@Test(timeout = 10000)
+	public void testIndependentStagesRunTogether() {
+		// each stage waits for the other to start, so they must run concurrently
+		final CountDownLatch started = new CountDownLatch(2);
+		final MeasurementGraph graph = new MeasurementGraph();
+		graph.add("left", r -> awaitBoth(started));
+		graph.add("right", r -> awaitBoth(started));
+		graph.keep("left");
+		graph.keep("right");
+
+		final MeasurementGraph.Results results = graph.run(POOL);
+
+		assertTrue(results.<Boolean> get("left"));
+		assertTrue(results.<Boolean> get("right"));
+	}
+
+	@Test
+	public void testIntermediatesAreDroppedAfterLastConsumer() {
+		final List<String> events = Collections.synchronizedList(new ArrayList<>());
+		final MeasurementGraph graph = new MeasurementGraph();
+		graph.onRelease(name -> events.add("drop " + name));
+		graph.add("mesh", r -> new int[1000]);
+		graph.add("area", r -> {
+			events.add("area");
+			return r.<int[]> get("mesh").length;
+		}, "mesh");
+		graph.add("volume", r -> {
+			events.add("volume");
+			return r.<int[]> get("mesh").length;
+		}, "mesh");
+		graph.add("report", r -> r.<Integer> get("area") + r.<Integer> get("volume"), "area", "volume");
+		graph.keep("report");
+
+		final MeasurementGraph.Results results = graph.run(POOL);
+
+		assertEquals(2000, results.<Integer> get("report").intValue());
+		assertNull(results.get("mesh", null));
+		assertTrue(events.contains("drop mesh"));
+		assertTrue(events.indexOf("drop mesh") > events.indexOf("area"));
+		assertTrue(events.indexOf("drop mesh") > events.indexOf("volume"));
+		assertTrue(events.contains("drop area"));
+		assertTrue(events.contains("drop volume"));
+		assertTrue(!events.contains("drop report"));
+	}
+
+	@Test
+	public void testGraphCanRunAgain() {
+		final List<String> released = Collections.synchronizedList(new ArrayList<>());
+		final MeasurementGraph graph = new MeasurementGraph();
+		graph.onRelease(released::add);
+		graph.add("a", r -> 2);
+		graph.add("b", r -> r.<Integer> get("a") * 3, "a");
+		graph.keep("b");
+
+		assertEquals(6, graph.run(POOL).<Integer> get("b").intValue());
+		assertEquals(Collections.singletonList("a"), released);
+		released.clear();
+		assertEquals(6, graph.run(POOL).<Integer> get("b").intValue());
+		assertEquals(Collections.singletonList("a"), released);
+	}
+
+	@Test
+	public void testStageWorkRunsInThePool() {
+		final AtomicInteger outside = new AtomicInteger();
+		final MeasurementGraph graph = new MeasurementGraph();
+		graph.add("a", r -> {
+			final Thread[] threads = Multithreader.newThreads();
+			for (int t = 0; t < threads.length; t++) {
+				threads[t] = new Thread(() -> {
+					final Thread current = Thread.currentThread();
+					if (!(current instanceof ForkJoinWorkerThread) ||
+						((ForkJoinWorkerThread) current).getPool() != POOL) outside
+							.incrementAndGet();
+				});
+			}
+			Multithreader.startAndJoin(threads, r.pool());
+			return threads.length;
+		});
+		graph.keep("a");
+
+		assertTrue(graph.run(POOL).<Integer> get("a") > 0);
+		assertEquals(0, outside.get());
+	}
+
+	@Test
+	public void testWorkWithoutThePoolStartsThreads() {
+		final AtomicInteger inside = new AtomicInteger();
+		final MeasurementGraph graph = new MeasurementGraph();
+		graph.add("a", r -> {
+			final Thread[] threads = Multithreader.newThreads();
+			for (int t = 0; t < threads.length; t++) {
+				threads[t] = new Thread(() -> {
+					if (Thread.currentThread() instanceof ForkJoinWorkerThread) inside
+						.incrementAndGet();
+				});
+			}
+			Multithreader.startAndJoin(threads);
+			return threads.length;
+		});
+		graph.keep("a");
+
+		assertTrue(graph.run(POOL).<Integer> get("a") > 0);
+		assertEquals(0, inside.get());
+	}
+
+	@Test
+	public void testKeptIntermediatesSurvive() {
+		final MeasurementGraph graph = new MeasurementGraph();
+		graph.add("mesh", r -> new int[1000]);
+		graph.add("area", r -> r.<int[]> get("mesh").length, "mesh");
+		graph.keep("mesh");
+
+		final MeasurementGraph.Results results = graph.run(POOL);
+
+		assertEquals(1000, results.<int[]> get("mesh").length);
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testStageExceptionIsRethrown() {
+		final MeasurementGraph graph = new MeasurementGraph();
+		graph.add("a", r -> {
+			throw new IllegalStateException("failed");
+		});
+		graph.add("b", r -> r.get("a"), "a");
+		graph.run(POOL);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testUnknownInputIsRejected() {
+		new MeasurementGraph().add("a", r -> 1, "b");
+	}
+
+	@AfterClass
+	public static void oneTimeTearDown() {
+		POOL.shutdown();
+	}
+
+	private static Boolean awaitBoth(final CountDownLatch started) {
+		started.countDown();
+		try {
+			return started.await(5, TimeUnit.SECONDS);
+		}
+		catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+}
@@ -52,10 +52,18 @@ OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 package org.bonej.plugins;
 
 import static org.bonej.plugins.Moments.getEmptyPixels;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
+import java.util.Random;
+
 import org.junit.Test;
 
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+
 /**
  * Tests for the {@link Moments} class.
  *
@@ -91,4 +99,178 @@ public class MomentsTest {
 	public void testGetEmptyPixelsBadBitDepth() {
 		getEmptyPixels(1, 1, 64);
 	}
+
+	@Test
+	public void testOnePassMatchesTwoPass() {
+		final Random random = new Random(1);
+		for (int trial = 0; trial < 20; trial++) {
+			final int w = 1 + random.nextInt(40);
+			final int h = 1 + random.nextInt(40);
+			final int d = 1 + random.nextInt(20);
+			final ImagePlus imp = blob(w, h, d, random);
+			if (random.nextBoolean()) {
+				final int x = random.nextInt(w);
+				final int y = random.nextInt(h);
+				imp.getProcessor().setRoi(x, y, 1 + random.nextInt(w - x), 1 + random
+					.nextInt(h - y));
+			}
+			final double m = random.nextBoolean() ? 0 : random.nextDouble() * 0.01;
+			final double c = random.nextDouble() * 2;
+			final double[] onePass = Moments.getCentroidAndMoments(imp, 1, d, 1000,
+				4000, m, c);
+			final double[] centroid = Moments.getCentroid3D(imp, 1, d, 1000, 4000, m,
+				c);
+			if (centroid[0] < 0) {
+				assertEquals(-1, onePass[0], 0);
+				continue;
+			}
+			final double[] moments = ReferenceImplementations.calculateMoments(imp,
+				1, d, centroid, 1000, 4000, m, c);
+			for (int i = 0; i < 3; i++) {
+				assertEquals(centroid[i], onePass[i], 1e-9 * Math.abs(centroid[i]));
+			}
+			// products of inertia may be near 0, so compare them to the moments
+			final double scale = Math.max(moments[2], Math.max(moments[3],
+				moments[4]));
+			for (int i = 0; i < moments.length; i++) {
+				final double tolerance = 1e-9 * (i < 5 ? Math.abs(moments[i]) : scale);
+				assertEquals(moments[i], onePass[i + 3], tolerance);
+			}
+		}
+	}
+
+	@Test
+	public void testAlignedStackMatchesPerVoxel() {
+		final Random random = new Random(2);
+		long nBoundaries = 0;
+		long nVoxels = 0;
+		for (int trial = 0; trial < 20; trial++) {
+			final ImagePlus imp = blob(2 + random.nextInt(30), 2 + random.nextInt(30),
+				2 + random.nextInt(20), random);
+			final AlignedStackCase c = new AlignedStackCase(imp, random);
+			final ImageStack expected = ReferenceImplementations.align(imp,
+				c.inverse, c.centroid, c.startSlice, c.endSlice, c.wT, c.hT, c.dT,
+				false);
+			// stepping along a row may round to the other voxel on a boundary
+			final boolean[][] boundaries = ReferenceImplementations.alignBoundaries(
+				imp, c.inverse, c.centroid, c.wT, c.hT, c.dT, 1e-9);
+			final AlignedStack aligned = new AlignedStack(imp, c.inverse, c.centroid,
+				c.startSlice, c.endSlice, c.wT, c.hT, c.dT, false, false);
+			final ImageStack stored = aligned.renderAll();
+			assertEquals(c.dT, aligned.getSize());
+			assertEquals(c.dT, stored.getSize());
+			for (int z = 1; z <= c.dT; z++) {
+				final short[] e = (short[]) expected.getPixels(z);
+				final short[] s = (short[]) stored.getPixels(z);
+				for (int i = 0; i < e.length; i++) {
+					if (boundaries[z - 1][i]) nBoundaries++;
+					else assertEquals(e[i], s[i]);
+				}
+				nVoxels += e.length;
+				assertArrayEquals(s, (short[]) aligned.getPixels(z));
+			}
+		}
+		assertTrue(nBoundaries * 1000 < nVoxels);
+	}
+
+	@Test
+	public void testInterpolatedAlignedStack() {
+		final Random random = new Random(3);
+		for (int trial = 0; trial < 20; trial++) {
+			final ImagePlus imp = blob(2 + random.nextInt(30), 2 + random.nextInt(30),
+				2 + random.nextInt(20), random);
+			final AlignedStackCase c = new AlignedStackCase(imp, random);
+			final ImageStack expected = ReferenceImplementations.align(imp,
+				c.inverse, c.centroid, c.startSlice, c.endSlice, c.wT, c.hT, c.dT,
+				true);
+			final AlignedStack aligned = new AlignedStack(imp, c.inverse, c.centroid,
+				c.startSlice, c.endSlice, c.wT, c.hT, c.dT, true, false);
+			final ImageStack stored = aligned.renderAll();
+			for (int z = 1; z <= c.dT; z++) {
+				final short[] e = (short[]) expected.getPixels(z);
+				final short[] s = (short[]) stored.getPixels(z);
+				// the sums are in a different order, so may round the other way
+				for (int i = 0; i < e.length; i++) {
+					assertEquals(e[i] & 0xffff, s[i] & 0xffff, 1);
+				}
+				assertArrayEquals(s, (short[]) aligned.getPixels(z));
+			}
+		}
+	}
+
+	/**
+	 * Random rotation about a random centroid, into a target big enough to hold
+	 * the source, with a random ROI and range of slices
+	 */
+	private static final class AlignedStackCase {
+
+		private final double[][] inverse = new double[3][3];
+		private final double[] centroid;
+		private final int startSlice;
+		private final int endSlice;
+		private final int wT;
+		private final int hT;
+		private final int dT;
+
+		private AlignedStackCase(final ImagePlus imp, final Random random) {
+			final int w = imp.getWidth();
+			final int h = imp.getHeight();
+			final int d = imp.getStackSize();
+			if (random.nextBoolean()) {
+				final int x = random.nextInt(w);
+				final int y = random.nextInt(h);
+				imp.getProcessor().setRoi(x, y, 1 + random.nextInt(w - x), 1 + random
+					.nextInt(h - y));
+			}
+			startSlice = 1 + random.nextInt(d);
+			endSlice = startSlice + random.nextInt(d - startSlice + 1);
+			final Calibration cal = imp.getCalibration();
+			centroid = new double[] { w * cal.pixelWidth * random.nextDouble(), h *
+				cal.pixelHeight * random.nextDouble(), d * cal.pixelDepth * random
+					.nextDouble() };
+			final double[][] rotation = TestImages.randomRotation(random);
+			for (int i = 0; i < 3; i++) {
+				for (int j = 0; j < 3; j++)
+					inverse[i][j] = rotation[j][i];
+			}
+			wT = w + d;
+			hT = h + d;
+			dT = w + h;
+		}
+	}
+
+	/**
+	 * Create a 16-bit stack of noise, below 1000 outside and from 1000 to 4000
+	 * inside a randomly placed ellipsoid, with random voxel dimensions
+	 */
+	private static ImagePlus blob(final int w, final int h, final int d,
+		final Random random)
+	{
+		final ImageStack stack = new ImageStack(w, h);
+		final double cX = w * random.nextDouble();
+		final double cY = h * random.nextDouble();
+		final double cZ = d * random.nextDouble();
+		final double r = Math.max(2, Math.min(w, Math.min(h, d)) * 0.4);
+		for (int z = 0; z < d; z++) {
+			final short[] pixels = new short[w * h];
+			for (int y = 0; y < h; y++) {
+				for (int x = 0; x < w; x++) {
+					final double dX = x - cX;
+					final double dY = y - cY;
+					final double dZ = z - cZ;
+					final boolean inside = dX * dX + 2 * dY * dY + 0.7 * dZ * dZ - dX *
+						dY < r * r;
+					pixels[y * w + x] = (short) (inside ? 1000 + random.nextInt(3000)
+						: random.nextInt(900));
+				}
+			}
+			stack.addSlice("", pixels);
+		}
+		final ImagePlus imp = new ImagePlus("blob", stack);
+		final Calibration cal = imp.getCalibration();
+		cal.pixelWidth = 0.5 + random.nextDouble();
+		cal.pixelHeight = 0.5 + random.nextDouble();
+		cal.pixelDepth = 0.5 + random.nextDouble();
+		return imp;
+	}
 }
@@ -0,0 +1,752 @@
+/*-
+ * #%L
+ * Mavenized version of the BoneJ1 plugins
+ * %%
+ * Copyright (C) 2015 - 2020 Michael Doube, BoneJ developers
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.bonej.plugins;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeFalse;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.scijava.vecmath.Point3f;
+
+import Jama.EigenvalueDecomposition;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+
+public class ParticleAnalysisTest {
+
+	/**
+	 * Check that labels beyond the float-exact range survive the wide label
+	 * display and are decoded back exactly.
+	 */
+	@Test
+	public void testWideLabelsRoundTrip() {
+		final int w = 5;
+		final int h = 4;
+		final int d = 3;
+		final ImageStack stack = new ImageStack(w, h);
+		for (int z = 0; z < d; z++) {
+			stack.addSlice(new ByteProcessor(w, h));
+		}
+		final ImagePlus imp = new ImagePlus("labels", stack);
+		final int[][] labels = new int[d][w * h];
+		final int[] values = { 0, 1, 65535, 65536, ConnectedComponents.MAX_FINAL_LABEL + 1,
+			Integer.MAX_VALUE - 1 };
+		for (int z = 0; z < d; z++) {
+			for (int i = 0; i < w * h; i++) {
+				labels[z][i] = values[(z * w * h + i) % values.length];
+			}
+		}
+
+		final ImagePlus wideImp = ParticleDisplay.displayWideParticleLabels(labels, imp);
+		assertEquals(2, wideImp.getNChannels());
+		assertEquals(16, wideImp.getBitDepth());
+
+		final int[][] decoded = ParticleAnalysis.getParticleLabels(wideImp);
+		assertEquals(d, decoded.length);
+		for (int z = 0; z < d; z++) {
+			assertArrayEquals(labels[z], decoded[z]);
+		}
+	}
+
+	/**
+	 * Check that more particles than a float image can label survive being
+	 * displayed from a wide label image and read back.
+	 */
+	@Test
+	public void testWideLabelImageRoundTripBeyondFloatRange() {
+		final int w = 2048;
+		final int h = 2049;
+		final int d = 2;
+		final ImagePlus imp = byteImage(w, h, d);
+		final int[][] labels = new int[d][w * h];
+		for (int z = 0; z < d; z++) {
+			for (int i = 0; i < w * h; i++) {
+				labels[z][i] = z * w * h + i + 1;
+			}
+		}
+		assertTrue(labels[d - 1][w * h - 1] > ConnectedComponents.MAX_FINAL_LABEL);
+
+		final ImagePlus wideImp = ParticleDisplay.displayWideParticleLabels(labels, imp);
+		final ImagePlus redisplayed = ParticleDisplay.displayParticleLabels(wideImp, imp, false);
+		assertEquals(2, redisplayed.getNChannels());
+		assertEquals(16, redisplayed.getBitDepth());
+
+		final int[][] decoded = ParticleAnalysis.getParticleLabels(redisplayed);
+		assertEquals(d, decoded.length);
+		for (int z = 0; z < d; z++) {
+			assertArrayEquals(labels[z], decoded[z]);
+		}
+	}
+
+	/**
+	 * Check that the single pass statistics match the separate bounding box,
+	 * moment and mean thickness passes on an anisotropic image.
+	 */
+	@Test
+	public void testStatisticsMatchSeparatePasses() {
+		final int nParticles = 40;
+		final ImagePlus imp = byteImage(23, 17, 11);
+		final int[][] labels = randomLabels(imp, nParticles, 1);
+		final ImagePlus intensityImp = randomIntensities(imp, 2);
+
+		final long[] sizes = countLabels(labels, nParticles);
+		final Object[] boxes = ReferenceImplementations.getBoundingBoxes(imp, labels, sizes);
+		final double[][] centroids = (double[][]) boxes[0];
+		final int[][] limits = (int[][]) boxes[1];
+		final EigenvalueDecomposition[] eigens = ReferenceImplementations.getEigens(imp, labels, centroids);
+		final double[][] meanStdDev = ReferenceImplementations.getMeanStdDev(intensityImp, labels, sizes);
+
+		final ParticleStatistics stats = ParticleStatistics.accumulate(imp, labels, nParticles, intensityImp);
+		final Calibration cal = imp.getCalibration();
+		final double[][] fusedCentroids = stats.getCentroids(cal);
+		final int[][] fusedLimits = stats.getLimits();
+		final EigenvalueDecomposition[] fusedEigens = stats.getEigens(cal);
+		final double[][] fusedMeanStdDev = stats.getMeanStdDev();
+		final double[][] intensityMeanStdDev = ParticleStatistics.accumulateIntensities(imp, labels,
+			nParticles, intensityImp, null).getMeanStdDev();
+
+		// the background is not accumulated, so only the particles are compared
+		final long[] counts = stats.getCounts();
+		for (int p = 1; p < nParticles; p++) {
+			assertEquals(sizes[p], counts[p]);
+			assertArrayEquals(centroids[p], fusedCentroids[p], 1e-9);
+			assertArrayEquals(limits[p], fusedLimits[p]);
+			final double[] values = eigens[p].getRealEigenvalues();
+			final double[] fusedValues = fusedEigens[p].getRealEigenvalues();
+			for (int i = 0; i < 3; i++) {
+				assertEquals(values[i], fusedValues[i], 1e-9 * Math.abs(values[i]));
+			}
+			assertArrayEquals(meanStdDev[p], fusedMeanStdDev[p], 1e-9);
+			assertArrayEquals(meanStdDev[p], intensityMeanStdDev[p], 1e-9);
+		}
+	}
+
+	/**
+	 * Compare the run time of the single pass statistics with the chain of
+	 * separate bounding box, moment and intensity passes they replace.
+	 */
+	@Category(SlowTest.class)
+	@Test
+	public void benchmarkStatistics() {
+		final int nParticles = 10000;
+		final ImagePlus imp = byteImage(512, 512, 256);
+		final int[][] labels = randomLabels(imp, nParticles, 3);
+		final ImagePlus intensityImp = randomIntensities(imp, 4);
+		final long[] sizes = countLabels(labels, nParticles);
+
+		for (int i = 0; i < 3; i++) {
+			long start = System.nanoTime();
+			final Object[] boxes = ReferenceImplementations.getBoundingBoxes(imp, labels, sizes);
+			ReferenceImplementations.getEigens(imp, labels, (double[][]) boxes[0]);
+			final double[][] meanStdDev = ReferenceImplementations.getMeanStdDev(intensityImp, labels, sizes);
+			final long separate = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			final ParticleStatistics stats = ParticleStatistics.accumulate(imp, labels, nParticles, intensityImp);
+			final double[][] centroids = stats.getCentroids(imp.getCalibration());
+			stats.getLimits();
+			stats.getEigens(imp.getCalibration());
+			final double[][] fusedMeanStdDev = stats.getMeanStdDev();
+			final long fused = System.nanoTime() - start;
+
+			for (int p = 1; p < nParticles; p++) {
+				assertArrayEquals(((double[][]) boxes[0])[p], centroids[p], 1e-9);
+				assertArrayEquals(meanStdDev[p], fusedMeanStdDev[p], 1e-9);
+			}
+			IJ.log("Separate passes: " + separate / 1000000 + " ms, single pass: " + fused / 1000000 + " ms");
+		}
+	}
+
+	/**
+	 * Check that sparse per-thread tables give the same results as dense ones,
+	 * with more particle labels than voxels so that the automatic choice is
+	 * sparse too.
+	 */
+	@Test
+	public void testSparseTablesMatchDense() {
+		final int nParticles = 100000;
+		final ImagePlus imp = byteImage(23, 17, 11);
+		final int[][] labels = randomLabels(imp, nParticles, 5);
+		final ImagePlus intensityImp = randomIntensities(imp, 6);
+
+		final long[] sizes = countLabels(labels, nParticles);
+		assertArrayEquals(sizes, new ParticleAnalysis().getParticleSizes(labels, nParticles));
+
+		final ParticleStatistics dense = ParticleStatistics.accumulate(imp, labels, nParticles, intensityImp,
+			ParticleTable.DENSE);
+		final ParticleStatistics sparse = ParticleStatistics.accumulate(imp, labels, nParticles, intensityImp,
+			ParticleTable.SPARSE);
+		final Calibration cal = imp.getCalibration();
+		assertArrayEquals(sizes, sparse.getCounts());
+		final double[][] denseCentroids = dense.getCentroids(cal);
+		final double[][] sparseCentroids = sparse.getCentroids(cal);
+		final int[][] denseLimits = dense.getLimits();
+		final int[][] sparseLimits = sparse.getLimits();
+		final double[][] denseTensors = dense.getMomentTensors(cal);
+		final double[][] sparseTensors = sparse.getMomentTensors(cal);
+		final double[][] denseMeans = dense.getMeanStdDev();
+		final double[][] sparseMeans = sparse.getMeanStdDev();
+		for (int p = 1; p < nParticles; p++) {
+			if (sizes[p] == 0) continue;
+			assertArrayEquals(denseCentroids[p], sparseCentroids[p], 1e-9);
+			assertArrayEquals(denseLimits[p], sparseLimits[p]);
+			assertArrayEquals(denseTensors[p], sparseTensors[p], 1e-9);
+			assertArrayEquals(denseMeans[p], sparseMeans[p], 1e-9);
+		}
+	}
+
+	/**
+	 * Measure the peak heap used to size and summarise two million small
+	 * particles, which should stay within a few times the label image size.
+	 */
+	@Category(SlowTest.class)
+	@Test
+	public void benchmarkPeakHeap() {
+		final int w = 256;
+		final int h = 256;
+		final int d = 512;
+		final ImagePlus imp = byteImage(w, h, d);
+		// 2 x 2 x 4 voxel blocks, about 2 x 10^6 particles
+		final int[][] labels = new int[d][w * h];
+		for (int z = 0; z < d; z++) {
+			for (int y = 0; y < h; y++) {
+				for (int x = 0; x < w; x++) {
+					labels[z][y * w + x] = 1 + (z / 4) * (w / 2) * (h / 2) + (y / 2) * (w / 2) + x / 2;
+				}
+			}
+		}
+		final int nParticles = 1 + (d / 4) * (w / 2) * (h / 2);
+		final long labelBytes = 4L * w * h * d;
+
+		System.gc();
+		final long baseline = usedHeap();
+		resetPeakHeap();
+		final long[] sizes = new ParticleAnalysis().getParticleSizes(labels, nParticles);
+		ParticleStatistics.accumulate(imp, labels, nParticles, null).getCentroids(imp.getCalibration());
+		final long peak = peakHeap() - baseline;
+
+		assertEquals(16, sizes[1]);
+		IJ.log("Label image: " + labelBytes / (1 << 20) + " MiB, peak extra heap: " + peak / (1 << 20) + " MiB");
+		assertTrue(peak < 4 * labelBytes);
+	}
+
+	private static long usedHeap() {
+		long used = 0;
+		for (final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) used += pool.getUsage().getUsed();
+		}
+		return used;
+	}
+
+	private static void resetPeakHeap() {
+		for (final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			pool.resetPeakUsage();
+		}
+	}
+
+	private static long peakHeap() {
+		long peak = 0;
+		for (final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) peak += pool.getPeakUsage().getUsed();
+		}
+		return peak;
+	}
+
+	/**
+	 * Check that the hull-based Feret diameter and end points are identical to
+	 * the brute-force search, on voxel-grid points with many ties and repeats.
+	 */
+	@Test
+	public void testFeretMatchesBruteForce() {
+		final Random random = new Random(7);
+		for (int t = 0; t < 50; t++) {
+			final List<Point3f> points = new ArrayList<>();
+			final int nPoints = 20 + random.nextInt(2000);
+			for (int i = 0; i < nPoints; i++) {
+				final Point3f point = new Point3f(random.nextInt(30) * 0.5f, random.nextInt(9) * 0.5f,
+					random.nextInt(17) * 0.5f);
+				points.add(point);
+				// meshers repeat each vertex once per triangle
+				if (random.nextBoolean()) points.add(new Point3f(point));
+			}
+			final double[] expected = ReferenceImplementations.getFeret(points);
+			final double[] feret = ParticleAnalysis.getFeret(points);
+			assertArrayEquals(Arrays.copyOf(expected, 7), Arrays.copyOf(feret, 7), 0);
+		}
+	}
+
+	/**
+	 * Check the minimum Feret diameter of a box and of a tilted slab.
+	 */
+	@Test
+	public void testMinFeret() {
+		final List<Point3f> box = new ArrayList<>();
+		for (int z = 0; z <= 6; z++) {
+			for (int y = 0; y <= 4; y++) {
+				for (int x = 0; x <= 10; x++) {
+					box.add(new Point3f(x, y, z));
+				}
+			}
+		}
+		assertEquals(4, ParticleAnalysis.getFeret(box)[7], 1e-9);
+
+		// slab 2 thick, normal to (1, 1, 0)
+		final List<Point3f> slab = new ArrayList<>();
+		final double r = Math.sqrt(0.5);
+		for (int u = 0; u <= 1; u++) {
+			for (int v = 0; v <= 10; v++) {
+				for (int w = 0; w <= 10; w++) {
+					final double normal = 2 * u;
+					slab.add(new Point3f((float) (r * (normal + v)), (float) (r * (normal - v)), w));
+				}
+			}
+		}
+		final double[] feret = ParticleAnalysis.getFeret(slab);
+		assertEquals(2, feret[7], 1e-5);
+	}
+
+	/**
+	 * Check the minimum Feret diameter of a regular tetrahedron, which lies
+	 * between two opposite edges rather than a face and a vertex.
+	 */
+	@Test
+	public void testMinFeretTetrahedron() {
+		final List<Point3f> tetrahedron = Arrays.asList(new Point3f(1, 1, 1),
+			new Point3f(1, -1, -1), new Point3f(-1, 1, -1), new Point3f(-1, -1, 1));
+		// a face's height is 4 / sqrt(3), opposite edges are 2 apart
+		assertEquals(2, ParticleAnalysis.getFeret(tetrahedron)[7], 1e-9);
+	}
+
+	/**
+	 * Check the minimum Feret diameter of random point clouds against the
+	 * width along every face normal and edge-pair direction.
+	 */
+	@Test
+	public void testMinFeretMatchesBruteForce() {
+		final Random random = new Random(13);
+		for (int t = 0; t < 100; t++) {
+			final List<Point3f> points = new ArrayList<>();
+			final int nPoints = 5 + random.nextInt(20);
+			final double sx = 1 + 5 * random.nextDouble();
+			final double sy = 1 + 5 * random.nextDouble();
+			final double sz = 1 + 5 * random.nextDouble();
+			for (int i = 0; i < nPoints; i++) {
+				points.add(new Point3f((float) (sx * random.nextDouble()), (float) (sy *
+					random.nextDouble()), (float) (sz * random.nextDouble())));
+			}
+			final double expected = ReferenceImplementations.getMinWidth(points);
+			assertEquals(expected, ParticleAnalysis.getFeret(points)[7], 1e-9 *
+				expected);
+		}
+	}
+
+	/**
+	 * Check that the mesh-free surface area and volume equal those of the
+	 * particles' MCTriangulator meshes at a surface resampling of 1, for a ball
+	 * cut by the image's side, a hollow ball, a block with a tunnel through it
+	 * in the image's corner, and a ragged blob.
+	 */
+	@Test
+	public void testMeshFreeSurfaceMatchesMeshes() {
+		final int nParticles = 5;
+		final ImagePlus imp = byteImage(30, 25, 20);
+		final int w = imp.getWidth();
+		final int h = imp.getHeight();
+		final int d = imp.getImageStackSize();
+		final int[][] labels = new int[d][w * h];
+		final Random random = new Random(11);
+		for (int z = 0; z < d; z++) {
+			for (int y = 0; y < h; y++) {
+				for (int x = 0; x < w; x++) {
+					final int i = y * w + x;
+					final int ball = distanceSq(x, y, z, 1, 6, 6);
+					final int shell = distanceSq(x, y, z, 20, 8, 10);
+					final boolean tunnel = (x == 13 || x == 14) && (z == 2 || z == 3);
+					if (ball <= 25) labels[z][i] = 1;
+					else if (shell <= 49 && shell > 9) labels[z][i] = 2;
+					else if (x >= 10 && x < 18 && y < 5 && z < 6 && !tunnel) labels[z][i] = 3;
+					else if (distanceSq(x, y, z, 10, 18, 14) <= 30 && random.nextInt(4) > 0)
+						labels[z][i] = 4;
+				}
+			}
+		}
+
+		final int[][] limits = ParticleStatistics.accumulate(imp, labels, nParticles, null).getLimits();
+		final List<IndexedMesh> meshes = ParticleAnalysis.getSurfaceMeshes(imp, labels, limits, 1, nParticles);
+		final double[] meshAreas = ParticleAnalysis.getSurfaceAreas(meshes);
+		final double[] meshVolumes = ParticleAnalysis.getSurfaceVolume(meshes);
+
+		final double[][] areasAndVolumes = SurfaceEstimator.getAreasAndVolumes(imp, labels, nParticles, null);
+		for (int p = 1; p < nParticles; p++) {
+			assertTrue(meshAreas[p] > 0);
+			assertEquals(meshAreas[p], areasAndVolumes[0][p], 1e-5 * meshAreas[p]);
+			assertEquals(meshVolumes[p], areasAndVolumes[1][p], 1e-5 * meshVolumes[p]);
+		}
+	}
+
+	/**
+	 * Check that welding a marching cubes triangle list shares the repeated
+	 * vertices without changing any triangle, and that the indexed mesh's area
+	 * and volume are those of the triangle list.
+	 */
+	@Test
+	public void testIndexedMeshWelding() {
+		final List<Point3f> points = new ArrayList<>();
+		// a 2 x 1 x 1 voxel block, built cube by cube
+		for (int z = -1; z < 1; z++) {
+			for (int y = -1; y < 1; y++) {
+				for (int x = -1; x < 2; x++) {
+					int config = 0;
+					for (int c = 0; c < 8; c++) {
+						final int cx = x + ((c == 1 || c == 2 || c == 5 || c == 6) ? 1 : 0);
+						final int cy = y + ((c == 2 || c == 3 || c == 6 || c == 7) ? 1 : 0);
+						final int cz = z + (c >= 4 ? 1 : 0);
+						if ((cx == 0 || cx == 1) && cy == 0 && cz == 0) config |= 1 << c;
+					}
+					final double[] vertices = SurfaceEstimator.getTriangles(config, 1, 1, 1);
+					for (int v = 0; v < vertices.length; v += 3) {
+						points.add(new Point3f((float) (vertices[v] + x), (float) (vertices[v + 1] + y),
+							(float) (vertices[v + 2] + z)));
+					}
+				}
+			}
+		}
+
+		final IndexedMesh mesh = IndexedMesh.weld(points);
+
+		assertEquals(points.size() / 3, mesh.getTriangleCount());
+		assertTrue(mesh.getVertexCount() < points.size() / 3);
+		assertEquals(points, mesh.toPointList());
+		double area = 0;
+		double volume = 0;
+		for (int i = 0; i < points.size(); i += 3) {
+			final Point3f a = points.get(i);
+			final Point3f b = points.get(i + 1);
+			final Point3f c = points.get(i + 2);
+			final double ux = b.x - a.x;
+			final double uy = b.y - a.y;
+			final double uz = b.z - a.z;
+			final double vx = c.x - a.x;
+			final double vy = c.y - a.y;
+			final double vz = c.z - a.z;
+			area += 0.5 * Math.sqrt(Math.pow(uy * vz - uz * vy, 2) + Math.pow(uz * vx - ux * vz, 2) +
+				Math.pow(ux * vy - uy * vx, 2));
+			volume += (a.x * (b.y * c.z - b.z * c.y) + a.y * (b.z * c.x - b.x * c.z) + a.z * (b.x * c.y - b.y *
+				c.x)) / 6;
+		}
+		assertEquals(area, mesh.getSurfaceArea(), 1e-5 * area);
+		assertEquals(Math.abs(volume), Math.abs(mesh.getVolume()), 1e-6);
+		assertTrue(Math.abs(mesh.getVolume()) > 0);
+	}
+
+	/**
+	 * Check that measuring meshes as they are streamed gives the same results
+	 * as measuring a list of all the meshes
+	 */
+	@Test
+	public void testStreamedMeshMeasurementsMatchList() {
+		final int nParticles = 6;
+		final Random random = new Random(5);
+		final List<IndexedMesh> meshes = new ArrayList<>();
+		for (int p = 0; p < nParticles; p++) {
+			// no surface for the background and particle 3
+			meshes.add(p == 0 || p == 3 ? null : ellipsoidMesh(10 * random.nextDouble(), 10 * random
+				.nextDouble(), 10 * random.nextDouble(), 1 + 5 * random.nextDouble(), 1 + 5 * random
+					.nextDouble(), 1 + 5 * random.nextDouble(), 12 + random.nextInt(10)));
+		}
+		final MeshMeasurements streamed = new MeshMeasurements(nParticles, true, true, true, true, true);
+		IntStream.range(0, nParticles).parallel().filter(p -> meshes.get(p) != null).forEach(p -> streamed
+			.accept(p, meshes.get(p)));
+
+		assertArrayEquals(ParticleAnalysis.getSurfaceAreas(meshes), streamed.getSurfaceAreas(), 0);
+		assertArrayEquals(ParticleAnalysis.getSurfaceVolume(meshes), streamed.getSurfaceVolumes(), 0);
+		final double[][] ferets = ParticleAnalysis.getFerets(meshes);
+		final Object[] ellipsoids = ParticleAnalysis.getEllipsoids(meshes);
+		for (int p = 0; p < nParticles; p++) {
+			assertArrayEquals(ferets[p], streamed.getFerets()[p], 0);
+			if (ellipsoids[p] == null) {
+				assertNull(streamed.getEllipsoids()[p]);
+				continue;
+			}
+			final Object[] expected = (Object[]) ellipsoids[p];
+			final Object[] actual = (Object[]) streamed.getEllipsoids()[p];
+			assertArrayEquals((double[]) expected[0], (double[]) actual[0], 0);
+			assertArrayEquals((double[]) expected[1], (double[]) actual[1], 0);
+		}
+		assertEquals(meshes, streamed.getMeshes());
+	}
+
+	/**
+	 * Check that a mesh is written as a binary STL file with a triangle count,
+	 * unit normals and the mesh's corners in order, over several write batches
+	 */
+	@Test
+	public void testStlWriter() throws IOException {
+		final IndexedMesh mesh = ellipsoidMesh(1, 2, 3, 4, 5, 6, 50);
+		final File directory = Files.createTempDirectory("bonej-stl").toFile();
+		final StlWriter writer = new StlWriter(directory, "particles");
+		final File file = writer.getFile(7);
+		try {
+			writer.accept(7, mesh);
+			final ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file.toPath())).order(
+				ByteOrder.LITTLE_ENDIAN);
+			final int nTriangles = mesh.getTriangleCount();
+			assertEquals(84 + 50 * nTriangles, buffer.capacity());
+			assertEquals(nTriangles, buffer.getInt(80));
+			final float[] vertices = mesh.getVertices();
+			final int[] triangles = mesh.getTriangles();
+			buffer.position(84);
+			for (int t = 0; t < nTriangles; t++) {
+				final double nx = buffer.getFloat();
+				final double ny = buffer.getFloat();
+				final double nz = buffer.getFloat();
+				assertEquals(1, Math.sqrt(nx * nx + ny * ny + nz * nz), 1e-6);
+				for (int c = 0; c < 3; c++) {
+					final int v = 3 * triangles[3 * t + c];
+					for (int k = 0; k < 3; k++) {
+						assertEquals(vertices[v + k], buffer.getFloat(), 0);
+					}
+				}
+				assertEquals(0, buffer.getShort());
+			}
+		}
+		finally {
+			Files.deleteIfExists(file.toPath());
+			Files.delete(directory.toPath());
+		}
+	}
+
+	/**
+	 * Check that a file which can't be written from a meshing thread fails the
+	 * streaming, rather than being lost with the thread
+	 */
+	@Test(expected = UncheckedIOException.class)
+	public void testStreamingFailsOnReadOnlyDirectory() throws IOException {
+		final int nParticles = 5;
+		final ImagePlus imp = byteImage(12, 10, 8);
+		final int[][] labels = randomLabels(imp, nParticles, 3);
+		final int[][] limits = ParticleStatistics.accumulate(imp, labels, nParticles, null).getLimits();
+		final File directory = Files.createTempDirectory("bonej-stl").toFile();
+		try {
+			assertTrue(directory.setWritable(false));
+			assumeFalse("File permissions are not enforced for this user", directory.canWrite());
+			ParticleAnalysis.streamSurfaceMeshes(imp, labels, limits, 1, nParticles, null, new StlWriter(
+				directory, "particles"));
+		}
+		finally {
+			directory.setWritable(true);
+			Files.delete(directory.toPath());
+		}
+	}
+
+	/**
+	 * Check that the batched Euler characteristics, holes and cavities equal
+	 * those found from an image of each particle, on noise where octants hold
+	 * several labels, and on a hollow box which touches the image edge.
+	 */
+	@Test
+	public void testEulerCharacterMatchesPerParticle() {
+		final int nParticles = 7;
+		final ImagePlus imp = byteImage(21, 16, 11);
+		final int w = imp.getWidth();
+		final int[][] labels = randomLabels(imp, nParticles - 1, 13);
+		// hollow 5 x 5 x 5 box in the corner of the image
+		final int hollow = nParticles - 1;
+		for (int z = 0; z < 5; z++) {
+			for (int y = 0; y < 5; y++) {
+				for (int x = 0; x < 5; x++) {
+					final boolean wall = x == 0 || y == 0 || z == 0 || x == 4 || y == 4 || z == 4;
+					labels[z][y * w + x] = wall ? hollow : 0;
+				}
+			}
+		}
+		final int[][] limits = ParticleStatistics.accumulate(imp, labels, nParticles, null).getLimits();
+
+		final double[][] expected = ReferenceImplementations.getEulerCharacters(imp, labels, limits, nParticles);
+		final double[][] eulerCharacters = ParticleAnalysis.getEulerCharacter(imp, labels, limits, nParticles, null);
+
+		for (int p = 1; p < nParticles; p++) {
+			assertArrayEquals(expected[p], eulerCharacters[p], 0);
+		}
+		assertArrayEquals(new double[] { 2, 0, 1 }, eulerCharacters[hollow], 0);
+	}
+
+	/**
+	 * Check that particle images built from recycled, dirty slices equal those
+	 * built from new slices, and that particles are scheduled largest first.
+	 */
+	@Test
+	public void testPooledBinaryParticles() {
+		final int nParticles = 9;
+		final ImagePlus imp = byteImage(17, 12, 8);
+		final int[][] labels = randomLabels(imp, nParticles, 17);
+		final ParticleStatistics stats = ParticleStatistics.accumulate(imp, labels, nParticles, null);
+		final int[][] limits = stats.getLimits();
+		final long[] sizes = stats.getCounts();
+
+		final SliceBufferPool pool = new SliceBufferPool();
+		for (int p = 1; p < nParticles; p++) {
+			final ImagePlus expected = ParticleAnalysis.getBinaryParticle(p, imp, labels, limits, 1);
+			final ImagePlus first = ParticleAnalysis.getBinaryParticle(p, imp, labels, limits, 1, pool);
+			// fill the slices with junk before they are reused
+			final List<Object> junk = new ArrayList<>();
+			for (int z = 1; z <= first.getStackSize(); z++) {
+				Arrays.fill((byte[]) first.getStack().getPixels(z), (byte) 0x55);
+				junk.add(first.getStack().getPixels(z));
+			}
+			pool.giveAll(first.getStack());
+			final ImagePlus reused = ParticleAnalysis.getBinaryParticle(p, imp, labels, limits, 1, pool);
+			for (int z = 1; z <= expected.getStackSize(); z++) {
+				assertTrue(junk.contains(reused.getStack().getPixels(z)));
+				assertArrayEquals((byte[]) expected.getStack().getPixels(z), (byte[]) reused.getStack().getPixels(z));
+			}
+			pool.giveAll(reused.getStack());
+		}
+
+		final int[] order = ParticleAnalysis.largestFirst(sizes, nParticles);
+		assertEquals(nParticles - 1, order.length);
+		for (int i = 1; i < order.length; i++) {
+			assertTrue(sizes[order[i - 1]] >= sizes[order[i]]);
+		}
+	}
+
+	private static int distanceSq(final int x, final int y, final int z, final int cx, final int cy,
+		final int cz)
+	{
+		return (x - cx) * (x - cx) + (y - cy) * (y - cy) + (z - cz) * (z - cz);
+	}
+
+	private static ImagePlus byteImage(final int w, final int h, final int d) {
+		final ImageStack stack = new ImageStack(w, h);
+		for (int z = 0; z < d; z++) {
+			stack.addSlice(new ByteProcessor(w, h));
+		}
+		final ImagePlus imp = new ImagePlus("particles", stack);
+		final Calibration cal = imp.getCalibration();
+		cal.pixelWidth = 0.7;
+		cal.pixelHeight = 1.3;
+		cal.pixelDepth = 2.1;
+		return imp;
+	}
+
+	/**
+	 * Label voxels at random, leaving about a quarter of them as background.
+	 * Particles need not be connected for their statistics to be defined.
+	 */
+	private static int[][] randomLabels(final ImagePlus imp, final int nParticles, final long seed) {
+		final Random random = new Random(seed);
+		final int wh = imp.getWidth() * imp.getHeight();
+		final int[][] labels = new int[imp.getImageStackSize()][wh];
+		for (final int[] slice : labels) {
+			for (int i = 0; i < wh; i++) {
+				if (random.nextInt(4) > 0) slice[i] = 1 + random.nextInt(nParticles - 1);
+			}
+		}
+		return labels;
+	}
+
+	/**
+	 * Float intensities centred on a large offset, with some non-positive
+	 * values that must be skipped.
+	 */
+	private static ImagePlus randomIntensities(final ImagePlus imp, final long seed) {
+		final Random random = new Random(seed);
+		final int w = imp.getWidth();
+		final int h = imp.getHeight();
+		final ImageStack stack = new ImageStack(w, h);
+		for (int z = 0; z < imp.getImageStackSize(); z++) {
+			final float[] pixels = new float[w * h];
+			for (int i = 0; i < pixels.length; i++) {
+				pixels[i] = random.nextInt(8) == 0 ? 0 : (float) (1000 + random.nextGaussian());
+			}
+			stack.addSlice(new FloatProcessor(w, h, pixels));
+		}
+		return new ImagePlus("intensities", stack);
+	}
+
+	/**
+	 * Mesh an axis-aligned ellipsoid as a latitude-longitude grid of triangles
+	 */
+	private static IndexedMesh ellipsoidMesh(final double cx, final double cy, final double cz, final double a,
+		final double b, final double c, final int n) {
+		final List<Point3f> points = new ArrayList<>();
+		for (int i = 0; i < n; i++) {
+			for (int j = 0; j < 2 * n; j++) {
+				final Point3f p00 = ellipsoidPoint(cx, cy, cz, a, b, c, i, j, n);
+				final Point3f p01 = ellipsoidPoint(cx, cy, cz, a, b, c, i, j + 1, n);
+				final Point3f p10 = ellipsoidPoint(cx, cy, cz, a, b, c, i + 1, j, n);
+				final Point3f p11 = ellipsoidPoint(cx, cy, cz, a, b, c, i + 1, j + 1, n);
+				if (i > 0) points.addAll(Arrays.asList(p00, p10, p01));
+				if (i < n - 1) points.addAll(Arrays.asList(p01, p10, p11));
+			}
+		}
+		return IndexedMesh.weld(points);
+	}
+
+	private static Point3f ellipsoidPoint(final double cx, final double cy, final double cz, final double a,
+		final double b, final double c, final int i, final int j, final int n) {
+		final double theta = Math.PI * i / n;
+		final double phi = Math.PI * (j % (2 * n)) / n;
+		return new Point3f((float) (cx + a * Math.sin(theta) * Math.cos(phi)), (float) (cy + b * Math.sin(
+			theta) * Math.sin(phi)), (float) (cz + c * Math.cos(theta)));
+	}
+
+	private static long[] countLabels(final int[][] labels, final int nParticles) {
+		final long[] sizes = new long[nParticles];
+		for (final int[] slice : labels) {
+			for (final int label : slice) {
+				sizes[label]++;
+			}
+		}
+		return sizes;
+	}
+}
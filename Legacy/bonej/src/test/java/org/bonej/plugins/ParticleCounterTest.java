@@ -0,0 +1,107 @@
+/*-
+ * #%L
+ * Mavenized version of the BoneJ1 plugins
+ * %%
+ * Copyright (C) 2015 - 2020 Michael Doube, BoneJ developers
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.bonej.plugins;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.ResultsTable;
+import ij.process.ByteProcessor;
+
+public class ParticleCounterTest {
+
+	/**
+	 * Check that particles can be measured without dialogs, that each column
+	 * has a value per particle, and that the table is made from the columns.
+	 */
+	@Test
+	public void testMeasureReturnsColumns() {
+		final int size = 10;
+		final ImageStack stack = new ImageStack(size, size);
+		for (int z = 0; z < size; z++) {
+			stack.addSlice(new ByteProcessor(size, size));
+		}
+		// a 3 x 3 x 3 cube and a 2 x 2 x 2 cube
+		fill(stack, 1, 3);
+		fill(stack, 6, 2);
+		final ImagePlus imp = new ImagePlus("cubes", stack);
+		final ParticleCounter.Options options = new ParticleCounter.Options();
+		options.thickness = false;
+		options.ellipsoids = false;
+		options.surfaceResampling = 1;
+
+		final ParticleMeasurements measurements = new ParticleCounter().measure(
+			imp, options);
+
+		assertEquals(2, measurements.getRowCount());
+		final String[] headings = measurements.getHeadings();
+		for (final String heading : headings) {
+			assertEquals(2, measurements.getColumn(heading).length);
+		}
+		final double[] volumes = measurements.getColumn(headings[0]);
+		assertEquals(35, volumes[0] + volumes[1], 0);
+		assertEquals(1, measurements.getColumn("Euler (χ)")[0], 0);
+		assertEquals(1, measurements.getColumn("Euler (χ)")[1], 0);
+		final ResultsTable rt = measurements.toResultsTable();
+		assertEquals(2, rt.size());
+		assertEquals("cubes", rt.getLabel(1));
+		assertEquals(measurements.getIds()[1], rt.getValue("ID", 1), 0);
+		assertEquals(volumes[1], rt.getValue(headings[0], 1), 0);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testMissingColumnIsRejected() {
+		final ImageStack stack = new ImageStack(4, 4);
+		final ByteProcessor slice = new ByteProcessor(4, 4);
+		slice.set(1, 1, 255);
+		stack.addSlice(slice);
+		final ParticleCounter.Options options = new ParticleCounter.Options();
+		options.thickness = false;
+		options.ellipsoids = false;
+		options.eulerCharacteristic = false;
+
+		new ParticleCounter().measure(new ImagePlus("dot", stack), options)
+			.getColumn("Euler (χ)");
+	}
+
+	private static void fill(final ImageStack stack, final int corner,
+		final int side)
+	{
+		for (int z = corner; z < corner + side; z++) {
+			for (int y = corner; y < corner + side; y++) {
+				for (int x = corner; x < corner + side; x++) {
+					stack.getProcessor(z + 1).set(x, y, 255);
+				}
+			}
+		}
+	}
+}
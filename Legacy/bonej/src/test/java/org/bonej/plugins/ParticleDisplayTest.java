@@ -0,0 +1,174 @@
+/*-
+ * #%L
+ * Mavenized version of the BoneJ1 plugins
+ * %%
+ * Copyright (C) 2015 - 2020 Michael Doube, BoneJ developers
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.bonej.plugins;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+
+public class ParticleDisplayTest {
+
+	/**
+	 * Check that drawing ellipsoids as spans gives the same pixels as testing
+	 * every pixel of their bounding boxes, including ellipsoids that cross the
+	 * image edges and ones that can't be constructed.
+	 */
+	@Test
+	public void testEllipsoidSpansMatchPerPixel() {
+		final Random random = new Random(1);
+		for (int trial = 0; trial < 20; trial++) {
+			final ImagePlus imp = TestImages.blank(61, 47, 29);
+			final Calibration cal = imp.getCalibration();
+			cal.pixelWidth = 0.5 + random.nextDouble();
+			cal.pixelHeight = 0.5 + random.nextDouble();
+			cal.pixelDepth = 0.5 + 2 * random.nextDouble();
+			final Object[] ellipsoids = randomEllipsoids(imp, 30, random);
+			ellipsoids[0] = new Object[] { new double[] { 1, 1, 1 }, new double[] {
+				Double.NaN, 1, 1 }, TestImages.randomRotation(random) };
+
+			final ImageStack spans = ParticleDisplay.displayParticleEllipsoids(imp,
+				ellipsoids).getImageStack();
+			final ImageStack perPixel = ReferenceImplementations
+				.displayParticleEllipsoids(imp, ellipsoids).getImageStack();
+			for (int z = 1; z <= imp.getImageStackSize(); z++) {
+				assertArrayEquals("Trial " + trial + ", slice " + z, (byte[]) perPixel
+					.getPixels(z), (byte[]) spans.getPixels(z));
+			}
+		}
+	}
+
+	/**
+	 * Check that a row which only touches the surface of an ellipsoid keeps the
+	 * pixel where it touches, when rounding puts the closed form just outside
+	 */
+	@Test
+	public void testEllipsoidSpansKeepTangentRows() {
+		final Random random = new Random(1);
+		final ImagePlus imp = TestImages.blank(21, 21, 21);
+		final double[][] identity = { { 1, 0, 0 }, { 0, 1, 0 }, { 0, 0, 1 } };
+		for (int trial = 0; trial < 200; trial++) {
+			// a sphere whose surface passes through pixel (10, 8, 9), where the
+			// row is tangent to it
+			final double cy = 10 + 0.5 * random.nextDouble();
+			final double cz = 10 + 0.5 * random.nextDouble();
+			final double r = Math.sqrt((8 - cy) * (8 - cy) + (9 - cz) * (9 - cz));
+			final Object[] ellipsoids = { new Object[] { new double[] { 10, cy,
+				cz }, new double[] { r, r, r }, identity } };
+
+			final ImageStack spans = ParticleDisplay.displayParticleEllipsoids(imp,
+				ellipsoids).getImageStack();
+			final ImageStack perPixel = ReferenceImplementations
+				.displayParticleEllipsoids(imp, ellipsoids).getImageStack();
+			for (int z = 1; z <= imp.getImageStackSize(); z++) {
+				assertArrayEquals("Trial " + trial + ", slice " + z, (byte[]) perPixel
+					.getPixels(z), (byte[]) spans.getPixels(z));
+			}
+		}
+	}
+
+	/**
+	 * Check that stored and virtual label and value images have the labels'
+	 * values, slice labels and display range
+	 */
+	@Test
+	public void testLabelValueStacks() {
+		final Random random = new Random(1);
+		final int w = 37;
+		final int h = 23;
+		final int d = 11;
+		final int nParticles = 50;
+		final ImagePlus imp = TestImages.blank(w, h, d);
+		imp.getImageStack().setSliceLabel("slice 3", 3);
+		final int[][] labels = new int[d][w * h];
+		for (int z = 0; z < d; z++)
+			for (int i = 0; i < w * h; i++)
+				labels[z][i] = random.nextInt(nParticles);
+		final double[] values = new double[nParticles];
+		for (int i = 0; i < nParticles; i++)
+			values[i] = 1000 * random.nextDouble();
+
+		for (final boolean virtual : new boolean[] { false, true }) {
+			final ImagePlus valueImp = ParticleDisplay.displayParticleValues(imp,
+				labels, values.clone(), virtual);
+			final ImagePlus labelImp = ParticleDisplay.displayParticleLabels(labels,
+				imp, virtual);
+			assertEquals(virtual, valueImp.getImageStack().isVirtual());
+			assertEquals(virtual, labelImp.getImageStack().isVirtual());
+			assertEquals(d, valueImp.getImageStackSize());
+			assertEquals(nParticles - 1, labelImp.getDisplayRangeMax(), 0);
+			for (int z = 1; z <= d; z++) {
+				assertEquals(imp.getImageStack().getSliceLabel(z), valueImp
+					.getImageStack().getSliceLabel(z));
+				final float[] valuePixels = (float[]) valueImp.getImageStack()
+					.getPixels(z);
+				final float[] labelPixels = (float[]) labelImp.getImageStack()
+					.getPixels(z);
+				for (int i = 0; i < w * h; i++) {
+					final int label = labels[z - 1][i];
+					assertEquals(label == 0 ? 0 : (float) values[label],
+						valuePixels[i], 0);
+					assertEquals(label, labelPixels[i], 0);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Ellipsoids in the same format as ParticleAnalysis.getEllipsoids(), with
+	 * centres up to a radius outside the image
+	 */
+	private static Object[] randomEllipsoids(final ImagePlus imp, final int n,
+		final Random random)
+	{
+		final Calibration cal = imp.getCalibration();
+		final double width = imp.getWidth() * cal.pixelWidth;
+		final double height = imp.getHeight() * cal.pixelHeight;
+		final double depth = imp.getImageStackSize() * cal.pixelDepth;
+		final double maxRadius = Math.min(width, Math.min(height, depth)) / 4;
+		final Object[] ellipsoids = new Object[n];
+		for (int i = 0; i < n; i++) {
+			final double[] radii = new double[3];
+			for (int r = 0; r < 3; r++)
+				radii[r] = 0.2 + random.nextDouble() * maxRadius;
+			final double[] centre = { (random.nextDouble() * 1.2 - 0.1) * width,
+				(random.nextDouble() * 1.2 - 0.1) * height, (random.nextDouble() *
+					1.2 - 0.1) * depth };
+			ellipsoids[i] = new Object[] { centre, radii, TestImages.randomRotation(
+				random) };
+		}
+		return ellipsoids;
+	}
+}
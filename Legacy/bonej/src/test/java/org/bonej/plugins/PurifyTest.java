@@ -28,7 +28,12 @@
  */
 package org.bonej.plugins;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
 
 import org.junit.Test;
 
@@ -103,6 +108,63 @@ public class PurifyTest {
 		}
 	}
 
+	/**
+	 * Check that the single sweep gives the same image as labelling the
+	 * foreground and then the background, with one chunk per slice so that
+	 * every slice is stitched.
+	 */
+	@Test
+	public void testSinglePassMatchesTwoPass() {
+		final ForkJoinPool pool = new ForkJoinPool(3);
+		try {
+			for (int seed = 0; seed < 50; seed++) {
+				final Random random = new Random(seed);
+				final int w = 3 + random.nextInt(20);
+				final int h = 3 + random.nextInt(20);
+				final int d = 1 + random.nextInt(20);
+				final ImagePlus imp = TestImages.noise(w, h, d, 0.2 + 0.6 * random
+					.nextDouble(), random);
+				final byte[][] workArray = ConnectedComponents.makeWorkArray(imp);
+				final int[] startSlices = new int[d];
+				for (int z = 0; z < d; z++) {
+					startSlices[z] = z;
+				}
+				Purifier.purify(workArray, new int[d][w * h], w, h, startSlices, pool);
+
+				final ImageStack expected = ReferenceImplementations.purify(imp)
+					.getImageStack();
+				for (int z = 0; z < d; z++) {
+					assertArrayEquals("Seed " + seed + ", slice " + z, (byte[]) expected
+						.getPixels(z + 1), workArray[z]);
+				}
+			}
+		}
+		finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Check that purifying in place, with labels on the heap or mapped to a
+	 * file, gives the same image as purifying a copy.
+	 */
+	@Test
+	public void testInPlaceMatchesCopy() {
+		final Random random = new Random(7);
+		for (final boolean mapLabels : new boolean[] { false, true }) {
+			for (int i = 0; i < 10; i++) {
+				final ImagePlus imp = TestImages.noise(17, 13, 11, 0.3 + 0.4 *
+					random.nextDouble(), random);
+				final ImageStack expected = Purify.purify(imp).getImageStack();
+				assertTrue(Purify.purifyInPlace(imp, mapLabels));
+				for (int z = 1; z <= 11; z++) {
+					assertArrayEquals((byte[]) expected.getPixels(z), (byte[]) imp
+						.getImageStack().getPixels(z));
+				}
+			}
+		}
+	}
+
 	/**
 	 * 
 	 * @param width image width
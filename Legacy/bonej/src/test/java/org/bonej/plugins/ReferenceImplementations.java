@@ -0,0 +1,1171 @@
+/*-
+ * #%L
+ * Mavenized version of the BoneJ1 plugins
+ * %%
+ * Copyright (C) 2015 - 2020 Michael Doube, BoneJ developers
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.bonej.plugins;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bonej.geometry.Ellipsoid;
+import org.bonej.util.Multithreader;
+import org.scijava.vecmath.Point3f;
+
+import Jama.EigenvalueDecomposition;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+
+/**
+ * Slow, straightforward implementations of measurements which the plugins
+ * compute with faster algorithms, kept as references for the tests.
+ *
+ * @author Michael Doube
+ */
+final class ReferenceImplementations {
+
+	private ReferenceImplementations() {}
+
+	/**
+	 * Calculate the Euler characteristic of the foreground in a binary stack
+	 * by reading each octant pixel by pixel
+	 *
+	 * @param imp binary image
+	 * @return Euler characteristic of the foreground particles
+	 */
+	static double getSumEuler(final ImagePlus imp) {
+		final int w = imp.getWidth();
+		final int h = imp.getHeight();
+		final int d = imp.getImageStackSize();
+		final ImageStack stack = imp.getImageStack();
+		long sumEuler = 0;
+		for (int z = 0; z <= d; z++) {
+			for (int y = 0; y <= h; y++) {
+				for (int x = 0; x <= w; x++) {
+					// octant voxels o1 to o8, as in Connectivity.getOctantEuler()
+					final int[][] octant = { { x - 1, y - 1, z - 1 }, { x - 1, y, z - 1 },
+						{ x, y - 1, z - 1 }, { x, y, z - 1 }, { x - 1, y - 1, z }, { x - 1, y,
+							z }, { x, y - 1, z }, { x, y, z } };
+					int mask = 0;
+					for (int i = 0; i < 8; i++) {
+						if (isForeground(stack, octant[i][0], octant[i][1], octant[i][2]))
+							mask |= 1 << i;
+					}
+					sumEuler += Connectivity.getOctantEuler(mask);
+				}
+			}
+		}
+		return sumEuler / 8.0;
+	}
+
+	/**
+	 * Calculate the edge correction of a stack with a separate scan of the
+	 * stack for each count
+	 *
+	 * @param imp binary image
+	 * @return edge correction for subtraction from the stack's Euler number
+	 */
+	static double correctForEdges(final ImagePlus imp) {
+		final ImageStack stack = imp.getImageStack();
+		return Connectivity.getEdgeCorrection(getStackVertices(stack),
+			getStackEdges(stack), getStackFaces(stack), getEdgeVertices(stack),
+			getFaceVertices(stack), getFaceEdges(stack));
+	}
+
+	/**
+	 * Check all vertices of stack and count if foreground (-1) this is &#967;
+	 * <sub>0</sub> from Odgaard and Gundersen (1993) and <i>f</i> in my working
+	 *
+	 * @param stack binary stack
+	 * @return number of voxel vertices intersecting with stack vertices
+	 */
+	private static long getStackVertices(final ImageStack stack) {
+		final int width = stack.getWidth();
+		final int height = stack.getHeight();
+		final int depth = stack.getSize();
+		long nStackVertices = 0;
+		final int xInc = Math.max(1, width - 1);
+		final int yInc = Math.max(1, height - 1);
+		final int zInc = Math.max(1, depth - 1);
+
+		for (int z = 0; z < depth; z += zInc) {
+			for (int y = 0; y < height; y += yInc) {
+				for (int x = 0; x < width; x += xInc) {
+					if (isForeground(stack, x, y, z))
+						nStackVertices++;
+				}
+			}
+		}
+
+		return nStackVertices;
+	}
+
+	/**
+	 * Count the number of foreground voxels on edges of stack, this is part of
+	 * &#967;<sub>1</sub> (<i>e</i> in my working)
+	 *
+	 * @param stack binary stack
+	 * @return number of voxel edges intersecting with stack edges
+	 */
+	private static long getStackEdges(final ImageStack stack) {
+		final int width = stack.getWidth();
+		final int height = stack.getHeight();
+		final int depth = stack.getSize();
+		long nStackEdges = 0;
+
+		final int w1 = width - 1;
+		final int h1 = height - 1;
+		final int d1 = depth -1;
+
+		final int xInc = Math.max(1, w1);
+		final int yInc = Math.max(1, h1);
+		final int zInc = Math.max(1, d1);
+
+		// left to right stack edges
+		for (int z = 0; z < depth; z += zInc) {
+			for (int y = 0; y < height; y += yInc) {
+				for (int x = 1; x < w1; x++) {
+					if (isForeground(stack, x, y, z))
+						nStackEdges++;
+				}
+			}
+		}
+
+		// back to front stack edges
+		for (int z = 0; z < depth; z += zInc) {
+			for (int x = 0; x < width; x += xInc) {
+				for (int y = 1; y < h1; y++) {
+					if (isForeground(stack, x, y, z))
+						nStackEdges++;
+				}
+			}
+		}
+
+		// top to bottom stack edges
+		for (int y = 0; y < height; y += yInc) {
+			for (int x = 0; x < width; x += xInc) {
+				for (int z = 1; z < d1; z++) {
+					if (isForeground(stack, x, y, z))
+						nStackEdges++;
+				}
+			}
+		}
+		return nStackEdges;
+	}
+
+	/**
+	 * Count the number of foreground voxel faces intersecting with stack faces
+	 * This is part of &#967;<sub>2</sub> and is <i>c</i> in my working
+	 *
+	 * @param stack binary stack
+	 * @return number of voxel faces intersecting with stack faces
+	 */
+	private static long getStackFaces(final ImageStack stack) {
+		final int width = stack.getWidth();
+		final int height = stack.getHeight();
+		final int depth = stack.getSize();
+
+		final int w1 = width - 1;
+		final int h1 = height - 1;
+		final int d1 = depth -1;
+
+		final int xInc = Math.max(1, w1);
+		final int yInc = Math.max(1, h1);
+		final int zInc = Math.max(1, d1);
+		long nStackFaces = 0;
+
+		// top and bottom faces
+		for (int z = 0; z < depth; z += zInc) {
+			for (int y = 1; y < h1; y++) {
+				for (int x = 1; x < w1; x++) {
+					if (isForeground(stack, x, y, z))
+						nStackFaces++;
+				}
+			}
+		}
+
+		// back and front faces
+		for (int y = 0; y < height; y += yInc) {
+			for (int z = 1; z < d1; z++) {
+				for (int x = 1; x < w1; x++) {
+					if (isForeground(stack, x, y, z))
+						nStackFaces++;
+				}
+			}
+		}
+
+		// left and right faces
+		for (int x = 0; x < width; x += xInc) {
+			for (int y = 1; y < h1; y++) {
+				for (int z = 1; z < d1; z++) {
+					if (isForeground(stack, x, y, z))
+						nStackFaces++;
+				}
+			}
+		}
+		return nStackFaces;
+	}
+
+	/**
+	 * Count the number of voxel vertices intersecting stack faces. This
+	 * contributes to &#967;<sub>2</sub> (<i>a</i> in my working)
+	 *
+	 * @param stack binary stack
+	 * @return Number of voxel vertices intersecting stack faces
+	 */
+	private static long getFaceVertices(final ImageStack stack) {
+		final int width = stack.getWidth();
+		final int height = stack.getHeight();
+		final int depth = stack.getSize();
+		final int xInc = Math.max(1, width - 1);
+		final int yInc = Math.max(1, height - 1);
+		final int zInc = Math.max(1, depth - 1);
+		long nFaceVertices = 0;
+
+		// top and bottom faces (all 4 edges)
+		for (int z = 0; z < depth; z += zInc) {
+			for (int y = 0; y <= height; y++) {
+				for (int x = 0; x <= width; x++) {
+					// if the voxel or any of its neighbours are foreground, the
+					// vertex is counted
+					if (isForeground(stack, x, y, z))
+						nFaceVertices++;
+					else if (isForeground(stack, x, y - 1, z))
+						nFaceVertices++;
+					else if (isForeground(stack, x - 1, y - 1, z))
+						nFaceVertices++;
+					else if (isForeground(stack, x - 1, y, z))
+						nFaceVertices++;
+				}
+			}
+		}
+
+		// left and right faces (2 vertical edges)
+		for (int x = 0; x < width; x += xInc) {
+			for (int y = 0; y <= height; y++) {
+				for (int z = 1; z < depth; z++) {
+					// if the voxel or any of its neighbours are foreground, the
+					// vertex is counted
+					if (isForeground(stack, x, y, z))
+						nFaceVertices++;
+					else if (isForeground(stack, x, y - 1, z))
+						nFaceVertices++;
+					else if (isForeground(stack, x, y - 1, z - 1))
+						nFaceVertices++;
+					else if (isForeground(stack, x, y, z - 1))
+						nFaceVertices++;
+				}
+			}
+		}
+
+		// back and front faces (0 vertical edges)
+		for (int y = 0; y < height; y += yInc) {
+			for (int x = 1; x < width; x++) {
+				for (int z = 1; z < depth; z++) {
+					// if the voxel or any of its neighbours are foreground, the
+					// vertex is counted
+					if (isForeground(stack, x, y, z))
+						nFaceVertices++;
+					else if (isForeground(stack, x, y, z - 1))
+						nFaceVertices++;
+					else if (isForeground(stack, x - 1, y, z - 1))
+						nFaceVertices++;
+					else if (isForeground(stack, x - 1, y, z))
+						nFaceVertices++;
+				}
+			}
+		}
+		return nFaceVertices;
+	}
+
+	/**
+	 * Count the number of intersections between voxel edges and stack faces.
+	 * This is part of &#967;<sub>2</sub>, in my working it's called <i>b</i>
+	 *
+	 * @param stack binary stack
+	 * @return number of intersections between voxel edges and stack faces
+	 */
+	private static long getFaceEdges(final ImageStack stack) {
+		final int width = stack.getWidth();
+		final int height = stack.getHeight();
+		final int depth = stack.getSize();
+		final int xInc = Math.max(1, width - 1);
+		final int yInc = Math.max(1, height - 1);
+		final int zInc = Math.max(1, depth - 1);
+		long nFaceEdges = 0;
+
+		// top and bottom faces (all 4 edges)
+		// check 2 edges per voxel
+		for (int z = 0; z < depth; z += zInc) {
+			for (int y = 0; y <= height; y++) {
+				for (int x = 0; x <= width; x++) {
+					// if the voxel or any of its neighbours are foreground, the
+					// vertex is counted
+					if (isForeground(stack, x, y, z)) {
+						nFaceEdges += 2;
+					} else {
+						if (isForeground(stack, x, y - 1, z)) {
+							nFaceEdges++;
+						}
+						if (isForeground(stack, x - 1, y, z)) {
+							nFaceEdges++;
+						}
+					}
+				}
+			}
+		}
+
+		// back and front faces, horizontal edges
+		for (int y = 0; y < height; y += yInc) {
+			for (int z = 1; z < depth; z++) {
+				for (int x = 0; x < width; x++) {
+					if (isForeground(stack, x, y, z))
+						nFaceEdges++;
+					else if (isForeground(stack, x, y, z - 1))
+						nFaceEdges++;
+				}
+			}
+		}
+
+		// back and front faces, vertical edges
+		for (int y = 0; y < height; y += yInc) {
+			for (int z = 0; z < depth; z++) {
+				for (int x = 0; x <= width; x++) {
+					if (isForeground(stack, x, y, z))
+						nFaceEdges++;
+					else if (isForeground(stack, x - 1, y, z))
+						nFaceEdges++;
+				}
+			}
+		}
+
+		// left and right stack faces, horizontal edges
+		for (int x = 0; x < width; x += xInc) {
+			for (int z = 1; z < depth; z++) {
+				for (int y = 0; y < height; y++) {
+					if (isForeground(stack, x, y, z))
+						nFaceEdges++;
+					else if (isForeground(stack, x, y, z - 1))
+						nFaceEdges++;
+				}
+			}
+		}
+
+		// left and right stack faces, vertical voxel edges
+		for (int x = 0; x < width; x += xInc) {
+			for (int z = 0; z < depth; z++) {
+				for (int y = 1; y < height; y++) {
+					if (isForeground(stack, x, y, z))
+						nFaceEdges++;
+					else if (isForeground(stack, x, y - 1, z))
+						nFaceEdges++;
+				}
+			}
+		}
+		return nFaceEdges;
+	}
+
+	/**
+	 * Count number of voxel vertices intersecting stack edges. It contributes
+	 * to &#967;<sub>1</sub>, and I call it <i>d</i> in my working
+	 *
+	 * @param stack binary stack
+	 * @return number of voxel vertices intersecting stack edges
+	 */
+	private static long getEdgeVertices(final ImageStack stack) {
+		final int width = stack.getWidth();
+		final int height = stack.getHeight();
+		final int depth = stack.getSize();
+		final int xInc = Math.max(1, width - 1);
+		final int yInc = Math.max(1, height - 1);
+		final int zInc = Math.max(1, depth - 1);
+		long nEdgeVertices = 0;
+
+		// left->right edges
+		for (int z = 0; z < depth; z += zInc) {
+			for (int y = 0; y < height; y += yInc) {
+				for (int x = 1; x < width; x++) {
+					if (isForeground(stack, x, y, z))
+						nEdgeVertices++;
+					else if (isForeground(stack, x - 1, y, z))
+						nEdgeVertices++;
+				}
+			}
+		}
+
+		// back->front edges
+		for (int z = 0; z < depth; z += zInc) {
+			for (int x = 0; x < width; x += xInc) {
+				for (int y = 1; y < height; y++) {
+					if (isForeground(stack, x, y, z))
+						nEdgeVertices++;
+					else if (isForeground(stack, x, y - 1, z))
+						nEdgeVertices++;
+				}
+			}
+		}
+
+		// top->bottom edges
+		for (int x = 0; x < width; x += xInc) {
+			for (int y = 0; y < height; y += yInc) {
+				for (int z = 1; z < depth; z++) {
+					if (isForeground(stack, x, y, z))
+						nEdgeVertices++;
+					else if (isForeground(stack, x, y, z - 1))
+						nEdgeVertices++;
+				}
+			}
+		}
+		return nEdgeVertices;
+	}
+
+	/** @return true if (x, y, z) is in the stack and foreground */
+	private static boolean isForeground(final ImageStack stack, final int x,
+		final int y, final int z)
+	{
+		if (x < 0 || y < 0 || z < 0 || x >= stack.getWidth() || y >= stack
+			.getHeight() || z >= stack.getSize()) return false;
+		return ((byte[]) stack.getPixels(z + 1))[y * stack.getWidth() + x] == -1;
+	}
+
+	/**
+	 * Get the Euler characteristic of each particle from an image of each
+	 * particle in turn
+	 *
+	 * @param imp an image.
+	 * @param particleLabels particles of the image.
+	 * @param limits limits of the particles.
+	 * @param nParticles number of particles in the image
+	 * @return euler characteristic, holes and cavities of each particle.
+	 */
+	static double[][] getEulerCharacters(final ImagePlus imp,
+		final int[][] particleLabels, final int[][] limits, final int nParticles)
+	{
+		final Connectivity con = new Connectivity();
+		final double[][] eulerCharacters = new double[nParticles][3];
+		for (int p = 1; p < nParticles; p++) {
+			final ImagePlus particleImp = ParticleAnalysis.getBinaryParticle(p, imp,
+				particleLabels, limits, 1);
+			final double euler = con.getSumEuler(particleImp);
+			// cavities are the background particles other than the outside
+			final ConnectedComponents connector = new ConnectedComponents();
+			connector.run(particleImp, ConnectedComponents.BACK);
+			final double cavities = connector.getNParticles() - 2;
+			// Euler = particles - holes + cavities, where particles = 1
+			final double holes = cavities - euler + 1;
+			eulerCharacters[p] = new double[] { euler, holes, cavities };
+		}
+		return eulerCharacters;
+	}
+
+	/**
+	 * Purify an image by labelling its foreground with
+	 * {@link ConnectedComponents}, removing all but the largest foreground
+	 * particle, then labelling the background of the half-purified image and
+	 * filling all its particles except the largest of those touching the sides.
+	 *
+	 * @param imp binary input image
+	 * @return purified image, or the input image if it has no foreground
+	 */
+	static ImagePlus purify(final ImagePlus imp) {
+		final int w = imp.getWidth();
+		final int h = imp.getHeight();
+		final int d = imp.getNSlices();
+		final ConnectedComponents connector = new ConnectedComponents();
+		final ParticleAnalysis pa = new ParticleAnalysis();
+
+		int[][] labels = connector.run(imp, ConnectedComponents.FORE);
+		byte[][] workArray = connector.getWorkArray();
+		final int nForeground = connector.getNParticles();
+		if (nForeground == 1) return imp;
+		long[] sizes = pa.getParticleSizes(labels, nForeground);
+		keepLargest(workArray, labels, largest(sizes), ConnectedComponents.FORE);
+
+		labels = connector.run(new ImagePlus("Half Purified", stack(workArray, w,
+			h)), ConnectedComponents.BACK);
+		workArray = connector.getWorkArray();
+		final int nBackground = connector.getNParticles();
+		sizes = pa.getParticleSizes(labels, nBackground);
+		final int biggest = largest(sizes);
+		// background touching the sides joins the largest background particle
+		final boolean[] onSide = new boolean[nBackground];
+		for (int z = 0; z < d; z++) {
+			for (int y = 0; y < h; y++) {
+				for (int x = 0; x < w; x++) {
+					if (z == 0 || z == d - 1 || y == 0 || y == h - 1 || x == 0 ||
+						x == w - 1) onSide[labels[z][y * w + x]] = true;
+				}
+			}
+		}
+		for (final int[] slice : labels) {
+			for (int i = 0; i < slice.length; i++) {
+				if (slice[i] > 0 && onSide[slice[i]]) slice[i] = biggest;
+			}
+		}
+		keepLargest(workArray, labels, biggest, ConnectedComponents.BACK);
+
+		final ImagePlus purified = new ImagePlus("Purified", stack(workArray, w,
+			h));
+		purified.setCalibration(imp.getCalibration());
+		return purified;
+	}
+
+	private static int largest(final long[] sizes) {
+		long max = 0;
+		int largest = 0;
+		for (int p = 1; p < sizes.length; p++) {
+			if (sizes[p] > max) {
+				max = sizes[p];
+				largest = p;
+			}
+		}
+		return largest;
+	}
+
+	/** Swap the phase of every particle of a phase except one */
+	private static void keepLargest(final byte[][] workArray,
+		final int[][] labels, final int keep, final int phase)
+	{
+		final byte other = (byte) (phase == ConnectedComponents.FORE
+			? ConnectedComponents.BACK : ConnectedComponents.FORE);
+		for (int z = 0; z < workArray.length; z++) {
+			for (int i = 0; i < workArray[z].length; i++) {
+				if (workArray[z][i] == phase && labels[z][i] != keep)
+					workArray[z][i] = other;
+			}
+		}
+	}
+
+	private static ImageStack stack(final byte[][] slices, final int w,
+		final int h)
+	{
+		final ImageStack stack = new ImageStack(w, h);
+		for (final byte[] slice : slices) {
+			stack.addSlice("", slice);
+		}
+		return stack;
+	}
+
+	/**
+	 * Get the mean and standard deviation of pixel values &gt;0 for each particle
+	 * in a particle label work array, in two passes over the image
+	 *
+	 * @param imp            Input image containing pixel values
+	 * @param particleLabels workArray containing particle labels
+	 * @param particleSizes  array of particle sizes as pixel counts
+	 * @return array containing mean, std dev and max pixel values for each particle
+	 */
+	static double[][] getMeanStdDev(final ImagePlus imp, final int[][] particleLabels, final long[] particleSizes) {
+		final int d = imp.getImageStackSize();
+		final int wh = imp.getWidth() * imp.getHeight();
+		final ImageStack stack = imp.getImageStack();
+		final int nParticles = particleSizes.length;
+		final double[] sums = new double[nParticles];
+		for (int z = 0; z < d; z++) {
+			final float[] pixels = (float[]) stack.getPixels(z + 1);
+			final int[] labelPixels = particleLabels[z];
+			for (int i = 0; i < wh; i++) {
+				final double value = pixels[i];
+				if (value > 0) {
+					sums[labelPixels[i]] += value;
+				}
+			}
+		}
+		final double[][] meanStdDev = new double[nParticles][3];
+		for (int p = 1; p < nParticles; p++) {
+			meanStdDev[p][0] = sums[p] / particleSizes[p];
+		}
+
+		final double[] sumSquares = new double[nParticles];
+		for (int z = 0; z < d; z++) {
+			final float[] pixels = (float[]) stack.getPixels(z + 1);
+			final int[] labelPixels = particleLabels[z];
+			for (int i = 0; i < wh; i++) {
+				final double value = pixels[i];
+				if (value > 0) {
+					final int p = labelPixels[i];
+					final double residual = value - meanStdDev[p][0];
+					sumSquares[p] += residual * residual;
+					meanStdDev[p][2] = Math.max(meanStdDev[p][2], value);
+				}
+			}
+		}
+		for (int p = 1; p < nParticles; p++) {
+			meanStdDev[p][1] = Math.sqrt(sumSquares[p] / particleSizes[p]);
+		}
+		return meanStdDev;
+	}
+
+	/**
+	 * Get the centroid and minimum and maximum x, y and z coordinates of each
+	 * particle, in a pass of their own
+	 *
+	 * @param imp            ImagePlus (used for stack size)
+	 * @param particleLabels work array containing labelled particles
+	 * @param particleSizes sizes of the particles in pixel counts
+	 * @return 2-element Object array containing for each particle the centroid (in calibrated units as double[nParticles][3]) and the 
+	 * min and max x, y and z limits (in uncalibrated pixel units as int[nParticles][6]).
+	 */
+	static Object[] getBoundingBoxes(final ImagePlus imp, final int[][] particleLabels, final long[] particleSizes) {
+		
+		final int w = imp.getWidth();
+		final int h = imp.getHeight();
+		final int d = imp.getImageStackSize();
+		final int nParticles = particleSizes.length;
+		
+		final AtomicInteger ai = new AtomicInteger(0);
+		final Thread[] threads = Multithreader.newThreads();
+		final List<int[][]> listOfLimits = Collections.synchronizedList(new ArrayList<>());
+		final List<double[][]> listOfSums = Collections.synchronizedList(new ArrayList<>());
+		
+		for (int thread = 0; thread < threads.length; thread++) {
+			
+			final double[][] threadSums = new double[nParticles][3];
+			
+			//set up a limit range for each thread and particle
+			final int[][] threadLimits = new int[nParticles][6];
+			for (int p = 1; p < nParticles; p++) {
+				threadLimits[p][0] = Integer.MAX_VALUE; // x min
+				threadLimits[p][1] = 0; // x max
+				threadLimits[p][2] = Integer.MAX_VALUE; // y min
+				threadLimits[p][3] = 0; // y max
+				threadLimits[p][4] = Integer.MAX_VALUE; // z min
+				threadLimits[p][5] = 0; // z max
+			}
+			
+			threads[thread] = new Thread(() -> {
+				for (int z = ai.getAndIncrement(); z < d; z = ai.getAndIncrement()) {
+					final int[] slice = particleLabels[z];
+					for (int y = 0; y < h; y++) {
+						final int index = y * w;
+						for (int x = 0; x < w; x++) {
+							final int p = slice[index + x];
+							if (p == 0) continue;
+							
+							threadSums[p][0] += x;
+							threadSums[p][1] += y;
+							threadSums[p][2] += z;
+							
+							threadLimits[p][0] = Math.min(threadLimits[p][0], x);
+							threadLimits[p][1] = Math.max(threadLimits[p][1], x);
+							threadLimits[p][2] = Math.min(threadLimits[p][2], y);
+							threadLimits[p][3] = Math.max(threadLimits[p][3], y);
+							threadLimits[p][4] = Math.min(threadLimits[p][4], z);
+							threadLimits[p][5] = Math.max(threadLimits[p][5], z);
+						}
+					}
+				}
+			});
+			listOfLimits.add(threadLimits);
+			listOfSums.add(threadSums);
+		}
+		Multithreader.startAndJoin(threads);
+		
+		final int[][] limits = new int[nParticles][6];
+		final double[][] sums = new double[nParticles][3];
+		
+		for (int p = 1; p < nParticles; p++) {
+			limits[p][0] = Integer.MAX_VALUE; // x min
+			limits[p][1] = 0; // x max
+			limits[p][2] = Integer.MAX_VALUE; // y min
+			limits[p][3] = 0; // y max
+			limits[p][4] = Integer.MAX_VALUE; // z min
+			limits[p][5] = 0; // z max
+		}
+		
+		Iterator<int[][]> iter = listOfLimits.iterator();
+		while (iter.hasNext()) {
+			final int[][] threadLimits = iter.next();
+			for (int p = 1; p < nParticles; p++) {
+				limits[p][0] = Math.min(limits[p][0], threadLimits[p][0]);
+				limits[p][1] = Math.max(limits[p][1], threadLimits[p][1]);
+				limits[p][2] = Math.min(limits[p][2], threadLimits[p][2]);
+				limits[p][3] = Math.max(limits[p][3], threadLimits[p][3]);
+				limits[p][4] = Math.min(limits[p][4], threadLimits[p][4]);
+				limits[p][5] = Math.max(limits[p][5], threadLimits[p][5]);
+			}
+		}
+
+		Iterator<double[][]> iterSums = listOfSums.iterator();
+		while (iterSums.hasNext()) {
+			final double[][] threadSums = iterSums.next();
+			for (int p = 1; p < nParticles; p++) {
+				sums[p][0] += threadSums[p][0];
+				sums[p][1] += threadSums[p][1];
+				sums[p][2] += threadSums[p][2];
+			}
+		}
+		
+		final Calibration cal = imp.getCalibration();
+		final double[][] centroids = new double[nParticles][3];
+		for (int p = 0; p < nParticles; p++) {
+			final long particleSize = particleSizes[p];
+			centroids[p][0] = cal.pixelWidth * sums[p][0] / particleSize;
+			centroids[p][1] = cal.pixelHeight * sums[p][1] / particleSize;
+			centroids[p][2] = cal.pixelDepth * sums[p][2] / particleSize;
+		}
+		
+		return new Object[] {centroids, limits};
+	}
+	
+	/**
+	 * Calculate Eigenvalue decompositions of all the particles from their
+	 * centroids, in a second pass over the image
+	 *
+	 * @param imp ImagePlus, used for calibration
+	 * @param particleLabels label image array
+	 * @param centroids list of particle centroids
+	 * @return list of EigenvalueDecompositions
+	 */
+	static EigenvalueDecomposition[] getEigens(final ImagePlus imp, final int[][] particleLabels,
+			final double[][] centroids) {
+		final Calibration cal = imp.getCalibration();
+		final double vW = cal.pixelWidth;
+		final double vH = cal.pixelHeight;
+		final double vD = cal.pixelDepth;
+		final double voxVhVd = (vH * vH + vD * vD) / 12;
+		final double voxVwVd = (vW * vW + vD * vD) / 12;
+		final double voxVhVw = (vH * vH + vW * vW) / 12;
+		final int w = imp.getWidth();
+		final int h = imp.getHeight();
+		final int d = imp.getImageStackSize();
+		final int nParticles = centroids.length;
+
+		final AtomicInteger ai = new AtomicInteger(0);
+		final Thread[] threads = Multithreader.newThreads();
+		final List<double[][]> listOfTensors = Collections.synchronizedList(new ArrayList<>());
+		
+		for (int thread = 0; thread < threads.length; thread++) {
+
+			final double[][] threadTensors = new double[nParticles][6];
+
+			threads[thread] = new Thread(() -> {
+				for (int z = ai.getAndIncrement(); z < d; z = ai.getAndIncrement()) {
+					final double zVd = z * vD;
+					final int[] slice = particleLabels[z];
+					for (int y = 0; y < h; y++) {
+						final double yVh = y * vH;
+						final int index = y * w;
+						for (int x = 0; x < w; x++) {
+							final int p = slice[index + x];
+							if (p == 0) continue;
+							final double xVw = x * vW;
+							final double dx = xVw - centroids[p][0];
+							final double dy = yVh - centroids[p][1];
+							final double dz = zVd - centroids[p][2];
+							threadTensors[p][0] += dy * dy + dz * dz + voxVhVd; // Ixx
+							threadTensors[p][1] += dx * dx + dz * dz + voxVwVd; // Iyy
+							threadTensors[p][2] += dy * dy + dx * dx + voxVhVw; // Izz
+							threadTensors[p][3] += dx * dy; // Ixy
+							threadTensors[p][4] += dx * dz; // Ixz
+							threadTensors[p][5] += dy * dz; // Iyz
+						}
+					}
+				}
+			});
+			listOfTensors.add(threadTensors);
+		}
+		Multithreader.startAndJoin(threads);
+		
+		final double[][] momentTensors = new double[nParticles][6];
+		Iterator<double[][]> iter = listOfTensors.iterator();
+		while (iter.hasNext()) {
+			final double[][] threadTensors = iter.next();
+			for (int p = 1; p < nParticles; p++) {
+				momentTensors[p][0] += threadTensors[p][0];
+				momentTensors[p][1] += threadTensors[p][1];
+				momentTensors[p][2] += threadTensors[p][2];
+				momentTensors[p][3] += threadTensors[p][3];
+				momentTensors[p][4] += threadTensors[p][4];
+				momentTensors[p][5] += threadTensors[p][5];
+			}
+		}
+		
+		return ParticleAnalysis.getEigens(momentTensors);
+	}
+
+	/**
+	 * Draw ellipsoids in a stack by testing every pixel of each ellipsoid's
+	 * bounding box
+	 *
+	 * @param imp ImagePlus, needed for calibration
+	 * @param ellipsoids list of ellipsoids
+	 * @return ImagePlus containing particles drawn as best-fit solid ellipsoids
+	 */
+	static ImagePlus displayParticleEllipsoids(final ImagePlus imp,
+		final Object[] ellipsoids)
+	{
+		final int w = imp.getWidth();
+		final int h = imp.getHeight();
+		final int d = imp.getImageStackSize();
+
+		final Calibration cal = imp.getCalibration();
+		final double pW = cal.pixelWidth;
+		final double pH = cal.pixelHeight;
+		final double pD = cal.pixelDepth;
+
+		// set up a work array
+		final ByteProcessor[] bps = new ByteProcessor[d];
+		for (int z = 0; z < d; z++) {
+			bps[z] = new ByteProcessor(w, h);
+		}
+
+		final int n = ellipsoids.length;
+		for (int i = 0; i < n; i++) {
+			Ellipsoid ellipsoid;
+			try {
+				ellipsoid = new Ellipsoid((Object[]) ellipsoids[i]);
+			}
+			catch (final Exception e) {
+				continue;
+			}
+
+			// ellipsoid is in calibrated real-world units
+			final double[] box = ellipsoid.getAxisAlignedBoundingBox();
+
+			// decalibrate to pixels
+			final int xMin = clamp(box[0], pW, w);
+			final int xMax = clamp(box[1], pW, w);
+			final int yMin = clamp(box[2], pH, h);
+			final int yMax = clamp(box[3], pH, h);
+			final int zMin = clamp(box[4], pD, d);
+			final int zMax = clamp(box[5], pD, d);
+
+			// set the ellipsoid-contained pixels to foreground
+			for (int z = zMin; z <= zMax; z++) {
+				for (int y = yMin; y <= yMax; y++) {
+					for (int x = xMin; x <= xMax; x++) {
+						if (ellipsoid.contains(x * pW, y * pH, z * pD)) {
+							bps[z].set(x, y, 255);
+						}
+					}
+				}
+			}
+		}
+
+		final ImageStack stack = new ImageStack(w, h);
+		for (final ByteProcessor bp : bps)
+			stack.addSlice(bp);
+
+		final ImagePlus impOut = new ImagePlus(imp.getShortTitle() +
+			"_Ellipsoids", stack);
+		impOut.setCalibration(cal);
+		return impOut;
+	}
+
+	/** Pixel index of a calibrated coordinate, clamped to the image */
+	private static int clamp(final double position, final double pixelSize,
+		final int size)
+	{
+		return Math.max(0, Math.min(size - 1, (int) Math.floor(position /
+			pixelSize)));
+	}
+
+	/**
+	 * Calculate volume, mass and the inertia tensor about a known centroid, in a
+	 * second pass over the image
+	 *
+	 * @param imp input image
+	 * @param startSlice first slice to use
+	 * @param endSlice last slice to use
+	 * @param centroid centroid in real units, {x,y,z}
+	 * @param min minimum threshold value
+	 * @param max maximum threshold value
+	 * @param m slope of the density equation
+	 * @param c constant of the density equation
+	 * @return volume, mass, Icxx, Icyy, Iczz, Icxy, Icxz and Icyz
+	 */
+	static double[] calculateMoments(final ImagePlus imp, final int startSlice,
+		final int endSlice, final double[] centroid, final double min,
+		final double max, final double m, final double c)
+	{
+		final Calibration cal = imp.getCalibration();
+		final double vW = cal.pixelWidth;
+		final double vH = cal.pixelHeight;
+		final double vD = cal.pixelDepth;
+		final ImageStack stack = imp.getImageStack();
+		final Rectangle r = imp.getProcessor().getRoi();
+		// density is in g / cm³, so scale it to the image's units
+		final String unit = cal.getUnit();
+		final double factor = unit.contains("mm") || unit.contains("pixel") ? 1000
+			: unit.contains("micron") || unit.contains("µm") ? 1e12 : 1;
+		final double voxVol = vW * vH * vD;
+		final double[] moments = new double[8];
+		for (int z = startSlice; z <= endSlice; z++) {
+			final ImageProcessor ip = stack.getProcessor(z);
+			for (int y = r.y; y < r.y + r.height; y++) {
+				for (int x = r.x; x < r.x + r.width; x++) {
+					final double pixel = ip.get(x, y);
+					if (pixel < min || pixel > max) continue;
+					final double voxMass = Math.max(0.0, (m * pixel + c) / factor) *
+						voxVol;
+					final double dx = x * vW - centroid[0];
+					final double dy = y * vH - centroid[1];
+					final double dz = z * vD - centroid[2];
+					moments[0] += voxVol;
+					moments[1] += voxMass;
+					moments[2] += (dy * dy + dz * dz + (vH * vH + vD * vD) / 12) *
+						voxMass;
+					moments[3] += (dx * dx + dz * dz + (vW * vW + vD * vD) / 12) *
+						voxMass;
+					moments[4] += (dy * dy + dx * dx + (vH * vH + vW * vW) / 12) *
+						voxMass;
+					moments[5] += dx * dy * voxMass;
+					moments[6] += dx * dz * voxMass;
+					moments[7] += dy * dz * voxMass;
+				}
+			}
+		}
+		return moments;
+	}
+
+	/**
+	 * Align a stack to its principal axes by transforming each target voxel with
+	 * the full inverse rotation, and reading the source one voxel at a time
+	 *
+	 * @param imp source image
+	 * @param eigenVecInv inverse rotation matrix (target to source)
+	 * @param centroid centroid of the source image in real units, {x,y,z}
+	 * @param startSlice first source slice to sample
+	 * @param endSlice last source slice to sample
+	 * @param wT target width
+	 * @param hT target height
+	 * @param dT target depth
+	 * @param interpolate if true, interpolate trilinearly between the voxel
+	 *          centres around each point, clamping at the edges, instead of
+	 *          taking the nearest voxel
+	 * @return the aligned stack
+	 */
+	static ImageStack align(final ImagePlus imp, final double[][] eigenVecInv,
+		final double[] centroid, final int startSlice, final int endSlice,
+		final int wT, final int hT, final int dT, final boolean interpolate)
+	{
+		final ImageStack sourceStack = imp.getImageStack();
+		final Rectangle r = imp.getProcessor().getRoi();
+		final Calibration cal = imp.getCalibration();
+		final double[] v = { cal.pixelWidth, cal.pixelHeight, cal.pixelDepth };
+		final double vS = Math.min(v[0], Math.min(v[1], v[2]));
+		final double[] tc = { wT * vS / 2, hT * vS / 2, dT * vS / 2 };
+		final ImageProcessor[] slices = new ImageProcessor[endSlice + 1];
+		for (int z = startSlice; z <= endSlice; z++)
+			slices[z] = sourceStack.getProcessor(z);
+		final ImageStack targetStack = new ImageStack(wT, hT);
+		for (int z = 1; z <= dT; z++) {
+			final ImageProcessor targetIP = slices[startSlice].createProcessor(wT,
+				hT);
+			final double zD = z * vS - tc[2];
+			for (int y = 0; y < hT; y++) {
+				final double yD = y * vS - tc[1];
+				for (int x = 0; x < wT; x++) {
+					final double xD = x * vS - tc[0];
+					final double[] s = new double[3];
+					for (int i = 0; i < 3; i++) {
+						final double align = xD * eigenVecInv[0][i] + yD *
+							eigenVecInv[1][i] + zD * eigenVecInv[2][i] + tc[i];
+						s[i] = (align + (centroid[i] - tc[i])) / v[i];
+					}
+					final int xA = (int) Math.floor(s[0]);
+					final int yA = (int) Math.floor(s[1]);
+					final int zA = (int) Math.floor(s[2]);
+					if (xA < r.x || xA >= r.x + r.width || yA < r.y || yA >= r.y +
+						r.height || zA < startSlice || zA > endSlice)
+					{
+						continue;
+					}
+					if (!interpolate) {
+						targetIP.set(x, y, slices[zA].get(xA, yA));
+						continue;
+					}
+					double value = 0;
+					for (int k = 0; k < 8; k++) {
+						double weight = 1;
+						final int[] corner = new int[3];
+						for (int i = 0; i < 3; i++) {
+							final double p = s[i] - 0.5;
+							final int lower = (int) Math.floor(p);
+							final boolean upper = ((k >> i) & 1) == 1;
+							corner[i] = upper ? lower + 1 : lower;
+							weight *= upper ? p - lower : 1 - (p - lower);
+						}
+						final int cx = Math.max(r.x, Math.min(r.x + r.width - 1,
+							corner[0]));
+						final int cy = Math.max(r.y, Math.min(r.y + r.height - 1,
+							corner[1]));
+						final int cz = Math.max(startSlice, Math.min(endSlice, corner[2]));
+						value += weight * slices[cz].getf(cx, cy);
+					}
+					targetIP.putPixelValue(x, y, value);
+				}
+			}
+			targetStack.addSlice(null, targetIP);
+		}
+		return targetStack;
+	}
+
+	/**
+	 * Find the target voxels of {@link #align} whose source coordinates lie on a
+	 * voxel boundary, where sums in another order may round to the neighbouring
+	 * voxel
+	 *
+	 * @param imp source image
+	 * @param eigenVecInv inverse rotation matrix (target to source)
+	 * @param centroid centroid of the source image in real units
+	 * @param wT target width
+	 * @param hT target height
+	 * @param dT target depth
+	 * @param tolerance distance from a whole number, in source pixels, within
+	 *          which a coordinate is on a boundary
+	 * @return for each target slice from 0, true for the voxels on a boundary
+	 */
+	static boolean[][] alignBoundaries(final ImagePlus imp,
+		final double[][] eigenVecInv, final double[] centroid, final int wT,
+		final int hT, final int dT, final double tolerance)
+	{
+		final Calibration cal = imp.getCalibration();
+		final double[] v = { cal.pixelWidth, cal.pixelHeight, cal.pixelDepth };
+		final double vS = Math.min(v[0], Math.min(v[1], v[2]));
+		final double[] tc = { wT * vS / 2, hT * vS / 2, dT * vS / 2 };
+		final boolean[][] boundaries = new boolean[dT][wT * hT];
+		for (int z = 1; z <= dT; z++) {
+			final double zD = z * vS - tc[2];
+			for (int y = 0; y < hT; y++) {
+				final double yD = y * vS - tc[1];
+				for (int x = 0; x < wT; x++) {
+					final double xD = x * vS - tc[0];
+					for (int i = 0; i < 3; i++) {
+						final double align = xD * eigenVecInv[0][i] + yD *
+							eigenVecInv[1][i] + zD * eigenVecInv[2][i] + tc[i];
+						final double s = (align + (centroid[i] - tc[i])) / v[i];
+						if (Math.abs(s - Math.rint(s)) < tolerance) {
+							boundaries[z - 1][y * wT + x] = true;
+						}
+					}
+				}
+			}
+		}
+		return boundaries;
+	}
+
+	/**
+	 * Get the Feret diameter of a set of points by comparing all the point pairs.
+	 *
+	 * @param points surface points
+	 * @return Feret diameter, ax, ay, az, bx, by, bz and an unset minimum Feret
+	 *         diameter
+	 */
+	static double[] getFeret(final List<Point3f> points) {
+		final int nPoints = points.size();
+		Point3f feretA = new Point3f();
+		Point3f feretB = new Point3f();
+		double feret = 0;
+		for (int p = 0; p < nPoints; p++) {
+			final Point3f a = points.get(p);
+			for (int q = p + 1; q < nPoints; q++) {
+				final Point3f b = points.get(q);
+				final double distance = a.distance(b);
+				if (distance > feret) {
+					feret = distance;
+					feretA = a;
+					feretB = b;
+				}
+			}
+		}
+		return new double[] { feret, feretA.x, feretA.y, feretA.z, feretB.x,
+			feretB.y, feretB.z, 0 };
+	}
+
+	/**
+	 * Get the minimum width of a set of points by trying every direction which
+	 * can give it: the normal of every plane through three points, and every
+	 * direction perpendicular to two lines through pairs of points. The first
+	 * include the hull's face normals and the second its edge-pair directions.
+	 *
+	 * @param points the points
+	 * @return the smallest distance between two parallel planes enclosing the
+	 *         points
+	 */
+	static double getMinWidth(final List<Point3f> points) {
+		final int n = points.size();
+		final int nPairs = n * (n - 1) / 2;
+		final double[][] lines = new double[nPairs][];
+		int l = 0;
+		for (int i = 0; i < n; i++) {
+			for (int j = i + 1; j < n; j++) {
+				lines[l++] = difference(points.get(j), points.get(i));
+			}
+		}
+		double minWidth = Double.POSITIVE_INFINITY;
+		for (int i = 0; i < n; i++) {
+			for (int j = i + 1; j < n; j++) {
+				final double[] a = difference(points.get(j), points.get(i));
+				for (int k = j + 1; k < n; k++) {
+					final double[] b = difference(points.get(k), points.get(i));
+					minWidth = Math.min(minWidth, width(points, cross(a, b)));
+				}
+			}
+		}
+		for (int i = 0; i < nPairs; i++) {
+			for (int j = i + 1; j < nPairs; j++) {
+				minWidth = Math.min(minWidth, width(points, cross(lines[i], lines[j])));
+			}
+		}
+		return minWidth;
+	}
+
+	private static double[] difference(final Point3f a, final Point3f b) {
+		return new double[] { (double) a.x - b.x, (double) a.y - b.y,
+			(double) a.z - b.z };
+	}
+
+	private static double[] cross(final double[] a, final double[] b) {
+		return new double[] { a[1] * b[2] - a[2] * b[1], a[2] * b[0] - a[0] * b[2],
+			a[0] * b[1] - a[1] * b[0] };
+	}
+
+	/**
+	 * Width of the points along a direction, or infinity if the direction is
+	 * degenerate
+	 */
+	private static double width(final List<Point3f> points, final double[] n) {
+		final double length = Math.sqrt(n[0] * n[0] + n[1] * n[1] + n[2] * n[2]);
+		if (length < 1e-12) return Double.POSITIVE_INFINITY;
+		double min = Double.POSITIVE_INFINITY;
+		double max = Double.NEGATIVE_INFINITY;
+		for (final Point3f p : points) {
+			final double projection = (p.x * n[0] + p.y * n[1] + p.z * n[2]) / length;
+			min = Math.min(min, projection);
+			max = Math.max(max, projection);
+		}
+		return max - min;
+	}
+}
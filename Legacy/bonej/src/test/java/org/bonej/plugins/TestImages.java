@@ -0,0 +1,101 @@
+/*-
+ * #%L
+ * Mavenized version of the BoneJ1 plugins
+ * %%
+ * Copyright (C) 2015 - 2020 Michael Doube, BoneJ developers
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.bonej.plugins;
+
+import java.util.Random;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+
+/**
+ * Synthetic images shared by the tests
+ *
+ * @author Michael Doube
+ */
+final class TestImages {
+
+	private TestImages() {}
+
+	/**
+	 * Make an empty 8-bit stack
+	 *
+	 * @param w image width
+	 * @param h image height
+	 * @param d image depth
+	 * @return an image of background pixels
+	 */
+	static ImagePlus blank(final int w, final int h, final int d) {
+		final ImageStack stack = new ImageStack(w, h);
+		for (int z = 0; z < d; z++)
+			stack.addSlice(null, new byte[w * h]);
+		return new ImagePlus("blank", stack);
+	}
+
+	/**
+	 * Make a binary image of random foreground pixels
+	 *
+	 * @param w image width
+	 * @param h image height
+	 * @param d image depth
+	 * @param density chance of each pixel being foreground
+	 * @param random source of the pixels
+	 * @return an 8-bit image with foreground 255 and background 0
+	 */
+	static ImagePlus noise(final int w, final int h, final int d,
+		final double density, final Random random)
+	{
+		final ImageStack stack = new ImageStack(w, h);
+		for (int z = 0; z < d; z++) {
+			final byte[] pixels = new byte[w * h];
+			for (int i = 0; i < pixels.length; i++) {
+				if (random.nextDouble() < density) pixels[i] = (byte) 255;
+			}
+			stack.addSlice(new ByteProcessor(w, h, pixels));
+		}
+		return new ImagePlus("noise", stack);
+	}
+
+	/** Rotation matrix about a random axis, by Rodrigues' formula */
+	static double[][] randomRotation(final Random random) {
+		final double[] u = { random.nextGaussian(), random.nextGaussian(), random
+			.nextGaussian() };
+		final double norm = Math.sqrt(u[0] * u[0] + u[1] * u[1] + u[2] * u[2]);
+		for (int i = 0; i < 3; i++)
+			u[i] /= norm;
+		final double theta = random.nextDouble() * 2 * Math.PI;
+		final double c = Math.cos(theta);
+		final double s = Math.sin(theta);
+		final double t = 1 - c;
+		return new double[][] { { t * u[0] * u[0] + c, t * u[0] * u[1] - s * u[2],
+			t * u[0] * u[2] + s * u[1] }, { t * u[0] * u[1] + s * u[2], t * u[1] *
+				u[1] + c, t * u[1] * u[2] - s * u[0] }, { t * u[0] * u[2] - s * u[1],
+					t * u[1] * u[2] + s * u[0], t * u[2] * u[2] + c } };
+	}
+}
@@ -92,6 +92,11 @@ public class Ellipsoid {
 	private double[][] ev;
 	/** 3x3 matrix describing shape of ellipsoid */
 	private double[][] eh;
+	/**
+	 * How far (X-X0)^T H (X-X0) may exceed 1 at a line's closest approach for
+	 * {@link #getXInterval(double, double)} to count the line as touching
+	 */
+	private static final double TANGENT_TOLERANCE = 1e-12;
 
 	/**
 	 * Instantiate an ellipsoid from the result of FitEllipsoid
@@ -199,6 +204,36 @@ public class Ellipsoid {
 		return dot <= 1;
 	}
 
+	/**
+	 * Find where a line parallel to the x-axis crosses the ellipsoid, by solving
+	 * the quadratic in x of (X-X0)^T H (X-X0) = 1
+	 * <p>
+	 * A line that misses the surface by no more than rounding error gets an
+	 * interval of zero width at its closest approach, so that a point there
+	 * which {@link #contains(double, double, double)} accepts is not lost.
+	 * </p>
+	 *
+	 * @param y y-coordinate of the line.
+	 * @param z z-coordinate of the line.
+	 * @return x-coordinates of the points where the line enters and leaves the
+	 *         ellipsoid, or null if the line misses it
+	 */
+	public double[] getXInterval(final double y, final double z) {
+		final double vy = y - cy;
+		final double vz = z - cz;
+		final double[][] h = eh;
+		final double a = h[0][0];
+		final double b = (h[0][1] + h[1][0]) * vy + (h[0][2] + h[2][0]) * vz;
+		final double c = h[1][1] * vy * vy + (h[1][2] + h[2][1]) * vy * vz +
+			h[2][2] * vz * vz - 1;
+		final double discriminant = b * b - 4 * a * c;
+		if (discriminant < -4 * a * TANGENT_TOLERANCE) return null;
+		final double mid = cx - b / (2 * a);
+		if (discriminant < 0) return new double[] { mid, mid };
+		final double halfWidth = Math.sqrt(discriminant) / (2 * a);
+		return new double[] { mid - halfWidth, mid + halfWidth };
+	}
+
 	/**
 	 * Constrict all three axes by a fractional increment
 	 *
@@ -233,7 +233,53 @@ public final class FitEllipsoid {
 
 		// the fitted equation
 		final double[] v = V.getColumnPackedCopy();
+		return fromEquation(v);
+	}
+
+	/**
+	 * Ellipsoid fitting method by Yury Petrov, solved from normal equations
+	 * accumulated point by point.
+	 * <p>
+	 * Gives the same fit as {@link #yuryPetrov(double[][])} to within rounding,
+	 * without building the <i>n</i> &times; 9 design matrix, so the memory used
+	 * does not depend on the number of points.
+	 * </p>
+	 *
+	 * @param accumulator normal equations of at least 9 points
+	 * @return Object[] array containing the centre, radii, eigenvectors of the
+	 *         axes, the 9 variables of the ellipsoid equation and the EVD
+	 * @throws IllegalArgumentException if number of coordinates is less than 9 or
+	 * if ellipsoid matrix is not positive definite (i.e. the fitted function is
+	 * one of the other quadrics).
+	 */
+	public static Object[] yuryPetrov(final Accumulator accumulator) {
+		if (accumulator.nPoints < 9) {
+			throw new IllegalArgumentException(
+				"Too few points; need at least 9 to calculate a unique ellipsoid");
+		}
+		final double[][] dtd = new double[9][9];
+		final double[][] dt1 = new double[9][1];
+		for (int i = 0; i < 9; i++) {
+			for (int j = i; j < 9; j++) {
+				dtd[i][j] = accumulator.dtd[i * 9 + j];
+				dtd[j][i] = dtd[i][j];
+			}
+			dt1[i][0] = accumulator.dt1[i];
+		}
+		final Matrix V = new Matrix(dtd).inverse().times(new Matrix(dt1));
+		return fromEquation(V.getColumnPackedCopy());
+	}
 
+	/**
+	 * Pack the matrix representation and radii of a fitted ellipsoid
+	 *
+	 * @param v the 9 variables of the ellipsoid equation
+	 * @return Object[] array containing the centre, radii, eigenvectors of the
+	 *         axes, the 9 variables of the ellipsoid equation and the EVD
+	 * @throws IllegalArgumentException if ellipsoid matrix is not positive
+	 *           definite
+	 */
+	private static Object[] fromEquation(final double[] v) {
 		final Object[] matrices = matrixFromEquation(v[0], v[1], v[2],
 			v[3], v[4], v[5], v[6], v[7], v[8]);
 
@@ -256,6 +302,72 @@ public final class FitEllipsoid {
 		return new Object[] { centre, radii, eigenVectors, v, E };
 	}
 
+	/**
+	 * Normal equations of Yury Petrov's ellipsoid fit, accumulated one point at
+	 * a time for {@link FitEllipsoid#yuryPetrov(Accumulator)}.
+	 * <p>
+	 * Holds the upper triangle of <b>D</b><sup>T</sup><b>D</b> and the vector
+	 * <b>D</b><sup>T</sup><b>1</b>, where each row of the design matrix <b>D</b>
+	 * is (<i>x</i><sup>2</sup>, <i>y</i><sup>2</sup>, <i>z</i><sup>2</sup>,
+	 * 2<i>xy</i>, 2<i>xz</i>, 2<i>yz</i>, 2<i>x</i>, 2<i>y</i>, 2<i>z</i>).
+	 * Whatever the number of points, its state is 99 doubles (the 9 x 9 array
+	 * for <b>D</b><sup>T</sup><b>D</b>, <b>D</b><sup>T</sup><b>1</b> and the
+	 * latest row of <b>D</b>) and a point count. An accumulator is not thread
+	 * safe.
+	 * </p>
+	 */
+	public static final class Accumulator {
+
+		/** upper triangle of D'D, row major in a 9 x 9 array */
+		private final double[] dtd = new double[81];
+
+		/** D'1 */
+		private final double[] dt1 = new double[9];
+
+		/** design matrix row of the latest point */
+		private final double[] row = new double[9];
+
+		private long nPoints;
+
+		/**
+		 * Add a point to the normal equations
+		 *
+		 * @param x x coordinate
+		 * @param y y coordinate
+		 * @param z z coordinate
+		 */
+		public void add(final double x, final double y, final double z) {
+			final double[] d = row;
+			d[0] = x * x;
+			d[1] = y * y;
+			d[2] = z * z;
+			d[3] = 2 * x * y;
+			d[4] = 2 * x * z;
+			d[5] = 2 * y * z;
+			d[6] = 2 * x;
+			d[7] = 2 * y;
+			d[8] = 2 * z;
+			for (int i = 0; i < 9; i++) {
+				final double di = d[i];
+				final int offset = i * 9;
+				for (int j = i; j < 9; j++) {
+					dtd[offset + j] += di * d[j];
+				}
+				dt1[i] += di;
+			}
+			nPoints++;
+		}
+
+		/**
+		 * Get the number of points added
+		 *
+		 * @return number of points
+		 */
+		public long getCount() {
+			return nPoints;
+		}
+	}
+
 	/**
 	 * Sets the seed number of the pseudo-random number generator in
 	 * testEllipsoid.
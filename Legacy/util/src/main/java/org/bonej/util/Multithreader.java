@@ -51,6 +51,9 @@ OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 
 package org.bonej.util;
 
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
 import ij.Prefs;
 
 /**
@@ -83,4 +86,36 @@ public final class Multithreader {
 			throw new RuntimeException(ie);
 		}
 	}
+
+	/**
+	 * Run the threads' work as tasks in a pool and wait for it to finish, so that
+	 * work split by several tasks of the pool shares the pool's threads instead
+	 * of each starting a full set. The threads themselves are not started.
+	 *
+	 * @param threads threads whose work to run
+	 * @param pool pool to run the work in, or null to start and join the threads
+	 */
+	public static void startAndJoin(final Thread[] threads,
+		final ForkJoinPool pool)
+	{
+		if (pool == null) {
+			startAndJoin(threads);
+			return;
+		}
+		// Thread.run() runs the thread's work on the calling thread
+		final ForkJoinTask<?>[] tasks = new ForkJoinTask<?>[threads.length];
+		for (int i = 0; i < threads.length; i++) {
+			tasks[i] = ForkJoinTask.adapt(threads[i]);
+		}
+		if (ForkJoinTask.getPool() == pool) {
+			ForkJoinTask.invokeAll(tasks);
+			return;
+		}
+		for (final ForkJoinTask<?> task : tasks) {
+			pool.execute(task);
+		}
+		for (final ForkJoinTask<?> task : tasks) {
+			task.join();
+		}
+	}
 }
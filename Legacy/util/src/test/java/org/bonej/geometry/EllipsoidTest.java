@@ -203,6 +203,31 @@ public class EllipsoidTest {
 		}
 	}
 
+	@Test
+	public void testGetXInterval() {
+		final double[] interval = unitSphere.getXInterval(0.6, 0);
+		assertArrayEquals(new double[] { -0.8, 0.8 }, interval, 1e-12);
+		assertEquals(null, unitSphere.getXInterval(0.8, 0.8));
+
+		// the ends of the interval lie on the surface of a rotated ellipsoid
+		for (int i = 0; i < 100; i++) {
+			final double y = (Math.random() - 0.5) * 20;
+			final double z = (Math.random() - 0.5) * 20;
+			final double[] xs = rotated.getXInterval(y, z);
+			if (xs == null) {
+				for (double x = -20; x <= 20; x += 0.1) {
+					assertTrue(!rotated.contains(x, y, z));
+				}
+				continue;
+			}
+			assertTrue(rotated.contains((xs[0] + xs[1]) / 2, y, z));
+			assertTrue(rotated.contains(xs[0] + 1e-6, y, z));
+			assertTrue(!rotated.contains(xs[0] - 1e-6, y, z));
+			assertTrue(rotated.contains(xs[1] - 1e-6, y, z));
+			assertTrue(!rotated.contains(xs[1] + 1e-6, y, z));
+		}
+	}
+
 	@Test
 	public void testGetCentre() {
 		assertArrayEquals(new double[] { 0, 0, 0 }, unitSphere.getCentre(), 1E-9);
@@ -58,6 +58,37 @@ public class FitEllipsoidTest {
 		assertArrayEquals(radii, (double[]) result[1], 1e-2);
 	}
 	
+	@Test
+	public void testYuryPetrovAccumulatorMatchesDesignMatrix() {
+		final double[][] points = FitEllipsoid.testEllipsoid(a, b, c, r, x, y, z, 0.05, 5000, true);
+		final FitEllipsoid.Accumulator accumulator = new FitEllipsoid.Accumulator();
+		for (final double[] point : points) {
+			accumulator.add(point[0], point[1], point[2]);
+		}
+		assertEquals(points.length, accumulator.getCount());
+
+		final Object[] expected = FitEllipsoid.yuryPetrov(points);
+		final Object[] result = FitEllipsoid.yuryPetrov(accumulator);
+
+		assertArrayEquals((double[]) expected[0], (double[]) result[0], 1e-9);
+		assertArrayEquals((double[]) expected[1], (double[]) result[1], 1e-9);
+		assertArrayEquals((double[]) expected[3], (double[]) result[3], 1e-9);
+		final double[][] expectedVectors = (double[][]) expected[2];
+		final double[][] vectors = (double[][]) result[2];
+		for (int i = 0; i < 3; i++) {
+			assertArrayEquals(expectedVectors[i], vectors[i], 1e-9);
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testYuryPetrovAccumulatorTooFewPoints() {
+		final FitEllipsoid.Accumulator accumulator = new FitEllipsoid.Accumulator();
+		for (int i = 0; i < 8; i++) {
+			accumulator.add(i, i * i, -i);
+		}
+		FitEllipsoid.yuryPetrov(accumulator);
+	}
+
 	@Test(expected = IllegalArgumentException.class)
 	public void testYuryPetrovCylinder() {
 		//generate points on a cylinder with d = h, centred on 0, 0, 0.